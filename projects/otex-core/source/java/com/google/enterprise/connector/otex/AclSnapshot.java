@@ -0,0 +1,405 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local snapshot of the Livelink users and groups, and of the ACLs
+ * of the PermIDs seen by the authorization manager, used to authorize
+ * documents without an impersonated query. Group membership is
+ * flattened when the snapshot is loaded, so that each user has a
+ * bitset of all of the groups that they belong to, directly or
+ * through nested groups. Each ACL has a bitset of the groups that
+ * have the See Contents permission, so that most decisions are a
+ * bitset intersection.
+ * <p>
+ * The users and groups are reloaded periodically, which also clears
+ * the ACLs. The ACLs are loaded as needed, and the ACLs of modified
+ * nodes are removed when they are found. Unknown users, and PermIDs
+ * with no ACL rows or with entries for unknown users or groups, are
+ * left undecided, so that they are checked with the authorization
+ * query instead. This class is thread-safe.
+ */
+class AclSnapshot {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(AclSnapshot.class.getName());
+
+  /** The maximum number of PermIDs in a query, due to Oracle limits. */
+  private static final int MAX_IN_LIST_SIZE = 1000;
+
+  /** A user in the snapshot. */
+  private static class User {
+    final int id;
+    final int privileges;
+
+    /** The indexes of all of the groups that the user belongs to. */
+    final BitSet groups;
+
+    User(int id, int privileges, BitSet groups) {
+      this.id = id;
+      this.privileges = privileges;
+      this.groups = groups;
+    }
+
+    boolean hasPrivilege(int privilege) {
+      return (privileges & privilege) == privilege;
+    }
+  }
+
+  /** The entries of an ACL with the See Contents permission. */
+  private static class Acl {
+    boolean world = false;
+    final IntList users = new IntList();
+    final BitSet groups = new BitSet();
+  }
+
+  /** Marks an ACL that cannot be evaluated locally. */
+  private static final Acl UNDECIDABLE = new Acl();
+
+  private final int maxAcls;
+
+  private final long refreshMillis;
+
+  /** Guards the snapshot. */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** The users by name, or null if not yet loaded. */
+  private Map<String, User> users = null;
+
+  /** The IDs of the users, with unused values. */
+  private IntIntMap userIds = new IntIntMap();
+
+  /** The bit index of each group, by ID. */
+  private IntIntMap groupIndexes = new IntIntMap();
+
+  /** The ACLs by PermID. */
+  private final Map<Integer, Acl> acls = new HashMap<Integer, Acl>();
+
+  /** The time of the last load of the users and groups. */
+  private volatile long refreshTime = 0;
+
+  /**
+   * Constructs an empty snapshot.
+   *
+   * @param maxAcls the maximum number of ACLs
+   * @param refreshSeconds the number of seconds between loads of the
+   * users and groups
+   */
+  AclSnapshot(int maxAcls, int refreshSeconds) {
+    this.maxAcls = maxAcls;
+    this.refreshMillis = refreshSeconds * 1000L;
+  }
+
+  /**
+   * Gets the decisions for the given PermIDs, loading the users and
+   * groups, and any missing ACLs, first.
+   *
+   * @param client a sysadmin client, which is only used by one thread
+   * at a time
+   * @param sqlQueries the SQL queries
+   * @param username the Livelink username
+   * @param permIds the PermIDs
+   * @return the decisions for the PermIDs that could be decided, or
+   * null if the user is not in the snapshot
+   * @throws RepositoryException if an error occurs
+   */
+  Map<Integer, Boolean> authorize(Client client, SqlQueries sqlQueries,
+      String username, Collection<Integer> permIds)
+      throws RepositoryException {
+    refresh(client, sqlQueries);
+
+    List<Integer> missing = new ArrayList<Integer>();
+    lock.readLock().lock();
+    try {
+      User user = users.get(username);
+      if (user == null) {
+        return null;
+      }
+      if (!user.hasPrivilege(Client.PRIV_PERM_BYPASS)) {
+        for (Integer permId : permIds) {
+          if (!acls.containsKey(permId)) {
+            missing.add(permId);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    if (!missing.isEmpty()) {
+      lock.writeLock().lock();
+      try {
+        loadAcls(client, sqlQueries, missing);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    return getDecisions(username, permIds);
+  }
+
+  /**
+   * Gets the decisions for the given PermIDs from the snapshot.
+   *
+   * @param username the Livelink username
+   * @param permIds the PermIDs
+   * @return the decisions for the PermIDs that could be decided, or
+   * null if the user is not in the snapshot
+   */
+  @VisibleForTesting
+  Map<Integer, Boolean> getDecisions(String username,
+      Collection<Integer> permIds) {
+    lock.readLock().lock();
+    try {
+      User user = (users == null) ? null : users.get(username);
+      if (user == null) {
+        return null;
+      }
+      Map<Integer, Boolean> decisions = new HashMap<Integer, Boolean>();
+      for (Integer permId : permIds) {
+        if (user.hasPrivilege(Client.PRIV_PERM_BYPASS)) {
+          decisions.put(permId, true);
+        } else {
+          Acl acl = acls.get(permId);
+          if (acl != null && acl != UNDECIDABLE) {
+            decisions.put(permId, isAllowed(user, acl));
+          }
+        }
+      }
+      return decisions;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static boolean isAllowed(User user, Acl acl) {
+    return (acl.world && user.hasPrivilege(Client.PRIV_PERM_WORLD))
+        || acl.users.contains(user.id)
+        || acl.groups.intersects(user.groups);
+  }
+
+  /**
+   * Removes the ACLs of the given PermIDs, which may have been
+   * modified.
+   *
+   * @param permIds the PermIDs of the modified nodes
+   */
+  void evict(IntList permIds) {
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < permIds.size(); i++) {
+        acls.remove(permIds.get(i));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Loads the users and groups, if it is time to. */
+  private void refresh(Client client, SqlQueries sqlQueries)
+      throws RepositoryException {
+    if (users != null
+        && System.currentTimeMillis() - refreshTime < refreshMillis) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      // Another thread may have gotten here first.
+      if (users != null
+          && System.currentTimeMillis() - refreshTime < refreshMillis) {
+        return;
+      }
+      long start = System.currentTimeMillis();
+      ClientValue principals =
+          sqlQueries.execute(client, null, "AclSnapshot.getPrincipals");
+      ClientValue memberships =
+          sqlQueries.execute(client, null, "AclSnapshot.getMemberships");
+      loadPrincipals(principals, memberships);
+      refreshTime = System.currentTimeMillis();
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("ACL SNAPSHOT: Loaded " + users.size() + " users and "
+            + groupIndexes.size() + " groups in " + (refreshTime - start)
+            + " ms");
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the users and groups, and clears the ACLs. The caller
+   * must hold the write lock.
+   *
+   * @param principals the DataID (KUAF.ID), Name, Type, and
+   * UserPrivileges of the users and groups
+   * @param memberships the DataID (KUAFChildren.ID) of each group and
+   * the ChildID of each of its members
+   */
+  @VisibleForTesting
+  void loadPrincipals(ClientValue principals, ClientValue memberships)
+      throws RepositoryException {
+    IntIntMap newGroupIndexes = new IntIntMap();
+    for (int i = 0; i < principals.size(); i++) {
+      if (principals.toInteger(i, "Type") == Client.GROUP) {
+        newGroupIndexes.put(principals.toInteger(i, "DataID"),
+            newGroupIndexes.size());
+      }
+    }
+
+    // The groups that each user or group belongs to directly.
+    Map<Integer, IntList> parents = new HashMap<Integer, IntList>();
+    for (int i = 0; i < memberships.size(); i++) {
+      int groupId = memberships.toInteger(i, "DataID");
+      if (newGroupIndexes.containsKey(groupId)) {
+        int childId = memberships.toInteger(i, "ChildID");
+        IntList groupIds = parents.get(childId);
+        if (groupIds == null) {
+          groupIds = new IntList();
+          parents.put(childId, groupIds);
+        }
+        groupIds.add(groupId);
+      }
+    }
+
+    Map<String, User> newUsers = new HashMap<String, User>();
+    IntIntMap newUserIds = new IntIntMap();
+    for (int i = 0; i < principals.size(); i++) {
+      if (principals.toInteger(i, "Type") == Client.USER) {
+        int id = principals.toInteger(i, "DataID");
+        int privileges = principals.isDefined(i, "UserPrivileges")
+            ? principals.toInteger(i, "UserPrivileges") : 0;
+        BitSet groups = getGroups(id, parents, newGroupIndexes);
+        newUsers.put(principals.toString(i, "Name"),
+            new User(id, privileges, groups));
+        newUserIds.put(id, 0);
+      }
+    }
+
+    users = newUsers;
+    userIds = newUserIds;
+    groupIndexes = newGroupIndexes;
+    acls.clear();
+  }
+
+  /**
+   * Gets the indexes of all of the groups that a user belongs to,
+   * following nested groups. Cycles are stopped by the bitset.
+   */
+  private static BitSet getGroups(int userId, Map<Integer, IntList> parents,
+      IntIntMap groupIndexes) {
+    BitSet groups = new BitSet();
+    Deque<Integer> pending = new ArrayDeque<Integer>();
+    pending.push(userId);
+    while (!pending.isEmpty()) {
+      IntList groupIds = parents.get(pending.pop());
+      if (groupIds != null) {
+        for (int i = 0; i < groupIds.size(); i++) {
+          int index = groupIndexes.get(groupIds.get(i), -1);
+          if (!groups.get(index)) {
+            groups.set(index);
+            pending.push(groupIds.get(i));
+          }
+        }
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * Loads the ACLs of the given PermIDs. The caller must hold the
+   * write lock.
+   */
+  private void loadAcls(Client client, SqlQueries sqlQueries,
+      List<Integer> permIds) throws RepositoryException {
+    for (int start = 0; start < permIds.size(); start += MAX_IN_LIST_SIZE) {
+      List<Integer> chunk = permIds.subList(start,
+          Math.min(start + MAX_IN_LIST_SIZE, permIds.size()));
+      ClientValue rows = sqlQueries.execute(client, null,
+          "AclSnapshot.getAcls", Joiner.on(',').join(chunk));
+      addAcls(rows, chunk);
+    }
+  }
+
+  /**
+   * Adds the ACLs of the given PermIDs. The caller must hold the
+   * write lock.
+   *
+   * @param rows the DataID, RightID, and Permissions of the DTreeACL
+   * rows for the PermIDs
+   * @param permIds the PermIDs that were queried
+   */
+  @VisibleForTesting
+  void addAcls(ClientValue rows, Collection<Integer> permIds)
+      throws RepositoryException {
+    if (acls.size() + permIds.size() > maxAcls) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("ACL SNAPSHOT: Clearing " + acls.size() + " ACLs");
+      }
+      acls.clear();
+    }
+
+    // PermIDs without any rows are left undecidable.
+    for (Integer permId : permIds) {
+      acls.put(permId, UNDECIDABLE);
+    }
+    Map<Integer, Acl> loaded = new HashMap<Integer, Acl>();
+    for (int i = 0; i < rows.size(); i++) {
+      int permId = rows.toInteger(i, "DataID");
+      Acl acl = loaded.get(permId);
+      if (acl == null) {
+        acl = new Acl();
+        loaded.put(permId, acl);
+      } else if (acl == UNDECIDABLE) {
+        continue;
+      }
+
+      int permissions = rows.toInteger(i, "Permissions");
+      if ((permissions & Client.PERM_SEECONTENTS) != Client.PERM_SEECONTENTS) {
+        continue;
+      }
+      int rightId = rows.toInteger(i, "RightID");
+      if (rightId == Client.RIGHT_WORLD) {
+        acl.world = true;
+      } else if (userIds.containsKey(rightId)) {
+        acl.users.add(rightId);
+      } else if (groupIndexes.containsKey(rightId)) {
+        acl.groups.set(groupIndexes.get(rightId, -1));
+      } else {
+        // A principal added since the snapshot was loaded, or a
+        // special RightID.
+        loaded.put(permId, UNDECIDABLE);
+      }
+    }
+    acls.putAll(loaded);
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded LRU cache of authorization decisions for pairs of
+ * Livelink usernames and docids. The decisions expire after a fixed
+ * time, so that permission changes are seen within that time. Both
+ * allowed and denied decisions are cached. This class is thread-safe.
+ */
+class AuthorizationCache {
+  /** A source of the current time, which tests can replace. */
+  interface Clock {
+    long nanoTime();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+      @Override
+      public long nanoTime() {
+        return System.nanoTime();
+      }
+    };
+
+  /** The cache key, a username and a docid. */
+  private static final class Key {
+    private final String username;
+    private final String docid;
+
+    Key(String username, String docid) {
+      this.username = username;
+      this.docid = docid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return username.equals(other.username) && docid.equals(other.docid);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * username.hashCode() + docid.hashCode();
+    }
+  }
+
+  /** A cached decision and the time that it expires. */
+  private static final class Decision {
+    private final boolean allowed;
+    private final long expiresNanos;
+
+    Decision(boolean allowed, long expiresNanos) {
+      this.allowed = allowed;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+
+  private final Clock clock;
+
+  private final long timeoutNanos;
+
+  /** The decisions, in access order. */
+  private final LinkedHashMap<Key, Decision> decisions;
+
+  /** Cache hit counter, for logging statistics. */
+  private int hits = 0;
+
+  /** Cache miss counter, for logging statistics. */
+  private int misses = 0;
+
+  /**
+   * Constructs an empty cache.
+   *
+   * @param maxSize the maximum number of decisions to cache
+   * @param timeoutSeconds the number of seconds to keep each decision
+   */
+  AuthorizationCache(int maxSize, int timeoutSeconds) {
+    this(maxSize, timeoutSeconds, SYSTEM_CLOCK);
+  }
+
+  @VisibleForTesting
+  AuthorizationCache(final int maxSize, int timeoutSeconds, Clock clock) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+    Preconditions.checkArgument(timeoutSeconds > 0,
+        "timeoutSeconds must be positive");
+    this.clock = clock;
+    this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    this.decisions = new LinkedHashMap<Key, Decision>(
+        Math.min(maxSize, 1024), 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Gets the cached decision for a user and docid.
+   *
+   * @param username the Livelink username
+   * @param docid the docid
+   * @return {@code Boolean.TRUE} if the user is allowed to see the
+   * document, {@code Boolean.FALSE} if not, or {@code null} if there
+   * is no current decision in the cache
+   */
+  synchronized Boolean get(String username, String docid) {
+    Key key = new Key(username, docid);
+    Decision decision = decisions.get(key);
+    if (decision != null && clock.nanoTime() - decision.expiresNanos >= 0) {
+      decisions.remove(key);
+      decision = null;
+    }
+    if (decision == null) {
+      misses++;
+      return null;
+    } else {
+      hits++;
+      return decision.allowed;
+    }
+  }
+
+  /**
+   * Caches the decision for a user and docid.
+   *
+   * @param username the Livelink username
+   * @param docid the docid
+   * @param allowed {@code true} if the user is allowed to see the
+   * document, or {@code false} if not
+   */
+  synchronized void put(String username, String docid, boolean allowed) {
+    decisions.put(new Key(username, docid),
+        new Decision(allowed, clock.nanoTime() + timeoutNanos));
+  }
+
+  /** Returns a snapshot of the current cache statistics. */
+  synchronized CacheStatistics statistics() {
+    return new CacheStatistics(decisions.size(), hits, misses);
+  }
+}
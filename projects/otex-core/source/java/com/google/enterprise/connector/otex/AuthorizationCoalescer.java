@@ -0,0 +1,232 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges concurrent authorization requests for the same user. The
+ * first request for a user queries its docids at once. Requests for
+ * the same user that arrive while that query is running wait for it
+ * if it includes all of their docids, and otherwise add their docids
+ * to a single follow-up batch, which is queried as soon as the
+ * running query finishes. Every request in a batch gets the same set
+ * of allowed docids. This class is thread-safe.
+ */
+class AuthorizationCoalescer {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationCoalescer.class.getName());
+
+  /** Authorizes the docids of a batch. */
+  interface Query {
+    /**
+     * Gets the allowed docids.
+     *
+     * @param username the Livelink username
+     * @param docids the distinct docids to authorize
+     * @return the allowed docids
+     * @throws RepositoryException if an error occurs
+     */
+    Set<String> authorize(String username, Collection<String> docids)
+        throws RepositoryException;
+  }
+
+  /** The merged requests for a user. */
+  private static class Batch {
+    final Set<String> docids = new LinkedHashSet<String>();
+    final CountDownLatch done = new CountDownLatch(1);
+    int requestCount = 0;
+
+    /** The outcome, which is visible to the waiting requests. */
+    Set<String> allowed = null;
+    Throwable failure = null;
+  }
+
+  private final long windowMillis;
+
+  private final Query query;
+
+  /** The batches that are being queried, by username. */
+  private final Map<String, Batch> runningBatches =
+      new HashMap<String, Batch>();
+
+  /** The follow-up batches that are accepting requests, by username. */
+  private final Map<String, Batch> openBatches =
+      new HashMap<String, Batch>();
+
+  /** Totals, for the statistics. */
+  private long requestCount = 0;
+  private long batchCount = 0;
+
+  /**
+   * @param windowMillis the maximum number of milliseconds that a
+   *     follow-up batch waits for the running query
+   * @param query the query for the docids of a batch
+   */
+  AuthorizationCoalescer(long windowMillis, Query query) {
+    this.windowMillis = windowMillis;
+    this.query = query;
+  }
+
+  /**
+   * Gets the allowed docids for a request, which may include allowed
+   * docids from other requests in the same batch.
+   *
+   * @param username the Livelink username
+   * @param docids the docids to authorize
+   * @return an unmodifiable set of allowed docids
+   * @throws RepositoryException if an error occurs
+   */
+  Set<String> authorize(String username, Collection<String> docids)
+      throws RepositoryException {
+    Batch batch;
+    Batch previous = null;
+    boolean isFirst;
+    synchronized (this) {
+      requestCount++;
+      Batch running = runningBatches.get(username);
+      if (running != null && running.docids.containsAll(docids)) {
+        // The running query already covers this request.
+        batch = running;
+        isFirst = false;
+      } else {
+        batch = openBatches.get(username);
+        isFirst = (batch == null);
+        if (isFirst) {
+          batchCount++;
+          batch = new Batch();
+          if (running == null) {
+            runningBatches.put(username, batch);
+          } else {
+            openBatches.put(username, batch);
+            previous = running;
+          }
+        }
+        batch.docids.addAll(docids);
+      }
+      batch.requestCount++;
+    }
+
+    if (isFirst) {
+      run(username, batch, previous);
+    } else {
+      try {
+        batch.done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
+
+    Throwable failure = batch.failure;
+    if (failure != null) {
+      // The request that ran the query gets the original exception,
+      // and the waiting requests get their own wrapped exceptions.
+      if (isFirst) {
+        if (failure instanceof RepositoryException) {
+          throw (RepositoryException) failure;
+        } else if (failure instanceof RuntimeException) {
+          throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+          throw (Error) failure;
+        }
+      }
+      throw new RepositoryException("Coalesced authorization failed for "
+          + username, failure);
+    }
+    return batch.allowed;
+  }
+
+  /**
+   * Waits for the previous query, if any, and queries the batch.
+   *
+   * @param username the Livelink username
+   * @param batch the batch to query
+   * @param previous the running query that the batch follows, or
+   *     {@code null} if the batch is queried at once
+   */
+  private void run(String username, Batch batch, Batch previous) {
+    // An interrupt is cleared until after the query, so that it does
+    // not fail a query that the waiting requests depend on.
+    boolean interrupted = Thread.interrupted();
+    if (previous != null) {
+      try {
+        previous.done.await(windowMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+      synchronized (this) {
+        // Once the batch is closed, its docids are no longer modified.
+        openBatches.remove(username);
+        runningBatches.put(username, batch);
+      }
+    }
+    if (batch.requestCount > 1 && LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("AUTHORIZATION COALESCED: " + batch.requestCount
+          + " requests with " + batch.docids.size() + " docids for "
+          + username);
+    }
+
+    // Any failure must be recorded, or the waiting requests would
+    // find neither the allowed docids nor an exception.
+    try {
+      batch.allowed = Collections.unmodifiableSet(
+          query.authorize(username, batch.docids));
+    } catch (Throwable t) {
+      batch.failure = t;
+    } finally {
+      synchronized (this) {
+        // A follow-up batch may have timed out and replaced this one.
+        if (runningBatches.get(username) == batch) {
+          runningBatches.remove(username);
+        }
+      }
+      batch.done.countDown();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Checks whether a query is running for the user. */
+  @VisibleForTesting
+  synchronized boolean isRunning(String username) {
+    return runningBatches.containsKey(username);
+  }
+
+  /** Checks whether a follow-up batch is accepting requests for the user. */
+  @VisibleForTesting
+  synchronized boolean isOpen(String username) {
+    return openBatches.containsKey(username);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "requests " + requestCount + ", batches " + batchCount;
+  }
+}
@@ -20,11 +20,8 @@ import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -55,11 +52,11 @@ class BatchGenealogist extends HybridGenealogist {
   protected void matchDescendants(ClientValue matching,
       StringBuilder descendants) throws RepositoryException {
     // First, check the matching nodes themselves.
+    IntList noPossibles = new IntList();
     StringBuilder undecideds = new StringBuilder();
     for (int i = 0; i < matching.size(); i++) {
       final int matchingId = matching.toInteger(i, "DataID");
-      if (!matchParent(matchingId, matchingId,
-              Collections.<Integer>emptyList(), descendants))
+      if (!matchParent(matchingId, matchingId, noPossibles, descendants))
         undecideds.append(matchingId).append(',');
     }
 
@@ -125,7 +122,7 @@ class BatchGenealogist extends HybridGenealogist {
    */
   private static final class Node {
     /** The ancestors between the matches and this node. */
-    private final ArrayList<Integer> cachePossibles = new ArrayList<Integer>();
+    private final IntList cachePossibles = new IntList();
 
     /** The matching descendants of this node. */
     private final StringBuilder matches = new StringBuilder();
@@ -134,12 +131,12 @@ class BatchGenealogist extends HybridGenealogist {
       cachePossibles.add(parentId);
     }
 
-    void addPossibles(List<Integer> possibles) {
+    void addPossibles(IntList possibles) {
       cachePossibles.addAll(possibles);
     }
 
     /** Gets the ancestors for insertion into one of the caches. */
-    public List<Integer> getPossibles() {
+    public IntList getPossibles() {
       return cachePossibles;
     }
 
@@ -0,0 +1,199 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of candidates to request in each candidates
+ * query. The fixed strategy starts with the batch hint and multiplies
+ * the size by ten after each window of candidates that are all
+ * rejected. The adaptive strategy tracks the fraction of candidates
+ * that pass the results query filters, and the query time per
+ * candidate. It requests enough candidates to fill a batch, but not
+ * so many that the query is likely to use up the remaining traversal
+ * time.
+ */
+class BatchSizeController {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(BatchSizeController.class.getName());
+
+  /**
+   * The maximum number of candidates, due to the Oracle limit of 1000
+   * expressions in an IN list.
+   */
+  static final int MAX_CANDIDATES = 1000;
+
+  /** The weight of the newest observation in the moving averages. */
+  private static final double WEIGHT = 0.3;
+
+  /** The smallest yield used to size a query, to avoid dividing by zero. */
+  private static final double MIN_YIELD = 0.001;
+
+  /** The fraction of the remaining traversal time one query may use. */
+  private static final double HEADROOM_FRACTION = 0.25;
+
+  /** The reasons for a decision, for logging and testing. */
+  enum Reason { HINT, YIELD, SPARSE, HEADROOM, MAXIMUM }
+
+  private final boolean adaptive;
+
+  /** The moving average of the fraction of candidates that pass. */
+  private double yield = 1.0;
+
+  /** The moving average of the query time per candidate, or -1. */
+  private double millisPerCandidate = -1.0;
+
+  /** Totals, for the statistics. */
+  private long queryCount = 0;
+  private long candidateCount = 0;
+  private long resultCount = 0;
+  private long queryMillis = 0;
+
+  /** The last decision. */
+  private int lastSize = 0;
+  private Reason lastReason = null;
+
+  /**
+   * @param adaptive {@code true} to use the adaptive strategy, or
+   *     {@code false} for the fixed strategy
+   */
+  BatchSizeController(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Gets the number of candidates for the first query of a batch.
+   *
+   * @param batchHint the requested number of documents per batch
+   * @param remainingMillis the remaining traversal time, or a negative
+   *     number if there is no limit
+   * @return the number of candidates to request
+   */
+  synchronized int getInitialSize(int batchHint, long remainingMillis) {
+    if (!adaptive) {
+      return decide(batchHint, Reason.HINT);
+    }
+    int size = (int) Math.min(MAX_CANDIDATES,
+        Math.ceil(batchHint / Math.max(yield, MIN_YIELD)));
+    return limit(size, Reason.YIELD, remainingMillis);
+  }
+
+  /**
+   * Gets the number of candidates for the next query of a batch, after
+   * all of the previous candidates were rejected.
+   *
+   * @param previousSize the number of candidates in the previous query
+   * @param batchHint the requested number of documents per batch
+   * @param remainingMillis the remaining traversal time, or a negative
+   *     number if there is no limit
+   * @return the number of candidates to request
+   */
+  synchronized int getNextSize(int previousSize, int batchHint,
+      long remainingMillis) {
+    if (!adaptive) {
+      return decide(Math.min(MAX_CANDIDATES, previousSize * 10),
+          Reason.SPARSE);
+    }
+    // The yield for this batch is zero so far, so at least double.
+    int size = (int) Math.min(MAX_CANDIDATES, Math.max(2L * previousSize,
+            Math.ceil(batchHint / Math.max(yield, MIN_YIELD))));
+    return limit(size, Reason.SPARSE, remainingMillis);
+  }
+
+  /** Applies the time limit and the maximum size to a decision. */
+  private int limit(int size, Reason reason, long remainingMillis) {
+    if (remainingMillis >= 0 && millisPerCandidate > 0) {
+      long affordable =
+          (long) (remainingMillis * HEADROOM_FRACTION / millisPerCandidate);
+      if (affordable < size) {
+        return decide((int) Math.max(1, affordable), Reason.HEADROOM);
+      }
+    }
+    if (size >= MAX_CANDIDATES) {
+      return decide(MAX_CANDIDATES, Reason.MAXIMUM);
+    }
+    return decide(size, reason);
+  }
+
+  private int decide(int size, Reason reason) {
+    lastSize = size;
+    lastReason = reason;
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("CANDIDATES SIZE: " + size + " (" + reason + "); "
+          + this);
+    }
+    return size;
+  }
+
+  /**
+   * Records the outcome of a candidates query and the results query
+   * for those candidates.
+   *
+   * @param candidates the number of candidates returned
+   * @param results the number of candidates that passed the filters
+   * @param elapsedMillis the time taken by both queries
+   */
+  synchronized void recordQuery(int candidates, int results,
+      long elapsedMillis) {
+    queryCount++;
+    candidateCount += candidates;
+    resultCount += results;
+    queryMillis += elapsedMillis;
+
+    if (candidates > 0) {
+      double queryYield = (double) results / candidates;
+      double queryMillisPerCandidate = (double) elapsedMillis / candidates;
+      yield = WEIGHT * queryYield + (1 - WEIGHT) * yield;
+      millisPerCandidate = (millisPerCandidate < 0)
+          ? queryMillisPerCandidate
+          : WEIGHT * queryMillisPerCandidate
+              + (1 - WEIGHT) * millisPerCandidate;
+    }
+  }
+
+  /** Gets the moving average of the fraction of candidates that pass. */
+  synchronized double getYield() {
+    return yield;
+  }
+
+  /**
+   * Gets the moving average of the query time per candidate, or -1 if
+   * no candidates have been queried.
+   */
+  synchronized double getMillisPerCandidate() {
+    return millisPerCandidate;
+  }
+
+  /** Gets the last number of candidates chosen. */
+  synchronized int getLastSize() {
+    return lastSize;
+  }
+
+  /** Gets the reason for the last number of candidates chosen. */
+  synchronized Reason getLastReason() {
+    return lastReason;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "yield " + String.format("%.3f", yield)
+        + ", ms/candidate " + String.format("%.2f", millisPerCandidate)
+        + ", queries " + queryCount + ", candidates " + candidateCount
+        + ", results " + resultCount + ", query ms " + queryMillis;
+  }
+}
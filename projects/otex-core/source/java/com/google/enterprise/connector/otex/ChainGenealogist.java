@@ -0,0 +1,163 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A genealogist that gets several levels of ancestors of each node in
+ * a single query. The nodes are checked against the included and
+ * excluded nodes and caches level by level in memory, and only the
+ * nodes that are still undecided at the top of their chains are
+ * queried again. A node that is N levels below a known node costs
+ * N / 8 queries, rather than N queries.
+ * <p>
+ * A recursive common table expression cannot be used with LAPI, which
+ * adds a select list and range variable around the given view, so the
+ * recursion is unrolled into a fixed number of outer joins that work
+ * on any database.
+ */
+class ChainGenealogist extends Genealogist {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ChainGenealogist.class.getName());
+
+  /** The column names of the ancestors, from the parent up. */
+  private final String[] ancestorColumns;
+
+  public ChainGenealogist(Client client, String startNodes,
+      String excludedNodes, int minCacheSize, int maxCacheSize) {
+    super(client, startNodes, excludedNodes, minCacheSize, maxCacheSize);
+
+    String[] select = sqlQueries.getSelect("ChainGenealogist.getAncestors");
+    ancestorColumns = new String[select.length - 1];
+    System.arraycopy(select, 1, ancestorColumns, 0, ancestorColumns.length);
+  }
+
+  /**
+   * Finds the included nodes from among the matching candidates. This
+   * is the core algorithm behind {@link getMatchingDescendants}. This
+   * implementation gets a chain of ancestors for all of the undecided
+   * nodes at once, repeating the query from the top of the chains
+   * as needed.
+   *
+   * @param matching the matching nodes to check for inclusion
+   * @param descendants a buffer to write a comma-separated list of
+   * included node IDs to
+   */
+  @Override
+  protected void matchDescendants(ClientValue matching,
+      StringBuilder descendants) throws RepositoryException {
+    // First, check the matching nodes themselves.
+    IntList noPossibles = new IntList();
+    Map<Integer, Chain> chains = new LinkedHashMap<Integer, Chain>();
+    for (int i = 0; i < matching.size(); i++) {
+      final int matchingId = matching.toInteger(i, "DataID");
+      if (!matchParent(matchingId, matchingId, noPossibles, descendants)) {
+        addChain(chains, matchingId, new Chain(matchingId));
+      }
+    }
+
+    // TODO: Check for an interrupted traversal in this loop?
+    while (!chains.isEmpty()) {
+      Map<Integer, Chain> nextChains = new LinkedHashMap<Integer, Chain>();
+      queryCount.incrementAndGet();
+      ClientValue ancestors = sqlQueries.execute(client, null,
+          "ChainGenealogist.getAncestors", getIds(chains));
+      for (int i = 0; i < ancestors.size(); i++) {
+        int objectId = ancestors.toInteger(i, "DataID");
+        Chain chain = chains.remove(objectId);
+        if (chain == null) {
+          continue;
+        }
+        int ancestorId = objectId;
+        boolean found = false;
+        for (String column : ancestorColumns) {
+          if (!ancestors.isDefined(i, column)) {
+            // The previous ancestor does not exist.
+            logOrphans(chain.getMatches(), ancestorId);
+            found = true;
+            break;
+          }
+          ancestorId = ancestors.toInteger(i, column);
+          chain.possibles.add(ancestorId);
+          if (matchParent(chain.getMatches(), ancestorId, chain.possibles,
+                  descendants)) {
+            found = true;
+            break;
+          }
+        }
+        if (!found) {
+          addChain(nextChains, ancestorId, chain);
+        }
+      }
+
+      // Any remaining nodes were not returned by the query.
+      for (Map.Entry<Integer, Chain> entry : chains.entrySet()) {
+        logOrphans(entry.getValue().getMatches(), entry.getKey());
+      }
+      chains = nextChains;
+    }
+  }
+
+  /** Adds a chain, merging it with an existing chain for the same node. */
+  private static void addChain(Map<Integer, Chain> chains, int objectId,
+      Chain chain) {
+    Chain existing = chains.get(objectId);
+    if (existing == null) {
+      chains.put(objectId, chain);
+    } else {
+      existing.possibles.addAll(chain.possibles);
+      existing.matches.append(',').append(chain.matches);
+    }
+  }
+
+  /** Gets a comma-separated string of the node IDs to query. */
+  private static String getIds(Map<Integer, Chain> chains) {
+    StringBuilder buffer = new StringBuilder();
+    for (Integer objectId : chains.keySet()) {
+      buffer.append(objectId).append(',');
+    }
+    buffer.deleteCharAt(buffer.length() - 1);
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("DESCENDANTS: Getting ancestors of: " + buffer);
+    }
+    return buffer.toString();
+  }
+
+  /** The matching nodes that share an undecided ancestor. */
+  private static final class Chain {
+    /** The ancestors between the matches and the undecided ancestor. */
+    final IntList possibles = new IntList();
+
+    /** A comma-separated list of the matching nodes. */
+    final StringBuilder matches = new StringBuilder();
+
+    Chain(int matchingId) {
+      matches.append(matchingId);
+    }
+
+    CharSequence getMatches() {
+      return matches;
+    }
+  }
+}
@@ -66,6 +66,25 @@ class Checkpoint {
     Checkpoint() {
     }
 
+    /**
+     * Copy constructor. The copy includes the advance checkpoint, but
+     * the restore point is the current state of the given checkpoint.
+     *
+     * @param other the checkpoint to copy
+     */
+    Checkpoint(Checkpoint other) {
+        insertDataId = other.insertDataId;
+        insertDate = other.insertDate;
+        deleteEventId = other.deleteEventId;
+        deleteDate = other.deleteDate;
+        advInsertDataId = other.advInsertDataId;
+        advInsertDate = other.advInsertDate;
+        oldInsertDataId = insertDataId;
+        oldInsertDate = insertDate;
+        oldDeleteEventId = deleteEventId;
+        oldDeleteDate = deleteDate;
+    }
+
     /**
      * Constructor given a checkpoint string.  Checkpoints are passed
      * between the Connector Manager and the Connector in the form of
@@ -0,0 +1,155 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of docids in each authorization query when the
+ * chunks of a request are queried concurrently. Larger queries take
+ * less time per docid, so a request that the moving average of the
+ * query time per docid predicts will finish quickly is queried in
+ * one chunk. Slower requests are spread evenly across the available
+ * sessions. The size is limited by the database, to 1000 docids on
+ * Oracle, due to the limit of 1000 expressions in an IN list, and to
+ * 10,000 docids on SQL Server, the largest size that was tested.
+ */
+class ChunkSizeController {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ChunkSizeController.class.getName());
+
+  /** The maximum chunk size on Oracle. */
+  static final int MAX_ORACLE_CHUNK_SIZE = 1000;
+
+  /** The maximum chunk size on SQL Server. */
+  static final int MAX_SQL_SERVER_CHUNK_SIZE = 10000;
+
+  /** The smallest chunk worth a separate query. */
+  static final int MIN_CHUNK_SIZE = 100;
+
+  /** The longest predicted time for a request to be queried in one chunk. */
+  static final long SINGLE_CHUNK_MILLIS = 250;
+
+  /** The weight of the newest observation in the moving average. */
+  private static final double WEIGHT = 0.3;
+
+  /** The reasons for a decision, for logging and testing. */
+  enum Reason { FAST, SPREAD, MINIMUM, MAXIMUM }
+
+  private final int maxChunkSize;
+
+  /** The moving average of the query time per docid, or -1. */
+  private double millisPerDocid = -1.0;
+
+  /** Totals, for the statistics. */
+  private long queryCount = 0;
+  private long docidCount = 0;
+  private long queryMillis = 0;
+
+  /** The last decision. */
+  private int lastSize = 0;
+  private Reason lastReason = null;
+
+  /**
+   * @param isSqlServer {@code true} for SQL Server, or {@code false}
+   *     for Oracle
+   */
+  ChunkSizeController(boolean isSqlServer) {
+    this.maxChunkSize =
+        (isSqlServer) ? MAX_SQL_SERVER_CHUNK_SIZE : MAX_ORACLE_CHUNK_SIZE;
+  }
+
+  /**
+   * Gets the number of docids to include in each query of a request.
+   *
+   * @param requestSize the number of docids in the request
+   * @param sessions the number of sessions available for the queries
+   * @return the number of docids per query
+   */
+  synchronized int getChunkSize(int requestSize, int sessions) {
+    if (millisPerDocid >= 0
+        && requestSize * millisPerDocid <= SINGLE_CHUNK_MILLIS) {
+      return limit(requestSize, Reason.FAST);
+    }
+    int size = (int) Math.ceil((double) requestSize / Math.max(1, sessions));
+    return limit(size, Reason.SPREAD);
+  }
+
+  /** Applies the minimum and maximum sizes to a decision. */
+  private int limit(int size, Reason reason) {
+    if (size >= maxChunkSize) {
+      return decide(maxChunkSize, Reason.MAXIMUM);
+    } else if (size < MIN_CHUNK_SIZE && reason == Reason.SPREAD) {
+      return decide(MIN_CHUNK_SIZE, Reason.MINIMUM);
+    }
+    return decide(size, reason);
+  }
+
+  private int decide(int size, Reason reason) {
+    lastSize = size;
+    lastReason = reason;
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("AUTHORIZATION CHUNK SIZE: " + size + " (" + reason
+          + "); " + this);
+    }
+    return size;
+  }
+
+  /**
+   * Records the time taken by an authorization query.
+   *
+   * @param docids the number of docids in the query
+   * @param elapsedMillis the time taken by the query
+   */
+  synchronized void recordQuery(int docids, long elapsedMillis) {
+    queryCount++;
+    docidCount += docids;
+    queryMillis += elapsedMillis;
+
+    if (docids > 0) {
+      double queryMillisPerDocid = (double) elapsedMillis / docids;
+      millisPerDocid = (millisPerDocid < 0)
+          ? queryMillisPerDocid
+          : WEIGHT * queryMillisPerDocid + (1 - WEIGHT) * millisPerDocid;
+    }
+  }
+
+  /**
+   * Gets the moving average of the query time per docid, or -1 if no
+   * docids have been queried.
+   */
+  synchronized double getMillisPerDocid() {
+    return millisPerDocid;
+  }
+
+  /** Gets the last chunk size chosen. */
+  synchronized int getLastSize() {
+    return lastSize;
+  }
+
+  /** Gets the reason for the last chunk size chosen. */
+  synchronized Reason getLastReason() {
+    return lastReason;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ms/docid " + String.format("%.2f", millisPerDocid)
+        + ", queries " + queryCount + ", docids " + docidCount
+        + ", query ms " + queryMillis;
+  }
+}
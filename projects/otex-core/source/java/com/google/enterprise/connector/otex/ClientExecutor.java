@@ -0,0 +1,134 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs tasks on a fixed pool of threads, each of which uses its own
+ * Livelink client. LAPI sessions are not thread-safe, so a client is
+ * only used by one task at a time.
+ */
+class ClientExecutor {
+  /** A task that needs a Livelink client. */
+  interface ClientCallable<T> {
+    T call(Client client) throws RepositoryException;
+  }
+
+  /** The idle clients. There is one client per thread. */
+  private final BlockingQueue<Client> clients;
+
+  private final int threadCount;
+
+  private final ExecutorService executor;
+
+  /**
+   * @param name the prefix of the thread names
+   * @param clients the clients to use, one per thread
+   */
+  ClientExecutor(String name, List<Client> clients) {
+    this(newThreadPool(name, clients.size()), clients);
+  }
+
+  /**
+   * @param executor a thread pool with one thread per client, usually
+   *     from {@link #newThreadPool}
+   * @param clients the clients to use, one per thread
+   */
+  ClientExecutor(ExecutorService executor, List<Client> clients) {
+    this.clients = new LinkedBlockingQueue<Client>(clients);
+    this.threadCount = clients.size();
+    this.executor = executor;
+  }
+
+  /**
+   * Creates a thread pool for a {@code ClientExecutor}.
+   *
+   * @param name the prefix of the thread names
+   * @param threadCount the number of threads, which is also the
+   *     number of clients
+   */
+  static ExecutorService newThreadPool(String name, int threadCount) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("No clients for " + name);
+    }
+    return Executors.newFixedThreadPool(threadCount,
+        new DaemonThreadFactory(name));
+  }
+
+  /** Gets the number of threads, which is also the number of clients. */
+  int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Submits a task, which will be called with an idle client.
+   *
+   * @param task the task to run
+   * @return a future for the task result
+   */
+  <T> Future<T> submit(final ClientCallable<T> task) {
+    return executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          Client client = clients.take();
+          try {
+            return task.call(client);
+          } finally {
+            clients.add(client);
+          }
+        }
+      });
+  }
+
+  /**
+   * Waits for a task and gets its result, unwrapping any exception
+   * thrown by the task.
+   *
+   * @param future a future returned by {@link #submit}
+   * @return the task result
+   * @throws RepositoryException if the task threw one, or if the
+   *     current thread is interrupted
+   */
+  static <T> T getResult(Future<T> future) throws RepositoryException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RepositoryException(cause);
+      }
+    }
+  }
+}
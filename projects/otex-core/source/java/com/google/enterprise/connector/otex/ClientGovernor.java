@@ -0,0 +1,326 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the rate of Livelink server calls and of content bytes
+ * transferred, across the traversal and content clients of a connector
+ * instance. Authorization clients are not governed. Each limit is a
+ * token bucket that holds up to one second of tokens. A request
+ * larger than the bucket is allowed, but the debt must be
+ * paid off before the next request proceeds, so the long-term rate is
+ * never exceeded.
+ * <p>
+ * The limits may be varied by time of day with a schedule of the form
+ * <pre>
+ *     08:00-18:00=5,1048576; 18:00-20:00=20,0
+ * </pre>
+ * where each entry gives the calls per second and the bytes per second
+ * during the given local times. A limit of zero is unlimited. An entry
+ * may span midnight, and outside of the scheduled times the default
+ * limits apply.
+ * <p>
+ * The time spent waiting is summarized in the log at most once a minute.
+ */
+class ClientGovernor {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ClientGovernor.class.getName());
+
+  /** The minimum time between summaries of the throttled time. */
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static final Pattern ENTRY_PATTERN = Pattern.compile(
+      "(\\d{1,2}):(\\d{2})-(\\d{1,2}):(\\d{2})=(\\d+(?:\\.\\d+)?),(\\d+)");
+
+  /** The source of the time, and the means of waiting. */
+  @VisibleForTesting
+  interface Clock {
+    long nanoTime();
+
+    /** Gets the local time of day, in minutes after midnight. */
+    int minuteOfDay();
+
+    void sleep(long nanos) throws InterruptedException;
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+      @Override
+      public long nanoTime() {
+        return System.nanoTime();
+      }
+
+      @Override
+      public int minuteOfDay() {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+      }
+
+      @Override
+      public void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+      }
+    };
+
+  /** The limits that apply during part of the day. */
+  @VisibleForTesting
+  static class Profile {
+    final int startMinute;
+    final int endMinute;
+    final double callsPerSecond;
+    final long bytesPerSecond;
+
+    Profile(int startMinute, int endMinute, double callsPerSecond,
+        long bytesPerSecond) {
+      this.startMinute = startMinute;
+      this.endMinute = endMinute;
+      this.callsPerSecond = callsPerSecond;
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    boolean includes(int minute) {
+      if (startMinute <= endMinute) {
+        return minute >= startMinute && minute < endMinute;
+      } else {
+        return minute >= startMinute || minute < endMinute;
+      }
+    }
+  }
+
+  /**
+   * A token bucket that may go into debt. The rate is checked on each
+   * request, so that the time-of-day profiles take effect promptly.
+   */
+  private static class TokenBucket {
+    private double tokens = 0;
+    private double rate = 0;
+    private long lastNanos;
+
+    TokenBucket(long nowNanos) {
+      this.lastNanos = nowNanos;
+    }
+
+    /**
+     * Takes tokens from the bucket.
+     *
+     * @return the time to wait before proceeding, in nanoseconds
+     */
+    synchronized long take(double count, double newRate, long nowNanos) {
+      if (newRate <= 0) {
+        rate = 0;
+        tokens = 0;
+        lastNanos = nowNanos;
+        return 0;
+      }
+      if (rate > 0) {
+        tokens = Math.min(rate,
+            tokens + rate * (nowNanos - lastNanos) / 1e9);
+      } else {
+        // The bucket starts full after being unlimited.
+        tokens = newRate;
+      }
+      rate = newRate;
+      tokens = Math.min(tokens, rate);
+      lastNanos = nowNanos;
+      tokens -= count;
+      return (tokens >= 0) ? 0 : (long) (-tokens / rate * 1e9);
+    }
+  }
+
+  private final Clock clock;
+
+  private final double callsPerSecond;
+
+  private final long bytesPerSecond;
+
+  private final List<Profile> schedule;
+
+  private final TokenBucket calls;
+
+  private final TokenBucket bytes;
+
+  /** The total time spent waiting, in nanoseconds. */
+  private long throttledNanos = 0;
+
+  /** The total number of requests that waited. */
+  private long throttledCount = 0;
+
+  /** The totals at the last summary. */
+  private long reportedNanos = 0;
+  private long reportedCount = 0;
+  private long reportTime;
+
+  /**
+   * @param callsPerSecond the default limit on calls, or zero
+   * @param bytesPerSecond the default limit on content bytes, or zero
+   * @param schedule the time-of-day limits, or null or empty for none
+   * @throws IllegalArgumentException if the schedule is invalid
+   */
+  ClientGovernor(double callsPerSecond, long bytesPerSecond,
+      String schedule) {
+    this(callsPerSecond, bytesPerSecond, schedule, SYSTEM_CLOCK);
+  }
+
+  @VisibleForTesting
+  ClientGovernor(double callsPerSecond, long bytesPerSecond,
+      String schedule, Clock clock) {
+    this.clock = clock;
+    this.callsPerSecond = callsPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.schedule = parseSchedule(schedule);
+    long now = clock.nanoTime();
+    this.calls = new TokenBucket(now);
+    this.bytes = new TokenBucket(now);
+    this.reportTime = now;
+  }
+
+  /**
+   * Parses a time-of-day schedule.
+   *
+   * @param schedule the schedule, or null or empty for none
+   * @return the profiles in the schedule
+   * @throws IllegalArgumentException if the schedule is invalid
+   */
+  @VisibleForTesting
+  static List<Profile> parseSchedule(String schedule) {
+    List<Profile> profiles = new ArrayList<Profile>();
+    if (schedule == null) {
+      return profiles;
+    }
+    for (String entry : schedule.split(";")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      Matcher matcher = ENTRY_PATTERN.matcher(entry);
+      if (!matcher.matches()) {
+        throw new IllegalArgumentException(
+            "Invalid governor schedule entry: " + entry);
+      }
+      profiles.add(new Profile(
+          toMinute(matcher.group(1), matcher.group(2), entry),
+          toMinute(matcher.group(3), matcher.group(4), entry),
+          Double.parseDouble(matcher.group(5)),
+          Long.parseLong(matcher.group(6))));
+    }
+    return profiles;
+  }
+
+  private static int toMinute(String hours, String minutes, String entry) {
+    int hour = Integer.parseInt(hours);
+    int minute = Integer.parseInt(minutes);
+    if (hour > 24 || minute > 59 || (hour == 24 && minute > 0)) {
+      throw new IllegalArgumentException(
+          "Invalid time in governor schedule entry: " + entry);
+    }
+    return hour * 60 + minute;
+  }
+
+  /** Gets the profile in effect now, or null for the defaults. */
+  private Profile getProfile() {
+    if (schedule.isEmpty()) {
+      return null;
+    }
+    int minute = clock.minuteOfDay();
+    for (Profile profile : schedule) {
+      if (profile.includes(minute)) {
+        return profile;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Waits until a server call is allowed.
+   *
+   * @throws InterruptedException if the thread is interrupted
+   */
+  void acquireCall() throws InterruptedException {
+    Profile profile = getProfile();
+    double rate = (profile == null) ? callsPerSecond : profile.callsPerSecond;
+    throttle(calls.take(1, rate, clock.nanoTime()));
+  }
+
+  /**
+   * Waits until the given number of content bytes may be transferred.
+   *
+   * @param count the number of bytes
+   * @throws InterruptedException if the thread is interrupted
+   */
+  void acquireBytes(long count) throws InterruptedException {
+    if (count <= 0) {
+      return;
+    }
+    Profile profile = getProfile();
+    long rate = (profile == null) ? bytesPerSecond : profile.bytesPerSecond;
+    throttle(bytes.take(count, rate, clock.nanoTime()));
+  }
+
+  /** Waits for the given time, and records it. */
+  private void throttle(long waitNanos) throws InterruptedException {
+    if (waitNanos > 0) {
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("GOVERNOR THROTTLING FOR "
+            + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " MS");
+      }
+      clock.sleep(waitNanos);
+    }
+    report(waitNanos);
+  }
+
+  /** Records the throttled time, and logs a summary once a minute. */
+  private synchronized void report(long waitNanos) {
+    if (waitNanos > 0) {
+      throttledNanos += waitNanos;
+      throttledCount++;
+    }
+    long now = clock.nanoTime();
+    if (now - reportTime >= REPORT_INTERVAL_NANOS) {
+      if (throttledCount > reportedCount && LOGGER.isLoggable(Level.INFO)) {
+        LOGGER.info("GOVERNOR THROTTLED " + (throttledCount - reportedCount)
+            + " REQUESTS FOR "
+            + TimeUnit.NANOSECONDS.toMillis(throttledNanos - reportedNanos)
+            + " MS IN THE LAST "
+            + TimeUnit.NANOSECONDS.toSeconds(now - reportTime)
+            + " SECONDS; TOTAL: "
+            + TimeUnit.NANOSECONDS.toMillis(throttledNanos) + " MS");
+      }
+      reportedNanos = throttledNanos;
+      reportedCount = throttledCount;
+      reportTime = now;
+    }
+  }
+
+  /** Gets the total time spent waiting, in milliseconds. */
+  synchronized long getThrottledMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+  }
+
+  /** Gets the total number of requests that waited. */
+  synchronized long getThrottledCount() {
+    return throttledCount;
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientFactory;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of Livelink clients, which limits the number of
+ * concurrent users and reuses the sessions between them. The clients
+ * are created when needed, and dropped after they have been idle for
+ * a fixed time. LAPI sessions are not thread-safe, so a client is only
+ * used by one caller at a time. This class is thread-safe.
+ */
+class ClientPool {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ClientPool.class.getName());
+
+  /** A source of the current time, which tests can replace. */
+  interface Clock {
+    long nanoTime();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+      @Override
+      public long nanoTime() {
+        return System.nanoTime();
+      }
+    };
+
+  /** An idle client and the time it was released. */
+  private static final class IdleClient {
+    private final Client client;
+    private final long releasedNanos;
+
+    IdleClient(Client client, long releasedNanos) {
+      this.client = client;
+      this.releasedNanos = releasedNanos;
+    }
+  }
+
+  private final ClientFactory clientFactory;
+
+  private final Clock clock;
+
+  private final long idleNanos;
+
+  /** The permits for the clients in use, one per client. */
+  private final Semaphore permits;
+
+  /** The idle clients, most recently released first. */
+  private final LinkedList<IdleClient> idle = new LinkedList<IdleClient>();
+
+  /**
+   * Constructs an empty pool.
+   *
+   * @param clientFactory the factory for new clients
+   * @param maxSize the maximum number of clients
+   * @param idleSeconds the number of seconds an idle client is kept
+   */
+  ClientPool(ClientFactory clientFactory, int maxSize, int idleSeconds) {
+    this(clientFactory, maxSize, idleSeconds, SYSTEM_CLOCK);
+  }
+
+  @VisibleForTesting
+  ClientPool(ClientFactory clientFactory, int maxSize, int idleSeconds,
+      Clock clock) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+    Preconditions.checkArgument(idleSeconds > 0,
+        "idleSeconds must be positive");
+    this.clientFactory = clientFactory;
+    this.clock = clock;
+    this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Gets a client, waiting until one is available. The most recently
+   * used idle client is reused, or else a new one is created. Each
+   * client must be returned with {@link #release}.
+   *
+   * @return a client
+   * @throws RepositoryException if the current thread is interrupted
+   */
+  Client acquire() throws RepositoryException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    }
+    Client client = null;
+    try {
+      synchronized (idle) {
+        evictIdle();
+        if (!idle.isEmpty()) {
+          client = idle.removeFirst().client;
+        }
+      }
+      if (client == null) {
+        if (LOGGER.isLoggable(Level.FINEST)) {
+          LOGGER.finest("CLIENT POOL: Creating a new client");
+        }
+        client = clientFactory.createClient();
+      }
+      return client;
+    } finally {
+      if (client == null) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Returns a client to the pool.
+   *
+   * @param client a client returned by {@link #acquire}
+   * @param reusable {@code true} if the client can be used again, or
+   *     {@code false} to drop it, for example after an error
+   */
+  void release(Client client, boolean reusable) {
+    try {
+      if (reusable) {
+        synchronized (idle) {
+          idle.addFirst(new IdleClient(client, clock.nanoTime()));
+          evictIdle();
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Drops the clients that have been idle for too long. */
+  private void evictIdle() {
+    long now = clock.nanoTime();
+    Iterator<IdleClient> it = idle.descendingIterator();
+    while (it.hasNext() && now - it.next().releasedNanos >= idleNanos) {
+      it.remove();
+    }
+  }
+
+  /** Gets the number of idle clients. */
+  @VisibleForTesting
+  int getIdleCount() {
+    synchronized (idle) {
+      evictIdle();
+      return idle.size();
+    }
+  }
+}
@@ -22,7 +22,7 @@ import java.io.InputStream;
 /**
  * Retrieves the item content as an <code>InputStream</code>.
  * <p>
- * There are four implementations of this interface:
+ * There are five implementations of this interface:
  * <dl>
  * <dt><code>ByteArrayContentHandler</code>
  * <dd> The fastest implementation, but not a very scalable one
@@ -42,6 +42,11 @@ import java.io.InputStream;
  * <dd> Uses a pipe to match the in-memory performance characteristics
  * of the byte array handler without the scalability issues. A
  * consistently good performance with small memory consumption.
+ *
+ * <dt><code>SpillingContentHandler</code>
+ * <dd> Keeps small content in memory, within a shared memory budget,
+ * and writes larger content to temporary files in a configurable
+ * directory.
  * </dl>
  *
  * The default is <code>FileContentHandler</code>.
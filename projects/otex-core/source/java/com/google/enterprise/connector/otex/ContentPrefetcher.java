@@ -0,0 +1,235 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.primitives.Ints;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the content of the following documents in a batch in the
+ * background, while the current document is being fed. The fetches
+ * are run in row order on an executor, and the streams are handed
+ * over as the document list reaches each row. The number of prefetched
+ * streams that have not been handed over is limited by a window, and
+ * the total of their sizes by a byte budget. Content that is larger
+ * than the byte budget is never prefetched.
+ * <p>
+ * The content handler is called from the executor thread, and uses
+ * the traversal client concurrently with the traversal thread, so it
+ * must support being called from a second thread. The most benefit
+ * comes from handlers that do not hold the client while the content
+ * is transferred. {@code PipedContentHandler} is not supported,
+ * because its producers block on pipes that are not read until the
+ * rows are reached, and the connector disables prefetching with it.
+ * <p>
+ * Content that is not handed over is discarded without waiting: a
+ * fetch that has not started is cancelled, and a running fetch is
+ * interrupted, and its stream is closed when it returns.
+ */
+class ContentPrefetcher {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ContentPrefetcher.class.getName());
+
+  private final ContentHandler contentHandler;
+
+  private final ExecutorService executor;
+
+  /** The maximum number of streams that have not been handed over. */
+  private final int window;
+
+  /** The maximum total size of the streams not handed over. */
+  private final long byteBudget;
+
+  /** The prefetched content, keyed by row. */
+  private final TreeMap<Integer, Prefetch> prefetches =
+      new TreeMap<Integer, Prefetch>();
+
+  /** The total size of the prefetched content not handed over. */
+  private long bytesReserved = 0;
+
+  /** The prefetched content for one row. */
+  private class Prefetch implements Callable<InputStream> {
+    final int volumeId;
+    final int objectId;
+    final long size;
+    Future<InputStream> future;
+
+    /** The fetched stream, or null if the fetch has not returned. */
+    private InputStream stream = null;
+
+    /** Whether the content was discarded without being handed over. */
+    private boolean discarded = false;
+
+    Prefetch(int volumeId, int objectId, long size) {
+      this.volumeId = volumeId;
+      this.objectId = objectId;
+      this.size = size;
+    }
+
+    @Override
+    public InputStream call() throws RepositoryException {
+      InputStream is = contentHandler.getInputStream(volumeId, objectId, 0,
+          Ints.saturatedCast(size));
+      synchronized (this) {
+        if (!discarded) {
+          stream = is;
+          return is;
+        }
+      }
+      if (is != null) {
+        close(is);
+      }
+      return null;
+    }
+
+    /**
+     * Cancels the fetch, or closes the stream if the fetch has
+     * already returned. This does not wait for a running fetch.
+     */
+    void discard() {
+      InputStream is;
+      synchronized (this) {
+        discarded = true;
+        is = stream;
+      }
+      future.cancel(true);
+      if (is != null) {
+        close(is);
+      }
+    }
+  }
+
+  /**
+   * @param contentHandler the content handler
+   * @param executor the executor that runs the fetches
+   * @param window the maximum number of streams that have not been
+   *     handed over
+   * @param byteBudget the maximum total size of the streams that have
+   *     not been handed over
+   */
+  ContentPrefetcher(ContentHandler contentHandler, ExecutorService executor,
+      int window, long byteBudget) {
+    this.contentHandler = contentHandler;
+    this.executor = executor;
+    this.window = window;
+    this.byteBudget = byteBudget;
+  }
+
+  /**
+   * Checks whether there is room to prefetch more content.
+   *
+   * @return {@code true} if the window is not full
+   */
+  boolean hasRoom() {
+    return prefetches.size() < window;
+  }
+
+  /**
+   * Checks whether content is too large to ever be prefetched.
+   *
+   * @param size the content size
+   * @return {@code true} if the size exceeds the byte budget
+   */
+  boolean isTooLarge(long size) {
+    return size > byteBudget;
+  }
+
+  /**
+   * Starts fetching the content for a row, if it fits in the window
+   * and the byte budget.
+   *
+   * @param row the row
+   * @param volumeId the volume ID of the object to fetch
+   * @param objectId the object ID of the object to fetch
+   * @param size the expected content size
+   * @return {@code true} if the content is being fetched, or
+   *     {@code false} if there was no room
+   */
+  boolean prefetch(int row, int volumeId, int objectId, long size) {
+    if (!hasRoom() || bytesReserved + size > byteBudget) {
+      return false;
+    }
+    Prefetch prefetch = new Prefetch(volumeId, objectId, size);
+    prefetch.future = executor.submit(prefetch);
+    prefetches.put(row, prefetch);
+    bytesReserved += size;
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("PREFETCHING CONTENT FOR " + objectId + " (ROW " + row
+          + ", " + size + " BYTES)");
+    }
+    return true;
+  }
+
+  /**
+   * Gets the prefetched content for a row. The content for any
+   * earlier rows that was not handed over is discarded.
+   *
+   * @param row the row
+   * @return the content stream, or null if the content for the row
+   *     was not prefetched
+   * @throws RepositoryException if the content handler failed
+   */
+  InputStream take(int row) throws RepositoryException {
+    discardBefore(row);
+    Prefetch prefetch = prefetches.remove(row);
+    if (prefetch == null) {
+      return null;
+    }
+    bytesReserved -= prefetch.size;
+    return ClientExecutor.getResult(prefetch.future);
+  }
+
+  /** Discards the prefetched content that has not been handed over. */
+  void close() {
+    for (Prefetch prefetch : prefetches.values()) {
+      prefetch.discard();
+    }
+    prefetches.clear();
+    bytesReserved = 0;
+  }
+
+  /** Discards the prefetched content for the rows before the given row. */
+  private void discardBefore(int row) {
+    Iterator<Map.Entry<Integer, Prefetch>> it =
+        prefetches.headMap(row).entrySet().iterator();
+    while (it.hasNext()) {
+      Prefetch prefetch = it.next().getValue();
+      it.remove();
+      bytesReserved -= prefetch.size;
+      prefetch.discard();
+    }
+  }
+
+  /** Closes a discarded stream. */
+  private static void close(InputStream is) {
+    try {
+      is.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINEST, "Ignored exception closing prefetch", e);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent record of the state of each document when it was last
+ * fed, used to avoid feeding documents that have not changed. The
+ * index is a memory-mapped file with a fixed-size record for each
+ * DataID, at an offset of DataID times the record size, so there is
+ * no per-entry object overhead and a lookup is a single read. The
+ * file is sparse on most file systems, so unused DataIDs take no disk
+ * space. Each record holds:
+ *
+ * <pre>
+ *     int  marker (zero for no entry)
+ *     int  version number
+ *     long data size
+ *     long metadata digest
+ * </pre>
+ *
+ * The file is mapped in regions of {@code RECORDS_PER_REGION} records
+ * as they are needed.
+ * <p>
+ * DataIDs are positive, so the first record holds the generation of
+ * the index instead. The marker of each entry includes the generation
+ * it was written in, and {@link #clear} starts a new generation, which
+ * invalidates every existing entry without rewriting the file.
+ */
+class DocumentStateIndex {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(DocumentStateIndex.class.getName());
+
+  /** The size of each record, in bytes. */
+  static final int RECORD_SIZE = 24;
+
+  /** The number of records in each mapped region. */
+  private static final int RECORDS_PER_REGION = 1 << 20;
+
+  private static final long REGION_SIZE =
+      (long) RECORD_SIZE * RECORDS_PER_REGION;
+
+  /** The marker for a record that has an entry in generation zero. */
+  private static final int MARKER = 0x4C4C5331;
+
+  private final File file;
+
+  private final RandomAccessFile raf;
+
+  private final FileChannel channel;
+
+  /** The mapped regions, indexed by region, or null if not mapped. */
+  private final List<MappedByteBuffer> regions =
+      new ArrayList<MappedByteBuffer>();
+
+  /** The current generation, from the first record in the file. */
+  private int generation;
+
+  /**
+   * Opens the index, creating the file if it does not exist.
+   *
+   * @param file the index file
+   * @throws IOException if the file cannot be opened
+   */
+  DocumentStateIndex(File file) throws IOException {
+    this.file = file;
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+    this.generation =
+        (channel.size() >= RECORD_SIZE) ? getRegion(0).getInt(0) : 0;
+    if (LOGGER.isLoggable(Level.CONFIG)) {
+      LOGGER.config("DOCUMENT STATE INDEX: " + file + " ("
+          + channel.size() + " bytes, generation " + generation + ")");
+    }
+  }
+
+  /**
+   * Checks whether a document has the given state in the index.
+   *
+   * @param dataId the DataID of the document
+   * @param versionNum the version number of the document
+   * @param dataSize the data size of the document
+   * @param metadataDigest a digest of the metadata of the document
+   * @return {@code true} if the index has an entry for the document
+   *     that matches all of the given values, or {@code false} otherwise
+   */
+  synchronized boolean isUnchanged(int dataId, int versionNum,
+      long dataSize, long metadataDigest) throws IOException {
+    return isContentUnchanged(dataId, versionNum, dataSize)
+        && getRegion(dataId).getLong(getOffset(dataId) + 16)
+        == metadataDigest;
+  }
+
+  /**
+   * Checks whether the content of a document has the given state in
+   * the index. This can be checked before the metadata is collected.
+   *
+   * @param dataId the DataID of the document
+   * @param versionNum the version number of the document
+   * @param dataSize the data size of the document
+   * @return {@code true} if the index has an entry for the document
+   *     that matches the given values, or {@code false} otherwise
+   */
+  synchronized boolean isContentUnchanged(int dataId, int versionNum,
+      long dataSize) throws IOException {
+    if (dataId <= 0
+        || ((long) dataId + 1) * RECORD_SIZE > channel.size()) {
+      return false;
+    }
+    MappedByteBuffer region = getRegion(dataId);
+    int offset = getOffset(dataId);
+    return region.getInt(offset) == MARKER + generation
+        && region.getInt(offset + 4) == versionNum
+        && region.getLong(offset + 8) == dataSize;
+  }
+
+  /**
+   * Records the state of a document in the index.
+   *
+   * @param dataId the DataID of the document
+   * @param versionNum the version number of the document
+   * @param dataSize the data size of the document
+   * @param metadataDigest a digest of the metadata of the document
+   */
+  synchronized void put(int dataId, int versionNum, long dataSize,
+      long metadataDigest) throws IOException {
+    if (dataId <= 0) {
+      return;
+    }
+    MappedByteBuffer region = getRegion(dataId);
+    int offset = getOffset(dataId);
+    region.putInt(offset, MARKER + generation);
+    region.putInt(offset + 4, versionNum);
+    region.putLong(offset + 8, dataSize);
+    region.putLong(offset + 16, metadataDigest);
+  }
+
+  /**
+   * Removes a document from the index, so that it will be fed the
+   * next time it is traversed.
+   *
+   * @param dataId the DataID of the document
+   */
+  synchronized void remove(int dataId) throws IOException {
+    if (dataId <= 0
+        || ((long) dataId + 1) * RECORD_SIZE > channel.size()) {
+      return;
+    }
+    getRegion(dataId).putInt(getOffset(dataId), 0);
+  }
+
+  /**
+   * Removes every document from the index, by starting a new
+   * generation. This is used when the traversal starts over, and when
+   * the connector is deleted, so that every document is fed again.
+   */
+  synchronized void clear() throws IOException {
+    generation++;
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("CLEARING DOCUMENT STATE INDEX " + file + ": generation "
+          + generation);
+    }
+    MappedByteBuffer region = getRegion(0);
+    region.putInt(0, generation);
+    region.force();
+  }
+
+  /** Writes any changes to the index to the file. */
+  synchronized void flush() {
+    for (MappedByteBuffer region : regions) {
+      if (region != null) {
+        region.force();
+      }
+    }
+  }
+
+  /** Writes any changes to the file, and closes the file. */
+  synchronized void close() throws IOException {
+    flush();
+    regions.clear();
+    raf.close();
+  }
+
+  /**
+   * Gets the mapped region containing the record for the given DataID,
+   * mapping the region and extending the file if necessary.
+   */
+  private MappedByteBuffer getRegion(int dataId) throws IOException {
+    int index = dataId / RECORDS_PER_REGION;
+    while (regions.size() <= index) {
+      regions.add(null);
+    }
+    MappedByteBuffer region = regions.get(index);
+    if (region == null) {
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("MAPPING DOCUMENT STATE REGION " + index + " OF "
+            + file);
+      }
+      region = channel.map(FileChannel.MapMode.READ_WRITE,
+          index * REGION_SIZE, REGION_SIZE);
+      regions.set(index, region);
+    }
+    return region;
+  }
+
+  /** Gets the offset of the record for a DataID within its region. */
+  private int getOffset(int dataId) {
+    return (dataId % RECORDS_PER_REGION) * RECORD_SIZE;
+  }
+}
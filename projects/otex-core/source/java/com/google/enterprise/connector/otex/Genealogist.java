@@ -15,20 +15,25 @@
 package com.google.enterprise.connector.otex;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
 import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-/** A class that knows about the node hierarchy in DTree. */
+/**
+ * A class that knows about the node hierarchy in DTree. Instances
+ * are thread-safe, so that concurrent traversal threads can share the
+ * caches. Subclasses must keep the state of each call local, or guard
+ * it themselves.
+ */
 class Genealogist {
   /** The logger for this class. */
   private static final Logger LOGGER =
@@ -120,6 +125,15 @@ class Genealogist {
     return genealogist;
   }
 
+  /** The value returned by {@link #getParent} for orphan nodes. */
+  protected static final int NO_PARENT = Integer.MIN_VALUE;
+
+  /**
+   * The maximum number of node IDs in an IN list, which is limited to
+   * 1000 expressions by Oracle.
+   */
+  private static final int MAX_IN_LIST_SIZE = 1000;
+
   /** The logging level for orphan nodes in the Livelink database. */
   protected static final Level LOG_ORPHANS_LEVEL = Level.WARNING;
 
@@ -135,19 +149,32 @@ class Genealogist {
   /** A set based on the excludedLocationNodes property value. */
   private final Set<Integer> excludedSet;
 
+  /**
+   * The class and included and excluded nodes, which determine
+   * whether the cached decisions can be reused.
+   */
+  private final String configuration;
+
   /** A cache of items known to be included. */
   @VisibleForTesting
-  final Cache<Integer> includedCache;
+  final IntCache includedCache;
 
   /** A cache of items known to be excluded. */
   @VisibleForTesting
-  final Cache<Integer> excludedCache;
+  final IntCache excludedCache;
 
   /** For logging statistics, the number of nodes processed by this instance.*/
-  protected int nodeCount = 0;
+  protected final AtomicInteger nodeCount = new AtomicInteger();
 
   /** For logging statistics, the number of queries run by this instance.*/
-  protected int queryCount = 0;
+  protected final AtomicInteger queryCount = new AtomicInteger();
+
+  /**
+   * The EventID of the latest move event in the audit trail that has
+   * been applied to the caches, or -1 if the audit trail has not been
+   * read yet.
+   */
+  private long moveEventId = -1;
 
   public Genealogist(Client client, String startNodes, String excludedNodes,
                      int minCacheSize, int maxCacheSize) {
@@ -160,6 +187,9 @@ class Genealogist {
 
     this.includedSet = getAncestorSet(startNodes);
     this.excludedSet = getAncestorSet(excludedNodes);
+    this.configuration = getClass().getName() + '\n'
+        + Strings.nullToEmpty(startNodes) + '\n'
+        + Strings.nullToEmpty(excludedNodes);
 
     // If the included set is empty, then everything that hits the
     // top-level (ParentID = -1) without being excluded should be
@@ -174,8 +204,8 @@ class Genealogist {
       LOGGER.finest("DESCENDANTS: maxCacheSize = " + maxCacheSize);
     }
 
-    this.excludedCache = new Cache<Integer>(minCacheSize, maxCacheSize);
-    this.includedCache = new Cache<Integer>(minCacheSize, maxCacheSize);
+    this.excludedCache = new IntCache(minCacheSize, maxCacheSize);
+    this.includedCache = new IntCache(minCacheSize, maxCacheSize);
   }
 
   /**
@@ -189,16 +219,18 @@ class Genealogist {
    */
   protected void matchDescendants(ClientValue matching,
       StringBuilder descendants) throws RepositoryException {
+    // The list of ancestors is reused for each match.
+    IntList cachePossibles = new IntList();
     for (int i = 0; i < matching.size(); i++) {
       // We do not cache the matches, which are probably mostly documents.
-      ArrayList<Integer> cachePossibles = new ArrayList<Integer>();
-      final int matchingId = matching.toInteger(i, "DataID");
-      Integer parentId = matchingId;
+      cachePossibles.clear();
+      final Integer matchingId = matching.toInteger(i, "DataID");
+      int parentId = matchingId;
 
       // TODO: Check for an interrupted traversal in this loop?
       while (!matchParent(matchingId, parentId, cachePossibles, descendants)) {
         parentId = getParent(matchingId, parentId);
-        if (parentId == null) {
+        if (parentId == NO_PARENT) {
           break;
         }
         cachePossibles.add(parentId);
@@ -219,7 +251,7 @@ class Genealogist {
    * {@code parentId}
    */
   protected final boolean matchParent(Object matchingId, int parentId,
-      List<Integer> cachePossibles, StringBuilder descendants) {
+      IntList cachePossibles, StringBuilder descendants) {
     // We add the cachePossibles to the appropriate cache when we
     // determine an answer for matchingId. In the case of a cache
     // hit, parentID is obviously already in the cache, but the
@@ -264,23 +296,24 @@ class Genealogist {
    *
    * @param matchingId the original descendent node or nodes
    * @param objectID the object ID of the node
-   * @return the parent ID of the node
+   * @return the parent ID of the node, or {@code NO_PARENT} if the
+   * node does not exist
    */
-  protected Integer getParent(Object matchingId, int objectId)
+  protected int getParent(Object matchingId, int objectId)
       throws RepositoryException {
     // Get the parent of the current node, and also check for the
     // parent of the related node (with a negated object ID) in the
     // case of volumes such as projects. The query can return 0, 1, or
     // 2 results, since we are asking for the parents of two nodes,
     // one or both of which might not exist.
-    queryCount++;
+    queryCount.incrementAndGet();
     ClientValue parent = sqlQueries.execute(client, null,
         "Genealogist.getParent", objectId, -objectId);
     switch (parent.size()) {
       case 0:
         // The nodes do not exist.
         logOrphans(matchingId, objectId);
-        return null;
+        return NO_PARENT;
       case 1:
         // The usual case.
         return parent.toInteger(0, "ParentID");
@@ -310,6 +343,162 @@ class Genealogist {
         + ", ancestor " + parentId + " does not exist.");
   }
 
+  /**
+   * Gets a description of the configuration that the cached decisions
+   * depend on.
+   */
+  String getConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * Removes the containers modified since the given time from the
+   * caches, since they may have been moved. This is used when the
+   * caches are restored from a snapshot.
+   *
+   * @param timestampLiteral a SQL timestamp literal
+   * @return the number of cache entries removed
+   */
+  int evictModifiedContainers(String timestampLiteral)
+      throws RepositoryException {
+    queryCount.incrementAndGet();
+    ClientValue modified = sqlQueries.execute(client, null,
+        "Genealogist.getModifiedContainers", timestampLiteral);
+    IntList objectIds = new IntList(modified.size());
+    for (int i = 0; i < modified.size(); i++) {
+      objectIds.add(modified.toInteger(i, "DataID"));
+    }
+    int evicted = evict(objectIds);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DESCENDANTS: Evicted " + evicted + " cache entries for "
+          + modified.size() + " modified containers");
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes the given moved nodes and the containers below them from
+   * the caches, since the cached decisions for the containers depend
+   * on the old location of the moved nodes.
+   *
+   * @param movedIds the moved nodes
+   * @return the number of cache entries removed
+   */
+  int invalidateMovedNodes(IntList movedIds) throws RepositoryException {
+    IntList objectIds = new IntList(movedIds.size());
+    objectIds.addAll(movedIds);
+    objectIds.addAll(getDescendantContainers(movedIds));
+    int evicted = evict(objectIds);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DESCENDANTS: Evicted " + evicted + " cache entries for "
+          + movedIds.size() + " moved nodes");
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes the given nodes and their negated nodes from both caches.
+   *
+   * @param objectIds the nodes
+   * @return the number of cache entries removed
+   */
+  private int evict(IntList objectIds) {
+    int evicted = 0;
+    for (int i = 0; i < objectIds.size(); i++) {
+      int objectId = objectIds.get(i);
+      // The negated node of a volume moves with its positive node.
+      for (int id : new int[] { objectId, -objectId }) {
+        if (includedCache.remove(id)) {
+          evicted++;
+        }
+        if (excludedCache.remove(id)) {
+          evicted++;
+        }
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Gets the containers below the given nodes, whose cached decisions
+   * may depend on the given nodes. This implementation walks down the
+   * hierarchy one level at a time, but does not descend below the
+   * included and excluded nodes, since the decisions for their
+   * descendants do not depend on any further ancestors.
+   *
+   * @param nodeIds the nodes
+   * @return the descendant containers, not including the given nodes
+   */
+  protected IntList getDescendantContainers(IntList nodeIds)
+      throws RepositoryException {
+    IntList descendants = new IntList();
+    IntIntMap visited = new IntIntMap(nodeIds.size());
+    for (int i = 0; i < nodeIds.size(); i++) {
+      visited.put(nodeIds.get(i), 0);
+    }
+    IntList level = nodeIds;
+    while (level.size() > 0) {
+      // The contents of a volume have the negated node as their parent.
+      IntList parentIds = new IntList(level.size() * 2);
+      for (int i = 0; i < level.size(); i++) {
+        for (int id : new int[] { level.get(i), -level.get(i) }) {
+          if (!includedSet.contains(id) && !excludedSet.contains(id)) {
+            parentIds.add(id);
+          }
+        }
+      }
+
+      IntList children = new IntList();
+      for (int start = 0; start < parentIds.size();
+           start += MAX_IN_LIST_SIZE) {
+        int end = Math.min(start + MAX_IN_LIST_SIZE, parentIds.size());
+        StringBuilder buffer = new StringBuilder();
+        for (int i = start; i < end; i++) {
+          if (buffer.length() > 0) {
+            buffer.append(',');
+          }
+          buffer.append(parentIds.get(i));
+        }
+        queryCount.incrementAndGet();
+        ClientValue rows = sqlQueries.execute(client, null,
+            "Genealogist.getChildContainers", buffer.toString());
+        for (int i = 0; i < rows.size(); i++) {
+          int childId = rows.toInteger(i, "DataID");
+          if (!visited.containsKey(childId)) {
+            visited.put(childId, 0);
+            children.add(childId);
+          }
+        }
+      }
+      descendants.addAll(children);
+      level = children;
+    }
+    return descendants;
+  }
+
+  /**
+   * Gets the EventID of the latest move event in the audit trail that
+   * has been applied to the caches.
+   *
+   * @return the EventID, or -1 if the audit trail has not been read
+   */
+  synchronized long getMoveEventId() {
+    return moveEventId;
+  }
+
+  /**
+   * Sets the EventID of the latest move event in the audit trail that
+   * has been applied to the caches. Concurrent traversals may apply
+   * the same events, so an older EventID is ignored.
+   *
+   * @param eventId the EventID
+   */
+  synchronized void setMoveEventId(long eventId) {
+    if (eventId > moveEventId) {
+      moveEventId = eventId;
+    }
+  }
+
   /**
    * Finds the included nodes from among the matching candidates.
    *
@@ -322,7 +511,7 @@ class Genealogist {
     matchDescendants(matching, descendants);
 
     if (LOGGER.isLoggable(Level.FINEST)) {
-      nodeCount += matching.size();
+      nodeCount.addAndGet(matching.size());
       LOGGER.finest("DESCENDANTS: Query statistics: " + nodeCount + " nodes, "
           + queryCount + " queries");
       LOGGER.finest("DESCENDANTS: Excluded cache statistics: "
@@ -372,7 +561,8 @@ class Genealogist {
    */
   /* Used for testing and instrumentation. */
   public synchronized Statistics statistics() {
-    return new Statistics(nodeCount, queryCount, includedCache.statistics(),
+    return new Statistics(nodeCount.get(), queryCount.get(),
+                          includedCache.statistics(),
                           excludedCache.statistics());
   }
 }
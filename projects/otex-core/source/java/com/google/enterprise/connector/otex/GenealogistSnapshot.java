@@ -0,0 +1,226 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A snapshot of the genealogist caches, so that the connector starts
+ * with warm caches after a restart. The snapshot is written at most
+ * every ten minutes during traversal, and when the connector is shut
+ * down. It is only restored if the genealogist class and the included
+ * and excluded nodes are unchanged.
+ * <p>
+ * The snapshot records the earliest insert checkpoint date of the
+ * batches traversed since the previous snapshot. The traversal has
+ * seen the changes up to that date, so when the snapshot is restored,
+ * the containers modified since then, including any moved while the
+ * connector was down, are removed from the caches. The snapshot also
+ * records the EventID of the latest move event applied to the caches,
+ * so that the moves after it are read from the audit trail when the
+ * snapshot is restored. The file format is:
+ *
+ * <pre>
+ *     int    magic number
+ *     UTF    genealogist configuration
+ *     long   checkpoint date in milliseconds, or -1
+ *     long   latest move EventID, or -1
+ *     int    number of included nodes, followed by the node IDs
+ *     int    number of excluded nodes, followed by the node IDs
+ * </pre>
+ *
+ * The node IDs are written from least to most recently used. A new
+ * snapshot is written to a temporary file and then renamed, so that
+ * a failure leaves the previous snapshot intact.
+ */
+class GenealogistSnapshot {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(GenealogistSnapshot.class.getName());
+
+  /** "GEN2" */
+  private static final int MAGIC = 0x47454E32;
+
+  /** The minimum time between snapshots during traversal. */
+  private static final long SAVE_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+  private final File file;
+
+  /** The genealogist whose caches are saved, or null if none yet. */
+  private Genealogist genealogist = null;
+
+  /** The earliest checkpoint date since the last snapshot, or null. */
+  private Date pendingDate = null;
+
+  /** The checkpoint date of the last snapshot, or null. */
+  private Date savedDate = null;
+
+  /** The time of the last snapshot. */
+  private long saveTime;
+
+  /**
+   * @param file the snapshot file
+   */
+  GenealogistSnapshot(File file) {
+    this.file = file;
+    this.saveTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Registers the genealogist to save, and restores its caches from
+   * the snapshot, if there is one with the same configuration. If
+   * another genealogist was registered, its caches are saved first,
+   * so that they are handed on to the new one.
+   *
+   * @param genealogist the connector's genealogist
+   * @return the checkpoint date of the snapshot, or null if the caches
+   *     were not restored or the date is unknown
+   */
+  synchronized Date restore(Genealogist genealogist) {
+    if (this.genealogist != null && this.genealogist != genealogist) {
+      save();
+    }
+    this.genealogist = genealogist;
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC) {
+          LOGGER.warning("Ignoring invalid genealogist cache file " + file);
+          return null;
+        }
+        if (!genealogist.getConfiguration().equals(in.readUTF())) {
+          LOGGER.info("Ignoring genealogist cache file " + file
+              + " for a different configuration");
+          return null;
+        }
+        long millis = in.readLong();
+        long moveEventId = in.readLong();
+        int included = readCache(in, genealogist.includedCache);
+        int excluded = readCache(in, genealogist.excludedCache);
+        if (moveEventId != -1) {
+          genealogist.setMoveEventId(moveEventId);
+        }
+        Date date = (millis == -1) ? null : new Date(millis);
+        savedDate = date;
+        if (LOGGER.isLoggable(Level.INFO)) {
+          LOGGER.info("Restored " + included + " included and " + excluded
+              + " excluded genealogist cache entries from " + file
+              + ((date == null) ? "" : " as of " + date));
+        }
+        return date;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to read the genealogist cache file "
+          + file, e);
+      return null;
+    }
+  }
+
+  private static int readCache(DataInputStream in, IntCache cache)
+      throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      cache.add(in.readInt());
+    }
+    return count;
+  }
+
+  /**
+   * Records the insert checkpoint of a traversal batch, and saves a
+   * snapshot if one is due.
+   *
+   * @param insertDate the checkpoint date, or null at the start of a
+   *     traversal
+   */
+  synchronized void checkpoint(Date insertDate) {
+    if (insertDate != null
+        && (pendingDate == null || insertDate.before(pendingDate))) {
+      pendingDate = insertDate;
+    }
+    if (System.currentTimeMillis() - saveTime >= SAVE_INTERVAL_MILLIS) {
+      save();
+    }
+  }
+
+  /** Saves a final snapshot. */
+  synchronized void close() {
+    save();
+  }
+
+  /** Writes a snapshot, logging rather than throwing any failure. */
+  @VisibleForTesting
+  synchronized void save() {
+    saveTime = System.currentTimeMillis();
+    if (genealogist == null) {
+      return;
+    }
+
+    Date date = (pendingDate == null) ? savedDate : pendingDate;
+    File temporaryFile = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeUTF(genealogist.getConfiguration());
+        out.writeLong((date == null) ? -1 : date.getTime());
+        out.writeLong(genealogist.getMoveEventId());
+        writeCache(out, genealogist.includedCache);
+        writeCache(out, genealogist.excludedCache);
+      } finally {
+        out.close();
+      }
+      if (file.exists() && !file.delete()
+          || !temporaryFile.renameTo(file)) {
+        throw new IOException("Unable to rename " + temporaryFile);
+      }
+      LOGGER.fine("Saved the genealogist cache file " + file);
+      savedDate = date;
+      pendingDate = null;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write the genealogist cache file "
+          + file, e);
+      temporaryFile.delete();
+    }
+  }
+
+  private static void writeCache(DataOutputStream out, IntCache cache)
+      throws IOException {
+    IntList keys = cache.getKeys();
+    out.writeInt(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      out.writeInt(keys.get(i));
+    }
+  }
+}
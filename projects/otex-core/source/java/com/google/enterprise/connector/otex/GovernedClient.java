@@ -0,0 +1,285 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.ClientValueFactory;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * A client that waits for permission from a {@link ClientGovernor}
+ * before each server call. The content fetched by
+ * <code>FetchVersion</code> is also counted against the byte limit.
+ * When the content is written to a stream, the transfer is slowed as
+ * it is written. When it is written to a file, the bytes are counted
+ * after the call, and the following calls wait to make up for them.
+ */
+class GovernedClient implements Client {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(GovernedClient.class.getName());
+
+  private final Client client;
+
+  private final ClientGovernor governor;
+
+  GovernedClient(Client client, ClientGovernor governor) {
+    this.client = client;
+    this.governor = governor;
+  }
+
+  /** Waits until a server call is allowed. */
+  private void acquireCall() throws RepositoryException {
+    try {
+      governor.acquireCall();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /** Waits until the given number of content bytes are allowed. */
+  private void acquireBytes(long count) throws RepositoryException {
+    try {
+      governor.acquireBytes(count);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValueFactory getClientValueFactory()
+      throws RepositoryException {
+    return client.getClientValueFactory();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetServerInfo() throws RepositoryException {
+    acquireCall();
+    return client.GetServerInfo();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int GetCurrentUserID() throws RepositoryException {
+    acquireCall();
+    return client.GetCurrentUserID();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetCookieInfo() throws RepositoryException {
+    acquireCall();
+    return client.GetCookieInfo();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetUserOrGroupByIDNoThrow(int id)
+      throws RepositoryException {
+    acquireCall();
+    return client.GetUserOrGroupByIDNoThrow(id);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetUserInfo(String username)
+      throws RepositoryException {
+    acquireCall();
+    return client.GetUserInfo(username);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListUsers() throws RepositoryException {
+    acquireCall();
+    return client.ListUsers();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListGroups() throws RepositoryException {
+    acquireCall();
+    return client.ListGroups();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListMembers(String groupName)
+      throws RepositoryException {
+    acquireCall();
+    return client.ListMembers(groupName);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue AccessEnterpriseWS() throws RepositoryException {
+    acquireCall();
+    return client.AccessEnterpriseWS();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListNodes(String query, String view, String[] columns)
+      throws RepositoryException {
+    acquireCall();
+    return client.ListNodes(query, view, columns);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListNodesNoThrow(String query, String view,
+      String[] columns) throws RepositoryException {
+    acquireCall();
+    return client.ListNodesNoThrow(query, view, columns);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetObjectInfo(int volumeId, int objectId)
+      throws RepositoryException {
+    acquireCall();
+    return client.GetObjectInfo(volumeId, objectId);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetObjectAttributesEx(ClientValue objectIdAssoc,
+      ClientValue categoryIdAssoc) throws RepositoryException {
+    acquireCall();
+    return client.GetObjectAttributesEx(objectIdAssoc, categoryIdAssoc);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue AttrListNames(ClientValue categoryVersion,
+      ClientValue attributeSetPath) throws RepositoryException {
+    acquireCall();
+    return client.AttrListNames(categoryVersion, attributeSetPath);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue AttrGetInfo(ClientValue categoryVersion,
+      String attributeName, ClientValue attributeSetPath)
+      throws RepositoryException {
+    acquireCall();
+    return client.AttrGetInfo(categoryVersion, attributeName,
+        attributeSetPath);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue AttrGetValues(ClientValue categoryVersion,
+      String attributeName, ClientValue attributeSetPath)
+      throws RepositoryException {
+    acquireCall();
+    return client.AttrGetValues(categoryVersion, attributeName,
+        attributeSetPath);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue ListObjectCategoryIDs(ClientValue objectIdAssoc)
+      throws RepositoryException {
+    acquireCall();
+    return client.ListObjectCategoryIDs(objectIdAssoc);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void FetchVersion(int volumeId, int objectId, int versionNumber,
+      File path) throws RepositoryException {
+    acquireCall();
+    client.FetchVersion(volumeId, objectId, versionNumber, path);
+    acquireBytes(path.length());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void FetchVersion(int volumeId, int objectId, int versionNumber,
+      OutputStream out) throws RepositoryException {
+    acquireCall();
+    client.FetchVersion(volumeId, objectId, versionNumber,
+        new GovernedOutputStream(out));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetVersionInfo(int volumeId, int objectId,
+      int versionNumber) throws RepositoryException {
+    acquireCall();
+    return client.GetVersionInfo(volumeId, objectId, versionNumber);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ClientValue GetObjectRights(int objectId)
+      throws RepositoryException {
+    acquireCall();
+    return client.GetObjectRights(objectId);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void ImpersonateUser(String username) throws RepositoryException {
+    acquireCall();
+    client.ImpersonateUser(username);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void ImpersonateUserEx(String username, String domain)
+      throws RepositoryException {
+    acquireCall();
+    client.ImpersonateUserEx(username, domain);
+  }
+
+  /** Waits for the byte limit before each write. */
+  private class GovernedOutputStream extends FilterOutputStream {
+    GovernedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        governor.acquireBytes(len);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException ioe = new InterruptedIOException();
+        ioe.initCause(e);
+        throw ioe;
+      }
+      out.write(b, off, len);
+    }
+  }
+}
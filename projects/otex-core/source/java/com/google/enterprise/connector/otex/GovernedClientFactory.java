@@ -0,0 +1,127 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientFactory;
+
+import java.util.List;
+
+/**
+ * Creates clients that share a {@link ClientGovernor}, so that the
+ * limits apply to all of the clients of a connector instance.
+ */
+class GovernedClientFactory implements ClientFactory {
+  private final ClientFactory clientFactory;
+
+  private final ClientGovernor governor;
+
+  GovernedClientFactory(ClientFactory clientFactory,
+      ClientGovernor governor) {
+    this.clientFactory = clientFactory;
+    this.governor = governor;
+  }
+
+  /** Gets the governor shared by the clients. */
+  ClientGovernor getGovernor() {
+    return governor;
+  }
+
+  @Override
+  public void setServer(String value) {
+    clientFactory.setServer(value);
+  }
+
+  @Override
+  public void setPort(int value) {
+    clientFactory.setPort(value);
+  }
+
+  @Override
+  public void setUsername(String value) {
+    clientFactory.setUsername(value);
+  }
+
+  @Override
+  public void setPassword(String value) {
+    clientFactory.setPassword(value);
+  }
+
+  @Override
+  public void setConnection(String value) {
+    clientFactory.setConnection(value);
+  }
+
+  @Override
+  public void setDomainName(String value) {
+    clientFactory.setDomainName(value);
+  }
+
+  @Override
+  public void setEncoding(String value) {
+    clientFactory.setEncoding(value);
+  }
+
+  @Override
+  public void setLivelinkCgi(String value) {
+    clientFactory.setLivelinkCgi(value);
+  }
+
+  @Override
+  public void setHttps(boolean value) {
+    clientFactory.setHttps(value);
+  }
+
+  @Override
+  public void setHttpUsername(String value) {
+    clientFactory.setHttpUsername(value);
+  }
+
+  @Override
+  public void setHttpPassword(String value) {
+    clientFactory.setHttpPassword(value);
+  }
+
+  @Override
+  public void setVerifyServer(boolean value) {
+    clientFactory.setVerifyServer(value);
+  }
+
+  @Override
+  public void setCaRootCerts(List<String> value) {
+    clientFactory.setCaRootCerts(value);
+  }
+
+  @Override
+  public void setEnableNtlm(boolean value) {
+    clientFactory.setEnableNtlm(value);
+  }
+
+  @Override
+  public void setUseUsernamePasswordWithWebServer(boolean value) {
+    clientFactory.setUseUsernamePasswordWithWebServer(value);
+  }
+
+  @Override
+  public Client createClient() {
+    return new GovernedClient(clientFactory.createClient(), governor);
+  }
+
+  @Override
+  public Client createClient(String username, String password) {
+    return new GovernedClient(clientFactory.createClient(username, password),
+        governor);
+  }
+}
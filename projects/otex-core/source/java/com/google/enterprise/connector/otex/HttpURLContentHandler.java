@@ -20,15 +20,31 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This content handler implementation uses a Livelink download URL.
+ * <p>
+ * The number of simultaneous downloads is limited by the
+ * {@code maxConnections} property, and {@code getInputStream} waits
+ * for a connection to be available, up to the read timeout, or
+ * {@code DEFAULT_ACQUIRE_TIMEOUT} if there is no read timeout.
+ * Connections are returned when the stream is closed, and the JVM
+ * keeps idle connections alive for reuse by the following downloads,
+ * up to the {@code http.maxConnections} system property (5 by
+ * default). If the server rejects the LLCookie value, a new cookie is
+ * obtained and the download is retried once. Other redirects are
+ * followed, up to {@code MAX_REDIRECTS} times.
  *
  * @see ContentHandler
  * @see RefreshableContentHandler
@@ -42,11 +58,21 @@ class HttpURLContentHandler implements RefreshableContentHandler {
     static final String DEFAULT_URL_PATH =
         "?func=ll&objAction=download&objId=";
 
+    /** The maximum number of redirects followed for a download. */
+    @VisibleForTesting
+    static final int MAX_REDIRECTS = 5;
+
+    /**
+     * The time to wait for a connection, in milliseconds, if there is
+     * no read timeout.
+     */
+    private static final long DEFAULT_ACQUIRE_TIMEOUT = 5 * 60 * 1000L;
+
     /** The client provides access to the server. */
     private Client client;
 
     /** The user's LLCookie value. */
-    private String llCookie;
+    private volatile String llCookie;
 
     /** The Livelink base URL. The default is the configured Livelink URL. */
     private String urlBase;
@@ -60,6 +86,16 @@ class HttpURLContentHandler implements RefreshableContentHandler {
     /** The read timeout in milliseconds. */
     private int readTimeout = 0;
 
+    /** The maximum number of simultaneous downloads. */
+    private int maxConnections = 4;
+
+    /**
+     * The available connections. This is created once, so that the
+     * limit is shared by all of the traversal managers that initialize
+     * this handler.
+     */
+    private Semaphore connections;
+
     HttpURLContentHandler() {
     }
 
@@ -70,6 +106,11 @@ class HttpURLContentHandler implements RefreshableContentHandler {
         this.client = client;
 
         llCookie = getLLCookie();
+        synchronized (this) {
+            if (connections == null) {
+                connections = new Semaphore(maxConnections, true);
+            }
+        }
 
         // Use the default value if no custom value was set.
         if (urlBase == null) {
@@ -179,22 +220,221 @@ class HttpURLContentHandler implements RefreshableContentHandler {
       return readTimeout;
     }
 
+    /**
+     * Sets the maximum number of simultaneous downloads. The default
+     * is four. To keep more than five idle connections alive between
+     * downloads, the {@code http.maxConnections} system property must
+     * also be set.
+     *
+     * @param maxConnections the maximum number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+      LOGGER.log(Level.CONFIG, "CONTENT HANDLER MAX CONNECTIONS: {0}",
+          maxConnections);
+      if (maxConnections < 1) {
+        throw new IllegalArgumentException(
+            "maxConnections must be greater than zero: " + maxConnections);
+      }
+      this.maxConnections = maxConnections;
+    }
+
+    /** Gets the number of available connections, for testability. */
+    @VisibleForTesting
+    int getAvailableConnections() {
+      return connections.availablePermits();
+    }
+
     /** {@inheritDoc} */
     @Override
     public InputStream getInputStream(int volumeId, int objectId,
             int versionNumber, int size) throws RepositoryException {
+        long timeout = (readTimeout > 0) ? readTimeout : DEFAULT_ACQUIRE_TIMEOUT;
+        Semaphore connections = this.connections;
         try {
-            URL downloadUrl = new URL(urlBase + urlPath + objectId);
+            if (!connections.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new LivelinkException("Timed out after " + timeout
+                    + " ms waiting for a connection to download "
+                    + objectId, LOGGER);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LivelinkException(e, LOGGER);
+        }
+        boolean isOpen = false;
+        try {
+            URLConnection download = openConnection(objectId);
+            if (isAuthenticationFailure(download)) {
+                LOGGER.log(Level.FINE,
+                    "LLCOOKIE REJECTED; REFRESHING FOR DOWNLOAD OF {0}",
+                    objectId);
+                discard(download);
+                refresh();
+                download = openConnection(objectId);
+                if (isAuthenticationFailure(download)) {
+                    discard(download);
+                    throw new LivelinkException("Unable to authenticate "
+                        + "the download of " + objectId, LOGGER);
+                }
+            }
+
+            // XXX: Does the BufferedInputStream help at all?
+            InputStream in = new ConnectionInputStream(
+                new BufferedInputStream(download.getInputStream(), 32768),
+                connections);
+            isOpen = true;
+            return in;
+        } catch (IOException e) {
+            throw new LivelinkException(e, LOGGER);
+        } finally {
+            if (!isOpen) {
+                connections.release();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to download the given object, following any
+     * redirects except to the login page.
+     */
+    private URLConnection openConnection(int objectId)
+            throws IOException, RepositoryException {
+        URL downloadUrl = new URL(urlBase + urlPath + objectId);
+        String host = downloadUrl.getHost();
+        for (int redirects = 0; ; redirects++) {
             LOGGER.log(Level.FINEST, "DOWNLOAD URL: {0}", downloadUrl);
             URLConnection download = downloadUrl.openConnection();
-            download.addRequestProperty("Cookie", "LLCookie=" + llCookie);
+            // Do not send the cookie to other hosts.
+            if (downloadUrl.getHost().equalsIgnoreCase(host)) {
+                download.addRequestProperty("Cookie", "LLCookie=" + llCookie);
+            }
             download.setConnectTimeout(connectTimeout);
             download.setReadTimeout(readTimeout);
+            if (!(download instanceof HttpURLConnection)) {
+                return download;
+            }
 
-            // XXX: Does the BufferedInputStream help at all?
-            return new BufferedInputStream(download.getInputStream(), 32768);
+            // An expired cookie redirects to the login page, so we
+            // need to see the redirects rather than follow them.
+            ((HttpURLConnection) download).setInstanceFollowRedirects(false);
+            String location = getRedirect(download);
+            if (location == null || isLoginPage(location)) {
+                return download;
+            }
+            discard(download);
+            if (redirects == MAX_REDIRECTS) {
+                throw new LivelinkException("Too many redirects downloading "
+                    + objectId, LOGGER);
+            }
+            downloadUrl = new URL(downloadUrl, location);
+        }
+    }
+
+    /**
+     * Gets the redirect location of a response.
+     *
+     * @return the Location header, or null if the response is not a
+     *     redirect
+     * @throws LivelinkException if the response is a redirect without
+     *     a location
+     */
+    private String getRedirect(URLConnection download)
+            throws IOException, RepositoryException {
+        int status = ((HttpURLConnection) download).getResponseCode();
+        if (status < 300 || status >= 400) {
+            return null;
+        }
+        String location = download.getHeaderField("Location");
+        if (location == null) {
+            discard(download);
+            throw new LivelinkException("Redirect status " + status
+                + " without a location for " + download.getURL(), LOGGER);
+        }
+        return location;
+    }
+
+    /**
+     * Checks whether a redirect location is the login page, either
+     * the Livelink {@code func=ll.login} request or an external
+     * login page, such as the OTDS {@code otdsws/login} page.
+     */
+    @VisibleForTesting
+    static boolean isLoginPage(String location) {
+        return location.toLowerCase(Locale.ENGLISH).contains("login");
+    }
+
+    /**
+     * Checks whether the server rejected the LLCookie value. Livelink
+     * redirects to the login page, or responds with 401 Unauthorized.
+     */
+    private boolean isAuthenticationFailure(URLConnection download)
+            throws IOException {
+        if (!(download instanceof HttpURLConnection)) {
+            return false;
+        }
+        int status = ((HttpURLConnection) download).getResponseCode();
+        return status == HttpURLConnection.HTTP_UNAUTHORIZED
+            || (status >= 300 && status < 400
+                && isLoginPage(download.getHeaderField("Location")));
+    }
+
+    /**
+     * Reads and closes the response body, so that the connection can
+     * be reused.
+     */
+    private void discard(URLConnection download) {
+        try {
+            InputStream body = ((HttpURLConnection) download).getErrorStream();
+            if (body == null) {
+                body = download.getInputStream();
+            }
+            byte[] buffer = new byte[1024];
+            while (body.read(buffer) != -1) {
+            }
+            body.close();
         } catch (IOException e) {
-            throw new LivelinkException(e, LOGGER);
+            LOGGER.log(Level.FINEST, "Ignored exception discarding response",
+                e);
+        }
+    }
+
+    /**
+     * Returns the connection to the semaphore it was acquired from when
+     * the stream is closed, or when it is finalized if it was never
+     * closed, so that a dropped stream does not use up the connections.
+     */
+    private static class ConnectionInputStream extends FilterInputStream {
+        private final Semaphore connections;
+
+        private boolean isClosed = false;
+
+        ConnectionInputStream(InputStream in, Semaphore connections) {
+            super(in);
+            this.connections = connections;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                releaseConnection();
+            }
+        }
+
+        private synchronized void releaseConnection() {
+            if (!isClosed) {
+                isClosed = true;
+                connections.release();
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                releaseConnection();
+            } finally {
+                super.finalize();
+            }
         }
     }
 }
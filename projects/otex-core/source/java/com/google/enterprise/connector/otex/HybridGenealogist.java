@@ -18,8 +18,6 @@ import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,12 +46,13 @@ class HybridGenealogist extends Genealogist {
   @Override
   protected void matchDescendants(ClientValue matching,
       StringBuilder descendants) throws RepositoryException {
-    // First, check the matching nodes themselves.
+    // First, check the matching nodes themselves. The list of
+    // ancestors is reused for each match.
+    IntList cachePossibles = new IntList();
     StringBuilder undecideds = new StringBuilder();
     for (int i = 0; i < matching.size(); i++) {
       final int matchingId = matching.toInteger(i, "DataID");
-      if (!matchParent(matchingId, matchingId,
-              Collections.<Integer>emptyList(), descendants))
+      if (!matchParent(matchingId, matchingId, cachePossibles, descendants))
         undecideds.append(matchingId).append(',');
     }
 
@@ -69,16 +68,16 @@ class HybridGenealogist extends Genealogist {
       // orphans are found in the inner loop, they will be logged.
       Parents parents = getParents(undecideds.toString());
       for (int i = 0; i < parents.size(); i++) {
-        ArrayList<Integer> cachePossibles = new ArrayList<Integer>();
-        final int matchingId = parents.getDataID(i);
-        Integer parentId = parents.getParentID(i);
+        cachePossibles.clear();
+        final Integer matchingId = parents.getDataID(i);
+        int parentId = parents.getParentID(i);
         cachePossibles.add(parentId);
 
         // TODO: Check for an interrupted traversal in this loop?
         while (!matchParent(matchingId, parentId, cachePossibles,
             descendants)) {
           parentId = getParent(matchingId, parentId);
-          if (parentId == null) {
+          if (parentId == NO_PARENT) {
             break;
           }
           cachePossibles.add(parentId);
@@ -103,7 +102,7 @@ class HybridGenealogist extends Genealogist {
     // The "b" range variable is only for clarity. N.B.: The minus
     // sign must be on the correlated column (a.DataID) and not
     // b.DataID, or Oracle will avoid using an index.
-    queryCount++;
+    queryCount.incrementAndGet();
     ClientValue parents = sqlQueries.execute(client, null,
         "HybridGenealogist.getParents", objectIds);
     return new Parents(parents);
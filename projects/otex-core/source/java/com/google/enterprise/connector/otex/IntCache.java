@@ -0,0 +1,322 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An LRU cache of ints, with the same capacity and statistics as
+ * {@link Cache}. The entries are kept in a doubly-linked list of
+ * array slots, in access order, and are located through an
+ * {@link IntIntMap}, so that no objects are allocated per entry.
+ * Each entry takes about 24 bytes, compared to more than 100 bytes
+ * for a {@code Cache<Integer>}. The key {@code Integer.MIN_VALUE}
+ * cannot be cached.
+ * <p>
+ * This class is thread-safe. Large caches are split into up to 16
+ * independently locked segments by the hash of the key, so that
+ * concurrent threads rarely contend, and each segment is an LRU cache
+ * of its share of the capacity. Small caches use a single segment,
+ * and are strictly LRU.
+ */
+class IntCache {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(IntCache.class.getName());
+
+  /** The end of the list, or a missing slot. */
+  private static final int NONE = -1;
+
+  /** The maximum number of segments. */
+  private static final int MAX_SEGMENTS = 16;
+
+  /** The smallest maximum capacity of a segment, when there are several. */
+  private static final int MIN_SEGMENT_CAPACITY = 1024;
+
+  private final Segment[] segments;
+
+  /** The number of high-order hash bits that select a segment. */
+  private final int segmentBits;
+
+  /**
+   * Constructs a new cache that starts out at the minCapacity and
+   * grows to the maxCapacity before it starts removing LRU items.
+   *
+   * @param minCapacity the initial capacity of the cache
+   * @param maxCapacity the maximum capacity of the cache
+   */
+  public IntCache(int minCapacity, int maxCapacity) {
+    Preconditions.checkArgument(minCapacity > 0,
+        "minCapacity must be positive");
+    Preconditions.checkArgument(maxCapacity >= minCapacity,
+        "maxCapacity must be at least as large as minCapacity");
+    Preconditions.checkArgument(maxCapacity <= CacheMap.MAXIMUM_CAPACITY,
+        "maxCapacity must be less than " + CacheMap.MAXIMUM_CAPACITY);
+
+    int bits = 0;
+    while ((1 << (bits + 1)) <= MAX_SEGMENTS
+        && maxCapacity >> (bits + 1) >= MIN_SEGMENT_CAPACITY) {
+      bits++;
+    }
+    int count = 1 << bits;
+    this.segmentBits = bits;
+    this.segments = new Segment[count];
+    int segmentMax = maxCapacity / count;
+    int segmentMin = Math.min((minCapacity + count - 1) / count, segmentMax);
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(segmentMin, segmentMax);
+    }
+  }
+
+  private Segment segmentFor(int key) {
+    return (segmentBits == 0)
+        ? segments[0] : segments[(key * 0x9E3779B9) >>> (32 - segmentBits)];
+  }
+
+  /**
+   * Checks whether the key is cached, and if so marks it as the most
+   * recently used.
+   */
+  public boolean contains(int key) {
+    return segmentFor(key).contains(key);
+  }
+
+  /**
+   * Adds a key to the cache, or marks it as the most recently used
+   * if it is already cached. The least recently used key in its
+   * segment is removed if the segment is full.
+   *
+   * @return {@code true} if the key was not already cached
+   */
+  public boolean add(int key) {
+    return segmentFor(key).add(key);
+  }
+
+  /**
+   * Removes a key from the cache.
+   *
+   * @return {@code true} if the key was cached
+   */
+  public boolean remove(int key) {
+    return segmentFor(key).remove(key);
+  }
+
+  /**
+   * Adds all of the keys to the cache.
+   *
+   * @return {@code true} if any of the keys were not already cached
+   */
+  public boolean addAll(IntList keys) {
+    boolean modified = false;
+    for (int i = 0; i < keys.size(); i++) {
+      if (add(keys.get(i))) {
+        modified = true;
+      }
+    }
+    return modified;
+  }
+
+  public CacheStatistics statistics() {
+    int entries = 0;
+    int hits = 0;
+    int misses = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        entries += segment.size;
+        hits += segment.hits;
+        misses += segment.misses;
+      }
+    }
+    return new CacheStatistics(entries, hits, misses);
+  }
+
+  /**
+   * Gets the cached keys, from least to most recently used within
+   * each segment, so that adding them in order to an empty cache
+   * preserves their recency.
+   */
+  IntList getKeys() {
+    IntList list = new IntList();
+    for (Segment segment : segments) {
+      segment.appendTo(list);
+    }
+    return list;
+  }
+
+  /** A convenience method for logging. */
+  @Override
+  public String toString() {
+    return getKeys().toString();
+  }
+
+  /** An LRU cache of part of the keys. */
+  private static final class Segment {
+    /** The maximum capacity of the segment. */
+    private final int maxCapacity;
+
+    /** Maps the cached keys to their slots. */
+    private final IntIntMap index;
+
+    /** The key in each slot. */
+    private int[] keys;
+
+    /** The previous (less recently used) slot for each slot, or NONE. */
+    private int[] prev;
+
+    /** The next (more recently used) slot for each slot, or NONE. */
+    private int[] next;
+
+    /** The number of slots in use. */
+    private int size = 0;
+
+    /** The least recently used slot, or NONE. */
+    private int eldest = NONE;
+
+    /** The most recently used slot, or NONE. */
+    private int youngest = NONE;
+
+    /** Cache hit counter, for logging statistics. */
+    private int hits = 0;
+
+    /** Cache miss counter, for logging statistics. */
+    private int misses = 0;
+
+    Segment(int minCapacity, int maxCapacity) {
+      this.maxCapacity = maxCapacity;
+      this.index = new IntIntMap(minCapacity);
+      this.keys = new int[minCapacity];
+      this.prev = new int[minCapacity];
+      this.next = new int[minCapacity];
+    }
+
+    synchronized boolean contains(int key) {
+      int slot = index.get(key, NONE);
+      if (slot == NONE) {
+        misses++;
+        return false;
+      }
+      hits++;
+      touch(slot);
+      return true;
+    }
+
+    synchronized boolean add(int key) {
+      int slot = index.get(key, NONE);
+      if (slot != NONE) {
+        touch(slot);
+        return false;
+      }
+
+      if (size < maxCapacity) {
+        if (size == keys.length) {
+          grow();
+        }
+        slot = size++;
+      } else {
+        slot = eldest;
+        if (LOGGER.isLoggable(Level.FINEST)) {
+          LOGGER.finest("CACHE: removing entry " + keys[slot]);
+        }
+        unlink(slot);
+        index.remove(keys[slot]);
+      }
+      keys[slot] = key;
+      index.put(key, slot);
+      linkYoungest(slot);
+      return true;
+    }
+
+    synchronized boolean remove(int key) {
+      int slot = index.get(key, NONE);
+      if (slot == NONE) {
+        return false;
+      }
+      unlink(slot);
+      index.remove(key);
+
+      // Keep the slots in use contiguous by moving the last one into
+      // the hole.
+      int last = --size;
+      if (slot != last) {
+        int lastPrev = prev[last];
+        int lastNext = next[last];
+        keys[slot] = keys[last];
+        prev[slot] = lastPrev;
+        next[slot] = lastNext;
+        if (lastPrev == NONE) {
+          eldest = slot;
+        } else {
+          next[lastPrev] = slot;
+        }
+        if (lastNext == NONE) {
+          youngest = slot;
+        } else {
+          prev[lastNext] = slot;
+        }
+        index.put(keys[slot], slot);
+      }
+      return true;
+    }
+
+    synchronized void appendTo(IntList list) {
+      for (int slot = eldest; slot != NONE; slot = next[slot]) {
+        list.add(keys[slot]);
+      }
+    }
+
+    private void grow() {
+      int capacity = (int) Math.min((long) keys.length * 2, maxCapacity);
+      keys = Arrays.copyOf(keys, capacity);
+      prev = Arrays.copyOf(prev, capacity);
+      next = Arrays.copyOf(next, capacity);
+    }
+
+    private void touch(int slot) {
+      if (slot != youngest) {
+        unlink(slot);
+        linkYoungest(slot);
+      }
+    }
+
+    private void unlink(int slot) {
+      if (prev[slot] == NONE) {
+        eldest = next[slot];
+      } else {
+        next[prev[slot]] = next[slot];
+      }
+      if (next[slot] == NONE) {
+        youngest = prev[slot];
+      } else {
+        prev[next[slot]] = prev[slot];
+      }
+    }
+
+    private void linkYoungest(int slot) {
+      prev[slot] = youngest;
+      next[slot] = NONE;
+      if (youngest == NONE) {
+        eldest = slot;
+      } else {
+        next[youngest] = slot;
+      }
+      youngest = slot;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to int values, using open addressing with
+ * linear probing in a pair of primitive arrays, so that there is no
+ * per-entry object overhead. The key {@code Integer.MIN_VALUE} marks
+ * an empty slot, and cannot be used. This class is not thread-safe.
+ */
+class IntIntMap {
+  /** The key that marks an empty slot. */
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  /** The keys, or {@code EMPTY}. The length is a power of two. */
+  private int[] keys;
+
+  private int[] values;
+
+  private int size = 0;
+
+  /** The number of entries at which the arrays are grown. */
+  private int threshold;
+
+  /** Constructs an empty map. */
+  IntIntMap() {
+    this(16);
+  }
+
+  /**
+   * Constructs an empty map.
+   *
+   * @param expectedSize the number of entries to allow for
+   */
+  IntIntMap(int expectedSize) {
+    int capacity = 16;
+    while (capacity * 2 / 3 < expectedSize) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new int[capacity];
+    threshold = capacity * 2 / 3;
+  }
+
+  /** Gets the slot for a key, which holds the key or is empty. */
+  private int find(int key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /** Spreads the bits of sequential keys. */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** Gets the number of entries. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Checks whether the map contains a key.
+   *
+   * @param key the key
+   * @return {@code true} if the key is in the map
+   */
+  boolean containsKey(int key) {
+    return key != EMPTY && keys[find(key)] == key;
+  }
+
+  /**
+   * Gets the value for a key.
+   *
+   * @param key the key
+   * @param missingValue the value to return if the key is not in the map
+   * @return the value for the key, or {@code missingValue}
+   */
+  int get(int key, int missingValue) {
+    if (key == EMPTY) {
+      return missingValue;
+    }
+    int i = find(key);
+    return (keys[i] == key) ? values[i] : missingValue;
+  }
+
+  /**
+   * Sets the value for a key.
+   *
+   * @param key the key, which must not be {@code Integer.MIN_VALUE}
+   * @param value the value
+   */
+  void put(int key, int value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("Invalid key: " + key);
+    }
+    int i = find(key);
+    if (keys[i] == EMPTY) {
+      if (size >= threshold) {
+        rehash(keys.length * 2);
+        i = find(key);
+      }
+      keys[i] = key;
+      size++;
+    }
+    values[i] = value;
+  }
+
+  /**
+   * Removes a key from the map.
+   *
+   * @param key the key
+   * @return {@code true} if the key was in the map
+   */
+  boolean remove(int key) {
+    if (key == EMPTY) {
+      return false;
+    }
+    int i = find(key);
+    if (keys[i] != key) {
+      return false;
+    }
+
+    // Shift the following entries back, so that no probe sequence
+    // is broken by the empty slot.
+    int mask = keys.length - 1;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (keys[j] == EMPTY) {
+        break;
+      }
+      int home = hash(keys[j]) & mask;
+      // Move the entry at j to i unless its home slot lies cyclically
+      // in (i, j].
+      if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j)) {
+        continue;
+      }
+      keys[i] = keys[j];
+      values[i] = values[j];
+      i = j;
+    }
+    keys[i] = EMPTY;
+    size--;
+    return true;
+  }
+
+  /** Removes all of the entries. */
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int j = find(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
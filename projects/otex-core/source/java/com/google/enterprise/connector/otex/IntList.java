@@ -0,0 +1,107 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, which avoids boxing the elements. The
+ * list may be cleared and reused. This class is not thread-safe.
+ */
+class IntList {
+  private int[] values;
+
+  private int size = 0;
+
+  /** Constructs an empty list. */
+  IntList() {
+    this(8);
+  }
+
+  /**
+   * Constructs an empty list.
+   *
+   * @param initialCapacity the number of elements to allow for
+   */
+  IntList(int initialCapacity) {
+    values = new int[Math.max(initialCapacity, 1)];
+  }
+
+  /** Gets the number of elements. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Gets an element.
+   *
+   * @param index the index of the element
+   * @return the element
+   * @throws IndexOutOfBoundsException if the index is out of range
+   */
+  int get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index: " + index + ", Size: " + size);
+    }
+    return values[index];
+  }
+
+  /** Appends an element to the list. */
+  void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  /** Appends all of the elements of another list to this list. */
+  void addAll(IntList other) {
+    if (size + other.size > values.length) {
+      values = Arrays.copyOf(values, Math.max(size * 2, size + other.size));
+    }
+    System.arraycopy(other.values, 0, values, size, other.size);
+    size += other.size;
+  }
+
+  /** Checks whether the list contains an element. */
+  boolean contains(int value) {
+    for (int i = 0; i < size; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Removes all of the elements, keeping the allocated capacity. */
+  void clear() {
+    size = 0;
+  }
+
+  /** Formats the list like {@code java.util.List}, for logging. */
+  @Override
+  public String toString() {
+    StringBuilder buffer = new StringBuilder();
+    buffer.append('[');
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        buffer.append(", ");
+      }
+      buffer.append(values[i]);
+    }
+    return buffer.append(']').toString();
+  }
+}
@@ -21,6 +21,8 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.enterprise.connector.otex.CacheMap.CacheStatistics;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
 import com.google.enterprise.connector.otex.client.ClientValue;
@@ -32,7 +34,18 @@ import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -50,6 +63,13 @@ public class LivelinkAuthorizationManager
   private static final Predicate<CharSequence> INTEGER_PREDICATE =
       Predicates.contains(Pattern.compile("^-?\\d{1,10}$"));
 
+  /**
+   * The number of docids in each query when the chunks are queried
+   * sequentially. At most, 1,000 docids will be added to the query
+   * due to SQL syntax limits in Oracle.
+   */
+  private static final int CHUNK_SIZE = 1000;
+
   /** The connector contains configuration information. */
   private LivelinkConnector connector;
 
@@ -92,6 +112,61 @@ public class LivelinkAuthorizationManager
   /** The mapper from the GSA identity to the Livelink username. */
   private IdentityResolver identityResolver;
 
+  /** The cache of recent authorization decisions, or null. */
+  private AuthorizationCache authorizationCache;
+
+  /**
+   * The PermIDs of the authorized documents, or null if authorization
+   * by PermID is disabled.
+   */
+  private PermIdMap permIdMap;
+
+  /** The cache of recent authorization decisions by PermID, or null. */
+  private AuthorizationCache permIdCache;
+
+  /**
+   * A sysadmin client, used to refresh the PermID map and to check
+   * the denied documents that represent a PermID. This client is
+   * never impersonated, and it is synchronized on while it is used.
+   */
+  private Client sysadminClient;
+
+  /**
+   * The local snapshot of the users, groups, and ACLs, or null if it
+   * is disabled. The snapshot requires authorization by PermID.
+   */
+  private AclSnapshot aclSnapshot;
+
+  /**
+   * A sysadmin client, used to load the ACL snapshot. This client is
+   * never impersonated.
+   */
+  private Client aclClient;
+
+  /**
+   * The executor for concurrent chunk queries, or null if the chunks
+   * are queried sequentially.
+   */
+  private ExecutorService queryExecutor;
+
+  /** The chunk sizes for concurrent queries, or null. */
+  private ChunkSizeController chunkSizeController;
+
+  /** The number of sessions available for the chunks of one request. */
+  private int querySessions;
+
+  /**
+   * The coalescer for concurrent requests for the same user, or null
+   * if requests are not merged.
+   */
+  private AuthorizationCoalescer coalescer;
+
+  /**
+   * The pool of sessions for the impersonated queries. This is
+   * assigned last in {@link #setConnector}.
+   */
+  private volatile ClientPool clientPool;
+
   /** Default constructor for bean instantiation. */
   public LivelinkAuthorizationManager() {
   }
@@ -104,15 +179,18 @@ public class LivelinkAuthorizationManager
    */
   /*
    * This method will be called before any other methods in this
-   * class. The accessible methods in this class are synchronized
-   * because initialization (via this method) and other method calls
+   * class. Initialization (via this method) and other method calls
    * happen in different threads, and we do not control the threads.
+   * The other accessible methods are not synchronized, so that
+   * concurrent requests can use the client pool, but they first read
+   * the volatile clientPool field, which is assigned last, so that
+   * the other fields are visible to them.
    */
   @Override
   public synchronized void setConnector(Connector connector)
       throws RepositoryException {
     this.connector = (LivelinkConnector) connector;
-    this.clientFactory = this.connector.getClientFactory();
+    this.clientFactory = this.connector.getAuthorizationClientFactory();
     Client client = clientFactory.createClient();
     this.sqlQueries = new SqlQueries(this.connector.isSqlServer());
     this.undeleteVolumeId = getExcludedVolumeId(402, "UNDELETE", client);
@@ -121,6 +199,73 @@ public class LivelinkAuthorizationManager
     this.tryLowercaseUsernames = this.connector.isTryLowercaseUsernames();
     this.identityResolver=
         new IdentityResolver(this.connector.getDomainAndName());
+    int cacheSize = this.connector.getAuthorizationCacheSize();
+    int cacheSeconds = this.connector.getAuthorizationCacheSeconds();
+    this.authorizationCache = (cacheSize == 0) ? null
+        : new AuthorizationCache(cacheSize, cacheSeconds);
+    int permIdMapSize = this.connector.getAuthorizationPermIdMapSize();
+    if (permIdMapSize == 0) {
+      this.permIdMap = null;
+      this.permIdCache = null;
+    } else if (cacheSize == 0) {
+      LOGGER.warning("Authorization by PermID requires the authorization "
+          + "cache, which is disabled by authorizationCacheSize");
+      this.permIdMap = null;
+      this.permIdCache = null;
+    } else {
+      this.permIdMap = new PermIdMap(permIdMapSize, cacheSeconds,
+          this.connector.isSqlServer());
+      this.permIdCache = new AuthorizationCache(cacheSize, cacheSeconds);
+    }
+    int aclSnapshotSeconds =
+        this.connector.getAuthorizationAclSnapshotSeconds();
+    if (aclSnapshotSeconds == 0) {
+      this.aclSnapshot = null;
+      this.aclClient = null;
+    } else if (permIdMap == null) {
+      LOGGER.warning("The ACL snapshot requires authorization by PermID, "
+          + "which is disabled by authorizationPermIdMapSize");
+      this.aclSnapshot = null;
+      this.aclClient = null;
+    } else if (!Strings.isNullOrEmpty(this.connector.getDomainName())) {
+      LOGGER.warning("The ACL snapshot does not support Livelink domains, "
+          + "and is disabled");
+      this.aclSnapshot = null;
+      this.aclClient = null;
+    } else {
+      this.aclSnapshot = new AclSnapshot(permIdMapSize, aclSnapshotSeconds);
+      this.aclClient = clientFactory.createClient();
+    }
+    this.sysadminClient = client;
+    int poolSize = this.connector.getAuthorizationPoolSize();
+    int queryThreads = this.connector.getAuthorizationQueryThreads();
+    if (queryThreads > 1) {
+      this.querySessions = Math.min(queryThreads, poolSize);
+      this.queryExecutor = this.connector.addExecutor(
+          Executors.newFixedThreadPool(queryThreads,
+              new DaemonThreadFactory("LivelinkAuthorizationQuery")));
+      this.chunkSizeController =
+          new ChunkSizeController(this.connector.isSqlServer());
+    } else {
+      this.querySessions = 1;
+      this.queryExecutor = null;
+      this.chunkSizeController = null;
+    }
+    int coalesceMillis = this.connector.getAuthorizationCoalesceMillis();
+    this.coalescer = (coalesceMillis == 0) ? null
+        : new AuthorizationCoalescer(coalesceMillis, new CoalescedQuery());
+    this.clientPool = new ClientPool(clientFactory, poolSize,
+        this.connector.getAuthorizationPoolIdleSeconds());
+  }
+
+  /**
+   * Checks that {@link #setConnector} has been called. This also
+   * makes the fields that it assigned visible to the current thread.
+   */
+  private void checkInitialized() {
+    if (clientPool == null) {
+      throw new IllegalStateException("setConnector has not been called");
+    }
   }
 
 
@@ -132,9 +277,10 @@ public class LivelinkAuthorizationManager
    * @throws RepositoryException if an error occurs
    */
   @Override
-  public synchronized Collection<AuthorizationResponse> authorizeDocids(
+  public Collection<AuthorizationResponse> authorizeDocids(
       Collection<String> docids, AuthenticationIdentity identity)
       throws RepositoryException {
+    checkInitialized();
     if (LOGGER.isLoggable(Level.FINE)) {
       LOGGER.fine("AUTHORIZE DOCIDS: " + new ArrayList<String>(docids) +
           " FOR: " + identity.getUsername());
@@ -158,6 +304,105 @@ public class LivelinkAuthorizationManager
       Collection<String> docids, String username) throws RepositoryException {
     ArrayList<AuthorizationResponse> authorized =
         new ArrayList<AuthorizationResponse>(docids.size());
+
+    // Only the docids without a cached decision are queried.
+    Collection<String> uncached;
+    if (authorizationCache == null) {
+      uncached = docids;
+    } else {
+      uncached = new ArrayList<String>(docids.size());
+      for (String docid : docids) {
+        Boolean allowed = authorizationCache.get(username, docid);
+        if (allowed == null) {
+          uncached.add(docid);
+        } else if (allowed) {
+          authorized.add(new AuthorizationResponse(true, docid));
+        }
+      }
+    }
+
+    if (!uncached.isEmpty()) {
+      if (coalescer == null) {
+        authorizeUncached(uncached, username, authorized);
+      } else {
+        Set<String> allowed = coalescer.authorize(username, uncached);
+        for (String docid : new LinkedHashSet<String>(uncached)) {
+          if (allowed.contains(docid)) {
+            authorized.add(new AuthorizationResponse(true, docid));
+          }
+        }
+      }
+    }
+    authorized.trimToSize();
+
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      for (String docid : docids) {
+        AuthorizationResponse ar = new AuthorizationResponse(true, docid);
+        LOGGER.finest("AUTHORIZED " + docid + ": " + authorized.contains(ar));
+      }
+    } else if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("AUTHORIZED: " + authorized.size() + " documents.");
+    if (authorizationCache != null && LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("AUTHORIZATION CACHE: " + authorizationCache.statistics());
+    }
+    if (coalescer != null && LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("AUTHORIZATION COALESCER: " + coalescer);
+    }
+
+    return authorized;
+  }
+
+  /**
+   * Authorizes docids that do not have a cached decision, and caches
+   * the decisions.
+   *
+   * @param docids the Collection of docids
+   * @param username the username for which to check authorization
+   * @param authorized the list to add the authorized responses to
+   * @throws RepositoryException if an error occurs
+   */
+  private void authorizeUncached(Collection<String> docids, String username,
+      List<AuthorizationResponse> authorized) throws RepositoryException {
+    int cachedCount = authorized.size();
+    if (permIdMap == null) {
+      queryAuthorizedDocids(docids, username, authorized);
+    } else {
+      authorizeByPermId(docids, username, authorized);
+    }
+    if (authorizationCache != null) {
+      cacheDecisions(username, docids,
+          authorized.subList(cachedCount, authorized.size()));
+    }
+  }
+
+  /** Authorizes the merged requests from the coalescer. */
+  private class CoalescedQuery implements AuthorizationCoalescer.Query {
+    @Override
+    public Set<String> authorize(String username, Collection<String> docids)
+        throws RepositoryException {
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>(docids.size());
+      authorizeUncached(docids, username, responses);
+      Set<String> allowed = new HashSet<String>();
+      for (AuthorizationResponse response : responses) {
+        allowed.add(response.getDocid());
+      }
+      return allowed;
+    }
+  }
+
+  /**
+   * Queries the authorized docids from the list, for the given
+   * username or its lowercase version.
+   *
+   * @param docids the Collection of docids
+   * @param username the username for which to check authorization
+   * @param authorized the collection to add authorized doc IDs to
+   * @throws RepositoryException if an error occurs
+   */
+  private void queryAuthorizedDocids(Collection<String> docids,
+      String username, Collection<AuthorizationResponse> authorized)
+      throws RepositoryException {
     if (tryLowercaseUsernames) {
       try {
         // Hack: try lower case version of username first.
@@ -169,17 +414,249 @@ public class LivelinkAuthorizationManager
       }
     } else
       addAuthorizedDocids(docids, username, authorized);
-    authorized.trimToSize();
+  }
 
-    if (LOGGER.isLoggable(Level.FINEST)) {
-      for (String docid : docids) {
-        AuthorizationResponse ar = new AuthorizationResponse(true, docid);
-        LOGGER.finest("AUTHORIZED " + docid + ": " + authorized.contains(ar));
+  /**
+   * Authorizes the docids using the cached decisions for their
+   * PermIDs. The documents in the PermID map have already passed the
+   * checks other than permissions, so one document for each undecided
+   * PermID is queried along with the documents not in the map, and
+   * the result for that document is used for the others with the
+   * same PermID. A denied document may have been deleted or moved
+   * since it was added to the map, so a denial is only used for the
+   * PermID if the document still passes the other checks. Otherwise,
+   * the rest of its group is queried.
+   *
+   * @param docids the Collection of docids
+   * @param username the username for which to check authorization
+   * @param authorized the collection to add authorized doc IDs to
+   * @throws RepositoryException if an error occurs
+   */
+  private void authorizeByPermId(Collection<String> docids, String username,
+      Collection<AuthorizationResponse> authorized)
+      throws RepositoryException {
+    IntList modifiedPermIds;
+    synchronized (sysadminClient) {
+      modifiedPermIds = permIdMap.refresh(sysadminClient, sqlQueries);
+    }
+    if (aclSnapshot != null) {
+      aclSnapshot.evict(modifiedPermIds);
+    }
+
+    // Group the docids in the map by PermID.
+    List<String> queried = new ArrayList<String>();
+    Map<Integer, List<String>> byPermId =
+        new LinkedHashMap<Integer, List<String>>();
+    for (String docid : docids) {
+      int permId = getPermId(docid);
+      if (permId == PermIdMap.UNKNOWN) {
+        queried.add(docid);
+      } else {
+        List<String> group = byPermId.get(permId);
+        if (group == null) {
+          group = new ArrayList<String>();
+          byPermId.put(permId, group);
+        }
+        group.add(docid);
       }
-    } else if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine("AUTHORIZED: " + authorized.size() + " documents.");
+    }
 
-    return authorized;
+    // Use the cached decisions, then the ACL snapshot, or query the
+    // first docid in each group.
+    Map<Integer, List<String>> undecided =
+        new LinkedHashMap<Integer, List<String>>();
+    for (Map.Entry<Integer, List<String>> entry : byPermId.entrySet()) {
+      Boolean allowed =
+          permIdCache.get(username, String.valueOf(entry.getKey()));
+      if (allowed == null) {
+        undecided.put(entry.getKey(), entry.getValue());
+      } else if (allowed) {
+        addResponses(entry.getValue(), authorized);
+      }
+    }
+    if (aclSnapshot != null && !undecided.isEmpty()) {
+      Map<Integer, Boolean> decisions =
+          getSnapshotDecisions(username, undecided.keySet());
+      for (Map.Entry<Integer, Boolean> decision : decisions.entrySet()) {
+        List<String> group = undecided.remove(decision.getKey());
+        permIdCache.put(username, String.valueOf(decision.getKey()),
+            decision.getValue());
+        if (decision.getValue()) {
+          addResponses(group, authorized);
+        }
+      }
+    }
+    for (List<String> group : undecided.values()) {
+      queried.add(group.get(0));
+    }
+    if (queried.isEmpty()) {
+      return;
+    }
+
+    ArrayList<AuthorizationResponse> responses =
+        new ArrayList<AuthorizationResponse>(queried.size());
+    queryAuthorizedDocids(queried, username, responses);
+    Set<String> allowedDocids = new HashSet<String>();
+    for (AuthorizationResponse response : responses) {
+      allowedDocids.add(response.getDocid());
+    }
+    Map<Integer, List<String>> denied =
+        new LinkedHashMap<Integer, List<String>>();
+    for (Map.Entry<Integer, List<String>> entry : undecided.entrySet()) {
+      if (allowedDocids.remove(entry.getValue().get(0))) {
+        permIdCache.put(username, String.valueOf(entry.getKey()), true);
+        addResponses(entry.getValue(), authorized);
+      } else {
+        denied.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!denied.isEmpty()) {
+      authorizeDeniedGroups(denied, username, authorized);
+    }
+
+    // The remaining docids were not in the map, and have been added
+    // to it by the query.
+    for (String docid : allowedDocids) {
+      authorized.add(new AuthorizationResponse(true, docid));
+      int permId = permIdMap.get(Integer.parseInt(docid));
+      if (permId != PermIdMap.UNKNOWN) {
+        permIdCache.put(username, String.valueOf(permId), true);
+      }
+    }
+  }
+
+  /**
+   * Decides the PermIDs whose representative document was denied.
+   * If the document still passes the checks other than permissions,
+   * the PermID is denied. Otherwise, the document is removed from the
+   * PermID map, and the other documents in the group are queried. The
+   * PermID is allowed if any of them are, but it is not denied, since
+   * they may all fail the other checks.
+   *
+   * @param denied the docids grouped by PermID, with the denied
+   *     representative first in each group
+   * @param username the username for which to check authorization
+   * @param authorized the collection to add authorized doc IDs to
+   * @throws RepositoryException if an error occurs
+   */
+  private void authorizeDeniedGroups(Map<Integer, List<String>> denied,
+      String username, Collection<AuthorizationResponse> authorized)
+      throws RepositoryException {
+    List<String> representatives = new ArrayList<String>();
+    for (List<String> group : denied.values()) {
+      representatives.add(group.get(0));
+    }
+    Set<String> existing = new HashSet<String>();
+    synchronized (sysadminClient) {
+      addAuthorizedDocids(representatives.iterator(), CHUNK_SIZE,
+          sysadminClient, existing, new StringCreator());
+    }
+
+    List<String> others = new ArrayList<String>();
+    Map<Integer, List<String>> requeried =
+        new LinkedHashMap<Integer, List<String>>();
+    for (Map.Entry<Integer, List<String>> entry : denied.entrySet()) {
+      List<String> group = entry.getValue();
+      if (existing.contains(group.get(0))) {
+        permIdCache.put(username, String.valueOf(entry.getKey()), false);
+      } else {
+        permIdMap.remove(Integer.parseInt(group.get(0)));
+        if (group.size() > 1) {
+          requeried.put(entry.getKey(), group.subList(1, group.size()));
+          others.addAll(group.subList(1, group.size()));
+        }
+      }
+    }
+    if (others.isEmpty()) {
+      return;
+    }
+
+    ArrayList<AuthorizationResponse> responses =
+        new ArrayList<AuthorizationResponse>(others.size());
+    queryAuthorizedDocids(others, username, responses);
+    Set<String> allowedDocids = new HashSet<String>();
+    for (AuthorizationResponse response : responses) {
+      allowedDocids.add(response.getDocid());
+    }
+    authorized.addAll(responses);
+    for (Map.Entry<Integer, List<String>> entry : requeried.entrySet()) {
+      if (!Collections.disjoint(entry.getValue(), allowedDocids)) {
+        permIdCache.put(username, String.valueOf(entry.getKey()), true);
+      }
+    }
+  }
+
+  /**
+   * Gets the decisions for the given PermIDs from the ACL snapshot,
+   * for the given username or its lowercase version.
+   *
+   * @param username the username for which to check authorization
+   * @param permIds the PermIDs
+   * @return the decisions for the PermIDs that could be decided
+   * @throws RepositoryException if an error occurs
+   */
+  private Map<Integer, Boolean> getSnapshotDecisions(String username,
+      Collection<Integer> permIds) throws RepositoryException {
+    Map<Integer, Boolean> decisions = null;
+    if (tryLowercaseUsernames) {
+      decisions = aclSnapshot.authorize(aclClient, sqlQueries,
+          username.toLowerCase(), permIds);
+    }
+    if (decisions == null) {
+      decisions =
+          aclSnapshot.authorize(aclClient, sqlQueries, username, permIds);
+    }
+    return (decisions == null)
+        ? Collections.<Integer, Boolean>emptyMap() : decisions;
+  }
+
+  /** Gets the PermID of a docid from the map, or {@code UNKNOWN}. */
+  private int getPermId(String docid) {
+    if (INTEGER_PREDICATE.apply(docid)) {
+      try {
+        return permIdMap.get(Integer.parseInt(docid));
+      } catch (NumberFormatException e) {
+        // The docid is outside of the int range.
+      }
+    }
+    return PermIdMap.UNKNOWN;
+  }
+
+  /** Adds an authorized response for each docid to the collection. */
+  private void addResponses(List<String> docids,
+      Collection<AuthorizationResponse> authorized) {
+    for (String docid : docids) {
+      authorized.add(new AuthorizationResponse(true, docid));
+    }
+  }
+
+  /**
+   * Caches the decisions for the queried docids. The docids that are
+   * not in the responses were denied.
+   *
+   * @param username the username for which authorization was checked
+   * @param docids the queried docids
+   * @param responses the responses for the authorized docids
+   */
+  private void cacheDecisions(String username, Collection<String> docids,
+      List<AuthorizationResponse> responses) {
+    Set<String> allowed = new HashSet<String>();
+    for (AuthorizationResponse response : responses) {
+      allowed.add(response.getDocid());
+    }
+    for (String docid : docids) {
+      authorizationCache.put(username, docid, allowed.contains(docid));
+    }
+  }
+
+  /**
+   * Gets the statistics of the authorization decision cache.
+   *
+   * @return the cache statistics, or null if the cache is disabled
+   */
+  synchronized CacheStatistics getCacheStatistics() {
+    return (authorizationCache == null)
+        ? null : authorizationCache.statistics();
   }
 
   /**
@@ -209,9 +686,10 @@ public class LivelinkAuthorizationManager
    * @param authorized the collection to add authorized doc IDs to
    * @throws RepositoryException if an error occurs
    */
-  final synchronized void addAuthorizedDocids(Iterator<String> iterator,
+  final void addAuthorizedDocids(Iterator<String> iterator,
       String username, Collection<String> authorized)
       throws RepositoryException {
+    checkInitialized();
     addAuthorizedDocids(iterator, username, authorized, new StringCreator());
   }
 
@@ -256,22 +734,125 @@ public class LivelinkAuthorizationManager
     [junit] llglobal: docs/time = 2479/813
     [junit] llglobal-external: docs/time = 2479/522
 
-    For now, we're creating a new client (and LLSession) on
-    each request. We could synchronize this method and share a
-    client instance (synchronization is needed to prevent
-    problems with impersonation). If there are too many
-    requests coming from the ConnectorManager for the Livelink
-    server, we could consider synchronizing access to the
-    ListNodes call on the class object or something.
+    Each request takes a client (and LLSession) from the pool and
+    impersonates the user, so that concurrent requests are limited
+    to the pool size and reuse the sessions. A client is only used
+    by one request at a time, to prevent problems with
+    impersonation. A client is dropped rather than reused after an
+    error.
+
+    If authorizationQueryThreads is greater than one, the chunks of
+    a request are queried concurrently, each in its own session, and
+    the results are merged in request order. The chunk size is chosen
+    by a ChunkSizeController from the measured query times.
   */
   private <T> void addAuthorizedDocids(Iterator<String> iterator,
       String username, Collection<T> authorized, Creator<T> creator)
       throws RepositoryException {
-    Client client = clientFactory.createClient();
-    client.ImpersonateUserEx(username, connector.getDomainName());
+    if (queryExecutor == null) {
+      queryChunks(iterator, CHUNK_SIZE, username, authorized, creator);
+      return;
+    }
 
+    List<String> docids = Lists.newArrayList(iterator);
+    if (docids.isEmpty()) {
+      return;
+    }
+    int chunkSize =
+        chunkSizeController.getChunkSize(docids.size(), querySessions);
+    if (chunkSize >= docids.size()) {
+      queryChunk(docids, username, authorized, creator);
+      return;
+    }
+
+    List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+    for (List<String> chunk : Lists.partition(docids, chunkSize)) {
+      futures.add(queryExecutor.submit(
+              new ChunkQuery<T>(chunk, username, creator)));
+    }
+    try {
+      for (Future<List<T>> future : futures) {
+        authorized.addAll(ClientExecutor.getResult(future));
+      }
+    } finally {
+      // Don't leave queries running for a request that has failed.
+      for (Future<List<T>> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** Queries one chunk of a request, for concurrent execution. */
+  private class ChunkQuery<T> implements Callable<List<T>> {
+    private final List<String> docids;
+    private final String username;
+    private final Creator<T> creator;
+
+    ChunkQuery(List<String> docids, String username, Creator<T> creator) {
+      this.docids = docids;
+      this.username = username;
+      this.creator = creator;
+    }
+
+    @Override
+    public List<T> call() throws RepositoryException {
+      List<T> authorized = new ArrayList<T>();
+      queryChunk(docids, username, authorized, creator);
+      return authorized;
+    }
+  }
+
+  /**
+   * Queries the given docids in a single query, and records the time
+   * taken for the chunk sizes.
+   */
+  private <T> void queryChunk(List<String> docids, String username,
+      Collection<T> authorized, Creator<T> creator)
+      throws RepositoryException {
+    long elapsedMillis = queryChunks(docids.iterator(), docids.size(),
+        username, authorized, creator);
+    chunkSizeController.recordQuery(docids.size(), elapsedMillis);
+  }
+
+  /**
+   * Queries the docids from the iterator in chunks of the given size,
+   * using a client from the pool that impersonates the user.
+   *
+   * @return the time taken by the queries, in milliseconds, not
+   *     counting the wait for a client from the pool
+   */
+  private <T> long queryChunks(Iterator<String> iterator, int chunkSize,
+      String username, Collection<T> authorized, Creator<T> creator)
+      throws RepositoryException {
+    Client client = clientPool.acquire();
+    long start = System.currentTimeMillis();
+    boolean reusable = false;
+    try {
+      client.ImpersonateUserEx(username, connector.getDomainName());
+      addAuthorizedDocids(iterator, chunkSize, client, authorized, creator);
+      reusable = true;
+    } finally {
+      clientPool.release(client, reusable);
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  /**
+   * Adds authorized documents from the list to the collection, using
+   * the given impersonated client.
+   *
+   * @param iterator Iterator over the list of doc IDs
+   * @param chunkSize the maximum number of doc IDs in each query
+   * @param client the client impersonating the user
+   * @param authorized the collection to add authorized doc IDs to
+   * @param creator a factory for the objects added to the collection
+   * @throws RepositoryException if an error occurs
+   */
+  private <T> void addAuthorizedDocids(Iterator<String> iterator,
+      int chunkSize, Client client, Collection<T> authorized,
+      Creator<T> creator) throws RepositoryException {
     String docids;
-    while ((docids = getDocids(iterator)) != null) {
+    while ((docids = getDocids(iterator, chunkSize)) != null) {
       String ancestorNodes;
       String startNodes = connector.getIncludedLocationNodes();
       if (Strings.isNullOrEmpty(startNodes)) {
@@ -288,8 +869,13 @@ public class LivelinkAuthorizationManager
           /* 5 */ choice(!showHiddenItems), Client.DISPLAYTYPE_HIDDEN,
           /* 7 */ choice(!Strings.isNullOrEmpty(startNodes)), startNodes,
           /* 9 */ ancestorNodes);
-      for (int i = 0; i < results.size(); i++)
+      for (int i = 0; i < results.size(); i++) {
         authorized.add(creator.fromString(results.toString(i, "DataID")));
+        if (permIdMap != null && results.isDefined(i, "PermID")) {
+          permIdMap.put(results.toInteger(i, "DataID"),
+              results.toInteger(i, "PermID"));
+        }
+      }
     }
   }
 
@@ -322,11 +908,23 @@ public class LivelinkAuthorizationManager
    */
   @VisibleForTesting
   String getDocids(Iterator<String> iterator) {
+    return getDocids(iterator, CHUNK_SIZE);
+  }
+
+  /**
+   * Builds a comma-separated string of up to the given number of
+   * docids from the given iterator.
+   *
+   * @param docids the docids to include in the query
+   * @param chunkSize the maximum number of docids to include
+   * @return the comma-separated string; null if no docids are provided
+   */
+  private String getDocids(Iterator<String> iterator, int chunkSize) {
     if (!iterator.hasNext())
       return null; 
 
     StringBuilder buffer = new StringBuilder();
-    for (int i = 0; i < 1000 && iterator.hasNext(); i++ ) 
+    for (int i = 0; i < chunkSize && iterator.hasNext(); i++ ) 
       buffer.append(iterator.next()).append(',');
     buffer.deleteCharAt(buffer.length() - 1);
     return buffer.toString();
@@ -22,11 +22,14 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.Connector;
+import com.google.enterprise.connector.spi.ConnectorShutdownAware;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.SpiConstants;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.Format;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
@@ -41,12 +44,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class LivelinkConnector implements Connector {
+public class LivelinkConnector implements Connector, ConnectorShutdownAware {
   /** The logger for this class. */
   private static final Logger LOGGER =
       Logger.getLogger(LivelinkConnector.class.getName());
@@ -141,6 +145,12 @@ public class LivelinkConnector implements Connector {
    */
   private final ClientFactory clientFactory;
 
+  /**
+   * The client factory that limits the rate of server calls and
+   * content transfers, or null if there are no limits.
+   */
+  private ClientFactory governedClientFactory = null;
+
   /**
    * The client factory used to configure and instantiate the
    * client facade when a client is needed for authentication;
@@ -250,6 +260,94 @@ public class LivelinkConnector implements Connector {
    */
   private int candidatesTimeWarpFuzz = -1;
 
+  /**
+   * Whether to query for the next traversal batch in the background
+   * while the current batch is being processed.
+   */
+  private boolean prefetchNextBatch = false;
+
+  /**
+   * The number of threads used to collect document metadata in
+   * parallel, or zero to collect it on the traversal thread.
+   */
+  private int enrichmentThreads = 0;
+
+  /**
+   * The number of documents whose content is fetched ahead of the
+   * document being fed, or zero to fetch the content on demand.
+   */
+  private int contentPrefetchWindow = 0;
+
+  /** The maximum total size of the content fetched ahead. */
+  private long contentPrefetchBytes = 32L * 1024 * 1024;
+
+  /** The limit on Livelink server calls per second, or zero. */
+  private double governorCallsPerSecond = 0;
+
+  /** The limit on content bytes per second, or zero. */
+  private long governorBytesPerSecond = 0;
+
+  /** The time-of-day limits, or an empty string for none. */
+  private String governorSchedule = "";
+
+  /**
+   * Whether to size the candidates queries based on the observed
+   * yield and query time, rather than the fixed batch hint.
+   */
+  private boolean adaptiveBatchSize = false;
+
+  /**
+   * The number of partitions to traverse concurrently, or one to
+   * traverse the whole repository in a single partition.
+   */
+  private int traversalPartitions = 1;
+
+  /** The DTree column used to assign items to partitions. */
+  private String traversalPartitionColumn = "DataID";
+
+  /**
+   * Whether to select the candidates and the results in a single
+   * query when the configuration allows it.
+   */
+  private boolean combineTraversalQueries = false;
+
+  /**
+   * Whether to skip ahead to the next item that might pass the
+   * filters when none of the candidates pass.
+   */
+  private boolean candidatesSkipAhead = false;
+
+  /**
+   * The file used to record the state of fed documents, or an empty
+   * string to feed every traversed document.
+   */
+  private String documentStateIndexFile = "";
+
+  /** The document state index, opened when first needed. */
+  private DocumentStateIndex documentStateIndex = null;
+
+  /**
+   * The file used to journal the traversal position within a batch,
+   * or an empty string to only use the connector manager checkpoints.
+   */
+  private String traversalJournalFile = "";
+
+  /** The traversal journal, opened when first needed. */
+  private TraversalJournal traversalJournal = null;
+
+  /**
+   * The file used to save the genealogist caches across restarts, or
+   * an empty string to start with empty caches.
+   */
+  private String genealogistCacheFile = "";
+
+  /** The genealogist cache snapshot, created when first needed. */
+  private GenealogistSnapshot genealogistSnapshot = null;
+
+  /** The background executors, which are stopped by shutdown. */
+  private final List<ExecutorService> executors =
+      new ArrayList<ExecutorService>();
+
   /** Whether to track deleted items, sending delete notification to GSA. */
   private boolean trackDeletedItems = true;
 
@@ -268,6 +366,9 @@ public class LivelinkConnector implements Connector {
   /** The maximum of the <code>Genealogist</code> ancestor node caches. */
   private int genealogistMaxCacheSize;
 
+  /** The minimum number of seconds between parent map refreshes. */
+  private int genealogistRefreshSeconds = 60;
+
   /** An additional SQL WHERE clause condition. */
   private String sqlWhereCondition;
 
@@ -310,6 +411,30 @@ public class LivelinkConnector implements Connector {
   /** Lowercase usernames hack. */
   private boolean tryLowercaseUsernames;
 
+  /** The maximum number of cached authorization decisions, or zero. */
+  private int authorizationCacheSize = 0;
+
+  /** The number of seconds to cache each authorization decision. */
+  private int authorizationCacheSeconds = 60;
+
+  /** The maximum number of documents in the PermID map, or zero. */
+  private int authorizationPermIdMapSize = 0;
+
+  /** The maximum number of concurrent authorization sessions. */
+  private int authorizationPoolSize = 4;
+
+  /** The number of seconds to keep an idle authorization session. */
+  private int authorizationPoolIdleSeconds = 300;
+
+  /** The number of threads for concurrent authorization queries. */
+  private int authorizationQueryThreads = 1;
+
+  /** The number of seconds between loads of the ACL snapshot, or zero. */
+  private int authorizationAclSnapshotSeconds = 0;
+
+  /** The number of milliseconds to merge authorization requests, or zero. */
+  private int authorizationCoalesceMillis = 0;
+
   /** Whether to feed ACLs and return groups, or not. */
   private boolean pushAcls;
 
@@ -959,6 +1084,496 @@ public class LivelinkConnector implements Connector {
     return candidatesTimeWarpFuzz;
   }
 
+  /**
+   * Sets whether to run the traversal queries for the next batch in
+   * the background while the current batch is being processed. The
+   * prefetched batch is used if the next traversal resumes from the
+   * checkpoint at the end of the current batch, and is discarded
+   * otherwise. Prefetching uses a second pair of Livelink sessions,
+   * and is not supported with HTTP tunneling.
+   *
+   * @param prefetchNextBatch {@code true} to prefetch the next batch,
+   *     or {@code false} to run the queries for each batch on demand
+   */
+  public void setPrefetchNextBatch(boolean prefetchNextBatch) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("PREFETCH NEXT BATCH: " + prefetchNextBatch);
+    this.prefetchNextBatch = prefetchNextBatch;
+  }
+
+  /**
+   * Gets whether to prefetch the next traversal batch.
+   *
+   * @return {@code true} if the next batch should be prefetched
+   */
+  boolean getPrefetchNextBatch() {
+    return prefetchNextBatch;
+  }
+
+  /**
+   * Sets the number of threads used to collect the ObjectInfo,
+   * VersionInfo, category, and ACL properties of the documents in a
+   * batch in parallel. Each thread uses its own Livelink session. The
+   * documents are still returned in traversal order, and the content
+   * is still retrieved on the traversal thread. Parallel collection is
+   * not supported with HTTP tunneling.
+   *
+   * @param enrichmentThreads the number of threads, or zero to collect
+   *     the properties of each document on the traversal thread
+   */
+  public void setEnrichmentThreads(final int enrichmentThreads) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (enrichmentThreads < 0) {
+            throw new ConfigurationException(
+                "enrichmentThreads must not be negative.");
+          }
+          LivelinkConnector.this.enrichmentThreads = enrichmentThreads;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("ENRICHMENT THREADS: " + enrichmentThreads);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of threads used to collect document metadata.
+   *
+   * @return the number of threads, or zero if the metadata is
+   *     collected on the traversal thread
+   */
+  int getEnrichmentThreads() {
+    return enrichmentThreads;
+  }
+
+  /**
+   * Sets the number of documents in a batch whose content is fetched
+   * in the background, ahead of the document being fed. Documents
+   * without content, or whose content would not be fed because of its
+   * MIME type or size, are not counted. The content handler must
+   * support being called from a second thread. Content prefetching is
+   * not supported with HTTP tunneling, or with
+   * {@code PipedContentHandler}, whose producer threads would block
+   * on the unread pipes.
+   *
+   * @param contentPrefetchWindow the number of documents, or zero to
+   *     fetch the content of each document when it is fed
+   */
+  public void setContentPrefetchWindow(final int contentPrefetchWindow) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (contentPrefetchWindow < 0) {
+            throw new ConfigurationException(
+                "contentPrefetchWindow must not be negative.");
+          }
+          if (contentPrefetchWindow > 0
+              && contentHandler instanceof PipedContentHandler) {
+            LOGGER.warning("contentPrefetchWindow is not supported with "
+                + "PipedContentHandler");
+            return;
+          }
+          LivelinkConnector.this.contentPrefetchWindow =
+              contentPrefetchWindow;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("CONTENT PREFETCH WINDOW: "
+                + contentPrefetchWindow);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of documents whose content is fetched ahead.
+   *
+   * @return the number of documents, or zero if the content is
+   *     fetched on demand
+   */
+  int getContentPrefetchWindow() {
+    return contentPrefetchWindow;
+  }
+
+  /**
+   * Sets the maximum total size, in bytes, of the content that has
+   * been fetched ahead but not yet fed. Content larger than this is
+   * fetched when the document is fed. The default is 32 MB.
+   *
+   * @param contentPrefetchBytes the maximum size in bytes
+   */
+  public void setContentPrefetchBytes(final long contentPrefetchBytes) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (contentPrefetchBytes < 0) {
+            throw new ConfigurationException(
+                "contentPrefetchBytes must not be negative.");
+          }
+          LivelinkConnector.this.contentPrefetchBytes = contentPrefetchBytes;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("CONTENT PREFETCH BYTES: " + contentPrefetchBytes);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum total size of the content fetched ahead.
+   *
+   * @return the maximum size in bytes
+   */
+  long getContentPrefetchBytes() {
+    return contentPrefetchBytes;
+  }
+
+  /**
+   * Sets the maximum average number of Livelink server calls per
+   * second, across all of the sessions used for traversal and
+   * content. Authorization and authentication are not limited. The
+   * default is zero, which is unlimited.
+   *
+   * @param governorCallsPerSecond the limit on calls per second
+   */
+  public void setGovernorCallsPerSecond(double governorCallsPerSecond) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("GOVERNOR CALLS PER SECOND: " + governorCallsPerSecond);
+    if (governorCallsPerSecond < 0) {
+      throw new IllegalArgumentException(
+          "governorCallsPerSecond must not be negative.");
+    }
+    this.governorCallsPerSecond = governorCallsPerSecond;
+  }
+
+  /**
+   * Sets the maximum average number of content bytes fetched per
+   * second, across all of the sessions. The default is zero, which
+   * is unlimited.
+   *
+   * @param governorBytesPerSecond the limit on bytes per second
+   */
+  public void setGovernorBytesPerSecond(long governorBytesPerSecond) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("GOVERNOR BYTES PER SECOND: " + governorBytesPerSecond);
+    if (governorBytesPerSecond < 0) {
+      throw new IllegalArgumentException(
+          "governorBytesPerSecond must not be negative.");
+    }
+    this.governorBytesPerSecond = governorBytesPerSecond;
+  }
+
+  /**
+   * Sets different limits for parts of the day, in the local time
+   * zone. The schedule is a semicolon-separated list of entries of
+   * the form <code>HH:MM-HH:MM=calls,bytes</code>, where calls and
+   * bytes are the limits per second during that time, and zero is
+   * unlimited. For example, <code>08:00-18:00=5,1048576</code> limits
+   * the connector to five calls and one megabyte per second during
+   * business hours. At other times, {@link #setGovernorCallsPerSecond}
+   * and {@link #setGovernorBytesPerSecond} apply.
+   *
+   * @param governorSchedule the schedule, or an empty string for none
+   */
+  public void setGovernorSchedule(final String governorSchedule) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          try {
+            ClientGovernor.parseSchedule(governorSchedule);
+          } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage(), e);
+          }
+          LivelinkConnector.this.governorSchedule =
+              Strings.nullToEmpty(governorSchedule);
+          if (LOGGER.isLoggable(Level.CONFIG))
+            LOGGER.config("GOVERNOR SCHEDULE: " + governorSchedule);
+        }
+      });
+  }
+
+  /**
+   * Sets whether to choose the number of candidates in each candidates
+   * query adaptively. By default, the first query of a batch uses the
+   * batch hint, and the size is multiplied by ten whenever none of the
+   * candidates pass the results query filters. When adaptive, the size
+   * is based on the fraction of recent candidates that passed the
+   * filters and the recent query time per candidate, limited so that
+   * a query is unlikely to exceed the remaining traversal time.
+   *
+   * @param adaptiveBatchSize {@code true} to size the candidates
+   *     queries adaptively, or {@code false} to use the fixed sizes
+   */
+  public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("ADAPTIVE BATCH SIZE: " + adaptiveBatchSize);
+    this.adaptiveBatchSize = adaptiveBatchSize;
+  }
+
+  /**
+   * Gets whether to size the candidates queries adaptively.
+   *
+   * @return {@code true} if the candidates queries are sized adaptively
+   */
+  boolean getAdaptiveBatchSize() {
+    return adaptiveBatchSize;
+  }
+
+  /**
+   * Sets the number of partitions to traverse concurrently. Each
+   * partition has its own Livelink clients and its own position in the
+   * traversal order, which are combined in the checkpoint. Partitioned
+   * traversal is not supported with HTTP tunneling.
+   *
+   * @param traversalPartitions the number of partitions, or one to
+   *     traverse the repository in a single partition
+   */
+  public void setTraversalPartitions(final int traversalPartitions) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (traversalPartitions < 1) {
+            throw new ConfigurationException(
+                "traversalPartitions must be at least 1.");
+          }
+          LivelinkConnector.this.traversalPartitions = traversalPartitions;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("TRAVERSAL PARTITIONS: " + traversalPartitions);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of partitions to traverse concurrently.
+   *
+   * @return the number of partitions, which is one if the traversal is
+   *     not partitioned
+   */
+  int getTraversalPartitions() {
+    return traversalPartitions;
+  }
+
+  /**
+   * Sets the DTree column used to assign items to partitions. Using
+   * DataID spreads the items evenly across the partitions. Using
+   * OwnerID keeps each volume in a single partition.
+   *
+   * @param traversalPartitionColumn either "DataID" or "OwnerID"
+   */
+  public void setTraversalPartitionColumn(
+      final String traversalPartitionColumn) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if ("DataID".equalsIgnoreCase(traversalPartitionColumn)) {
+            LivelinkConnector.this.traversalPartitionColumn = "DataID";
+          } else if ("OwnerID".equalsIgnoreCase(traversalPartitionColumn)) {
+            LivelinkConnector.this.traversalPartitionColumn = "OwnerID";
+          } else {
+            throw new ConfigurationException(
+                "traversalPartitionColumn must be DataID or OwnerID.");
+          }
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("TRAVERSAL PARTITION COLUMN: "
+                + LivelinkConnector.this.traversalPartitionColumn);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the DTree column used to assign items to partitions.
+   *
+   * @return either "DataID" or "OwnerID"
+   */
+  String getTraversalPartitionColumn() {
+    return traversalPartitionColumn;
+  }
+
+  /**
+   * Sets whether to select the candidates and the results for a batch
+   * in a single query. The candidates are selected in a subquery of
+   * the results query, which halves the number of round trips to the
+   * server. The two queries are still used when
+   * <code>useDTreeAncestorsFirst</code> is true or a
+   * <code>Genealogist</code> is used. When none of the candidates in a
+   * window pass the filters, a small query for the last candidate
+   * advances the checkpoint past the window.
+   *
+   * @param combineTraversalQueries {@code true} to use a single query
+   *     when possible, or {@code false} to always use two queries
+   */
+  public void setCombineTraversalQueries(boolean combineTraversalQueries) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("COMBINE TRAVERSAL QUERIES: " + combineTraversalQueries);
+    this.combineTraversalQueries = combineTraversalQueries;
+  }
+
+  /**
+   * Gets whether to select the candidates and the results in a single
+   * query when possible.
+   *
+   * @return {@code true} if a single query is used when possible
+   */
+  boolean getCombineTraversalQueries() {
+    return combineTraversalQueries;
+  }
+
+  /**
+   * Sets whether to skip ahead through sparse candidates. When none of
+   * the candidates in a query pass the filters, a probe query finds
+   * the earliest later ModifyDate of an item that might pass, and the
+   * traversal jumps to that date instead of querying the next
+   * candidates. The probe applies the included locations and the
+   * excluded node and volume types. Skipping ahead is disabled when a
+   * genealogist is used instead of DTreeAncestors, since the probe
+   * could not skip the items outside of the included locations.
+   *
+   * @param candidatesSkipAhead {@code true} to skip ahead, or
+   *     {@code false} to query each set of candidates in turn
+   */
+  public void setCandidatesSkipAhead(boolean candidatesSkipAhead) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("CANDIDATES SKIP AHEAD: " + candidatesSkipAhead);
+    this.candidatesSkipAhead = candidatesSkipAhead;
+  }
+
+  /**
+   * Gets whether to skip ahead through sparse candidates.
+   *
+   * @return {@code true} if the traversal skips ahead
+   */
+  boolean getCandidatesSkipAhead() {
+    return candidatesSkipAhead;
+  }
+
+  /**
+   * Sets the file used to record the state of each document when it
+   * is fed. Documents whose version number, data size, and metadata
+   * are unchanged since they were last fed are skipped, which avoids
+   * feeding items again for changes such as reserving them that
+   * update the ModifyDate without changing the document.
+   *
+   * @param documentStateIndexFile the path of the index file, or an
+   *     empty string to feed every traversed document
+   */
+  public void setDocumentStateIndexFile(String documentStateIndexFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("DOCUMENT STATE INDEX FILE: " + documentStateIndexFile);
+    this.documentStateIndexFile = documentStateIndexFile;
+  }
+
+  /**
+   * Gets whether a document state index is configured.
+   *
+   * @return {@code true} if a document state index file is configured
+   */
+  boolean isDocumentStateIndexEnabled() {
+    return !Strings.isNullOrEmpty(documentStateIndexFile);
+  }
+
+  /**
+   * Gets the document state index, opening it if necessary.
+   *
+   * @return the document state index, or null if it is not configured
+   * @throws RepositoryException if the index cannot be opened
+   */
+  synchronized DocumentStateIndex getDocumentStateIndex()
+      throws RepositoryException {
+    if (documentStateIndex == null
+        && !Strings.isNullOrEmpty(documentStateIndexFile)) {
+      try {
+        documentStateIndex =
+            new DocumentStateIndex(new File(documentStateIndexFile));
+      } catch (IOException e) {
+        throw new LivelinkException("Unable to open the document state index "
+            + documentStateIndexFile, e, LOGGER);
+      }
+    }
+    return documentStateIndex;
+  }
+
+  /**
+   * Sets the file used to journal the traversal position after each
+   * document. If a batch is not committed, because the feed failed or
+   * the connector stopped, the journal reports the documents that are
+   * returned again. The journal is only a diagnostic log; the
+   * traversal always resumes from the connector manager checkpoint,
+   * since the connector manager does not acknowledge each document.
+   * The journal is not used with partitioned traversal.
+   *
+   * @param traversalJournalFile the path of the journal file, or an
+   *     empty string to not journal the traversal position
+   */
+  public void setTraversalJournalFile(String traversalJournalFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("TRAVERSAL JOURNAL FILE: " + traversalJournalFile);
+    this.traversalJournalFile = traversalJournalFile;
+  }
+
+  /**
+   * Gets the traversal journal, opening it if necessary.
+   *
+   * @return the traversal journal, or null if it is not configured
+   * @throws RepositoryException if the journal cannot be read
+   */
+  synchronized TraversalJournal getTraversalJournal()
+      throws RepositoryException {
+    if (traversalJournal == null
+        && !Strings.isNullOrEmpty(traversalJournalFile)) {
+      try {
+        traversalJournal =
+            new TraversalJournal(new File(traversalJournalFile));
+      } catch (IOException e) {
+        throw new LivelinkException("Unable to read the traversal journal "
+            + traversalJournalFile, e, LOGGER);
+      }
+    }
+    return traversalJournal;
+  }
+
+  /**
+   * Registers an executor created for this connector, so that its
+   * threads are stopped when the connector is shut down or deleted.
+   *
+   * @param executor the executor
+   * @return the executor
+   */
+  synchronized ExecutorService addExecutor(ExecutorService executor) {
+    executors.add(executor);
+    return executor;
+  }
+
+  /**
+   * Sets the file used to save the genealogist caches, so that they
+   * are warm after a restart. The caches are saved periodically during
+   * traversal and when the connector is shut down, and are restored
+   * only if the genealogist and the included and excluded location
+   * nodes are unchanged. Containers modified since the traversal
+   * checkpoint recorded with the caches are removed when they are
+   * restored.
+   * <p>
+   * Containers moved later are found in the audit trail used for
+   * deleted items, so they are only removed from the caches when
+   * <code>trackDeletedItems</code> is true. Otherwise, a restored or
+   * long-lived cache may keep the old ancestors of a moved container.
+   *
+   * @param genealogistCacheFile the path of the cache file, or an
+   *     empty string to start with empty caches
+   */
+  public void setGenealogistCacheFile(String genealogistCacheFile) {
+    if (LOGGER.isLoggable(Level.CONFIG))
+      LOGGER.config("GENEALOGIST CACHE FILE: " + genealogistCacheFile);
+    this.genealogistCacheFile = genealogistCacheFile;
+  }
+
+  /**
+   * Gets the genealogist cache snapshot.
+   *
+   * @return the snapshot, or null if it is not configured
+   */
+  synchronized GenealogistSnapshot getGenealogistSnapshot() {
+    if (genealogistSnapshot == null
+        && !Strings.isNullOrEmpty(genealogistCacheFile)) {
+      genealogistSnapshot =
+          new GenealogistSnapshot(new File(genealogistCacheFile));
+    }
+    return genealogistSnapshot;
+  }
+
   /**
    * Sets the Livelink public content username.
    *
@@ -1495,7 +2110,8 @@ public class LivelinkConnector implements Connector {
    * Set whether this connector instance will track deleted items.
    * If true, then track delete events in the Livelink Audit Log,
    * and send a delete notification to the GSA, so it may purge
-   * the deleted item from its index.
+   * the deleted item from its index. The move events in the same
+   * audit log are used to update the genealogist caches.
    *
    * @param trackDeletedItems
    */
@@ -1608,6 +2224,10 @@ public class LivelinkConnector implements Connector {
    * size before aging LRU ancestor nodes from the cache.  Optimal values of
    * the minimum cacheSize are slightly less than (but not exactly equal to)
    * a power of 2.
+   * <p/>
+   * Moved containers are only removed from the caches when
+   * <code>trackDeletedItems</code> is true, so larger caches keep stale
+   * ancestors longer when it is false.
    *
    * @param cacheSize minimum cache size in number of entries.
    *        The minimum value must not be less than or equal to zero.
@@ -1646,6 +2266,10 @@ public class LivelinkConnector implements Connector {
    * <p/>
    * The caches will grow (doubling in size) upto the maximum configured cache
    * size before aging LRU ancestor nodes from the cache.
+   * <p/>
+   * Moved containers are only removed from the caches when
+   * <code>trackDeletedItems</code> is true, so larger caches keep stale
+   * ancestors longer when it is false.
    *
    * @param cacheSize maximum cache size in number of entries.
    *        The maximum cache size should be greater than or equal to the
@@ -1680,6 +2304,41 @@ public class LivelinkConnector implements Connector {
     return genealogistMaxCacheSize;
   }
 
+  /**
+   * Sets the minimum number of seconds between refreshes of the map
+   * of container parents kept by <code>ParentMapGenealogist</code>,
+   * which bounds the delay before a container modified outside of the
+   * traversal is seen. Other genealogists ignore this property.
+   *
+   * @param genealogistRefreshSeconds the number of seconds
+   */
+  public void setGenealogistRefreshSeconds(
+      final int genealogistRefreshSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (genealogistRefreshSeconds < 0) {
+            throw new ConfigurationException(
+                "genealogistRefreshSeconds must not be negative.");
+          }
+          LivelinkConnector.this.genealogistRefreshSeconds =
+              genealogistRefreshSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("GENEALOGIST REFRESH SECONDS: "
+                + genealogistRefreshSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the minimum number of seconds between parent map refreshes.
+   *
+   * @return the number of seconds
+   */
+  int getGenealogistRefreshSeconds() {
+    return genealogistRefreshSeconds;
+  }
+
   /**
    * Sets an additional SQL WHERE clause condition.
    *
@@ -2072,6 +2731,295 @@ public class LivelinkConnector implements Connector {
     return tryLowercaseUsernames;
   }
 
+  /**
+   * Sets the maximum number of authorization decisions to cache. The
+   * decisions are cached for each pair of Livelink username and docid,
+   * so that repeated searches and result pages do not query Livelink
+   * again.
+   *
+   * @param authorizationCacheSize the maximum number of decisions, or
+   *     zero to disable the cache
+   */
+  public void setAuthorizationCacheSize(final int authorizationCacheSize) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationCacheSize < 0) {
+            throw new ConfigurationException(
+                "authorizationCacheSize must not be negative.");
+          }
+          LivelinkConnector.this.authorizationCacheSize =
+              authorizationCacheSize;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION CACHE SIZE: "
+                + authorizationCacheSize);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of authorization decisions to cache.
+   *
+   * @return the maximum number of decisions, or zero if the cache is
+   *     disabled
+   */
+  int getAuthorizationCacheSize() {
+    return authorizationCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds that a cached authorization decision
+   * is used, which bounds the delay before permission changes are
+   * seen at search time.
+   *
+   * @param authorizationCacheSeconds the number of seconds
+   */
+  public void setAuthorizationCacheSeconds(
+      final int authorizationCacheSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationCacheSeconds < 1) {
+            throw new ConfigurationException(
+                "authorizationCacheSeconds must be positive.");
+          }
+          LivelinkConnector.this.authorizationCacheSeconds =
+              authorizationCacheSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION CACHE SECONDS: "
+                + authorizationCacheSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of seconds to cache each authorization decision.
+   *
+   * @return the number of seconds
+   */
+  int getAuthorizationCacheSeconds() {
+    return authorizationCacheSeconds;
+  }
+
+  /**
+   * Sets the maximum number of documents in the map from DataID to
+   * PermID used to authorize documents by PermID. Documents that share
+   * a PermID have the same permissions, so the authorization decision
+   * for one is cached and used for the others. The decisions use the
+   * authorization cache size and timeout.
+   *
+   * @param authorizationPermIdMapSize the maximum number of documents,
+   *     or zero to disable authorization by PermID
+   */
+  public void setAuthorizationPermIdMapSize(
+      final int authorizationPermIdMapSize) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationPermIdMapSize < 0) {
+            throw new ConfigurationException(
+                "authorizationPermIdMapSize must not be negative.");
+          }
+          LivelinkConnector.this.authorizationPermIdMapSize =
+              authorizationPermIdMapSize;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION PERMID MAP SIZE: "
+                + authorizationPermIdMapSize);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of documents in the PermID map.
+   *
+   * @return the maximum number of documents, or zero if authorization
+   *     by PermID is disabled
+   */
+  int getAuthorizationPermIdMapSize() {
+    return authorizationPermIdMapSize;
+  }
+
+  /**
+   * Sets the maximum number of Livelink sessions used for
+   * authorization, which is also the maximum number of concurrent
+   * authorization requests. The sessions are reused, impersonating
+   * the user for each request.
+   *
+   * @param authorizationPoolSize the maximum number of sessions
+   */
+  public void setAuthorizationPoolSize(final int authorizationPoolSize) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationPoolSize < 1) {
+            throw new ConfigurationException(
+                "authorizationPoolSize must be positive.");
+          }
+          LivelinkConnector.this.authorizationPoolSize =
+              authorizationPoolSize;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION POOL SIZE: "
+                + authorizationPoolSize);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of Livelink sessions used for
+   * authorization.
+   *
+   * @return the maximum number of sessions
+   */
+  int getAuthorizationPoolSize() {
+    return authorizationPoolSize;
+  }
+
+  /**
+   * Sets the number of seconds that an idle authorization session is
+   * kept before it is dropped.
+   *
+   * @param authorizationPoolIdleSeconds the number of seconds
+   */
+  public void setAuthorizationPoolIdleSeconds(
+      final int authorizationPoolIdleSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationPoolIdleSeconds < 1) {
+            throw new ConfigurationException(
+                "authorizationPoolIdleSeconds must be positive.");
+          }
+          LivelinkConnector.this.authorizationPoolIdleSeconds =
+              authorizationPoolIdleSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION POOL IDLE SECONDS: "
+                + authorizationPoolIdleSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of seconds that an idle authorization session is
+   * kept.
+   *
+   * @return the number of seconds
+   */
+  int getAuthorizationPoolIdleSeconds() {
+    return authorizationPoolIdleSeconds;
+  }
+
+  /**
+   * Sets the number of threads used to query the chunks of an
+   * authorization request concurrently, each in its own session from
+   * the authorization pool. The default of one queries the chunks
+   * sequentially in a single session.
+   *
+   * @param authorizationQueryThreads the number of threads
+   */
+  public void setAuthorizationQueryThreads(
+      final int authorizationQueryThreads) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationQueryThreads < 1) {
+            throw new ConfigurationException(
+                "authorizationQueryThreads must be positive.");
+          }
+          LivelinkConnector.this.authorizationQueryThreads =
+              authorizationQueryThreads;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION QUERY THREADS: "
+                + authorizationQueryThreads);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of threads used to query the chunks of an
+   * authorization request.
+   *
+   * @return the number of threads
+   */
+  int getAuthorizationQueryThreads() {
+    return authorizationQueryThreads;
+  }
+
+  /**
+   * Sets the number of seconds between loads of the users and groups
+   * in the local ACL snapshot, which is used to authorize documents
+   * with a known PermID without an impersonated query. The default
+   * of zero disables the snapshot. The snapshot requires
+   * authorization by PermID.
+   *
+   * @param authorizationAclSnapshotSeconds the number of seconds
+   */
+  public void setAuthorizationAclSnapshotSeconds(
+      final int authorizationAclSnapshotSeconds) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationAclSnapshotSeconds < 0) {
+            throw new ConfigurationException(
+                "authorizationAclSnapshotSeconds must not be negative.");
+          }
+          LivelinkConnector.this.authorizationAclSnapshotSeconds =
+              authorizationAclSnapshotSeconds;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION ACL SNAPSHOT SECONDS: "
+                + authorizationAclSnapshotSeconds);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the number of seconds between loads of the local ACL
+   * snapshot.
+   *
+   * @return the number of seconds, or zero if the snapshot is disabled
+   */
+  int getAuthorizationAclSnapshotSeconds() {
+    return authorizationAclSnapshotSeconds;
+  }
+
+  /**
+   * Sets the maximum number of milliseconds that authorization
+   * requests for a user wait for a running query for the same user.
+   * Requests that arrive while a query is running are authorized
+   * together as soon as it finishes, or after this many milliseconds.
+   * The first request for a user is queried at once. The default of
+   * zero authorizes each request separately.
+   *
+   * @param authorizationCoalesceMillis the number of milliseconds
+   */
+  public void setAuthorizationCoalesceMillis(
+      final int authorizationCoalesceMillis) {
+    propertyValidators.add(new PropertyValidator() {
+        void validate() {
+          if (authorizationCoalesceMillis < 0) {
+            throw new ConfigurationException(
+                "authorizationCoalesceMillis must not be negative.");
+          }
+          LivelinkConnector.this.authorizationCoalesceMillis =
+              authorizationCoalesceMillis;
+          if (LOGGER.isLoggable(Level.CONFIG)) {
+            LOGGER.config("AUTHORIZATION COALESCE MILLIS: "
+                + authorizationCoalesceMillis);
+          }
+        }
+      });
+  }
+
+  /**
+   * Gets the maximum number of milliseconds that merged authorization
+   * requests wait for a running query for the same user.
+   *
+   * @return the number of milliseconds, or zero if requests are not
+   * merged
+   */
+  int getAuthorizationCoalesceMillis() {
+    return authorizationCoalesceMillis;
+  }
+
   /**
    * Sets pushAcls.
    *
@@ -2175,6 +3123,19 @@ public class LivelinkConnector implements Connector {
    * @return the <code>ClientFactory</code>
    */
   ClientFactory getClientFactory() {
+    return (governedClientFactory == null)
+        ? clientFactory : governedClientFactory;
+  }
+
+  /**
+   * Gets the <code>ClientFactory</code> for this Connector to use
+   * with authorization. Authorization requests are served while a
+   * user waits, so they are not limited by the governor, and
+   * traversal cannot starve them.
+   *
+   * @return the <code>ClientFactory</code>
+   */
+  ClientFactory getAuthorizationClientFactory() {
     return clientFactory;
   }
 
@@ -2223,6 +3184,14 @@ public class LivelinkConnector implements Connector {
       clientFactory.setLivelinkCgi("");
       clientFactory.setUseUsernamePasswordWithWebServer(false);
     }
+    if (governorCallsPerSecond > 0 || governorBytesPerSecond > 0
+        || !governorSchedule.isEmpty()) {
+      governedClientFactory = new GovernedClientFactory(clientFactory,
+          new ClientGovernor(governorCallsPerSecond, governorBytesPerSecond,
+              governorSchedule));
+    } else {
+      governedClientFactory = null;
+    }
     if (publicContentDisplayUrl == null ||
         publicContentDisplayUrl.length() == 0) {
       publicContentDisplayUrl = displayUrl;
@@ -2423,7 +3392,7 @@ public class LivelinkConnector implements Connector {
     // verifies connectivity with the server, and we use the
     // results to set the character encoding for future clients
     // and confirm the availability of the overview action.
-    Client client = clientFactory.createClient();
+    Client client = getClientFactory().createClient();
     ClientValue serverInfo = client.GetServerInfo();
 
     // Get the server version, which is a string like "9.5.0".
@@ -2514,7 +3483,65 @@ public class LivelinkConnector implements Connector {
       validateSqlWhereCondition(client);
     }
 
-    return new LivelinkSession(this, clientFactory, authenticationManager,
-        authorizationManager);
+    return new LivelinkSession(this, getClientFactory(),
+        authenticationManager, authorizationManager);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This implementation stops the content handler threads, if any,
+   * and the registered executors, saves the genealogist caches, and
+   * closes the local index and journal files.
+   */
+  @Override
+  public synchronized void shutdown() throws RepositoryException {
+    LOGGER.fine("SHUTDOWN");
+
+    if (contentHandler instanceof PipedContentHandler) {
+      ((PipedContentHandler) contentHandler).shutdown();
+    }
+
+    for (ExecutorService executor : executors) {
+      executor.shutdownNow();
+    }
+    executors.clear();
+
+    if (genealogistSnapshot != null) {
+      genealogistSnapshot.close();
+      genealogistSnapshot = null;
+    }
+
+    try {
+      if (documentStateIndex != null) {
+        documentStateIndex.close();
+        documentStateIndex = null;
+      }
+      if (traversalJournal != null) {
+        traversalJournal.close();
+        traversalJournal = null;
+      }
+    } catch (IOException e) {
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This implementation also clears the document state index, so
+   * that a new connector using the same file feeds every document.
+   */
+  @Override
+  public synchronized void delete() throws RepositoryException {
+    DocumentStateIndex stateIndex = getDocumentStateIndex();
+    if (stateIndex != null) {
+      try {
+        stateIndex.clear();
+      } catch (IOException e) {
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
+    shutdown();
   }
 }
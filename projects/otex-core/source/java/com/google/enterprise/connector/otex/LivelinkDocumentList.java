@@ -22,6 +22,7 @@ import com.google.enterprise.connector.otex.client.ClientValue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.Principal;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SkippedDocumentException;
@@ -32,14 +33,23 @@ import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -122,6 +132,133 @@ class LivelinkDocumentList implements DocumentList {
 
   private final IdentityUtils identityUtils;
 
+  /**
+   * The executor used to collect the metadata for the items in
+   * parallel, or null to collect it on the calling thread.
+   */
+  private final ClientExecutor enrichmentExecutor;
+
+  /** The name and category handlers for each enrichment client. */
+  private final Map<Client, EnrichmentHandlers> enrichmentHandlers =
+      new HashMap<Client, EnrichmentHandlers>();
+
+  /**
+   * The index of the state of fed documents, or null if every
+   * document is fed.
+   */
+  private final DocumentStateIndex stateIndex;
+
+  /**
+   * The document states to record in the index at the next checkpoint,
+   * keyed by DataID. A null state removes the entry from the index, and
+   * a state whose content was not read is not recorded.
+   */
+  private final Map<Integer, DocumentState> pendingStates =
+      new LinkedHashMap<Integer, DocumentState>();
+
+  /** The traversal journal, or null if the position is not journaled. */
+  private TraversalJournal journal = null;
+
+  /**
+   * The prefetcher for the content of the following documents, or
+   * null if the content is fetched on demand.
+   */
+  private ContentPrefetcher contentPrefetcher = null;
+
+  /** The state of a document that is recorded in the index. */
+  private static class DocumentState {
+    final int versionNum;
+    final long dataSize;
+    final long metadataDigest;
+
+    /**
+     * Whether the content was read to the end or closed without an
+     * error. The content may be read in another thread.
+     */
+    volatile boolean isContentRead = false;
+
+    DocumentState(int versionNum, long dataSize, long metadataDigest) {
+      this.versionNum = versionNum;
+      this.dataSize = dataSize;
+      this.metadataDigest = metadataDigest;
+    }
+  }
+
+  /**
+   * Marks the state of a document when its content is read to the end
+   * or closed, unless a read failed first.
+   */
+  private static class StateInputStream extends FilterInputStream {
+    private final DocumentState state;
+
+    private boolean isFailed = false;
+
+    StateInputStream(InputStream in, DocumentState state) {
+      super(in);
+      this.state = state;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return checkEnd(super.read());
+      } catch (IOException e) {
+        isFailed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return checkEnd(super.read(b, off, len));
+      } catch (IOException e) {
+        isFailed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      try {
+        return super.skip(n);
+      } catch (IOException e) {
+        isFailed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (!isFailed) {
+        state.isContentRead = true;
+      }
+    }
+
+    private int checkEnd(int count) {
+      if (count == -1 && !isFailed) {
+        state.isContentRead = true;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * The handlers used with an enrichment client. Like the client,
+   * they are only used by one thread at a time.
+   */
+  private static class EnrichmentHandlers {
+    final UserNameHandler nameHandler;
+    final CategoryHandler categoryHandler;
+
+    EnrichmentHandlers(UserNameHandler nameHandler,
+        CategoryHandler categoryHandler) {
+      this.nameHandler = nameHandler;
+      this.categoryHandler = categoryHandler;
+    }
+  }
+
   /**
    * Constructor for non-trivial document set.  Iterate over a
    * RecArray of items returned from Livelink.
@@ -131,6 +268,21 @@ class LivelinkDocumentList implements DocumentList {
       Field[] fields, ClientValue delArray,
       TraversalContext traversalContext, Checkpoint checkpoint,
       String currentUsername) throws RepositoryException {
+    this(connector, client, contentHandler, recArray, fields, delArray,
+        traversalContext, checkpoint, currentUsername, null);
+  }
+
+  /**
+   * Constructor for non-trivial document set, with an optional
+   * executor to collect the metadata of the items in parallel.
+   */
+  LivelinkDocumentList(LivelinkConnector connector, Client client,
+      ContentHandler contentHandler, ClientValue recArray,
+      Field[] fields, ClientValue delArray,
+      TraversalContext traversalContext, Checkpoint checkpoint,
+      String currentUsername, ClientExecutor enrichmentExecutor)
+      throws RepositoryException {
+    this.enrichmentExecutor = enrichmentExecutor;
     this.connector = connector;
     this.client = client;
     this.contentHandler = contentHandler;
@@ -142,6 +294,7 @@ class LivelinkDocumentList implements DocumentList {
     this.traversalContext = traversalContext;
     this.checkpoint = checkpoint;
     this.identityUtils = new IdentityUtils(connector);
+    this.stateIndex = connector.getDocumentStateIndex();
 
     if (contentHandler instanceof RefreshableContentHandler) {
       ((RefreshableContentHandler) contentHandler).refresh();
@@ -155,11 +308,36 @@ class LivelinkDocumentList implements DocumentList {
     docsProcessed = 0;
   }
 
+  /**
+   * Sets the journal used to record the position after each document
+   * that the caller has consumed.
+   *
+   * @param journal the traversal journal, or null
+   */
+  void setTraversalJournal(TraversalJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Sets the prefetcher used to fetch the content of the following
+   * documents in the background.
+   *
+   * @param contentPrefetcher the content prefetcher, or null
+   */
+  void setContentPrefetcher(ContentPrefetcher contentPrefetcher) {
+    this.contentPrefetcher = contentPrefetcher;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public Document nextDocument() throws RepositoryException {
+    // The caller asks for the next document after it has finished
+    // with the previous one.
+    if (journal != null && docsProcessed > 0)
+      journal.append(checkpoint.toString());
+
     if (docIterator.hasNext()) {
       // If processing a document throws an exception, we will try to
       // determine if the failure is transient (like server not
@@ -231,6 +409,13 @@ class LivelinkDocumentList implements DocumentList {
    */
   @Override
   public String checkpoint() throws RepositoryException {
+    // The batch is over, so any content fetched ahead will not be used,
+    // and neither will the metadata for the rows not yet returned.
+    if (contentPrefetcher != null)
+      contentPrefetcher.close();
+    docIterator.cancelEnrichment();
+
+    recordDocumentStates();
     String cp = checkpoint.toString();
 
     if (LOGGER.isLoggable(Level.FINE))
@@ -239,6 +424,142 @@ class LivelinkDocumentList implements DocumentList {
     return cp;
   }
 
+  /**
+   * Records the states of the documents returned in this batch in the
+   * document state index. This is done when the checkpoint is taken,
+   * rather than as each document is returned, so that documents that
+   * are returned again after a failure are not skipped. The state of a
+   * document whose content was not read successfully is not recorded,
+   * so that the document is fed again.
+   */
+  private void recordDocumentStates() throws RepositoryException {
+    if (stateIndex == null || pendingStates.isEmpty()) {
+      return;
+    }
+    int droppedCount = 0;
+    try {
+      for (Map.Entry<Integer, DocumentState> entry : pendingStates.entrySet()) {
+        DocumentState state = entry.getValue();
+        if (state == null) {
+          stateIndex.remove(entry.getKey());
+        } else if (state.isContentRead) {
+          stateIndex.put(entry.getKey(), state.versionNum, state.dataSize,
+              state.metadataDigest);
+        } else {
+          droppedCount++;
+        }
+      }
+      stateIndex.flush();
+    } catch (IOException e) {
+      throw new LivelinkException(e, LOGGER);
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("RECORDED " + (pendingStates.size() - droppedCount)
+          + " DOCUMENT STATES, DROPPED " + droppedCount
+          + " WITH UNREAD CONTENT");
+    }
+    pendingStates.clear();
+  }
+
+  /**
+   * Gets the size of the content to feed for a row. If the item does
+   * not (or must not) have content, or if the item's content is not
+   * acceptable according to the TraversalContext, then there is no
+   * content to feed.
+   *
+   * @param row the recArray row
+   * @param subType the subtype of the item
+   * @return the content size, or zero if there is no content to feed
+   * @throws SkippedDocumentException if the item's content type is
+   *     excluded, and the whole document should be skipped
+   */
+  private long getContentSize(int row, int subType)
+      throws RepositoryException {
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("CONTENT WITH SUBTYPE = " + subType);
+
+    List<Integer> unsupportedTypes =
+        connector.getUnsupportedFetchVersionTypes();
+    if (unsupportedTypes.contains(subType)) {
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("NO CONTENT PROPERTY FOR FOR UNSUPPORTED SUBTYPE = "
+            + subType);
+      }
+      return 0;
+    }
+
+    // DataSize is the only non-nullable column from
+    // DVersData that appears in the WebNodes view,
+    // but there are cases (such as categories) where
+    // there are rows in DVersData but FetchVersion
+    // fails. So we're guessing here that if MimeType
+    // is non-null then there should be a blob.
+    ClientValue mimeType = recArray.toValue(row, "MimeType");
+    if (!mimeType.isDefined())
+      return 0;
+
+    // XXX: This value might be wrong. There are
+    // data size callbacks which can change this
+    // value. For example, the value returned by
+    // GetObjectInfo may be different than the
+    // value retrieved from the database.
+    long size = recArray.toLong(row, "GoogleDataSize");
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("CONTENT DATASIZE = " + size);
+
+    // The TraversalContext Interface provides additional
+    // screening based upon content size and mimetype.
+    if (traversalContext != null) {
+      String mt = mimeType.toString2();
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("CONTENT TYPE = " + mt);
+
+      // Is this MimeType supported?  If not, don't feed content.
+      int supportLevel = traversalContext.mimeTypeSupportLevel(mt);
+      if (supportLevel == 0)
+        return 0;
+
+      // Is this MimeType excluded?  If so, skip the whole document.
+      if (supportLevel < 0)
+        throw new SkippedDocumentException("Excluded by content type: " + mt);
+
+      // Is the content too large?
+      if (size > traversalContext.maxDocumentSize())
+        return 0;
+    } else {
+      // If there is no traversal context, we'll enforce a size
+      // limit of 30 MB. This limit is hard-coded in the GSA anyway.
+      if (size > 30 * 1024 * 1024)
+        return 0;
+    }
+
+    // If there is no actual data, don't feed empty content.
+    return Math.max(size, 0);
+  }
+
+  /**
+   * Gets the version number of a row for the document state index.
+   * The traversal manager selects VersionNum when there is an index.
+   *
+   * @param row the recArray row
+   * @return the version number, or zero if it is not defined
+   */
+  private int getStateVersionNum(int row) throws RepositoryException {
+    ClientValue versionNum = recArray.toValue(row, "VersionNum");
+    return versionNum.isDefined() ? versionNum.toInteger() : 0;
+  }
+
+  /**
+   * Gets the data size of a row for the document state index.
+   *
+   * @param row the recArray row
+   * @return the data size, or -1 if it is not defined
+   */
+  private long getStateDataSize(int row) throws RepositoryException {
+    ClientValue dataSize = recArray.toValue(row, "GoogleDataSize");
+    return dataSize.isDefined() ? dataSize.toLong() : -1L;
+  }
+
   /**
    * If we have a Public Content User specified, some of the
    * documents in the repository may be available to the public.
@@ -271,6 +592,21 @@ class LivelinkDocumentList implements DocumentList {
     }
   }
 
+  /**
+   * Gets the handlers for the given enrichment client, which are
+   * scoped to this document list like the handlers for the main client.
+   */
+  private synchronized EnrichmentHandlers getEnrichmentHandlers(Client client)
+      throws RepositoryException {
+    EnrichmentHandlers handlers = enrichmentHandlers.get(client);
+    if (handlers == null) {
+      handlers = new EnrichmentHandlers(new UserNameHandler(client),
+          new CategoryHandler(connector, client));
+      enrichmentHandlers.put(client, handlers);
+    }
+    return handlers;
+  }
+
   /**
    * This iterates over the DocIDs in the recArray.
    */
@@ -342,36 +678,52 @@ class LivelinkDocumentList implements DocumentList {
     /** The object ID of the current row. */
     private int objectId;
 
-    /** The volume ID of the current row. */
-    private int volumeId;
-
-    /** The object Subtype. */
-    private int subType;
-
-    /** The user ID of the owner of the current row. */
-    private int ownerId;
-
-    /** The ObjectInfo of the current row, [fetch delayed until needed] */
-    private ClientValue objectInfo;
+    /**
+     * The enrichment tasks for the recArray rows, indexed by row, or
+     * null if the documents are enriched on the calling thread.
+     */
+    private final Future<InsertedDocument>[] pending;
 
-    /** The VersionInfo of the current row, [fetch delayed until needed] */
-    private ClientValue versionInfo;
+    /** The next recArray row to submit to the enrichment executor. */
+    private int submitRow;
 
-    /** The Document Properties associated with the current row. */
-    private LivelinkDocument props;
+    /** The next recArray row to consider for content prefetching. */
+    private int prefetchRow;
 
+    @SuppressWarnings("unchecked")
     LivelinkDocumentListIterator() throws RepositoryException {
       this.delRow = 0;
       this.delSize = (delArray == null) ? 0 : delArray.size();
 
       this.insRow = 0;
       this.insSize = (recArray == null) ? 0 : recArray.size();
+
+      this.pending = (enrichmentExecutor == null)
+          ? null : (Future<InsertedDocument>[]) new Future<?>[insSize];
+      this.submitRow = 0;
+      this.prefetchRow = 0;
     }
 
     public boolean hasNext() {
       return (insRow < insSize) || (delRow < delSize);
     }
 
+    /**
+     * Cancels the enrichment tasks for the rows that have not been
+     * returned. Tasks that are already running are left to finish,
+     * because interrupting a Livelink call could break its session.
+     */
+    void cancelEnrichment() {
+      if (pending == null)
+        return;
+      for (int row = insRow; row < submitRow; row++) {
+        if (pending[row] != null) {
+          pending[row].cancel(false);
+          pending[row] = null;
+        }
+      }
+    }
+
     public LivelinkDocument nextDocument() throws RepositoryException {
       if (!hasNext())
         return null;
@@ -381,8 +733,7 @@ class LivelinkDocumentList implements DocumentList {
       // a delete have the same date, process inserts first.
       Date insDate = null, delDate = null;
       int dateComp = 0;
-      objectInfo = null;
-      versionInfo = null;
+      LivelinkDocument props;
 
       // Peek at the next item to insert,
       if (insRow < insSize) {
@@ -419,19 +770,17 @@ class LivelinkDocumentList implements DocumentList {
         try {
           // Return an Inserted Item.
           objectId = recArray.toInteger(insRow, "DataID");
-          volumeId = recArray.toInteger(insRow, "OwnerID");
-          subType  = recArray.toInteger(insRow, "SubType");
-          ownerId = recArray.toInteger(insRow, "UserID");
-
-          props = new LivelinkDocument(objectId, fields.length*2);
+          prefetchContent(insRow);
 
           // Collect the various properties for this row.
-          collectRecArrayProperties();
-          collectObjectInfoProperties();
-          collectVersionProperties();
-          collectCategoryAttributes();
-          collectDerivedProperties();
-          collectAclProperties();
+          InsertedDocument document = getInsertedDocument(insRow);
+          document.collectDerivedProperties();
+          document.collectAclProperties();
+          DocumentState state = document.checkDocumentState();
+          document.collectContentProperty(state);
+          if (state != null)
+            pendingStates.put(objectId, state);
+          props = document.props;
         } finally {
           // Establish the checkpoint for this row.
           checkpoint.setInsertCheckpoint(insDate, objectId);
@@ -447,7 +796,9 @@ class LivelinkDocumentList implements DocumentList {
           //     "    EventID " +
           //     delArray.toValue(delRow, "EventID").toString2());
           props = new LivelinkDocument(objectId, 3);
-          collectDeletedObjectAttributes(delDate);
+          collectDeletedObjectAttributes(props, delDate);
+          if (stateIndex != null)
+            pendingStates.put(objectId, null);
         } finally {
           // Establish the checkpoint for this row.
           checkpoint.setDeleteCheckpoint(delDate,
@@ -459,13 +810,115 @@ class LivelinkDocumentList implements DocumentList {
       return props;
     }
 
+    /**
+     * Gets the inserted item for the given row, with the properties
+     * that are fetched from Livelink for each item collected. If there
+     * is an enrichment executor, the following rows are submitted to it
+     * in the background, and the metadata for this row is usually
+     * already available. The documents are still returned in recArray
+     * order, so the checkpoint is unaffected.
+     *
+     * @param row the recArray row
+     */
+    private InsertedDocument getInsertedDocument(int row)
+        throws RepositoryException {
+      if (enrichmentExecutor == null) {
+        InsertedDocument document = new InsertedDocument(row, objectId,
+            client, nameHandler, categoryHandler);
+        document.collectMetadataProperties();
+        return document;
+      }
+
+      // Keep a few rows per thread in the queue, so that the threads
+      // stay busy while we wait for the content of this row.
+      if (submitRow <= row) {
+        submitRow = row;
+      }
+      int window = 2 * enrichmentExecutor.getThreadCount();
+      while (submitRow < insSize && submitRow <= row + window) {
+        submit(submitRow++);
+      }
+
+      Future<InsertedDocument> future = pending[row];
+      pending[row] = null;
+      InsertedDocument document = ClientExecutor.getResult(future);
+
+      // The remaining properties are collected on this thread.
+      document.setClient(client);
+      return document;
+    }
+
+    /**
+     * Starts fetching the content of the following rows, beginning
+     * with the given row, until the prefetch window is full. Rows
+     * whose content would not be fed are passed over, and so are
+     * rows whose content is too large to prefetch, and rows whose
+     * content is unchanged in the document state index, which are
+     * usually skipped. If the byte budget is full, the remaining rows
+     * are considered on a later call.
+     *
+     * @param row the current recArray row
+     */
+    private void prefetchContent(int row) {
+      if (contentPrefetcher == null)
+        return;
+      if (prefetchRow < row)
+        prefetchRow = row;
+      while (prefetchRow < insSize && contentPrefetcher.hasRoom()) {
+        long size;
+        try {
+          size = getContentSize(prefetchRow,
+              recArray.toInteger(prefetchRow, "SubType"));
+          int dataId = recArray.toInteger(prefetchRow, "DataID");
+          if (size > 0 && !contentPrefetcher.isTooLarge(size)
+              && (stateIndex == null || !stateIndex.isContentUnchanged(
+                  dataId, getStateVersionNum(prefetchRow),
+                  getStateDataSize(prefetchRow)))
+              && !contentPrefetcher.prefetch(prefetchRow,
+                  recArray.toInteger(prefetchRow, "OwnerID"), dataId,
+                  size)) {
+            break;
+          }
+        } catch (RepositoryException e) {
+          // The row will be skipped, or its content will be fetched
+          // when the row is reached.
+          LOGGER.log(Level.FINEST, "No content prefetch for row "
+              + prefetchRow, e);
+        } catch (IOException e) {
+          LOGGER.log(Level.FINEST, "No content prefetch for row "
+              + prefetchRow, e);
+        }
+        prefetchRow++;
+      }
+    }
+
+    /** Submits a row to the enrichment executor. */
+    private void submit(final int row) throws RepositoryException {
+      final int rowObjectId = recArray.toInteger(row, "DataID");
+      pending[row] = enrichmentExecutor.submit(
+          new ClientExecutor.ClientCallable<InsertedDocument>() {
+            @Override
+            public InsertedDocument call(Client workerClient)
+                throws RepositoryException {
+              EnrichmentHandlers handlers =
+                  getEnrichmentHandlers(workerClient);
+              InsertedDocument document = new InsertedDocument(row,
+                  rowObjectId, workerClient, handlers.nameHandler,
+                  handlers.categoryHandler);
+              document.collectMetadataProperties();
+              document.fetchAclPrincipals();
+              return document;
+            }
+          });
+    }
+
     /**
      * For items to be deleted from the index, we need only supply
      * the GSA the DocId, lastModified date, and a Delete action
      * properties.
      */
-    private void collectDeletedObjectAttributes(Date deleteDate)
-        throws RepositoryException
+    private void collectDeletedObjectAttributes(LivelinkDocument props,
+        Date deleteDate) throws RepositoryException
     {
       props.addProperty(SpiConstants.PROPNAME_DOCID,
           Value.getLongValue(objectId));
@@ -476,6 +929,86 @@ class LivelinkDocumentList implements DocumentList {
       props.addProperty(SpiConstants.PROPNAME_ACTION,
           Value.getStringValue(ActionType.DELETE.toString()));
     }
+  }
+
+  /**
+   * Collects the properties of an inserted item. The client and
+   * handler fields shadow the fields of the document list, so that
+   * the metadata can be collected on an enrichment thread, using the
+   * client for that thread.
+   */
+  private class InsertedDocument {
+    /** The row of the recArray. */
+    private final int insRow;
+
+    /** The object ID of the row. */
+    private final int objectId;
+
+    /** The volume ID of the row. */
+    private final int volumeId;
+
+    /** The object Subtype. */
+    private final int subType;
+
+    /** The user ID of the owner of the row. */
+    private final int ownerId;
+
+    /** The client for the current thread. */
+    private Client client;
+
+    /** A handler for mapping user IDs to user names. */
+    private final UserNameHandler nameHandler;
+
+    /** A handler for retrieving category attributes. */
+    private final CategoryHandler categoryHandler;
+
+    /** The ObjectInfo of the row, [fetch delayed until needed] */
+    private ClientValue objectInfo;
+
+    /** The VersionInfo of the row, [fetch delayed until needed] */
+    private ClientValue versionInfo;
+
+    /** The ACL user principals, or null if they have not been fetched. */
+    private List<Value> userPrincipals;
+
+    /** The ACL group principals, or null if they have not been fetched. */
+    private List<Value> groupPrincipals;
+
+    /** The Document Properties associated with the row. */
+    private final LivelinkDocument props;
+
+    InsertedDocument(int insRow, int objectId, Client client,
+        UserNameHandler nameHandler, CategoryHandler categoryHandler)
+        throws RepositoryException {
+      this.insRow = insRow;
+      this.objectId = objectId;
+      this.volumeId = recArray.toInteger(insRow, "OwnerID");
+      this.subType  = recArray.toInteger(insRow, "SubType");
+      this.ownerId = recArray.toInteger(insRow, "UserID");
+      this.client = client;
+      this.nameHandler = nameHandler;
+      this.categoryHandler = categoryHandler;
+      this.props = new LivelinkDocument(objectId, fields.length*2);
+    }
+
+    /**
+     * Switches to the given client, after the metadata has been
+     * collected on an enrichment thread.
+     */
+    void setClient(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Collects the recarray properties and the metadata that is
+     * fetched from Livelink separately for each item.
+     */
+    void collectMetadataProperties() throws RepositoryException {
+      collectRecArrayProperties();
+      collectObjectInfoProperties();
+      collectVersionProperties();
+      collectCategoryAttributes();
+    }
 
     /** Collects the recarray-based properties. */
     /*
@@ -502,7 +1035,7 @@ class LivelinkDocumentList implements DocumentList {
     }
 
     /** Collects additional properties derived from the recarray. */
-    private void collectDerivedProperties() throws RepositoryException {
+    void collectDerivedProperties() throws RepositoryException {
       // Flag the document as publicly accessible (or not).
       boolean isPublic = isPublicContentUser ||
           (publicContentDocs != null &&
@@ -510,9 +1043,6 @@ class LivelinkDocumentList implements DocumentList {
       props.addProperty(SpiConstants.PROPNAME_ISPUBLIC,
           isPublic ? VALUE_TRUE : VALUE_FALSE);
 
-      // Fetch the content.
-      collectContentProperty();
-
       // Add the ExtendedData as MetaData properties.
       collectExtendedDataProperties();
 
@@ -593,80 +1123,113 @@ class LivelinkDocumentList implements DocumentList {
      * If the item does not (or must not) have content, then no
      * content property is generated.  If the item's content is
      * not acceptable according to the TraversalContext, then no
-     * content is generated.
+     * content is generated. The content stream may have been
+     * prefetched in the background.
+     *
+     * @param state the state of the item, which is marked when the
+     *     content has been read, or null if there is no document
+     *     state index
      */
-    private void collectContentProperty() throws RepositoryException {
-      if (LOGGER.isLoggable(Level.FINER))
-        LOGGER.finer("CONTENT WITH SUBTYPE = " + subType);
-
-      List<Integer> unsupportedTypes =
-          connector.getUnsupportedFetchVersionTypes();
-      if (unsupportedTypes.contains(subType)) {
-        if (LOGGER.isLoggable(Level.FINEST)) {
-          LOGGER.finest("NO CONTENT PROPERTY FOR FOR UNSUPPORTED SUBTYPE = "
-              + subType);
-        }
-        return;
-      }
-
-      // DataSize is the only non-nullable column from
-      // DVersData that appears in the WebNodes view,
-      // but there are cases (such as categories) where
-      // there are rows in DVersData but FetchVersion
-      // fails. So we're guessing here that if MimeType
-      // is non-null then there should be a blob.
-      ClientValue mimeType = recArray.toValue(insRow, "MimeType");
-      if (!mimeType.isDefined())
+    void collectContentProperty(DocumentState state)
+        throws RepositoryException {
+      long size = getContentSize(insRow, subType);
+      if (size <= 0) {
+        if (state != null)
+          state.isContentRead = true;
         return;
-
-      // XXX: This value might be wrong. There are
-      // data size callbacks which can change this
-      // value. For example, the value returned by
-      // GetObjectInfo may be different than the
-      // value retrieved from the database.
-      long size = recArray.toLong(insRow, "GoogleDataSize");
-      if (LOGGER.isLoggable(Level.FINER))
-        LOGGER.finer("CONTENT DATASIZE = " + size);
-
-      // The TraversalContext Interface provides additional
-      // screening based upon content size and mimetype.
-      if (traversalContext != null) {
-        String mt = mimeType.toString2();
-        if (LOGGER.isLoggable(Level.FINER))
-          LOGGER.finer("CONTENT TYPE = " + mt);
-
-        // Is this MimeType supported?  If not, don't feed content.
-        int supportLevel = traversalContext.mimeTypeSupportLevel(mt);
-        if (supportLevel == 0)
-          return;
-
-        // Is this MimeType excluded?  If so, skip the whole document.
-        if (supportLevel < 0)
-          throw new SkippedDocumentException("Excluded by content type: " + mt);
-
-        // Is the content too large?
-        if (size > traversalContext.maxDocumentSize())
-          return;
-      } else {
-        // If there is no traversal context, we'll enforce a size
-        // limit of 30 MB. This limit is hard-coded in the GSA anyway.
-        if (size > 30 * 1024 * 1024)
-          return;
       }
 
-      // If there is no actual data, don't feed empty content.
-      if (size <= 0)
-        return;
-
       // If we pass the gauntlet, create a content stream property and
       // add it to the property map. The size parameter is an int, but
       // it is only a hint, so cap the long value at Integer.MAX_VALUE.
-      InputStream is = contentHandler.getInputStream(volumeId, objectId, 0,
-          Ints.saturatedCast(size));
+      InputStream is = (contentPrefetcher == null)
+          ? null : contentPrefetcher.take(insRow);
+      if (is == null) {
+        is = contentHandler.getInputStream(volumeId, objectId, 0,
+            Ints.saturatedCast(size));
+      }
+      if (state != null)
+        is = new StateInputStream(is, state);
       Value contentValue = Value.getBinaryValue(is);
       props.addProperty(SpiConstants.PROPNAME_CONTENT, contentValue);
     }
 
+    /**
+     * Checks the state of the item against the document state index.
+     * The content is not fetched before this check, so the version
+     * number and data size stand in for a digest of the content. The
+     * metadata digest covers every property except the content and
+     * the modification date.
+     *
+     * @return the current state of the item to record in the index,
+     *     or null if there is no document state index
+     * @throws SkippedDocumentException if the item has not changed
+     *     since it was last fed
+     */
+    DocumentState checkDocumentState() throws RepositoryException {
+      if (stateIndex == null)
+        return null;
+
+      DocumentState state = new DocumentState(getStateVersionNum(insRow),
+          getStateDataSize(insRow), getMetadataDigest());
+
+      boolean isUnchanged;
+      try {
+        isUnchanged = stateIndex.isUnchanged(objectId, state.versionNum,
+            state.dataSize, state.metadataDigest);
+      } catch (IOException e) {
+        throw new LivelinkException(e, LOGGER);
+      }
+      if (isUnchanged) {
+        throw new SkippedDocumentException("Unchanged since last fed: "
+            + objectId);
+      }
+      return state;
+    }
+
+    /**
+     * Computes a digest of the properties, except for the content and
+     * the modification date, which change without changing the
+     * document as the GSA sees it.
+     */
+    private long getMetadataDigest() throws RepositoryException {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new LivelinkException(e, LOGGER);
+      }
+      for (String name : props.getPropertyNames()) {
+        if (name.equals(SpiConstants.PROPNAME_CONTENT)
+            || name.equals(SpiConstants.PROPNAME_LASTMODIFIED)
+            || name.equals("ModifyDate")) {
+          continue;
+        }
+        update(digest, name);
+        Property property = props.findProperty(name);
+        Value value;
+        while ((value = property.nextValue()) != null) {
+          update(digest, String.valueOf(value));
+        }
+      }
+      byte[] bytes = digest.digest();
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (bytes[i] & 0xff);
+      }
+      return value;
+    }
+
+    /** Adds a string and a separator to a digest. */
+    private void update(MessageDigest digest, String value) {
+      try {
+        digest.update(value.getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+      digest.update((byte) 0);
+    }
+
     /**
      * Collect properties from the ExtendedData assoc.
      */
@@ -827,15 +1390,33 @@ class LivelinkDocumentList implements DocumentList {
     }
 
     /**
-     * Collects ACL properties.
+     * Collects ACL properties, fetching the principals if that has not
+     * already been done.
      */
-    private void collectAclProperties() throws RepositoryException {
+    void collectAclProperties() throws RepositoryException {
       if (!connector.getPushAcls()) {
         return;
       }
 
-      List<Value> userPrincipals = new ArrayList<Value>();
-      List<Value> groupPrincipals = new ArrayList<Value>();
+      if (userPrincipals == null) {
+        fetchAclPrincipals();
+      }
+
+      // add users and groups principals to the map
+      props.addProperty(SpiConstants.PROPNAME_ACLUSERS, userPrincipals);
+      props.addProperty(SpiConstants.PROPNAME_ACLGROUPS, groupPrincipals);
+    }
+
+    /**
+     * Fetches the ACL principals, without adding them to the properties.
+     */
+    void fetchAclPrincipals() throws RepositoryException {
+      if (!connector.getPushAcls()) {
+        return;
+      }
+
+      userPrincipals = new ArrayList<Value>();
+      groupPrincipals = new ArrayList<Value>();
 
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("ACE Info for id: " + objectId);
@@ -861,10 +1442,6 @@ class LivelinkDocumentList implements DocumentList {
       // Always add System Administration group since admins have bypass rights.
       groupPrincipals.add(asPrincipalValue(Client.SYSADMIN_GROUP,
           connector.getGoogleLocalNamespace()));
-
-      // add users and groups principals to the map
-      props.addProperty(SpiConstants.PROPNAME_ACLUSERS, userPrincipals);
-      props.addProperty(SpiConstants.PROPNAME_ACLGROUPS, groupPrincipals);
     }
 
     private void getPrincipals(int userId, ClientValue ownerInfo,
@@ -29,9 +29,16 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.util.EmptyDocumentList;
 import com.google.enterprise.connector.util.TraversalTimer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +70,12 @@ class LivelinkTraversalManager
    */
   private static final String FIELD_ALIAS_PREFIX = "alias";
 
+  /**
+   * The maximum number of move events to read from the audit trail
+   * for each batch. Any more are read for the following batches.
+   */
+  private static final int MOVE_EVENTS_LIMIT = 1000;
+
   /**
    * The fields for this connector instance, which may include custom
    * fields from the advanced configuration properties.
@@ -87,7 +100,10 @@ class LivelinkTraversalManager
    * included or excluded nodes.
    */
   @VisibleForTesting
-  final Genealogist genealogist;
+  Genealogist genealogist;
+
+  /** The snapshot of the genealogist caches, or null. */
+  private GenealogistSnapshot genealogistSnapshot = null;
 
   static {
     // ListNodes requires the DataID and PermID columns to be
@@ -189,6 +205,25 @@ class LivelinkTraversalManager
   /** The number of results to return in each batch. */
   private volatile int batchSize = 100;
 
+  /**
+   * Whether to select the candidates and the results in a single
+   * query. This is only possible when the candidates query does not
+   * use DTreeAncestors and the results do not need a genealogist.
+   */
+  private final boolean combineQueries;
+
+  /**
+   * Whether to skip ahead through sparse candidates. The probe query
+   * can only check the included locations with DTreeAncestors, so
+   * this is disabled when a genealogist is used.
+   */
+  @VisibleForTesting
+  final boolean skipAhead;
+
+  /** Chooses the number of candidates for each candidates query. */
+  @VisibleForTesting
+  final BatchSizeController batchSizeController;
+
   /** Date formatter used to construct checkpoint dates */
   private final LivelinkDateFormat dateFormat =
       LivelinkDateFormat.getInstance();
@@ -196,6 +231,84 @@ class LivelinkTraversalManager
   /** The TraversalContext from TraversalContextAware Interface */
   private TraversalContext traversalContext = null;
 
+  /**
+   * A second traversal manager, with its own Livelink clients, that
+   * runs the queries for the next batch in the background, or null if
+   * prefetching is disabled. LAPI sessions are not thread-safe, so the
+   * prefetch queries cannot share the clients used by the current batch.
+   */
+  private LivelinkTraversalManager prefetcher = null;
+
+  /** The single background thread used to run the prefetch queries. */
+  private ExecutorService prefetchExecutor = null;
+
+  /** The prefetch of the next batch, or null if there isn't one. */
+  private Prefetch pendingPrefetch = null;
+
+  /**
+   * The executor used to collect document metadata in parallel, or
+   * null to collect it on the traversal thread.
+   */
+  private ClientExecutor enrichmentExecutor = null;
+
+  /**
+   * The single background thread used to prefetch document content,
+   * or null to fetch the content on demand.
+   */
+  private ExecutorService contentPrefetchExecutor = null;
+
+  /**
+   * The partition of the repository traversed by this instance, and
+   * the total number of partitions. By default, there is a single
+   * partition that includes all of the items.
+   */
+  private int partitionIndex = 0;
+  private int partitionCount = 1;
+
+  /**
+   * The results of the traversal queries for a single batch, before
+   * they are turned into a {@code DocumentList}.
+   */
+  @VisibleForTesting
+  static final class Batch {
+    /** The checkpoint, including the advance checkpoint, if any. */
+    final Checkpoint checkpoint;
+
+    /** The main query results, or null. */
+    final ClientValue results;
+
+    /** The deleted items, or null. */
+    final ClientValue deletes;
+
+    Batch(Checkpoint checkpoint, ClientValue results, ClientValue deletes) {
+      this.checkpoint = checkpoint;
+      this.results = results;
+      this.deletes = deletes;
+    }
+
+    /**
+     * Returns true if the batch has documents to return, or false if
+     * the candidates were all rejected and only the checkpoint moved.
+     */
+    boolean hasDocuments() {
+      return (results != null && results.size() > 0)
+          || (deletes != null && deletes.size() > 0);
+    }
+  }
+
+  /** A batch being queried in the background. */
+  private static final class Prefetch {
+    /** The checkpoint that the prefetched batch starts from. */
+    final String checkpoint;
+
+    final Future<Batch> batch;
+
+    Prefetch(String checkpoint, Future<Batch> batch) {
+      this.checkpoint = checkpoint;
+      this.batch = batch;
+    }
+  }
+
   LivelinkTraversalManager(LivelinkConnector connector,
       Client traversalClient, String traversalUsername, Client sysadminClient,
       ContentHandler contentHandler) throws RepositoryException {
@@ -216,6 +329,9 @@ class LivelinkTraversalManager
     this.fields = getFields();
     this.selectList = getSelectList();
 
+    this.batchSizeController =
+        new BatchSizeController(connector.getAdaptiveBatchSize());
+
     // Cache a Genealogist, if we need one.
     String startNodes = connector.getIncludedLocationNodes();
     String excludedNodes = connector.getExcludedLocationNodes();
@@ -231,6 +347,28 @@ class LivelinkTraversalManager
           sysadminClient, startNodes, excludedNodes,
           connector.getGenealogistMinCacheSize(),
           connector.getGenealogistMaxCacheSize());
+      if (genealogist instanceof ParentMapGenealogist) {
+        ((ParentMapGenealogist) genealogist).setSqlServer(isSqlServer);
+        ((ParentMapGenealogist) genealogist).setRefreshInterval(
+            connector.getGenealogistRefreshSeconds() * 1000L);
+      }
+    }
+
+    this.combineQueries = connector.getCombineTraversalQueries()
+        && genealogist == null && !connector.getUseDTreeAncestorsFirst();
+    if (connector.getCombineTraversalQueries() && !combineQueries) {
+      LOGGER.fine("COMBINED TRAVERSAL QUERIES ARE NOT SUPPORTED WITH "
+          + "useDTreeAncestorsFirst OR A GENEALOGIST");
+    }
+
+    this.skipAhead = connector.getCandidatesSkipAhead() && genealogist == null;
+    if (connector.getCandidatesSkipAhead() && !skipAhead) {
+      LOGGER.warning("candidatesSkipAhead is disabled, because it cannot "
+          + "check the included locations without DTreeAncestors");
+    }
+    if (genealogist != null && !deleteSupported) {
+      LOGGER.warning("Moved containers will not be removed from the "
+          + "genealogist caches, because trackDeletedItems is false");
     }
   }
 
@@ -246,7 +384,7 @@ class LivelinkTraversalManager
    * <code>ListNodes</code> but does not and cannot select either
    * DataID or PermID.
    */
-  private String getStartCheckpoint() {
+  String getStartCheckpoint() {
     // Checkpoint we are forging.
     Checkpoint checkpoint = new Checkpoint();
 
@@ -349,6 +487,13 @@ class LivelinkTraversalManager
       fields[i++] = Field.fromExpression(select.getValue() + " "
           + FIELD_ALIAS_PREFIX + i, FIELD_ALIAS_PREFIX + i, select.getKey());
     }
+
+    // The document state index compares the version number, which is
+    // selected here to avoid a GetObjectInfo call for each document.
+    if (connector.isDocumentStateIndexEnabled()) {
+      fields = Arrays.copyOf(fields, fields.length + 1);
+      fields[fields.length - 1] = new Field("VersionNum");
+    }
     return fields;
   }
 
@@ -362,7 +507,9 @@ class LivelinkTraversalManager
 
   /**
    * Sets the batch size. This implementation limits the actual
-   * batch size to 1000, due to SQL syntax limits in Oracle.
+   * batch size to 1000, due to SQL syntax limits in Oracle. The
+   * number of candidates in each query is chosen by the
+   * {@link BatchSizeController}.
    *
    * @param hint the new batch size
    * @throws IllegalArgumentException if the hint is less than zero
@@ -379,6 +526,11 @@ class LivelinkTraversalManager
       batchSize = hint;
   }
 
+  /** Gets the batch size. */
+  int getBatchSize() {
+    return batchSize;
+  }
+
   /** {@inheritDoc} */
   @Override
   public DocumentList startTraversal() throws RepositoryException {
@@ -389,6 +541,21 @@ class LivelinkTraversalManager
           (startCheckpoint == null ? "" : " from " + startCheckpoint) +
           ".");
     }
+    cancelPrefetch();
+    TraversalJournal journal = getTraversalJournal();
+    if (journal != null) {
+      journal.start(startCheckpoint);
+    }
+
+    // Starting over feeds every document again, so forget their states.
+    DocumentStateIndex stateIndex = connector.getDocumentStateIndex();
+    if (stateIndex != null) {
+      try {
+        stateIndex.clear();
+      } catch (IOException e) {
+        throw new LivelinkException(e, LOGGER);
+      }
+    }
     return listNodes(startCheckpoint);
   }
 
@@ -396,9 +563,20 @@ class LivelinkTraversalManager
   @Override
   public DocumentList resumeTraversal(String checkpoint)
       throws RepositoryException {
+    // Report the documents returned in an uncommitted batch, which
+    // are returned again.
+    TraversalJournal journal = getTraversalJournal();
+    if (journal != null) {
+      journal.resume(checkpoint);
+    }
+
     // Resume with no checkpoint is the same as Start.
     if (Strings.isNullOrEmpty(checkpoint)) {
       checkpoint = getStartCheckpoint();
+    } else if (PartitionedCheckpoint.isPartitioned(checkpoint)) {
+      // Partitioned traversal was turned off, so start over from the
+      // partition that is furthest behind.
+      checkpoint = PartitionedCheckpoint.merge(checkpoint);
     }
 
     if (LOGGER.isLoggable(Level.FINE))
@@ -410,6 +588,10 @@ class LivelinkTraversalManager
     // delay.
     traversalClient.GetCurrentUserID();
 
+    Batch prefetched = takePrefetchedBatch(checkpoint);
+    if (prefetched != null) {
+      return getDocumentList(prefetched);
+    }
     return listNodes(checkpoint);
   }
 
@@ -417,6 +599,229 @@ class LivelinkTraversalManager
   @Override
   public void setTraversalContext(TraversalContext traversalContext) {
     this.traversalContext = traversalContext;
+    if (prefetcher != null) {
+      prefetcher.setTraversalContext(traversalContext);
+    }
+  }
+
+  /**
+   * Enables prefetching of the next batch.
+   *
+   * @param prefetcher a traversal manager with its own Livelink clients,
+   *     used to run the queries for the next batch in the background
+   */
+  void setPrefetcher(LivelinkTraversalManager prefetcher) {
+    this.prefetcher = prefetcher;
+    this.prefetcher.setTraversalContext(traversalContext);
+    this.prefetchExecutor = connector.addExecutor(
+        Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("LivelinkTraversalPrefetch")));
+  }
+
+  /**
+   * Enables parallel collection of document metadata.
+   *
+   * @param enrichmentExecutor an executor with its own Livelink clients
+   */
+  void setEnrichmentExecutor(ClientExecutor enrichmentExecutor) {
+    this.enrichmentExecutor = enrichmentExecutor;
+  }
+
+  /**
+   * Restores the genealogist caches from a snapshot. The containers
+   * modified since the snapshot was taken are removed from the caches,
+   * since they may have been moved. The snapshot also restores the
+   * latest move event applied to the caches, so the moves after it
+   * are invalidated by the following batches.
+   *
+   * @param snapshot the genealogist cache snapshot
+   */
+  void restoreGenealogist(GenealogistSnapshot snapshot)
+      throws RepositoryException {
+    Date snapshotDate = snapshot.restore(genealogist);
+    if (snapshotDate != null) {
+      genealogist.evictModifiedContainers(getTimestampLiteral(snapshotDate));
+    }
+  }
+
+  /**
+   * Removes the nodes moved since the last batch, and the containers
+   * below them, from the genealogist caches, using the same audit
+   * trail as the deleted items. If the latest move event is not known
+   * from a genealogist cache snapshot, the first call only records
+   * the latest audit event. The audit trail is not read when deleted
+   * items are not tracked, which is logged when the traversal manager
+   * is created.
+   */
+  private void invalidateMovedNodes() throws RepositoryException {
+    if (deleteSupported == false || partitionIndex > 0) {
+      return;
+    }
+
+    long moveEventId = genealogist.getMoveEventId();
+    if (moveEventId == -1) {
+      ClientValue results = getLastAuditEvent();
+      genealogist.setMoveEventId(
+          (results.size() > 0) ? results.toLong(0, "EventID") : 0);
+      return;
+    }
+
+    ClientValue moves = sqlQueries.execute(sysadminClient, null,
+        "LivelinkTraversalManager.getMoves", moveEventId, MOVE_EVENTS_LIMIT);
+    if (moves.size() > 0) {
+      IntList movedIds = new IntList(moves.size());
+      for (int i = 0; i < moves.size(); i++) {
+        movedIds.add(moves.toInteger(i, "DataID"));
+      }
+      genealogist.invalidateMovedNodes(movedIds);
+      genealogist.setMoveEventId(moves.toLong(moves.size() - 1, "EventID"));
+    }
+  }
+
+  /**
+   * Records the traversal checkpoints in a genealogist cache snapshot,
+   * which is saved periodically.
+   *
+   * @param genealogistSnapshot the snapshot, or null
+   */
+  void setGenealogistSnapshot(GenealogistSnapshot genealogistSnapshot) {
+    this.genealogistSnapshot = genealogistSnapshot;
+  }
+
+  /**
+   * Shares the genealogist of another traversal manager for the same
+   * connector, so that concurrent traversals share its caches.
+   *
+   * @param genealogist a thread-safe genealogist, or null
+   */
+  void setGenealogist(Genealogist genealogist) {
+    this.genealogist = genealogist;
+  }
+
+  /**
+   * Enables prefetching of the content of the documents in each batch.
+   *
+   * @param contentPrefetchExecutor the executor that runs the fetches
+   */
+  void setContentPrefetchExecutor(ExecutorService contentPrefetchExecutor) {
+    this.contentPrefetchExecutor = contentPrefetchExecutor;
+  }
+
+  /**
+   * Restricts this traversal manager to one partition of the
+   * repository. Only the first partition traverses the deleted items.
+   *
+   * @param partitionIndex the zero-based index of the partition
+   * @param partitionCount the number of partitions
+   */
+  void setPartition(int partitionIndex, int partitionCount) {
+    this.partitionIndex = partitionIndex;
+    this.partitionCount = partitionCount;
+  }
+
+  /**
+   * Starts the queries for the batch that follows the given batch in
+   * the background. The next batch starts from the checkpoint that
+   * the given batch will have after all of its documents are processed.
+   *
+   * @param batch the batch just returned to the Connector Manager
+   */
+  private void startPrefetch(Batch batch) {
+    if (prefetcher == null) {
+      return;
+    }
+    final String nextCheckpoint;
+    try {
+      nextCheckpoint = getEndCheckpoint(batch);
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.FINE, "PREFETCH SKIPPED: " + e.getMessage(), e);
+      return;
+    }
+    if (nextCheckpoint == null) {
+      return;
+    }
+    final int batchsz = batchSize;
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("PREFETCH STARTED FROM " + nextCheckpoint);
+    Future<Batch> future = prefetchExecutor.submit(new Callable<Batch>() {
+        @Override
+        public Batch call() throws RepositoryException {
+          return prefetcher.getBatch(nextCheckpoint, batchsz);
+        }
+      });
+    pendingPrefetch = new Prefetch(nextCheckpoint, future);
+  }
+
+  /**
+   * Gets the checkpoint string that the given batch will have after
+   * all of its documents are processed, matching the inserts and
+   * deletes checkpoints set by {@code LivelinkDocumentList}.
+   */
+  @VisibleForTesting
+  String getEndCheckpoint(Batch batch) throws RepositoryException {
+    Checkpoint end = new Checkpoint(batch.checkpoint);
+    end.advanceToEnd();
+    if (batch.deletes != null && batch.deletes.size() > 0) {
+      int last = batch.deletes.size() - 1;
+      end.setDeleteCheckpoint(
+          dateFormat.parse(batch.deletes.toString(last, "GoogleAuditDate")),
+          batch.deletes.toValue(last, "EventID"));
+    }
+    return end.toString();
+  }
+
+  /**
+   * Cancels the prefetch of the next batch, if any. A prefetch that is
+   * already running is not interrupted, because interrupting a
+   * Livelink call could break its session, but its batch is ignored.
+   */
+  private void cancelPrefetch() {
+    Prefetch prefetch = pendingPrefetch;
+    pendingPrefetch = null;
+    if (prefetch != null) {
+      prefetch.batch.cancel(false);
+    }
+  }
+
+  /**
+   * Gets the prefetched batch, if it starts from the given checkpoint
+   * and has documents. Otherwise, the prefetched batch is discarded.
+   * An empty prefetched batch is never used, since new documents may
+   * have been added since the prefetch ran.
+   *
+   * @param checkpoint the checkpoint to resume traversal from
+   * @return the prefetched batch, or null if it cannot be used
+   */
+  private Batch takePrefetchedBatch(String checkpoint) {
+    Prefetch prefetch = pendingPrefetch;
+    if (prefetch == null) {
+      return null;
+    }
+    if (!prefetch.checkpoint.equals(checkpoint)) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("PREFETCH DISCARDED: expected checkpoint "
+            + prefetch.checkpoint + " but got " + checkpoint);
+      }
+      cancelPrefetch();
+      return null;
+    }
+    pendingPrefetch = null;
+    try {
+      Batch batch = prefetch.batch.get();
+      if (batch != null && batch.hasDocuments()) {
+        LOGGER.fine("USING PREFETCHED BATCH");
+        return batch;
+      } else {
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING,
+          "PREFETCH FAILED: " + e.getCause().getMessage(), e.getCause());
+      return null;
+    }
   }
 
   /**
@@ -483,8 +888,72 @@ class LivelinkTraversalManager
    */
   private DocumentList listNodes(String checkpointStr)
       throws RepositoryException {
+    return getDocumentList(getBatch(checkpointStr, batchSize));
+  }
+
+  /**
+   * Creates the {@code DocumentList} for the given batch, and starts
+   * prefetching the following batch, if enabled.
+   *
+   * @param batch the query results, or null if there are no new documents
+   * @return a document list, or null if there are no new documents
+   */
+  DocumentList getDocumentList(Batch batch)
+      throws RepositoryException {
+    if (batch == null) {
+      return null;
+    } else if (!batch.hasDocuments()) {
+      return new EmptyDocumentList(batch.checkpoint.toString());
+    } else {
+      LivelinkDocumentList documentList = new LivelinkDocumentList(connector,
+          traversalClient, contentHandler, batch.results, fields,
+          batch.deletes, traversalContext, batch.checkpoint, currentUsername,
+          enrichmentExecutor);
+      documentList.setTraversalJournal(getTraversalJournal());
+      if (contentPrefetchExecutor != null && contentHandler != null) {
+        documentList.setContentPrefetcher(new ContentPrefetcher(
+            contentHandler, contentPrefetchExecutor,
+            connector.getContentPrefetchWindow(),
+            connector.getContentPrefetchBytes()));
+      }
+      startPrefetch(batch);
+      return documentList;
+    }
+  }
+
+  /**
+   * Gets the traversal journal, which is only used when the traversal
+   * is not partitioned.
+   *
+   * @return the traversal journal, or null if it is not used
+   */
+  private TraversalJournal getTraversalJournal() throws RepositoryException {
+    return (partitionCount == 1) ? connector.getTraversalJournal() : null;
+  }
+
+  /**
+   * Runs the queries for a batch. This is the query portion of
+   * {@link #listNodes}, which may also be run in the background by a
+   * prefetcher.
+   *
+   * @param checkpointStr a checkpoint string, or <code>null</code>
+   * if a new traversal should be started
+   * @param batchHint the requested number of documents
+   * @return the batch, or null if there are no new documents
+   */
+  @VisibleForTesting
+  Batch getBatch(String checkpointStr, int batchHint)
+      throws RepositoryException {
     Checkpoint checkpoint = new Checkpoint(checkpointStr);
-    int batchsz = batchSize;
+    long startMillis = System.currentTimeMillis();
+    if (genealogistSnapshot != null) {
+      genealogistSnapshot.checkpoint(checkpoint.insertDate);
+    }
+    if (genealogist != null) {
+      invalidateMovedNodes();
+    }
+    int batchsz = batchSizeController.getInitialSize(batchHint,
+        getRemainingMillis(startMillis));
 
     // If we have an old style checkpoint, or one that is missing a
     // delete stamp, and we are doing deletes, forge a delete checkpoint.
@@ -498,9 +967,15 @@ class LivelinkTraversalManager
     // of candidates looking for something applicable.  However,
     // we cannot do this indefinitely or we will run afoul of the
     // Connector Manager's thread timeout.
+    if (combineQueries) {
+      return getCombinedBatch(checkpoint, batchsz, batchHint, startMillis);
+    }
+
     TraversalTimer timer = new TraversalTimer(traversalContext);
     while (timer.isTicking()) {
+      long queryStart = System.currentTimeMillis();
       ClientValue candidates = getCandidates(checkpoint, batchsz);
+      long queryMillis = System.currentTimeMillis() - queryStart;
       ClientValue deletes = getDeletes(checkpoint, batchsz);
       ClientValue results = null;
 
@@ -538,8 +1013,13 @@ class LivelinkTraversalManager
           buffer.append(',');
         }
         buffer.deleteCharAt(buffer.length() - 1);
+        queryStart = System.currentTimeMillis();
         results = getResults(buffer.toString(), highestModifyDate);
+        queryMillis += System.currentTimeMillis() - queryStart;
+        int numCandidates = numInserts;
         numInserts = (results == null) ? 0 : results.size();
+        batchSizeController.recordQuery(numCandidates, numInserts,
+            queryMillis);
       }
 
       if ((numInserts + numDeletes) > 0) {
@@ -547,21 +1027,26 @@ class LivelinkTraversalManager
           LOGGER.fine("RESULTSET: " + numInserts + " rows.  " +
               "DELETESET: " + numDeletes + " rows.");
         }
-        return new LivelinkDocumentList(connector, traversalClient,
-            contentHandler, results, fields, deletes,
-            traversalContext, checkpoint, currentUsername);
+        return new Batch(checkpoint, results, deletes);
       }
 
       // If nothing is passing our filter, we probably have a
       // sparse database.  Grab larger candidate sets, hoping
       // to run into anything interesting.
-      batchsz = Math.min(1000, batchsz * 10);
+      batchsz = batchSizeController.getNextSize(batchsz, batchHint,
+          getRemainingMillis(startMillis));
 
       // Advance the checkpoint to the end of this batch of
       // candidates and grab the next batch.
       checkpoint.advanceToEnd();
       if (LOGGER.isLoggable(Level.FINER))
         LOGGER.finer("SKIPPING PAST " + checkpoint.toString());
+
+      // Skip ahead to the next item that might pass our filters. If
+      // there isn't one, stop looking for now.
+      if (skipAhead && !skipAhead(checkpoint)) {
+        break;
+      }
     }
 
     // We searched for awhile, but did not find any candidates that
@@ -569,7 +1054,221 @@ class LivelinkTraversalManager
     // to consider.  Indicate to the Connector Manager that this batch
     // has no documents, but to reschedule us immediately to keep looking.
     LOGGER.fine("RESULTSET: 0 rows, so far.");
-    return new EmptyDocumentList(checkpoint.toString());
+    return new Batch(checkpoint, null, null);
+  }
+
+  /**
+   * Runs the combined candidates and results query, and the deletes
+   * query, for successive windows of candidates. The checkpoint is
+   * not advanced past the candidates after the last result, so they
+   * will be considered again in the next batch. If none of the
+   * candidates in a window pass the filters, the checkpoint is
+   * advanced to the last candidate in the window, which is found
+   * without running the candidates and results queries separately.
+   *
+   * @param checkpoint the checkpoint to start from
+   * @param batchsz the number of candidates in the first window
+   * @param batchHint the requested number of documents
+   * @param startMillis the time that the batch was started
+   * @return the batch, or null if there are no new documents
+   */
+  private Batch getCombinedBatch(Checkpoint checkpoint, int batchsz,
+      int batchHint, long startMillis) throws RepositoryException {
+    TraversalTimer timer = new TraversalTimer(traversalContext);
+    while (timer.isTicking()) {
+      long queryStart = System.currentTimeMillis();
+      ClientValue results = getCombinedResults(checkpoint, batchsz);
+      int numInserts = (results == null) ? 0 : results.size();
+      ClientValue windowEnd = (numInserts == 0)
+          ? getWindowEnd(checkpoint, batchsz) : null;
+      long queryMillis = System.currentTimeMillis() - queryStart;
+      ClientValue deletes = getDeletes(checkpoint, batchsz);
+      int numDeletes = (deletes == null) ? 0 : deletes.size();
+
+      if (numInserts > 0) {
+        // The number of candidates in the window is not returned, but
+        // it is the full window unless the traversal has caught up.
+        batchSizeController.recordQuery(batchsz, numInserts, queryMillis);
+
+        // Check for bad results from the candidates subquery.
+        checkCandidatesTimeWarp(results, checkpoint);
+      } else if (windowEnd != null && windowEnd.size() > 0) {
+        batchSizeController.recordQuery(batchsz, 0, queryMillis);
+
+        // Remember the last candidate, so we may advance past all of
+        // the rejected candidates for the next batch.
+        checkpoint.setAdvanceCheckpoint(windowEnd.toDate(0, "ModifyDate"),
+            windowEnd.toInteger(0, "DataID"));
+      } else if (numDeletes == 0) {
+        if (checkpoint.hasChanged()) {
+          break;      // Force a new checkpoint.
+        } else {
+          LOGGER.fine("COMBINED RESULTSET: no rows.");
+          return null;  // No new documents available.
+        }
+      }
+
+      if ((numInserts + numDeletes) > 0) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("COMBINED RESULTSET: " + numInserts + " rows.  " +
+              "DELETESET: " + numDeletes + " rows.");
+        }
+        return new Batch(checkpoint, results, deletes);
+      }
+
+      // As in getBatch, grab larger windows in a sparse database.
+      batchsz = batchSizeController.getNextSize(batchsz, batchHint,
+          getRemainingMillis(startMillis));
+      checkpoint.advanceToEnd();
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("SKIPPING PAST " + checkpoint.toString());
+      if (skipAhead && !skipAhead(checkpoint)) {
+        break;
+      }
+    }
+
+    LOGGER.fine("COMBINED RESULTSET: 0 rows, so far.");
+    return new Batch(checkpoint, null, null);
+  }
+
+  /**
+   * Gets the main query results for a window of candidates
+   * in a single query, by using the candidates query as a subquery.
+   * The subquery is not subject to permissions, like the candidates
+   * query run by the sysadminClient.
+   *
+   * @param checkpoint the checkpoint to start from
+   * @param batchsz the number of candidates
+   * @return the main query results
+   */
+  @VisibleForTesting
+  ClientValue getCombinedResults(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    String window = getCandidatesWindow(checkpoint, batchsz);
+    String highestModifyDate = sqlQueries.getWhere(null,
+        "LivelinkTraversalManager.getWindowModifyDate", window);
+    return traversalClient.ListNodes(
+        getMatchingQuery(window, highestModifyDate, true),
+        webnodesViewResults, selectList);
+  }
+
+  /**
+   * Gets the last candidate in a window of candidates, with the
+   * latest ModifyDate and then the highest DataID. We need to use the
+   * sysadminClient, as in getCandidates.
+   *
+   * @param checkpoint the checkpoint to start from
+   * @param batchsz the number of candidates
+   * @return the ModifyDate and DataID of the last candidate, or no
+   *     rows if there are no candidates
+   */
+  @VisibleForTesting
+  ClientValue getWindowEnd(Checkpoint checkpoint, int batchsz)
+      throws RepositoryException {
+    String window = getCandidatesWindow(checkpoint, batchsz);
+    String highestModifyDate = sqlQueries.getWhere(null,
+        "LivelinkTraversalManager.getWindowModifyDate", window);
+    return sysadminClient.ListNodes(
+        sqlQueries.getWhere("WINDOW END QUERY",
+            "LivelinkTraversalManager.getWindowEnd", window,
+            highestModifyDate),
+        sqlQueries.getFrom(null, "LivelinkTraversalManager.getWindowEnd"),
+        sqlQueries.getSelect("LivelinkTraversalManager.getWindowEnd"));
+  }
+
+  /** Gets the getCandidates subquery for a window of candidates. */
+  private String getCandidatesWindow(Checkpoint checkpoint, int batchsz) {
+    String insertDate = (checkpoint.insertDate != null)
+        ? dateFormat.toSqlString(checkpoint.insertDate) : null;
+    return sqlQueries.getWhere(null,
+        "LivelinkTraversalManager.getCandidatesWindow",
+        choice(checkpoint.insertDate != null), insertDate,
+        checkpoint.insertDataId, batchsz,
+        getPartitionCondition(checkpoint.insertDate != null));
+  }
+
+  /**
+   * Moves the checkpoint to the earliest later ModifyDate of an item
+   * that might pass the filters, if that is after the checkpoint.
+   *
+   * @param checkpoint the checkpoint to move, which must have an
+   *     insert date
+   * @return {@code true} if there is a later item that might pass the
+   *     filters, or {@code false} if there is none
+   */
+  @VisibleForTesting
+  boolean skipAhead(Checkpoint checkpoint) throws RepositoryException {
+    ClientValue next = getNextMatchingDate(checkpoint);
+    if (next == null || next.size() == 0) {
+      LOGGER.finer("SKIP AHEAD: no matching items.");
+      return false;
+    }
+
+    // Truncate the milliseconds, as in checkCandidatesTimeWarp.
+    Date nextDate = new Date(
+        (next.toDate(0, "ModifyDate").getTime() / 1000L) * 1000L);
+    if (nextDate.after(checkpoint.insertDate)) {
+      // Like the startDate, this includes every item with this date.
+      checkpoint.setInsertCheckpoint(nextDate, 0);
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("SKIPPING AHEAD TO " + checkpoint.toString());
+    }
+    return true;
+  }
+
+  /**
+   * Finds the first item after the checkpoint that might pass the
+   * filters. We need to use the sysadminClient, as in getCandidates.
+   */
+  private ClientValue getNextMatchingDate(Checkpoint checkpoint)
+      throws RepositoryException {
+    String startNodes = connector.getIncludedLocationNodes();
+    String excludedVolumes = connector.getExcludedVolumeTypes();
+    String excludedNodeTypes = connector.getExcludedNodeTypes();
+
+    // The included locations can only be checked with DTreeAncestors.
+    boolean useAncestors = connector.getUseDTreeAncestors()
+        && !Strings.isNullOrEmpty(startNodes);
+    String ancestorNodes =
+        (useAncestors) ? Genealogist.getAncestorNodes(startNodes) : null;
+
+    return sysadminClient.ListNodes(
+        sqlQueries.getWhere("SKIP AHEAD QUERY",
+            "LivelinkTraversalManager.getNextMatchingDate",
+            /* 0 */ choice(useAncestors),
+            /* 1 */ ancestorNodes,
+            /* 2 */ startNodes,
+            /* 3 */ dateFormat.toSqlString(checkpoint.insertDate),
+            /* 4 */ checkpoint.insertDataId,
+            /* 5 */ choice(!Strings.isNullOrEmpty(excludedNodeTypes)),
+            /* 6 */ excludedNodeTypes,
+            // As in getMatching, the volume types are only excluded
+            // when there are no included locations.
+            /* 7 */ choice(Strings.isNullOrEmpty(startNodes)
+                && !Strings.isNullOrEmpty(excludedVolumes)),
+            /* 8 */ excludedVolumes),
+        sqlQueries.getFrom("SKIP AHEAD VIEW",
+            "LivelinkTraversalManager.getNextMatchingDate",
+            choice(useAncestors)),
+        sqlQueries.getSelect("LivelinkTraversalManager.getNextMatchingDate"));
+  }
+
+  /**
+   * Gets the remaining traversal time, for sizing the candidates
+   * queries. The {@code TraversalTimer} does not expose this, so it is
+   * estimated from the time limit in the traversal context.
+   *
+   * @param startMillis the time that the batch was started
+   * @return the remaining time in milliseconds, or -1 if there is no limit
+   */
+  private long getRemainingMillis(long startMillis) {
+    if (traversalContext == null
+        || traversalContext.traversalTimeLimitSeconds() <= 0) {
+      return -1;
+    }
+    long limitMillis = traversalContext.traversalTimeLimitSeconds() * 1000L;
+    return Math.max(0,
+        limitMillis - (System.currentTimeMillis() - startMillis));
   }
 
   /** Check for bad results from the candidates query. */
@@ -678,6 +1377,22 @@ class LivelinkTraversalManager
   @VisibleForTesting
   String getMatchingQuery(String candidatesList, Date highestModifyDate,
       boolean sortResults) {
+    return getMatchingQuery(candidatesList,
+        getTimestampLiteral(highestModifyDate), sortResults);
+  }
+
+  /**
+   * Gets the results query.
+   *
+   * @param candidatesList a comma-separated string of candidate object
+   *     IDs, or a subquery that selects them
+   * @param highestModifyDate a timestamp literal or subquery for the
+   *     latest ModifyDate among the candidates
+   * @param sortResults {@code true} to use an ORDER BY clause on the query,
+   *     or {@code false} to let the database use any order
+   */
+  private String getMatchingQuery(String candidatesList,
+      String highestModifyDate, boolean sortResults) {
     String startNodes = connector.getIncludedLocationNodes();
     String excludedVolumes = connector.getExcludedVolumeTypes();
     String excludedNodeTypes = connector.getExcludedNodeTypes();
@@ -713,7 +1428,7 @@ class LivelinkTraversalManager
         /* 9 */ excludedDescendants,
         /* 10 */ choice(!Strings.isNullOrEmpty(sqlWhereCondition)),
         /* 11 */ sqlWhereCondition,
-        /* 12 */ getTimestampLiteral(highestModifyDate),
+        /* 12 */ highestModifyDate,
         /* 13 */ choice(sortResults));
   }
 
@@ -727,12 +1442,10 @@ class LivelinkTraversalManager
    */
   private ClientValue getMatchingDescendants(ClientValue matching,
       Date highestModifyDate) throws RepositoryException {
-    String descendants;
-    // We are using the same genealogist for multiple traversal batches, which
-    // might be done from different threads (although never concurrently).
-    synchronized (genealogist) {
-      descendants = genealogist.getMatchingDescendants(matching);
-    }
+    // The genealogist is thread-safe, and is shared by all of the
+    // traversal batches, including concurrent ones, so that they share
+    // its caches.
+    String descendants = genealogist.getMatchingDescendants(matching);
     if (descendants != null) {
       String query = sqlQueries.getWhere(null,
           "LivelinkTraversalManager.getMatchingDescendants", descendants,
@@ -777,19 +1490,41 @@ class LivelinkTraversalManager
     String insertDate = (checkpoint.insertDate != null)
         ? dateFormat.toSqlString(checkpoint.insertDate) : null;
 
+    String partition = getPartitionCondition(
+        !Strings.isNullOrEmpty(startNodes) || checkpoint.insertDate != null);
+
     return sysadminClient.ListNodes(
         sqlQueries.getWhere("CANDIDATES QUERY",
             "LivelinkTraversalManager.getCandidates",
             choice(!Strings.isNullOrEmpty(startNodes)),
             ancestorNodes, startNodes,
             choice(checkpoint.insertDate != null), insertDate,
-            checkpoint.insertDataId, batchsz),
+            checkpoint.insertDataId, batchsz, partition),
         sqlQueries.getFrom("CANDIDATES VIEW",
             "LivelinkTraversalManager.getCandidates",
             choice(!Strings.isNullOrEmpty(startNodes))),
         sqlQueries.getSelect("LivelinkTraversalManager.getCandidates"));
   }
 
+  /**
+   * Gets the condition that restricts the candidates to this partition.
+   *
+   * @param hasCondition whether the SQL Server candidates subquery
+   *     already has a where clause
+   * @return the condition, or an empty string if there is only one
+   *     partition
+   */
+  private String getPartitionCondition(boolean hasCondition) {
+    if (partitionCount > 1) {
+      return sqlQueries.getWhere(null,
+          "LivelinkTraversalManager.getPartition",
+          connector.getTraversalPartitionColumn(), partitionCount,
+          partitionIndex, choice(hasCondition));
+    } else {
+      return "";
+    }
+  }
+
   /** Fetches the list of Deleted Items candidates for SQL Server. */
   /*
    * I try limit the list of delete candidates to those
@@ -803,7 +1538,7 @@ class LivelinkTraversalManager
    */
   private ClientValue getDeletes(Checkpoint checkpoint, int batchsz)
       throws RepositoryException {
-    if (deleteSupported == false) {
+    if (deleteSupported == false || partitionIndex > 0) {
       return null;
     }
 
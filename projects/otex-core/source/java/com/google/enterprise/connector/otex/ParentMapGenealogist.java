@@ -0,0 +1,307 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A genealogist that keeps the parents of all of the containers in
+ * DTree in memory. The map is loaded with a single query the first
+ * time it is needed, and the containers modified since then are
+ * re-read at most once per refresh interval, by default once a
+ * minute. The parents of the matching nodes are looked up with one
+ * query per batch, as in {@link HybridGenealogist}, but the further
+ * ancestors are found in memory. Containers created after the map was
+ * loaded are looked up individually the first time they are seen, and
+ * then added to the map.
+ * <p>
+ * The parents of volumes are stored with their stepparents already
+ * substituted, so that the negated node ID maps to the parent of the
+ * corresponding positive node ID. The map uses two ints per
+ * container, or about 16MB for a million containers.
+ * <p>
+ * The map is guarded by a read-write lock, so that concurrent threads
+ * only wait for each other while the map is being loaded or updated.
+ */
+class ParentMapGenealogist extends HybridGenealogist {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(ParentMapGenealogist.class.getName());
+
+  /** The default minimum time between refreshes of the map. */
+  private static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 60 * 1000L;
+
+  /** Guards the map and the refresh state. */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** The parents of the containers, or null if not yet loaded. */
+  @VisibleForTesting
+  volatile IntIntMap parents = null;
+
+  /** The latest ModifyDate seen, or null if none has been seen. */
+  private Date lastModified = null;
+
+  /** The time of the last load or refresh. */
+  private volatile long refreshTime = 0;
+
+  private boolean isSqlServer = true;
+
+  /** The minimum time between refreshes of the map. */
+  private long refreshInterval = DEFAULT_REFRESH_INTERVAL_MILLIS;
+
+  public ParentMapGenealogist(Client client, String startNodes,
+      String excludedNodes, int minCacheSize, int maxCacheSize) {
+    super(client, startNodes, excludedNodes, minCacheSize, maxCacheSize);
+  }
+
+  /**
+   * Sets the database type, which is needed for the timestamp literal
+   * in the refresh query.
+   *
+   * @param isSqlServer {@code true} for SQL Server, or {@code false}
+   * for Oracle
+   */
+  void setSqlServer(boolean isSqlServer) {
+    this.isSqlServer = isSqlServer;
+  }
+
+  /**
+   * Sets the minimum time between refreshes of the map. An interval
+   * of zero refreshes the map for every batch.
+   *
+   * @param refreshInterval the interval in milliseconds
+   */
+  void setRefreshInterval(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This implementation loads or refreshes the map of container
+   * parents first.
+   */
+  @Override
+  protected void matchDescendants(ClientValue matching,
+      StringBuilder descendants) throws RepositoryException {
+    if (parents == null || isRefreshDue()) {
+      lock.writeLock().lock();
+      try {
+        // Another thread may have gotten here first.
+        if (parents == null) {
+          load();
+        } else if (isRefreshDue()) {
+          refresh();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    super.matchDescendants(matching, descendants);
+  }
+
+  private boolean isRefreshDue() {
+    return System.currentTimeMillis() - refreshTime >= refreshInterval;
+  }
+
+  /**
+   * Gets the ParentID of the given node from the map. Nodes that are
+   * not in the map are looked up in the database, and added to the
+   * map, since they are known to be containers.
+   */
+  @Override
+  protected int getParent(Object matchingId, int objectId)
+      throws RepositoryException {
+    int parentId;
+    lock.readLock().lock();
+    try {
+      parentId = parents.get(objectId, NO_PARENT);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (parentId == NO_PARENT) {
+      parentId = super.getParent(matchingId, objectId);
+      if (parentId != NO_PARENT) {
+        lock.writeLock().lock();
+        try {
+          parents.put(objectId, parentId);
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }
+    }
+    return parentId;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This implementation also removes the moved nodes from the map, so
+   * that their new parents are looked up the next time they are seen.
+   */
+  @Override
+  int invalidateMovedNodes(IntList movedIds) throws RepositoryException {
+    lock.writeLock().lock();
+    try {
+      if (parents != null) {
+        for (int i = 0; i < movedIds.size(); i++) {
+          parents.remove(movedIds.get(i));
+          parents.remove(-movedIds.get(i));
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return super.invalidateMovedNodes(movedIds);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This implementation only returns the cached descendants, which
+   * are found by walking up the map from each cached node, without
+   * any queries.
+   */
+  @Override
+  protected IntList getDescendantContainers(IntList nodeIds)
+      throws RepositoryException {
+    IntIntMap map = parents;
+    if (map == null) {
+      return super.getDescendantContainers(nodeIds);
+    }
+
+    IntIntMap ancestors = new IntIntMap(nodeIds.size() * 2);
+    for (int i = 0; i < nodeIds.size(); i++) {
+      ancestors.put(nodeIds.get(i), 0);
+      ancestors.put(-nodeIds.get(i), 0);
+    }
+    IntList descendants = new IntList();
+    lock.readLock().lock();
+    try {
+      for (IntCache cache : new IntCache[] { includedCache, excludedCache }) {
+        IntList keys = cache.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+          if (hasAncestor(map, keys.get(i), ancestors)) {
+            descendants.add(keys.get(i));
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return descendants;
+  }
+
+  /**
+   * Checks whether any of the given ancestors is above the given node
+   * in the map. The number of steps is limited to the size of the map
+   * to guard against cycles in the data.
+   */
+  private static boolean hasAncestor(IntIntMap map, int objectId,
+      IntIntMap ancestors) {
+    int parentId = map.get(objectId, NO_PARENT);
+    for (int i = 0; parentId != NO_PARENT && parentId != -1 && i < map.size();
+         i++) {
+      if (ancestors.containsKey(parentId)) {
+        return true;
+      }
+      parentId = map.get(parentId, NO_PARENT);
+    }
+    return false;
+  }
+
+  /** Loads the parents of all of the containers. */
+  private void load() throws RepositoryException {
+    long start = System.currentTimeMillis();
+    queryCount.incrementAndGet();
+    ClientValue containers = sqlQueries.execute(client, null,
+        "ParentMapGenealogist.getContainers");
+    IntIntMap map = new IntIntMap(containers.size());
+    Parents rows = new Parents(containers);
+    for (int i = 0; i < rows.size(); i++) {
+      map.put(rows.getDataID(i), rows.getParentID(i));
+      updateLastModified(containers, i);
+    }
+    parents = map;
+    refreshTime = System.currentTimeMillis();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("DESCENDANTS: Loaded the parents of " + map.size()
+          + " containers in " + (refreshTime - start) + " ms");
+    }
+  }
+
+  /**
+   * Re-reads the containers and the positive nodes of volumes that
+   * were modified since the latest ModifyDate seen, and updates the
+   * parents of any that are known containers. Other modified nodes
+   * are not read, since they are not in the map.
+   */
+  private void refresh() throws RepositoryException {
+    refreshTime = System.currentTimeMillis();
+    if (lastModified == null) {
+      return;
+    }
+    queryCount.incrementAndGet();
+    ClientValue modified = sqlQueries.execute(client, null,
+        "ParentMapGenealogist.getModified", getTimestampLiteral(lastModified));
+    Parents rows = new Parents(modified);
+    int updates = 0;
+    for (int i = 0; i < rows.size(); i++) {
+      int dataId = rows.getDataID(i);
+      if (parents.containsKey(dataId)) {
+        parents.put(dataId, rows.getParentID(i));
+        updates++;
+      }
+
+      // The negated node of a volume takes the parent of this node
+      // as its stepparent.
+      int parentId = modified.toInteger(i, "ParentID");
+      if (parentId != -1 && parents.containsKey(-dataId)) {
+        parents.put(-dataId, parentId);
+        updates++;
+      }
+      updateLastModified(modified, i);
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("DESCENDANTS: Refreshed " + updates + " of "
+          + rows.size() + " modified nodes");
+    }
+  }
+
+  private void updateLastModified(ClientValue rows, int i)
+      throws RepositoryException {
+    if (rows.isDefined(i, "ModifyDate")) {
+      Date modifyDate = rows.toDate(i, "ModifyDate");
+      if (lastModified == null || modifyDate.after(lastModified)) {
+        lastModified = modifyDate;
+      }
+    }
+  }
+
+  /** @see LivelinkTraversalManager#getTimestampLiteral */
+  private String getTimestampLiteral(Date value) {
+    return ((isSqlServer) ? "" : "TIMESTAMP")
+        + '\'' + LivelinkDateFormat.getInstance().toSqlString(value) + '\'';
+  }
+}
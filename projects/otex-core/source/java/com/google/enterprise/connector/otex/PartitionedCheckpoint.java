@@ -0,0 +1,160 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Creates and parses the composite checkpoint strings used by
+ * partitioned traversal. A composite checkpoint has the form
+ *
+ * <pre>
+ *     partitions=<em>N</em>;<em>checkpoint0</em>;...;<em>checkpointN-1</em>
+ * </pre>
+ *
+ * where each partition checkpoint is a {@link Checkpoint} string, or
+ * empty if the partition has not started.
+ */
+class PartitionedCheckpoint {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(PartitionedCheckpoint.class.getName());
+
+  private static final String PREFIX = "partitions=";
+
+  private static final String SEPARATOR = ";";
+
+  private PartitionedCheckpoint() {
+  }
+
+  /**
+   * Checks whether the given string is a composite checkpoint.
+   *
+   * @param checkpoint a checkpoint string, which may be null
+   * @return {@code true} if the checkpoint is a composite checkpoint
+   */
+  static boolean isPartitioned(String checkpoint) {
+    return checkpoint != null && checkpoint.trim().startsWith(PREFIX);
+  }
+
+  /**
+   * Gets the partition checkpoints for the given number of partitions.
+   * A plain checkpoint is used for every partition. A composite
+   * checkpoint with a different number of partitions is merged, and
+   * the merged checkpoint is used for every partition.
+   *
+   * @param checkpoint a plain or composite checkpoint string, or null
+   * @param partitionCount the number of partitions
+   * @return an array of partition checkpoints, which may be null
+   * @throws RepositoryException if the checkpoint cannot be parsed
+   */
+  static String[] split(String checkpoint, int partitionCount)
+      throws RepositoryException {
+    if (isPartitioned(checkpoint)) {
+      String[] checkpoints = parse(checkpoint);
+      if (checkpoints.length == partitionCount) {
+        return checkpoints;
+      }
+      LOGGER.info("TRAVERSAL PARTITIONS CHANGED FROM " + checkpoints.length
+          + " TO " + partitionCount);
+      checkpoint = merge(checkpoint);
+    }
+    String[] checkpoints = new String[partitionCount];
+    Arrays.fill(checkpoints, checkpoint);
+    return checkpoints;
+  }
+
+  /**
+   * Combines the partition checkpoints into a composite checkpoint.
+   *
+   * @param checkpoints the partition checkpoints, which may be null
+   * @return a composite checkpoint string
+   */
+  static String join(String[] checkpoints) {
+    StringBuilder buffer = new StringBuilder();
+    buffer.append(PREFIX).append(checkpoints.length);
+    for (String checkpoint : checkpoints) {
+      buffer.append(SEPARATOR);
+      if (checkpoint != null) {
+        buffer.append(checkpoint);
+      }
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Converts a composite checkpoint into a plain checkpoint. The
+   * inserted items portion is taken from the partition that is
+   * furthest behind, so that no items are missed, and the deleted
+   * items portion is taken from the first partition, which is the
+   * only one that traverses the deleted items.
+   *
+   * @param checkpoint a composite checkpoint string
+   * @return a plain checkpoint string, or null to start over
+   * @throws RepositoryException if the checkpoint cannot be parsed
+   */
+  static String merge(String checkpoint) throws RepositoryException {
+    String[] checkpoints = parse(checkpoint);
+    Checkpoint merged = null;
+    for (String partition : checkpoints) {
+      Checkpoint current = new Checkpoint(partition);
+      if (merged == null || isBefore(current, merged)) {
+        merged = current;
+      }
+    }
+    Checkpoint first = new Checkpoint(checkpoints[0]);
+    merged.deleteDate = first.deleteDate;
+    merged.deleteEventId = first.deleteEventId;
+    return merged.toString();
+  }
+
+  /**
+   * Checks whether the inserted items portion of one checkpoint is
+   * earlier in the traversal order than that of another. A missing
+   * date is earlier than any date.
+   */
+  private static boolean isBefore(Checkpoint a, Checkpoint b) {
+    if (a.insertDate == null || b.insertDate == null) {
+      return a.insertDate == null && b.insertDate != null;
+    }
+    int compare = a.insertDate.compareTo(b.insertDate);
+    return compare < 0 || (compare == 0 && a.insertDataId < b.insertDataId);
+  }
+
+  /** Parses a composite checkpoint into its partition checkpoints. */
+  private static String[] parse(String checkpoint)
+      throws RepositoryException {
+    String[] points = checkpoint.trim().split(SEPARATOR, -1);
+    try {
+      int partitionCount =
+          Integer.parseInt(points[0].substring(PREFIX.length()));
+      if (partitionCount < 1 || partitionCount != points.length - 1) {
+        throw new IllegalArgumentException();
+      }
+      String[] checkpoints = new String[partitionCount];
+      for (int i = 0; i < partitionCount; i++) {
+        checkpoints[i] = Strings.emptyToNull(points[i + 1]);
+      }
+      return checkpoints;
+    } catch (RuntimeException e) {
+      throw new LivelinkException(
+          "Invalid checkpoint: " + checkpoint, e, LOGGER);
+    }
+  }
+}
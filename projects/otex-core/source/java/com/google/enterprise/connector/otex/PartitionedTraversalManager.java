@@ -0,0 +1,302 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.TraversalContext;
+import com.google.enterprise.connector.spi.TraversalContextAware;
+import com.google.enterprise.connector.spi.TraversalManager;
+import com.google.enterprise.connector.util.EmptyDocumentList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Traverses the repository in several partitions at once. Each
+ * partition is traversed by a {@code LivelinkTraversalManager} with
+ * its own Livelink clients, and has its own position in the traversal
+ * order. The queries for the partitions run concurrently, and the
+ * documents from the partitions are interleaved in a single
+ * {@code DocumentList}. The partition positions are combined in a
+ * {@link PartitionedCheckpoint}.
+ */
+class PartitionedTraversalManager
+    implements TraversalManager, TraversalContextAware {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(PartitionedTraversalManager.class.getName());
+
+  /** The traversal managers, one per partition. */
+  private final LivelinkTraversalManager[] partitions;
+
+  /** The threads used to run the queries for the partitions. */
+  private final ExecutorService executor;
+
+  /**
+   * @param connector the connector, which stops the query threads
+   *     when it is shut down
+   * @param partitions the traversal managers, one per partition, each
+   *     of which must have its own Livelink clients
+   */
+  PartitionedTraversalManager(LivelinkConnector connector,
+      LivelinkTraversalManager[] partitions) {
+    this.partitions = partitions;
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i].setPartition(i, partitions.length);
+    }
+    this.executor = connector.addExecutor(
+        Executors.newFixedThreadPool(partitions.length,
+            new DaemonThreadFactory("LivelinkTraversalPartition")));
+  }
+
+  /**
+   * Sets the batch size. The batch hint is divided among the
+   * partitions.
+   *
+   * @param hint the new batch size
+   * @throws IllegalArgumentException if the hint is less than zero
+   */
+  @Override
+  public void setBatchHint(int hint) {
+    int partitionHint =
+        (hint <= 0) ? hint : (hint + partitions.length - 1) / partitions.length;
+    for (LivelinkTraversalManager partition : partitions) {
+      partition.setBatchHint(partitionHint);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void setTraversalContext(TraversalContext traversalContext) {
+    for (LivelinkTraversalManager partition : partitions) {
+      partition.setTraversalContext(traversalContext);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public DocumentList startTraversal() throws RepositoryException {
+    String startCheckpoint = partitions[0].getStartCheckpoint();
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info("START TRAVERSAL: " + partitions.length + " partitions" +
+          (startCheckpoint == null ? "" : " from " + startCheckpoint) +
+          ".");
+    }
+    return listNodes(
+        PartitionedCheckpoint.split(startCheckpoint, partitions.length));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public DocumentList resumeTraversal(String checkpoint)
+      throws RepositoryException {
+    // Resume with no checkpoint is the same as Start.
+    if (Strings.isNullOrEmpty(checkpoint)) {
+      checkpoint = partitions[0].getStartCheckpoint();
+    }
+
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("RESUME TRAVERSAL: " + partitions.length
+          + " partitions from " + checkpoint + ".");
+    }
+    return listNodes(
+        PartitionedCheckpoint.split(checkpoint, partitions.length));
+  }
+
+  /**
+   * Runs the queries for each partition concurrently, and combines
+   * the results.
+   *
+   * @param checkpoints the partition checkpoints
+   * @return a document list, or null if no partition has new documents
+   */
+  private DocumentList listNodes(String[] checkpoints)
+      throws RepositoryException {
+    List<Future<LivelinkTraversalManager.Batch>> futures =
+        new ArrayList<Future<LivelinkTraversalManager.Batch>>();
+    for (int i = 0; i < partitions.length; i++) {
+      final LivelinkTraversalManager partition = partitions[i];
+      final String checkpoint = checkpoints[i];
+      futures.add(executor.submit(
+          new Callable<LivelinkTraversalManager.Batch>() {
+            @Override
+            public LivelinkTraversalManager.Batch call()
+                throws RepositoryException {
+              return partition.getBatch(checkpoint,
+                  partition.getBatchSize());
+            }
+          }));
+    }
+
+    // Wait for every partition, even after a failure, so that no
+    // queries are still running on the clients when we return.
+    LivelinkTraversalManager.Batch[] batches =
+        new LivelinkTraversalManager.Batch[partitions.length];
+    RepositoryException failure = null;
+    for (int i = 0; i < partitions.length; i++) {
+      try {
+        batches[i] = ClientExecutor.getResult(futures.get(i));
+      } catch (RepositoryException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+
+    boolean hasBatch = false;
+    boolean hasDocuments = false;
+    String[] startCheckpoints = checkpoints.clone();
+    DocumentList[] lists = new DocumentList[partitions.length];
+    for (int i = 0; i < partitions.length; i++) {
+      LivelinkTraversalManager.Batch batch = batches[i];
+      if (batch != null) {
+        hasBatch = true;
+        if (batch.hasDocuments()) {
+          hasDocuments = true;
+          lists[i] = partitions[i].getDocumentList(batch);
+        } else {
+          startCheckpoints[i] = batch.checkpoint.toString();
+        }
+      }
+    }
+
+    if (!hasBatch) {
+      LOGGER.fine("RESULTSET: no rows in any partition.");
+      return null;
+    } else if (!hasDocuments) {
+      return new EmptyDocumentList(
+          PartitionedCheckpoint.join(startCheckpoints));
+    } else {
+      return new PartitionedDocumentList(lists, startCheckpoints);
+    }
+  }
+
+  /**
+   * Interleaves the documents from the partition document lists, and
+   * tracks the checkpoint of each partition.
+   */
+  @VisibleForTesting
+  static class PartitionedDocumentList implements DocumentList {
+    /** The document lists, or null for partitions without documents. */
+    private final DocumentList[] lists;
+
+    /** The checkpoints of the partitions without document lists. */
+    private final String[] checkpoints;
+
+    /** Whether each document list has more documents. */
+    private final boolean[] active;
+
+    /** The index of the next partition to return a document from. */
+    private int next = 0;
+
+    /** Count of documents returned or skipped in this batch. */
+    private int docsProcessed = 0;
+
+    /**
+     * @param lists the document lists, or null for partitions without
+     *     documents
+     * @param checkpoints the checkpoints of the partitions, which are
+     *     used for the partitions without document lists
+     */
+    PartitionedDocumentList(DocumentList[] lists, String[] checkpoints) {
+      this.lists = lists;
+      this.checkpoints = checkpoints;
+      this.active = new boolean[lists.length];
+      for (int i = 0; i < lists.length; i++) {
+        active[i] = (lists[i] != null);
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A transient failure at the beginning of one partition ends that
+     * partition for this batch, unless no documents have been returned
+     * from any partition, in which case it is thrown.
+     */
+    @Override
+    public Document nextDocument() throws RepositoryException {
+      for (int count = 0; count < lists.length; count++) {
+        int i = next;
+        next = (next + 1) % lists.length;
+        if (!active[i]) {
+          continue;
+        }
+        try {
+          Document doc = lists[i].nextDocument();
+          if (doc == null) {
+            active[i] = false;
+          } else {
+            docsProcessed++;
+            return doc;
+          }
+        } catch (RepositoryDocumentException e) {
+          docsProcessed++;
+          throw e;
+        } catch (RepositoryException e) {
+          active[i] = false;
+          if (docsProcessed == 0 && !isActive()) {
+            throw e;
+          }
+          LOGGER.log(Level.WARNING,
+              "PARTITION " + i + " ENDED EARLY: " + e.getMessage(), e);
+        }
+      }
+      return null;
+    }
+
+    /** Returns true if any partition has more documents. */
+    private boolean isActive() {
+      for (boolean isActive : active) {
+        if (isActive) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String checkpoint() throws RepositoryException {
+      String[] current = Arrays.copyOf(checkpoints, checkpoints.length);
+      for (int i = 0; i < lists.length; i++) {
+        if (lists[i] != null) {
+          current[i] = lists[i].checkpoint();
+        }
+      }
+      String cp = PartitionedCheckpoint.join(current);
+
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("CHECKPOINT: " + cp);
+
+      return cp;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A map from DataID to PermID for the documents authorized by the
+ * authorization manager. Documents with the same PermID share the
+ * same permissions. The documents modified since the last refresh are
+ * found periodically and removed from the map, so that they are
+ * checked with the full authorization query again. The map is cleared
+ * when it is full. This class is thread-safe.
+ */
+class PermIdMap {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(PermIdMap.class.getName());
+
+  /** The value returned by {@link #get} for unknown documents. */
+  static final int UNKNOWN = Integer.MIN_VALUE;
+
+  private final int maxSize;
+
+  private final long refreshMillis;
+
+  private final boolean isSqlServer;
+
+  /** Guards the map and the refresh state. */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final IntIntMap permIds = new IntIntMap();
+
+  /** The latest ModifyDate seen, or null before the first refresh. */
+  private Date lastModified = null;
+
+  /** The time of the last refresh. */
+  private volatile long refreshTime = 0;
+
+  /**
+   * Constructs an empty map.
+   *
+   * @param maxSize the maximum number of documents
+   * @param refreshSeconds the minimum number of seconds between refreshes
+   * @param isSqlServer {@code true} for SQL Server, or {@code false}
+   * for Oracle
+   */
+  PermIdMap(int maxSize, int refreshSeconds, boolean isSqlServer) {
+    this.maxSize = maxSize;
+    this.refreshMillis = refreshSeconds * 1000L;
+    this.isSqlServer = isSqlServer;
+  }
+
+  /**
+   * Gets the PermID of a document.
+   *
+   * @param dataId the DataID of the document
+   * @return the PermID, or {@code UNKNOWN}
+   */
+  int get(int dataId) {
+    lock.readLock().lock();
+    try {
+      return permIds.get(dataId, UNKNOWN);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Sets the PermID of a document.
+   *
+   * @param dataId the DataID of the document
+   * @param permId the PermID
+   */
+  void put(int dataId, int permId) {
+    lock.writeLock().lock();
+    try {
+      if (permIds.size() >= maxSize && !permIds.containsKey(dataId)) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("PERMID MAP: Clearing " + permIds.size() + " entries");
+        }
+        permIds.clear();
+      }
+      permIds.put(dataId, permId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a document from the map.
+   *
+   * @param dataId the DataID of the document
+   */
+  void remove(int dataId) {
+    lock.writeLock().lock();
+    try {
+      permIds.remove(dataId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Gets the number of documents in the map. */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return permIds.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the documents modified since the last refresh, if it is
+   * time to, and removes any that are in the map. The first refresh
+   * only finds the latest ModifyDate.
+   *
+   * @param client a sysadmin client, which is only used by one thread
+   * at a time
+   * @param sqlQueries the SQL queries
+   * @return the PermIDs of the modified nodes, and their previous
+   * PermIDs in the map, which is empty if the map was not refreshed
+   */
+  IntList refresh(Client client, SqlQueries sqlQueries)
+      throws RepositoryException {
+    IntList modifiedPermIds = new IntList();
+    if (System.currentTimeMillis() - refreshTime < refreshMillis) {
+      return modifiedPermIds;
+    }
+    lock.writeLock().lock();
+    try {
+      // Another thread may have gotten here first.
+      if (System.currentTimeMillis() - refreshTime < refreshMillis) {
+        return modifiedPermIds;
+      }
+      refreshTime = System.currentTimeMillis();
+      ClientValue modified;
+      if (lastModified == null) {
+        modified = sqlQueries.execute(client, null,
+            "PermIdMap.getLastModified");
+      } else {
+        modified = sqlQueries.execute(client, null,
+            "PermIdMap.getModified", getTimestampLiteral(lastModified));
+      }
+      int removed = 0;
+      for (int i = 0; i < modified.size(); i++) {
+        int dataId = modified.toInteger(i, "DataID");
+        if (modified.isDefined(i, "PermID")) {
+          modifiedPermIds.add(modified.toInteger(i, "PermID"));
+        }
+        int oldPermId = permIds.get(dataId, UNKNOWN);
+        if (oldPermId != UNKNOWN) {
+          modifiedPermIds.add(oldPermId);
+          permIds.remove(dataId);
+          removed++;
+        }
+        if (modified.isDefined(i, "ModifyDate")) {
+          Date modifyDate = modified.toDate(i, "ModifyDate");
+          if (lastModified == null || modifyDate.after(lastModified)) {
+            lastModified = modifyDate;
+          }
+        }
+      }
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("PERMID MAP: Removed " + removed + " of "
+            + modified.size() + " modified documents");
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return modifiedPermIds;
+  }
+
+  /** @see LivelinkTraversalManager#getTimestampLiteral */
+  private String getTimestampLiteral(Date value) {
+    return ((isSqlServer) ? "" : "TIMESTAMP")
+        + '\'' + LivelinkDateFormat.getInstance().toSqlString(value) + '\'';
+  }
+}
@@ -14,14 +14,19 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,38 +38,34 @@ import java.util.logging.Logger;
  * <code>FetchVersion</code>.
  * <p>
  * Pipes must be used from two threads, a consumer and a producer. In
- * this case the consumer is the calling thread and the producer is a
- * thread that is created here for each instance. The two threads
- * share instances of this class, which presents a
- * <code>ContentHandler</code> interface to the calling thread, and a
- * <code>Runnable</code> interface to the created producer thread. The
- * producer thread runs in the background waiting for calls to (@link
- * #getInputStream} to queue requests.
- * 
+ * this case the consumer is the calling thread and the producers are
+ * a pool of threads that are created here for each instance, each
+ * with its own Livelink client. The producer threads run in the
+ * background waiting for calls to {@link #getInputStream} to queue
+ * requests. The queue is bounded, so {@code getInputStream} blocks
+ * when the producers fall behind. A caller that holds more unread
+ * streams than the number of threads plus the queue size will
+ * deadlock.
+ *
  * @see ContentHandler
  */
-/*
- * FIXME: This implementation deadlocks, especially when the producer
- * thread throws exceptions. One example occurs when the consumer
- * thread closes the input stream before EOF is reached.
- */
-class PipedContentHandler implements ContentHandler, Runnable {
+class PipedContentHandler implements ContentHandler {
   /** The logger for this class. */
   private static final Logger LOGGER =
       Logger.getLogger(PipedContentHandler.class.getName());
 
   /** A larger pipe size for a tenfold increase in performance. */
   private static final int PIPE_SIZE = 32768;
-    
+
   /** The connector contains configuration information. */
   private LivelinkConnector connector;
 
-  /** The client provides access to the server. */
-  private Client client;
+  /** The number of producer threads. */
+  private int threadCount = 1;
+
+  /** The maximum number of queued requests. */
+  private int queueSize = 10;
 
-  /** Is the producer thread running? */
-  private volatile boolean isRunning = false;
-    
   /** Queued requests. */
   /*
    * The queue is necessary because this content handler might
@@ -72,8 +73,17 @@ class PipedContentHandler implements ContentHandler, Runnable {
    * QueryTraversalManager were truly single-threaded, then
    * "queueing" a single request would suffice.
    */
-  private final LinkedList<Request> queue = new LinkedList<Request>();
-    
+  private BlockingQueue<Request> queue;
+
+  /** The producer threads, which are empty if they are not running. */
+  private final List<Producer> producers = new ArrayList<Producer>();
+
+  /**
+   * The clients of the producer threads after the first, which are
+   * kept for the threads started after a shutdown.
+   */
+  private final List<Client> producerClients = new ArrayList<Client>();
+
   /** Represents queue entries. */
   private static class Request {
     private final int volumeId;
@@ -90,104 +100,244 @@ class PipedContentHandler implements ContentHandler, Runnable {
       this.in = in;
     }
   }
-    
+
   PipedContentHandler() {
   }
 
+  /**
+   * Sets the number of producer threads. Each thread after the first
+   * uses its own Livelink client, so that several items can be
+   * fetched at once. The default is one thread.
+   *
+   * @param threadCount the number of producer threads
+   */
+  public void setThreadCount(int threadCount) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER THREAD COUNT: {0}",
+        threadCount);
+    if (threadCount < 1) {
+      throw new IllegalArgumentException(
+          "threadCount must be greater than zero: " + threadCount);
+    }
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Sets the maximum number of requests waiting for a producer
+   * thread. The default is ten requests.
+   *
+   * @param queueSize the maximum number of queued requests
+   */
+  public void setQueueSize(int queueSize) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER QUEUE SIZE: {0}", queueSize);
+    if (queueSize < 1) {
+      throw new IllegalArgumentException(
+          "queueSize must be greater than zero: " + queueSize);
+    }
+    this.queueSize = queueSize;
+  }
+
   /**
    * {@inheritDoc}
    * <p>
-   * This implementation starts the producer thread.
+   * This implementation starts the producer threads. The first thread
+   * uses the given client, and the others use clients that
+   * impersonate the traversal user, which are created the first time
+   * and then reused. The connector initializes the handler for each
+   * traversal manager, so if the producer threads are already
+   * running, they are kept.
    */
   @Override
-  public void initialize(LivelinkConnector connector, Client client)
-      throws RepositoryException {
+  public synchronized void initialize(LivelinkConnector connector,
+      Client client) throws RepositoryException {
     this.connector = connector;
-    this.client = client;
+    if (!producers.isEmpty()) {
+      return;
+    }
 
-    Thread t = new Thread(this);
-    t.setDaemon(true);
-    t.start();
-    if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine("PIPED CONTENT HANDLER THREAD STARTED: " + t);
+    queue = new ArrayBlockingQueue<Request>(queueSize);
+    for (int i = 0; i < threadCount; i++) {
+      Client producerClient = (i == 0) ? client : getProducerClient(i - 1);
+      Producer t = new Producer(queue, producerClient,
+          "LivelinkContentProducer-" + (i + 1));
+      t.setDaemon(true);
+      t.start();
+      producers.add(t);
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("PIPED CONTENT HANDLER THREAD STARTED: " + t);
+    }
+  }
+
+  /** Gets the client for an additional producer thread. */
+  private Client getProducerClient(int index) throws RepositoryException {
+    if (index == producerClients.size()) {
+      producerClients.add(createClient());
+    }
+    return producerClients.get(index);
+  }
+
+  /** Creates a client for an additional producer thread. */
+  private Client createClient() throws RepositoryException {
+    Client client = connector.getClientFactory().createClient();
+    String traversalUsername = connector.getTraversalUsername();
+    if (traversalUsername != null
+        && !traversalUsername.equals(connector.getUsername())) {
+      client.ImpersonateUserEx(traversalUsername, connector.getDomainName());
+    }
+    return client;
+  }
+
+  /**
+   * Stops the producer threads. Any queued requests fail, and their
+   * streams throw an exception when read. A producer that is running
+   * {@code FetchVersion} stops when it returns.
+   */
+  synchronized void shutdown() {
+    if (producers.isEmpty()) {
+      return;
+    }
+    for (Producer t : producers) {
+      t.stopProducer();
+    }
+    producers.clear();
+
+    List<Request> pending = new ArrayList<Request>();
+    queue.drainTo(pending);
+    for (Request request : pending) {
+      request.in.setException(
+          new IOException("Content handler stopped"), request.out);
+    }
+    LOGGER.fine("PIPED CONTENT HANDLER THREADS STOPPED");
+  }
+
+  /** Gets the number of running producer threads, for testing. */
+  @VisibleForTesting
+  synchronized int getRunningThreadCount() {
+    int count = 0;
+    for (Producer t : producers) {
+      if (t.isAlive()) {
+        count++;
+      }
+    }
+    return count;
   }
 
   /** {@inheritDoc} */
   @Override
   public InputStream getInputStream(int volumeId, int objectId,
       int versionNumber, int size) throws RepositoryException {
-    if (!isRunning)
-      throw new LivelinkException("No producer thread.", LOGGER);
+    BlockingQueue<Request> current;
+    synchronized (this) {
+      if (producers.isEmpty())
+        throw new LivelinkException("No producer thread.", LOGGER);
+      current = queue;
+    }
 
     try {
       SafePipedInputStream in = new SafePipedInputStream(PIPE_SIZE);
       PipedOutputStream out = new PipedOutputStream(in);
-      queueRequest(new Request(volumeId, objectId, versionNumber, out, in));
+      Request request =
+          new Request(volumeId, objectId, versionNumber, out, in);
+      in.setRequest(current, request);
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("QUEUEING REQUEST: " + objectId);
+      current.put(request);
       return in;
     } catch (IOException e) {
       throw new LivelinkException(e, LOGGER);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LivelinkException(e, LOGGER);
     }
   }
 
-  /** The producer thread processes requests for item content. */
-  @Override
-  public void run() {
-    // TODO: We need some way of stopping this thread
-    // gracefully, although at the moment we have no lifecycle
-    // event to trigger stopping the thread.
-    try {
-      isRunning = true;
-      while (true) {
+  /**
+   * A producer thread processes requests for item content. The thread
+   * runs until it is stopped. An interrupt alone does not stop it,
+   * because the Livelink client may clear the interrupt status.
+   */
+  private static class Producer extends Thread {
+    private final BlockingQueue<Request> queue;
+
+    private final Client client;
+
+    /** Whether the thread has been asked to stop. */
+    private volatile boolean stopped = false;
+
+    Producer(BlockingQueue<Request> queue, Client client, String name) {
+      super(name);
+      this.queue = queue;
+      this.client = client;
+    }
+
+    /** Stops the thread, interrupting it if it is waiting. */
+    void stopProducer() {
+      stopped = true;
+      interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
         try {
           processRequest();
         } catch (InterruptedException e) {
-          return;
+          if (!stopped) {
+            LOGGER.log(Level.FINE, "IGNORED INTERRUPT", e);
+          }
         }
       }
-    } finally {
-      isRunning = false;
     }
-  }
-
-  /**
-   * Called by the consumer thread, this method stores the
-   * <code>FetchVersion</code> parameters and notifies the producer
-   * thread that the request is ready.
-   */
-  private synchronized void queueRequest(Request request) {
-    if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine("QUEUEING REQUEST: " + request.objectId);
-    queue.addLast(request);
-    notify();
-  }
 
-  private synchronized Request dequeueRequest() throws InterruptedException {
-    while (queue.isEmpty()) {
+    /**
+     * Waits for a request and calls <code>FetchVersion</code> to fill
+     * the pipe.
+     */
+    private void processRequest() throws InterruptedException {
       LOGGER.finer("WAITING FOR REQUEST");
-      wait();
-      LOGGER.fine("CHECKING FOR REQUEST");
+      Request request = queue.take();
+      if (request.in.isClosed()) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("SKIPPING CANCELLED REQUEST: " + request.objectId);
+        return;
+      }
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("PROCESSING REQUEST: " + request.objectId);
+      try {
+        client.FetchVersion(request.volumeId, request.objectId,
+            request.versionNumber, request.out);
+      } catch (RepositoryException e) {
+        fail(request, e);
+      } catch (RuntimeException e) {
+        fail(request, e);
+      } catch (Error e) {
+        fail(request, e);
+        throw e;
+      }
     }
-    return queue.removeFirst();
-  }
-    
-  /**
-   * Waits for a request and calls <code>FetchVersion</code> to fill
-   * the pipe.
-   */
-  private void processRequest() throws InterruptedException {
-    Request request = dequeueRequest();
-    if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine("PROCESSING REQUEST: " + request.objectId);
-    try {
-      client.FetchVersion(request.volumeId, request.objectId,
-          request.versionNumber, request.out);
-    } catch (Throwable t) {
-      LOGGER.log(Level.FINE, "CAUGHT EXCEPTION", t);
+
+    /**
+     * Passes an exception from {@code FetchVersion} to the reader. If
+     * the exception was caused by an interrupt, the interrupt status
+     * is restored.
+     */
+    private void fail(Request request, Throwable t) {
+      if (request.in.isClosed()) {
+        LOGGER.log(Level.FINE, "REQUEST CANCELLED: " + request.objectId);
+      } else {
+        LOGGER.log(Level.WARNING, "CAUGHT EXCEPTION FETCHING "
+            + request.objectId, t);
+      }
+      for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+        if (cause instanceof InterruptedException
+            || cause instanceof InterruptedIOException) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
       try {
         request.in.setException(t, request.out);
-      } catch (Throwable tt) {
-        LOGGER.log(Level.WARNING,
-            "CAUGHT EXCEPTION SETTING EXCEPTION", tt);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "CAUGHT EXCEPTION SETTING EXCEPTION", e);
       }
     }
   }
@@ -195,7 +345,9 @@ class PipedContentHandler implements ContentHandler, Runnable {
   /**
    * Enables a larger pipe buffer for performance, and supports
    * rethrowing exceptions from the producer of the pipe content to
-   * the consumer.
+   * the consumer. Closing the stream before the end cancels the
+   * request, either by removing it from the queue, or by making
+   * the blocked producer fail with a closed pipe.
    * <p>
    * <strong>WARNING:</strong> This implementation depends heavily
    * on the implementation details of <code>PipedInputStream</code>.
@@ -212,10 +364,28 @@ class PipedContentHandler implements ContentHandler, Runnable {
   private static class SafePipedInputStream extends PipedInputStream {
     private Throwable throwable = null;
 
+    /** The queue holding the request, if it has not been processed. */
+    private BlockingQueue<Request> queue;
+
+    /** The request that fills this stream. */
+    private Request request;
+
+    /** Whether the stream has been closed by the reader. */
+    private volatile boolean isClosed = false;
+
     public SafePipedInputStream(int size) {
       buffer = new byte[size];
     }
 
+    void setRequest(BlockingQueue<Request> queue, Request request) {
+      this.queue = queue;
+      this.request = request;
+    }
+
+    boolean isClosed() {
+      return isClosed;
+    }
+
     public synchronized int read() throws IOException {
       checkException();
       int b = super.read();
@@ -239,6 +409,24 @@ class PipedContentHandler implements ContentHandler, Runnable {
       return count;
     }
 
+    /**
+     * Closes the stream, cancelling the request. A queued request is
+     * removed from the queue, and a producer that is blocked writing
+     * to the pipe is woken up to fail.
+     */
+    @Override
+    public void close() throws IOException {
+      isClosed = true;
+      if (queue != null && queue.remove(request)) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("REMOVED CANCELLED REQUEST: " + request.objectId);
+      }
+      super.close();
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+
     public synchronized void setException(Throwable t,
         PipedOutputStream out) {
       if (throwable == null) {
@@ -0,0 +1,421 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This content handler implementation uses <code>FetchVersion</code>
+ * with an output stream that keeps the content in memory up to a
+ * threshold, and writes it to a temporary file beyond that. The
+ * memory used by all of the fetched content that has not been closed
+ * is limited by a shared budget. Content that is larger than the
+ * threshold according to the size hint, or that would exceed the
+ * budget, is written to a temporary file. The temporary files are
+ * created in the configured work directory, and deleted when the
+ * stream is closed.
+ *
+ * @see ContentHandler
+ */
+class SpillingContentHandler implements ContentHandler {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(SpillingContentHandler.class.getName());
+
+  /** The client provides access to the server. */
+  private Client client;
+
+  /** The largest content kept in memory, in bytes. */
+  private int memoryThreshold = 1024 * 1024;
+
+  /** The memory shared by all of the content in memory. */
+  private MemoryBudget budget = new MemoryBudget(32L * 1024 * 1024);
+
+  /** The directory for temporary files, or null for the default. */
+  private File workDirectory = null;
+
+  SpillingContentHandler() {
+  }
+
+  /**
+   * Sets the largest content, in bytes, that is kept in memory. The
+   * default is one megabyte.
+   *
+   * @param memoryThreshold the threshold in bytes
+   */
+  public void setMemoryThreshold(int memoryThreshold) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER MEMORY THRESHOLD: {0}",
+        memoryThreshold);
+    if (memoryThreshold < 0) {
+      throw new IllegalArgumentException(
+          "memoryThreshold must not be negative: " + memoryThreshold);
+    }
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  /**
+   * Sets the total memory, in bytes, that may be used for content
+   * that has been fetched but not closed. The default is 32 megabytes.
+   *
+   * @param memoryBudget the budget in bytes
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER MEMORY BUDGET: {0}",
+        memoryBudget);
+    if (memoryBudget < 0) {
+      throw new IllegalArgumentException(
+          "memoryBudget must not be negative: " + memoryBudget);
+    }
+    this.budget = new MemoryBudget(memoryBudget);
+  }
+
+  /**
+   * Sets the directory for temporary files. By default, the system
+   * temporary directory is used.
+   *
+   * @param workDirectory the directory path, or an empty string for
+   *     the default
+   */
+  public void setWorkDirectory(String workDirectory) {
+    LOGGER.log(Level.CONFIG, "CONTENT HANDLER WORK DIRECTORY: {0}",
+        workDirectory);
+    this.workDirectory = (workDirectory == null || workDirectory.isEmpty())
+        ? null : new File(workDirectory);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void initialize(LivelinkConnector connector, Client client)
+      throws RepositoryException {
+    this.client = client;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream getInputStream(int volumeId, int objectId,
+      int versionNumber, int size) throws RepositoryException {
+    try {
+      if (size > memoryThreshold) {
+        return fetchToFile(volumeId, objectId, versionNumber);
+      }
+      SpillingOutputStream out = new SpillingOutputStream(
+          memoryThreshold, budget, workDirectory, size);
+      boolean isFetched = false;
+      try {
+        client.FetchVersion(volumeId, objectId, versionNumber, out);
+        out.close();
+        InputStream in = out.getInputStream();
+        isFetched = true;
+        return in;
+      } finally {
+        if (!isFetched) {
+          out.discard();
+        }
+      }
+    } catch (IOException e) {
+      throw new LivelinkException(e, LOGGER);
+    }
+  }
+
+  /**
+   * Fetches the content directly to a temporary file, for content
+   * that is known to be larger than the threshold.
+   */
+  private InputStream fetchToFile(int volumeId, int objectId,
+      int versionNumber) throws IOException, RepositoryException {
+    File temporaryFile = createTempFile(workDirectory);
+    try {
+      client.FetchVersion(volumeId, objectId, versionNumber, temporaryFile);
+    } catch (RepositoryException e) {
+      deleteTempFile(temporaryFile);
+      throw e;
+    }
+    return new TempFileInputStream(temporaryFile);
+  }
+
+  /** Gets the memory budget, for testing. */
+  @VisibleForTesting
+  MemoryBudget getMemoryBudget() {
+    return budget;
+  }
+
+  private static File createTempFile(File workDirectory) throws IOException {
+    File temporaryFile = File.createTempFile("gsa-otex-", null, workDirectory);
+    if (LOGGER.isLoggable(Level.FINER))
+      LOGGER.finer("CREATE TEMP FILE: " + temporaryFile);
+    return temporaryFile;
+  }
+
+  private static void deleteTempFile(File temporaryFile) {
+    if (temporaryFile.exists()) {
+      if (LOGGER.isLoggable(Level.FINER))
+        LOGGER.finer("DELETE TEMP FILE: " + temporaryFile);
+      if (!temporaryFile.delete()) {
+        LOGGER.finest("Unable to delete temp file " + temporaryFile);
+      }
+    }
+  }
+
+  /** Tracks the memory available to buffer content. */
+  @VisibleForTesting
+  static class MemoryBudget {
+    private long available;
+
+    MemoryBudget(long available) {
+      this.available = available;
+    }
+
+    /**
+     * Reserves memory, if it is available.
+     *
+     * @param bytes the number of bytes to reserve
+     * @return {@code true} if the memory was reserved, or {@code false}
+     *     if not enough memory is available
+     */
+    synchronized boolean tryReserve(long bytes) {
+      if (bytes > available) {
+        return false;
+      }
+      available -= bytes;
+      return true;
+    }
+
+    /** Releases reserved memory. */
+    synchronized void release(long bytes) {
+      available += bytes;
+    }
+
+    /** Gets the memory that is available to be reserved. */
+    synchronized long getAvailable() {
+      return available;
+    }
+  }
+
+  /**
+   * Buffers the content in memory, reserving the memory from the
+   * budget as the buffer grows. When the content exceeds the
+   * threshold, or the budget is used up, the buffer is written to a
+   * temporary file and the memory is released.
+   */
+  @VisibleForTesting
+  static class SpillingOutputStream extends OutputStream {
+    /** The smallest buffer, to avoid many small reservations. */
+    private static final int MIN_BUFFER_SIZE = 8192;
+
+    private final int threshold;
+
+    private final MemoryBudget budget;
+
+    private final File workDirectory;
+
+    /** The memory buffer, or null after spilling. */
+    private byte[] buffer = new byte[0];
+
+    /** The number of bytes in the buffer. */
+    private int count = 0;
+
+    /** The temporary file, or null if the content is in memory. */
+    private File temporaryFile = null;
+
+    /** The temporary file output, while it is open. */
+    private OutputStream fileOut = null;
+
+    private boolean isOpen = true;
+
+    /**
+     * @param threshold the largest content to keep in memory
+     * @param budget the shared memory budget
+     * @param workDirectory the directory for temporary files, or null
+     * @param sizeHint the expected content size
+     */
+    SpillingOutputStream(int threshold, MemoryBudget budget,
+        File workDirectory, int sizeHint) {
+      this.threshold = threshold;
+      this.budget = budget;
+      this.workDirectory = workDirectory;
+      if (sizeHint > 0) {
+        grow(Math.min(sizeHint, threshold));
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (!isOpen) {
+        throw new IOException("Output stream is closed.");
+      }
+      if (fileOut == null) {
+        int needed = count + len;
+        if (needed <= buffer.length
+            || (needed <= threshold && grow(needed))) {
+          System.arraycopy(b, off, buffer, count, len);
+          count += len;
+          return;
+        }
+        spill();
+      }
+      fileOut.write(b, off, len);
+    }
+
+    /**
+     * Grows the buffer, if the memory is available.
+     *
+     * @param minimum the minimum new buffer size
+     * @return {@code true} if the buffer has at least the minimum size
+     */
+    private boolean grow(int minimum) {
+      int size = Math.min(threshold, Math.max(minimum,
+              Math.max(MIN_BUFFER_SIZE, 2 * buffer.length)));
+      if (!budget.tryReserve(size - buffer.length)) {
+        size = minimum;
+        if (!budget.tryReserve(size - buffer.length)) {
+          return false;
+        }
+      }
+      buffer = Arrays.copyOf(buffer, size);
+      return true;
+    }
+
+    /** Writes the buffer to a temporary file and releases the memory. */
+    private void spill() throws IOException {
+      temporaryFile = createTempFile(workDirectory);
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.finer("SPILLING " + count + " BYTES TO " + temporaryFile);
+      }
+      fileOut = new FileOutputStream(temporaryFile);
+      fileOut.write(buffer, 0, count);
+      releaseBuffer();
+    }
+
+    private synchronized void releaseBuffer() {
+      if (buffer != null) {
+        budget.release(buffer.length);
+        buffer = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      isOpen = false;
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+
+    /** Releases the memory and deletes the file after a failure. */
+    void discard() {
+      try {
+        close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINEST, "Ignored exception closing temp file", e);
+      }
+      releaseBuffer();
+      if (temporaryFile != null) {
+        deleteTempFile(temporaryFile);
+      }
+    }
+
+    /** Gets whether the content was written to a temporary file. */
+    boolean isSpilled() {
+      return temporaryFile != null;
+    }
+
+    /**
+     * Gets an input stream for the content. Closing the input stream
+     * releases the memory or deletes the temporary file. If the
+     * stream is never closed, the memory is released when the stream
+     * is finalized.
+     *
+     * @throws IOException if the output stream is open
+     */
+    InputStream getInputStream() throws IOException {
+      if (isOpen)
+        throw new IOException("Output stream is open.");
+      if (temporaryFile != null) {
+        return new TempFileInputStream(temporaryFile);
+      }
+      return new BufferInputStream(this, buffer, count);
+    }
+  }
+
+  /**
+   * Releases the reserved memory when the stream is closed, or when
+   * it is finalized if it was never closed, so that a stream dropped
+   * by the caller does not use up the budget.
+   */
+  private static class BufferInputStream extends ByteArrayInputStream {
+    private final SpillingOutputStream owner;
+
+    BufferInputStream(SpillingOutputStream owner, byte[] buffer, int count) {
+      super(buffer, 0, count);
+      this.owner = owner;
+    }
+
+    @Override
+    public void close() throws IOException {
+      owner.releaseBuffer();
+      super.close();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+      try {
+        owner.releaseBuffer();
+      } finally {
+        super.finalize();
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary file when the stream is closed. A
+   * <code>FileInputStream</code> closes itself when it is finalized,
+   * so the file is also deleted if the stream is never closed.
+   */
+  private static class TempFileInputStream extends FileInputStream {
+    private final File temporaryFile;
+
+    TempFileInputStream(File temporaryFile) throws IOException {
+      super(temporaryFile);
+      this.temporaryFile = temporaryFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        deleteTempFile(temporaryFile);
+      }
+    }
+  }
+}
@@ -112,6 +112,66 @@ class SqlQueries {
   private static final String DAUDITNEW_VIEW_SQL_SERVER = "(select b.*, "
       + AUDIT_DATE_SQL_SERVER + " from DAuditNew b)";
 
+  /** The number of ancestors returned by the ancestor chain view. */
+  private static final int ANCESTOR_CHAIN_DEPTH = 8;
+
+  /**
+   * A derived view of DTree with the parent of each node, with the
+   * stepparents of the negated nodes of volumes substituted for their
+   * ParentID of -1.
+   */
+  private static final String EFFECTIVE_PARENT_VIEW = "(select b.DataID, "
+      + "case when b.ParentID = -1 then coalesce((select c.ParentID "
+      + "from DTree c where c.DataID = -b.DataID and c.ParentID <> -1), -1) "
+      + "else b.ParentID end as ParentID from DTree b)";
+
+  /**
+   * Gets the select list for the ancestor chain view: DataID and
+   * Ancestor1 through AncestorN.
+   */
+  private static String[] getAncestorChainSelect() {
+    String[] columns = new String[ANCESTOR_CHAIN_DEPTH + 1];
+    columns[0] = "DataID";
+    for (int i = 1; i <= ANCESTOR_CHAIN_DEPTH; i++) {
+      columns[i] = "Ancestor" + i;
+    }
+    return columns;
+  }
+
+  /**
+   * Gets the ancestor chain view, which unrolls the recursive walk up
+   * the hierarchy into a fixed number of outer joins, since LAPI does
+   * not allow a recursive common table expression in a ListNodes
+   * query. A missing ancestor is null.
+   * <p>
+   * The view joins {@code ANCESTOR_CHAIN_DEPTH} copies of
+   * {@code EFFECTIVE_PARENT_VIEW}, each with its own correlated
+   * subquery for the stepparents of volumes. When the optimizer
+   * merges the derived tables, as SQL Server and Oracle do, each
+   * level costs an index lookup on DTree.DataID for each queried
+   * node, plus a second lookup for a volume. An optimizer that
+   * materializes the derived tables instead would scan DTree once per
+   * level on every query, so the query plan should be checked before
+   * using {@code ChainGenealogist} on a large DTree. A deeper view
+   * saves queries for deep hierarchies, but adds a join that every
+   * query pays for, even when the first ancestor is cached.
+   */
+  private static String getAncestorChainView() {
+    StringBuilder select = new StringBuilder("(select e0.DataID");
+    StringBuilder from = new StringBuilder(" from ")
+        .append(EFFECTIVE_PARENT_VIEW).append(" e0");
+    for (int i = 1; i <= ANCESTOR_CHAIN_DEPTH; i++) {
+      select.append(", e").append(i - 1).append(".ParentID as Ancestor")
+          .append(i);
+      if (i < ANCESTOR_CHAIN_DEPTH) {
+        from.append(" left outer join ").append(EFFECTIVE_PARENT_VIEW)
+            .append(" e").append(i).append(" on e").append(i)
+            .append(".DataID = e").append(i - 1).append(".ParentID");
+      }
+    }
+    return select.append(from).append(')').toString();
+  }
+
   public static class Resources extends ListResourceBundle {
     @Override
     protected Object[][] getContents() {
@@ -125,6 +185,22 @@ class SqlQueries {
         { "Genealogist.getParent.where",
           "DataID in ({0,number,#},{1,number,#})" },
 
+        { "Genealogist.getModifiedContainers.select",
+          new String[] {
+            "DataID" } },
+        { "Genealogist.getModifiedContainers.from",
+          "DTree" },
+        { "Genealogist.getModifiedContainers.where",
+          "DataID in (select ParentID from DTree) and ModifyDate >= {0}" },
+
+        { "Genealogist.getChildContainers.select",
+          new String[] {
+            "DataID" } },
+        { "Genealogist.getChildContainers.from",
+          "DTree" },
+        { "Genealogist.getChildContainers.where",
+          "ParentID in ({0}) and DataID in (select ParentID from DTree)" },
+
         { "HybridGenealogist.getParents.select",
           new String[] {
             "DataID",
@@ -139,6 +215,45 @@ class SqlQueries {
         { "HybridGenealogist.getParents.where",
           "DataID in ({0})" },
 
+        { "ChainGenealogist.getAncestors.select",
+          getAncestorChainSelect() },
+        { "ChainGenealogist.getAncestors.from",
+          getAncestorChainView() },
+        { "ChainGenealogist.getAncestors.where",
+          "DataID in ({0})" },
+
+        { "ParentMapGenealogist.getContainers.select",
+          new String[] {
+            "DataID",
+            "ParentID",
+            "StepParentID",
+            "ModifyDate" } },
+        { "ParentMapGenealogist.getContainers.from",
+          // See HybridGenealogist.getParents.from.
+          "(select b.*, (select ParentID from DTree c "
+          + "where -b.DataID = c.DataID and c.ParentID <> -1) "
+          + "as StepParentID from DTree b)" },
+        { "ParentMapGenealogist.getContainers.where",
+          // Any node that is a parent is a container, including the
+          // negated nodes of volumes.
+          "DataID in (select ParentID from DTree)" },
+
+        { "ParentMapGenealogist.getModified.select",
+          new String[] {
+            "DataID",
+            "ParentID",
+            "StepParentID",
+            "ModifyDate" } },
+        { "ParentMapGenealogist.getModified.from",
+          "(select b.*, (select ParentID from DTree c "
+          + "where -b.DataID = c.DataID and c.ParentID <> -1) "
+          + "as StepParentID from DTree b)" },
+        { "ParentMapGenealogist.getModified.where",
+          // Only containers, and the positive nodes of volumes, which
+          // supply the stepparents of the negated nodes, are mapped.
+          "(DataID in (select ParentID from DTree) or "
+          + "-DataID in (select ParentID from DTree)) and ModifyDate >= {0}" },
+
         { "LivelinkTraversalManager.getDescendants.where",
           "(DataID in ({0}) or "
           + "DataID in (select DataID from DTreeAncestors where "
@@ -175,6 +290,24 @@ class SqlQueries {
 
           + "{13,choice,0#|1#" + ORDER_BY + "}" },
 
+        { "LivelinkTraversalManager.getWindowModifyDate.where",
+          // The latest ModifyDate in a getCandidatesWindow subquery, to
+          // use in place of the highestModifyDate in getMatching.
+          "(select max(ModifyDate) from DTree where DataID in ({0}))" },
+
+        { "LivelinkTraversalManager.getWindowEnd.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getWindowEnd.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getWindowEnd.where",
+          // The last candidate in a getCandidatesWindow subquery, given
+          // the getWindowModifyDate subquery, to advance the checkpoint
+          // past a window without results.
+          "DataID = (select max(DataID) from DTree where DataID in ({0}) "
+          + "and ModifyDate = {1})" },
+
         { "LivelinkTraversalManager.getMatchingDescendants.where",
           // The correct timestamp literal syntax must be supplied by
           // the caller.
@@ -189,6 +322,59 @@ class SqlQueries {
         { "LivelinkAuthorizationManager.getExcludedVolumeId.where",
           "SubType = {0}{1,choice,0#|1# and DataID in ({2})}" },
 
+        { "PermIdMap.getLastModified.select",
+          new String[] {
+            "DataID",
+            "PermID",
+            "ModifyDate" } },
+        { "PermIdMap.getLastModified.from",
+          "DTree" },
+        { "PermIdMap.getLastModified.where",
+          "ModifyDate in (select max(ModifyDate) from DTree)" },
+
+        { "PermIdMap.getModified.select",
+          new String[] {
+            "DataID",
+            "PermID",
+            "ModifyDate" } },
+        { "PermIdMap.getModified.from",
+          "DTree" },
+        { "PermIdMap.getModified.where",
+          "ModifyDate >= {0}" },
+
+        // ListNodes requires a DataID column, so the KUAF tables are
+        // selected with their IDs renamed in derived views.
+        { "AclSnapshot.getPrincipals.select",
+          new String[] {
+            "DataID",
+            "Name",
+            "Type",
+            "UserPrivileges" } },
+        { "AclSnapshot.getPrincipals.from",
+          "(select b.ID as DataID, b.Name, b.Type, b.UserPrivileges, "
+          + "b.Deleted from KUAF b)" },
+        { "AclSnapshot.getPrincipals.where",
+          "Deleted = 0 and Type in (0, 1)" },
+
+        { "AclSnapshot.getMemberships.select",
+          new String[] {
+            "DataID",
+            "ChildID" } },
+        { "AclSnapshot.getMemberships.from",
+          "(select b.ID as DataID, b.ChildID from KUAFChildren b)" },
+        { "AclSnapshot.getMemberships.where",
+          "DataID in (select ID from KUAF where Deleted = 0)" },
+
+        { "AclSnapshot.getAcls.select",
+          new String[] {
+            "DataID",
+            "RightID",
+            "Permissions" } },
+        { "AclSnapshot.getAcls.from",
+          "DTreeACL" },
+        { "AclSnapshot.getAcls.where",
+          "DataID in ({0})" },
+
         { "LivelinkAuthorizationManager.addAuthorizedDocids.select",
           new String[] {
             "DataID",
@@ -312,8 +498,46 @@ class SqlQueries {
           + "{3,choice,0#|1#'{0,choice,0# where |1# and }"
           + "(ModifyDate > ''''{4}'''' or (ModifyDate = ''''{4}'''' "
           + "and T.DataID > {5,number,#}))'}"
+          + "{7}"
           + " order by ModifyDate, T.DataID)" + ORDER_BY },
 
+        { "LivelinkTraversalManager.getCandidatesWindow.where",
+          // The getCandidates subquery, used as the candidates list in
+          // getMatching to select the results in a single query.
+          "select top {3,number,#} T.DataID from DTree T"
+          + "{0,choice,0#|1#' where "
+          + "(ModifyDate > ''''{1}'''' or (ModifyDate = ''''{1}'''' "
+          + "and T.DataID > {2,number,#}))'}"
+          + "{4}"
+          + " order by ModifyDate, T.DataID" },
+
+        { "LivelinkTraversalManager.getNextMatchingDate.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getNextMatchingDate.from",
+          "DTree" },
+        { "LivelinkTraversalManager.getNextMatchingDate.where",
+          // The first item after the checkpoint that is in the
+          // included locations (using DTreeAncestors), and does not
+          // have an excluded node type or volume type. The candidates
+          // before this item cannot pass the getMatching filters.
+          "DataID in (select top 1 T.DataID from DTree T"
+          + "{0,choice,0#|1# join DTreeAncestors Anc on T.DataID = Anc.DataID}"
+          + " where (ModifyDate > ''{3}'' or (ModifyDate = ''{3}'' "
+          + "and T.DataID > {4,number,#}))"
+          + "{0,choice,0#|1# and (AncestorID in ({1}) or T.DataID in ({2}))}"
+          + "{5,choice,0#|1# and T.SubType not in ({6})}"
+          + "{7,choice,0#|1# and -T.OwnerID not in "
+          + "(select DataID from DTree where SubType in ({8}))}"
+          + " order by ModifyDate, T.DataID)" },
+
+        { "LivelinkTraversalManager.getPartition.where",
+          // This condition is added to the getCandidates subquery,
+          // which may or may not already have a where clause.
+          "{3,choice,0# where |1# and }"
+          + "abs(T.{0}) % {1,number,#} = {2,number,#}" },
+
         { "LivelinkTraversalManager.getDeletes.select",
           new String[] {
             "GoogleAuditDate",
@@ -332,6 +556,18 @@ class SqlQueries {
           + "(AuditDate = ''{0}'' and EventID > {1,number,#}))"
           + "{2,choice,0#|1 and SubType not in ({3})}"
           + DELETE_ORDER_BY + ")" + DELETE_ORDER_BY},
+
+        { "LivelinkTraversalManager.getMoves.select",
+          new String[] {
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getMoves.from",
+          DAUDITNEW_VIEW_SQL_SERVER },
+        { "LivelinkTraversalManager.getMoves.where",
+          // Only include move events after the last one seen.
+          "EventID in (select top {1,number,#} EventID from DAuditNew where "
+          + "AuditStr = ''Move'' and EventID > {0,number,#} "
+          + "order by EventID) order by EventID" },
       };
     }
   }
@@ -408,13 +644,51 @@ class SqlQueries {
           // The inner format containing a # avoids thousands separators
           // in the DataID value, but that requires quoting the choice
           // subformat, which triggers some crazy quoting rules.
-          "{0,choice,0#|1#(AncestorID in ({1}) or DataID in ({2})) and }"
+          "{7}"
+          + "{0,choice,0#|1#(AncestorID in ({1}) or DataID in ({2})) and }"
           + "{3,choice,0#|1#'"
           + "(ModifyDate > TIMESTAMP''''{4}'''' or "
           + "(ModifyDate = TIMESTAMP''''{4}'''' and DataID > {5,number,#})) "
           + "and '}"
           + "rownum <= {6,number,#}" },
 
+        { "LivelinkTraversalManager.getCandidatesWindow.where",
+          // The getCandidates query, used as the candidates list in
+          // getMatching to select the results in a single query.
+          "select DataID from (select * from DTree" + ORDER_BY + ") W where "
+          + "{4}"
+          + "{0,choice,0#|1#'"
+          + "(ModifyDate > TIMESTAMP''''{1}'''' or "
+          + "(ModifyDate = TIMESTAMP''''{1}'''' and DataID > {2,number,#})) "
+          + "and '}"
+          + "rownum <= {3,number,#}" },
+
+        { "LivelinkTraversalManager.getNextMatchingDate.select",
+          new String[] {
+            "ModifyDate",
+            "DataID" } },
+        { "LivelinkTraversalManager.getNextMatchingDate.from",
+          "(select * from DTree{0,choice,0#|1#" +
+          " join DTreeAncestors using (DataID)}" + ORDER_BY + ")" },
+        { "LivelinkTraversalManager.getNextMatchingDate.where",
+          // The first item after the checkpoint that is in the
+          // included locations (using DTreeAncestors), and does not
+          // have an excluded node type or volume type. The candidates
+          // before this item cannot pass the getMatching filters.
+          "(ModifyDate > TIMESTAMP''{3}'' or "
+          + "(ModifyDate = TIMESTAMP''{3}'' and DataID > {4,number,#}))"
+          + "{0,choice,0#|1# and (AncestorID in ({1}) or DataID in ({2}))}"
+          + "{5,choice,0#|1# and SubType not in ({6})}"
+          + "{7,choice,0#|1# and -OwnerID not in "
+          + "(select DataID from DTree where SubType in ({8}))}"
+          + " and rownum = 1" },
+
+        { "LivelinkTraversalManager.getPartition.where",
+          // This condition is added to the getCandidates query, ahead
+          // of the rownum limit, so that each partition gets a full
+          // window of candidates.
+          "mod(abs({0}), {1,number,#}) = {2,number,#} and " },
+
         { "LivelinkTraversalManager.getDeletes.select",
           new String[] {
             "GoogleAuditDate",
@@ -431,7 +705,20 @@ class SqlQueries {
           "AuditID = 2 and (AuditDate > TIMESTAMP''{0}'' or "
           + "(AuditDate = TIMESTAMP''{0}'' and EventID > {1,number,#}))"
           + "{2,choice,0#|1# and SubType not in ({3})} "
-          + "and rownum <= {4,number,#}" }
+          + "and rownum <= {4,number,#}" },
+
+        { "LivelinkTraversalManager.getMoves.select",
+          new String[] {
+            "EventID",
+            "DataID" } },
+        { "LivelinkTraversalManager.getMoves.from",
+          // The rownum limit must apply in EventID order, since the
+          // last row is the next move event checkpoint.
+          "(select * from DAuditNew order by EventID)" },
+        { "LivelinkTraversalManager.getMoves.where",
+          // Only include move events after the last one seen.
+          "AuditStr = ''Move'' and EventID > {0,number,#} "
+          + "and rownum <= {1,number,#}" }
       };
     }
   }
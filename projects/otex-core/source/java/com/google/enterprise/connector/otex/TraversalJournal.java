@@ -0,0 +1,219 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.base.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only record of the traversal position within a batch.
+ * The journal records the checkpoint that the batch started from,
+ * followed by the checkpoint after each document that is consumed:
+ *
+ * <pre>
+ *     B <em>checkpoint at the start of the batch</em>
+ *     C <em>checkpoint after the first document</em>
+ *     C <em>checkpoint after the second document</em>
+ *     ...
+ * </pre>
+ *
+ * The connector manager only stores the checkpoint after the batch
+ * has been fed, so a consumed document may not have reached the
+ * search appliance. If the traversal is resumed from the same
+ * checkpoint that starts the journal, the batch was not committed,
+ * and its documents are returned again. The journal only reports
+ * that, and never skips ahead, since the connector manager does not
+ * acknowledge each document. The journal is a diagnostic log, so the
+ * records are not forced to disk, and an incomplete last record is
+ * ignored.
+ */
+class TraversalJournal {
+  /** The logger for this class. */
+  private static final Logger LOGGER =
+      Logger.getLogger(TraversalJournal.class.getName());
+
+  private static final String BASE_PREFIX = "B ";
+
+  private static final String CHECKPOINT_PREFIX = "C ";
+
+  private final File file;
+
+  /** The checkpoint at the start of the journal, or null if unknown. */
+  private String base = null;
+
+  /** The last journaled checkpoint, or null if there is none. */
+  private String last = null;
+
+  /** The journal output, or null if it has not been opened. */
+  private FileOutputStream out = null;
+
+  /**
+   * Opens the journal and reads any existing records.
+   *
+   * @param file the journal file
+   * @throws IOException if the file exists but cannot be read
+   */
+  TraversalJournal(File file) throws IOException {
+    this.file = file;
+    if (file.exists()) {
+      read();
+    }
+  }
+
+  /** Reads the complete records in the journal file. */
+  private void read() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    String contents = bytes.toString("UTF-8");
+
+    // Anything after the last newline is an incomplete record.
+    String[] records = contents.split("\n", -1);
+    for (int i = 0; i < records.length - 1; i++) {
+      String record = records[i];
+      if (record.startsWith(BASE_PREFIX)) {
+        base = record.substring(BASE_PREFIX.length());
+        last = null;
+      } else if (record.startsWith(CHECKPOINT_PREFIX) && base != null) {
+        last = record.substring(CHECKPOINT_PREFIX.length());
+      }
+    }
+    if (LOGGER.isLoggable(Level.CONFIG)) {
+      LOGGER.config("TRAVERSAL JOURNAL: " + file + "; BASE: " + base
+          + "; LAST: " + last);
+    }
+
+    // Rewrite the journal, to drop any incomplete record before we
+    // append to it.
+    if (base != null) {
+      String journaled = last;
+      restart(base);
+      if (journaled != null) {
+        append(journaled);
+      }
+    }
+  }
+
+  /**
+   * Starts the journal over from the checkpoint that the traversal is
+   * resumed from. If the given checkpoint starts the journal, the
+   * previous batch was not committed, and the documents that it
+   * returned will be returned again.
+   *
+   * @param checkpoint the checkpoint from the connector manager, which
+   *     may be null
+   * @return the last journaled checkpoint of the uncommitted batch, or
+   *     null if the previous batch was committed
+   */
+  synchronized String resume(String checkpoint) {
+    String current = Strings.nullToEmpty(checkpoint);
+    String uncommitted = null;
+    if (current.equals(base) && last != null && !last.equals(current)) {
+      uncommitted = last;
+      if (LOGGER.isLoggable(Level.INFO)) {
+        LOGGER.info("TRAVERSAL JOURNAL: The batch from " + checkpoint
+            + " was not committed; returning the documents through "
+            + last + " again");
+      }
+    }
+    restart(current);
+    return uncommitted;
+  }
+
+  /**
+   * Starts the journal over when the traversal is started from the
+   * beginning.
+   *
+   * @param checkpoint the start checkpoint, which may be null
+   */
+  synchronized void start(String checkpoint) {
+    restart(Strings.nullToEmpty(checkpoint));
+  }
+
+  /**
+   * Appends a checkpoint to the journal. Failures are logged rather
+   * than thrown, since the journal is only used to avoid returning
+   * documents again.
+   *
+   * @param checkpoint the checkpoint after a consumed document
+   */
+  synchronized void append(String checkpoint) {
+    if (base == null || checkpoint == null || checkpoint.equals(last)) {
+      return;
+    }
+    try {
+      if (out == null) {
+        out = new FileOutputStream(file, true);
+      }
+      write(CHECKPOINT_PREFIX + checkpoint);
+      last = checkpoint;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write to the traversal journal "
+          + file, e);
+
+      // Stop appending after a possibly incomplete record. The journal
+      // is started over when the traversal is next resumed.
+      base = null;
+      last = null;
+    }
+  }
+
+  /** Starts the journal over from the given checkpoint. */
+  private void restart(String checkpoint) {
+    base = null;
+    last = null;
+    try {
+      close();
+      out = new FileOutputStream(file, false);
+      write(BASE_PREFIX + checkpoint);
+      base = checkpoint;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to write to the traversal journal "
+          + file, e);
+    }
+  }
+
+  /** Writes a record. */
+  private void write(String record) throws IOException {
+    out.write((record + "\n").getBytes("UTF-8"));
+  }
+
+  /** Closes the journal file. */
+  synchronized void close() throws IOException {
+    if (out != null) {
+      try {
+        out.close();
+      } finally {
+        out = null;
+      }
+    }
+  }
+}
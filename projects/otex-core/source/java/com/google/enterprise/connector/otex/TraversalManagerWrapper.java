@@ -24,6 +24,10 @@ import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.TraversalContextAware;
 import com.google.enterprise.connector.spi.TraversalManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +42,9 @@ import java.util.logging.Logger;
  * instead of subclasses. For direct connections, the {@code traverser}
  * field is used, and for HTTP tunneling, the {@code clientFactory},
  * {@code batchSize}, and {@code traversalContext} fields are used.
+ * Direct connections may also use partitioned traversal, in which
+ * case the {@code traverser} is the first partition, and the
+ * {@code partitioned} field is used to traverse all of the partitions.
  */
 class TraversalManagerWrapper
     implements TraversalManager, TraversalContextAware {
@@ -53,6 +60,12 @@ class TraversalManagerWrapper
    */
   private final LivelinkTraversalManager traverser;
 
+  /**
+   * The traversal manager for partitioned traversal, or null if the
+   * traversal is not partitioned.
+   */
+  private final PartitionedTraversalManager partitioned;
+
   /**
    * The client factory for creating HTTP tunneling clients later, or
    * null for direct connections.
@@ -71,18 +84,133 @@ class TraversalManagerWrapper
 
     if (connector.getUseHttpTunneling()) {
       this.traverser = null;
+      this.partitioned = null;
       this.clientFactory = clientFactory;
+    } else if (connector.getTraversalPartitions() > 1) {
+      LivelinkTraversalManager[] partitions =
+          new LivelinkTraversalManager[connector.getTraversalPartitions()];
+      ClientExecutor enrichmentExecutor = (connector.getEnrichmentThreads() > 0)
+          ? newEnrichmentExecutor(clientFactory,
+              connector.getEnrichmentThreads())
+          : null;
+      ExecutorService contentPrefetchExecutor =
+          newContentPrefetchExecutor();
+      for (int i = 0; i < partitions.length; i++) {
+        partitions[i] = newTraversalManager(clientFactory, false);
+        partitions[i].setEnrichmentExecutor(enrichmentExecutor);
+        partitions[i].setContentPrefetchExecutor(contentPrefetchExecutor);
+        if (i > 0) {
+          // Share one warm genealogist cache among the partitions.
+          partitions[i].setGenealogist(partitions[0].genealogist);
+        }
+      }
+      useGenealogistSnapshot(partitions);
+      if (connector.getPrefetchNextBatch()) {
+        LOGGER.warning(
+            "prefetchNextBatch is not supported with traversalPartitions");
+      }
+      this.traverser = partitions[0];
+      this.partitioned = new PartitionedTraversalManager(connector, partitions);
+      this.clientFactory = null;
     } else {
-      this.traverser = newTraversalManager(clientFactory);
+      this.traverser = newTraversalManager(clientFactory, false);
+      this.partitioned = null;
       this.clientFactory = null;
+      if (connector.getPrefetchNextBatch()) {
+        LivelinkTraversalManager prefetcher =
+            newTraversalManager(clientFactory, true);
+        prefetcher.setGenealogist(traverser.genealogist);
+        traverser.setPrefetcher(prefetcher);
+        useGenealogistSnapshot(traverser, prefetcher);
+      } else {
+        useGenealogistSnapshot(traverser);
+      }
+      if (connector.getEnrichmentThreads() > 0) {
+        traverser.setEnrichmentExecutor(newEnrichmentExecutor(clientFactory,
+                connector.getEnrichmentThreads()));
+      }
+      traverser.setContentPrefetchExecutor(newContentPrefetchExecutor());
+    }
+  }
+
+  /**
+   * Restores the shared genealogist caches from the snapshot file, if
+   * one is configured, and saves them as the traversal proceeds. This
+   * is not done with HTTP tunneling, which uses a new genealogist for
+   * each batch.
+   *
+   * @param traversalManagers the traversal managers that share the
+   *     genealogist of the first one
+   */
+  private void useGenealogistSnapshot(
+      LivelinkTraversalManager... traversalManagers)
+      throws RepositoryException {
+    GenealogistSnapshot snapshot = connector.getGenealogistSnapshot();
+    if (snapshot == null || traversalManagers[0].genealogist == null) {
+      return;
+    }
+    traversalManagers[0].restoreGenealogist(snapshot);
+    for (LivelinkTraversalManager traversalManager : traversalManagers) {
+      traversalManager.setGenealogistSnapshot(snapshot);
+    }
+  }
+
+  /**
+   * Creates the background thread for prefetching document content,
+   * if it is enabled. The content is fetched with the content handler
+   * of each traversal manager, so no additional clients are needed.
+   * The connector stops the thread when it is shut down.
+   *
+   * @return the executor, or null if content prefetching is disabled
+   */
+  private ExecutorService newContentPrefetchExecutor() {
+    if (connector.getContentPrefetchWindow() == 0) {
+      return null;
+    }
+    LOGGER.log(Level.FINE, "PREFETCHING CONTENT FOR {0} DOCUMENTS",
+        connector.getContentPrefetchWindow());
+    return connector.addExecutor(Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("LivelinkContentPrefetch")));
+  }
+
+  /**
+   * Creates an executor for collecting document metadata in parallel.
+   * The clients impersonate the traversal user, like the traversal
+   * client does.
+   *
+   * @param clientFactory the client factory
+   * @param threadCount the number of threads and clients
+   */
+  private ClientExecutor newEnrichmentExecutor(ClientFactory clientFactory,
+      int threadCount) throws RepositoryException {
+    LOGGER.log(Level.FINE, "CREATING {0} ENRICHMENT CLIENTS", threadCount);
+    String traversalUsername = connector.getTraversalUsername();
+    List<Client> clients = new ArrayList<Client>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      Client client = clientFactory.createClient();
+      impersonateUser(client, getCurrentUsername(client), traversalUsername);
+      clients.add(client);
     }
+    return new ClientExecutor(connector.addExecutor(
+        ClientExecutor.newThreadPool("LivelinkDocumentEnrichment",
+            threadCount)), clients);
   }
 
+  /**
+   * Creates a traversal manager with its own Livelink clients.
+   *
+   * @param clientFactory the client factory
+   * @param isPrefetcher {@code true} if the traversal manager will only
+   *     be used to prefetch batches, in which case it does not need a
+   *     content handler
+   */
   private LivelinkTraversalManager newTraversalManager(
-      ClientFactory clientFactory) throws RepositoryException {
+      ClientFactory clientFactory, boolean isPrefetcher)
+      throws RepositoryException {
     LOGGER.log(Level.FINE,
-        "CREATING A NEW TRAVERSAL MANAGER; HTTP TUNNELING: {0}",
-        connector.getUseHttpTunneling());
+        "CREATING A NEW TRAVERSAL MANAGER; HTTP TUNNELING: {0}; "
+        + "PREFETCHER: {1}",
+        new Object[] { connector.getUseHttpTunneling(), isPrefetcher });
     Client traversalClient = clientFactory.createClient();
 
     // Get the current username to compare to the configured
@@ -105,7 +233,7 @@ class TraversalManagerWrapper
 
     return new LivelinkTraversalManager(connector, traversalClient,
         currentUsername, sysadminClient,
-        connector.getContentHandler(traversalClient));
+        (isPrefetcher) ? null : connector.getContentHandler(traversalClient));
   }
 
   private String getCurrentUsername(Client client) {
@@ -144,6 +272,8 @@ class TraversalManagerWrapper
   public void setTraversalContext(TraversalContext traversalContext) {
     if (traverser == null) {
       this.traversalContext = traversalContext;
+    } else if (partitioned != null) {
+      partitioned.setTraversalContext(traversalContext);
     } else {
       traverser.setTraversalContext(traversalContext);
     }
@@ -153,6 +283,8 @@ class TraversalManagerWrapper
   public void setBatchHint(int hint) {
     if (traverser == null) {
       this.batchSize = hint;
+    } else if (partitioned != null) {
+      partitioned.setBatchHint(hint);
     } else {
       traverser.setBatchHint(hint);
     }
@@ -160,19 +292,25 @@ class TraversalManagerWrapper
 
   @Override
   public DocumentList startTraversal() throws RepositoryException {
+    if (partitioned != null) {
+      return partitioned.startTraversal();
+    }
     return getTraversalManager().startTraversal();
   }
 
   @Override
   public DocumentList resumeTraversal(String checkpoint)
       throws RepositoryException {
+    if (partitioned != null) {
+      return partitioned.resumeTraversal(checkpoint);
+    }
     return getTraversalManager().resumeTraversal(checkpoint);
   }
 
   @VisibleForTesting
   LivelinkTraversalManager getTraversalManager() throws RepositoryException {
     if (traverser == null) {
-      LivelinkTraversalManager tm = newTraversalManager(clientFactory);
+      LivelinkTraversalManager tm = newTraversalManager(clientFactory, false);
       tm.setTraversalContext(traversalContext);
       tm.setBatchHint(batchSize);
       return tm;
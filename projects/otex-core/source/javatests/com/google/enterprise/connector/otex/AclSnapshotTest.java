@@ -0,0 +1,110 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.ClientValue;
+import com.google.enterprise.connector.otex.client.mock.MockClientValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class AclSnapshotTest extends TestCase {
+  private static final int SEECONTENTS = Client.PERM_SEECONTENTS;
+
+  private static final List<Integer> PERM_IDS =
+      ImmutableList.of(100, 101, 102, 103, 104);
+
+  private AclSnapshot snapshot;
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    snapshot = new AclSnapshot(100, 600);
+    snapshot.loadPrincipals(
+        new MockClientValue(
+            new String[] { "DataID", "Name", "Type", "UserPrivileges" },
+            new Object[][] {
+              { 1, "fred", Client.USER, 0 },
+              { 2, "barney", Client.USER, Client.PRIV_PERM_WORLD },
+              { 3, "admin", Client.USER, Client.PRIV_PERM_BYPASS },
+              { 10, "outer", Client.GROUP, null },
+              { 11, "inner", Client.GROUP, null } }),
+        new MockClientValue(
+            new String[] { "DataID", "ChildID" },
+            new Object[][] {
+              { 10, 11 },
+              { 11, 1 },
+              // A cycle, which is not allowed by Livelink.
+              { 11, 10 } }));
+    snapshot.addAcls(
+        new MockClientValue(
+            new String[] { "DataID", "RightID", "Permissions" },
+            new Object[][] {
+              { 100, 10, SEECONTENTS },
+              { 101, Client.RIGHT_WORLD, SEECONTENTS },
+              { 102, 2, Client.PERM_SEE },
+              { 102, 1, Client.PERM_FULL },
+              { 103, 99, SEECONTENTS } }),
+        PERM_IDS);
+  }
+
+  /** Tests nested groups, and undecidable ACLs. */
+  public void testNestedGroups() {
+    assertEquals(ImmutableMap.of(100, true, 101, false, 102, true),
+        snapshot.getDecisions("fred", PERM_IDS));
+  }
+
+  /** Tests public access and permissions without See Contents. */
+  public void testPublicAccess() {
+    assertEquals(ImmutableMap.of(100, false, 101, true, 102, false),
+        snapshot.getDecisions("barney", PERM_IDS));
+  }
+
+  /** Tests that sysadmins are allowed everything. */
+  public void testBypass() {
+    assertEquals(
+        ImmutableMap.of(100, true, 101, true, 102, true, 103, true, 104, true),
+        snapshot.getDecisions("admin", PERM_IDS));
+  }
+
+  public void testUnknownUser() {
+    assertNull(snapshot.getDecisions("wilma", PERM_IDS));
+  }
+
+  public void testEvict() {
+    IntList modified = new IntList();
+    modified.add(100);
+    snapshot.evict(modified);
+    assertEquals(ImmutableMap.of(101, false, 102, true),
+        snapshot.getDecisions("fred", PERM_IDS));
+  }
+
+  /** Tests that reloading the principals clears the ACLs. */
+  public void testReload() throws RepositoryException {
+    ClientValue empty = new MockClientValue(
+        new String[] { "DataID", "ChildID" }, new Object[0][]);
+    snapshot.loadPrincipals(
+        new MockClientValue(
+            new String[] { "DataID", "Name", "Type", "UserPrivileges" },
+            new Object[][] { { 1, "fred", Client.USER, 0 } }),
+        empty);
+    assertEquals(ImmutableMap.of(), snapshot.getDecisions("fred", PERM_IDS));
+    assertNull(snapshot.getDecisions("barney", PERM_IDS));
+  }
+}
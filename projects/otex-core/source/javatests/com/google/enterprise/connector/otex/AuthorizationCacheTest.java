@@ -0,0 +1,91 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class AuthorizationCacheTest extends TestCase {
+  /** A clock that only moves when it is told to. */
+  private static class FakeClock implements AuthorizationCache.Clock {
+    long nanos = 0;
+
+    @Override
+    public long nanoTime() {
+      return nanos;
+    }
+
+    void advanceSeconds(int seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+
+  public void testGetAndPut() {
+    AuthorizationCache cache = new AuthorizationCache(10, 60, clock);
+    assertNull(cache.get("fred", "42"));
+
+    cache.put("fred", "42", true);
+    cache.put("fred", "43", false);
+    assertEquals(Boolean.TRUE, cache.get("fred", "42"));
+    assertEquals(Boolean.FALSE, cache.get("fred", "43"));
+
+    // The decisions are per user.
+    assertNull(cache.get("barney", "42"));
+    assertEquals("2 entries, 2 hits, 2 misses",
+        cache.statistics().toString());
+  }
+
+  public void testExpiration() {
+    AuthorizationCache cache = new AuthorizationCache(10, 60, clock);
+    cache.put("fred", "42", true);
+
+    clock.advanceSeconds(59);
+    assertEquals(Boolean.TRUE, cache.get("fred", "42"));
+
+    clock.advanceSeconds(1);
+    assertNull(cache.get("fred", "42"));
+    assertEquals("0 entries, 1 hits, 1 misses",
+        cache.statistics().toString());
+  }
+
+  public void testMaxSize() {
+    AuthorizationCache cache = new AuthorizationCache(2, 60, clock);
+    cache.put("fred", "1", true);
+    cache.put("fred", "2", true);
+
+    // Touch the first entry, so that the second one is evicted.
+    assertEquals(Boolean.TRUE, cache.get("fred", "1"));
+    cache.put("fred", "3", true);
+    assertNull(cache.get("fred", "2"));
+    assertEquals(Boolean.TRUE, cache.get("fred", "1"));
+    assertEquals(Boolean.TRUE, cache.get("fred", "3"));
+  }
+
+  public void testInvalidArguments() {
+    try {
+      new AuthorizationCache(0, 60, clock);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new AuthorizationCache(10, 0, clock);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AuthorizationCoalescerTest extends TestCase {
+  /** Allows the even docids, and records the queries. */
+  private static class FakeQuery implements AuthorizationCoalescer.Query {
+    final List<List<String>> queries = new ArrayList<List<String>>();
+    RepositoryException exception = null;
+    Error error = null;
+
+    /** If not null, the queries wait for it. */
+    volatile CountDownLatch gate = null;
+
+    /** Whether the calling thread was interrupted during the last query. */
+    volatile boolean wasInterrupted = false;
+
+    @Override
+    public Set<String> authorize(String username,
+        Collection<String> docids) throws RepositoryException {
+      wasInterrupted = Thread.currentThread().isInterrupted();
+      synchronized (this) {
+        queries.add(new ArrayList<String>(docids));
+      }
+      CountDownLatch gate = this.gate;
+      if (gate != null) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new RepositoryException(e);
+        }
+      }
+      if (exception != null) {
+        throw exception;
+      }
+      if (error != null) {
+        throw error;
+      }
+      Set<String> allowed = new HashSet<String>();
+      for (String docid : docids) {
+        if (Integer.parseInt(docid) % 2 == 0) {
+          allowed.add(docid);
+        }
+      }
+      return allowed;
+    }
+
+    synchronized int size() {
+      return queries.size();
+    }
+  }
+
+  private final FakeQuery query = new FakeQuery();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /** Starts a request in another thread. */
+  private Future<Set<String>> submit(final AuthorizationCoalescer coalescer,
+      final String username, final Collection<String> docids) {
+    return executor.submit(new Callable<Set<String>>() {
+        @Override
+        public Set<String> call() throws RepositoryException {
+          return coalescer.authorize(username, docids);
+        }
+      });
+  }
+
+  /** Starts a request, and waits for its query to start. */
+  private Future<Set<String>> startQuery(AuthorizationCoalescer coalescer,
+      String username, Collection<String> docids, int queryCount)
+      throws InterruptedException {
+    Future<Set<String>> future = submit(coalescer, username, docids);
+    while (query.size() < queryCount) {
+      Thread.sleep(1);
+    }
+    return future;
+  }
+
+  /** Waits for the given total number of requests. */
+  private void awaitRequests(AuthorizationCoalescer coalescer,
+      int requestCount) throws InterruptedException {
+    while (!coalescer.toString().startsWith("requests " + requestCount + ",")) {
+      Thread.sleep(1);
+    }
+  }
+
+  /** Tests that a single request does not wait for the window. */
+  public void testSingleRequest() throws RepositoryException {
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    long start = System.currentTimeMillis();
+    assertEquals(ImmutableSet.of("2"),
+        coalescer.authorize("fred", ImmutableList.of("1", "2")));
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000L);
+    assertFalse(coalescer.isRunning("fred"));
+    assertFalse(coalescer.isOpen("fred"));
+    assertEquals(1, query.queries.size());
+  }
+
+  /**
+   * Tests that requests that arrive during a query are merged into
+   * one follow-up query.
+   */
+  public void testMerge() throws Exception {
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Future<Set<String>> first =
+        startQuery(coalescer, "fred", ImmutableList.of("1", "2", "3"), 1);
+    Future<Set<String>> second =
+        submit(coalescer, "fred", ImmutableList.of("3", "4"));
+    Future<Set<String>> third =
+        submit(coalescer, "fred", ImmutableList.of("6"));
+    awaitRequests(coalescer, 3);
+    assertTrue(coalescer.isOpen("fred"));
+    assertEquals("requests 3, batches 2", coalescer.toString());
+    query.gate.countDown();
+
+    assertEquals(ImmutableSet.of("2"), first.get());
+    assertEquals(ImmutableSet.of("4", "6"), second.get());
+    assertEquals(ImmutableSet.of("4", "6"), third.get());
+    assertEquals(ImmutableList.of(ImmutableList.of("1", "2", "3"),
+            ImmutableList.of("3", "4", "6")),
+        query.queries);
+  }
+
+  /**
+   * Tests that a request whose docids are all in the running query
+   * waits for that query.
+   */
+  public void testJoinRunning() throws Exception {
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Future<Set<String>> first =
+        startQuery(coalescer, "fred", ImmutableList.of("1", "2", "3"), 1);
+    Future<Set<String>> second =
+        submit(coalescer, "fred", ImmutableList.of("2", "3"));
+    awaitRequests(coalescer, 2);
+    assertFalse(coalescer.isOpen("fred"));
+    query.gate.countDown();
+
+    assertEquals(ImmutableSet.of("2"), first.get());
+    assertEquals(ImmutableSet.of("2"), second.get());
+    assertEquals(1, query.queries.size());
+  }
+
+  /** Tests that requests for different users are not merged. */
+  public void testUsers() throws Exception {
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Future<Set<String>> fred =
+        startQuery(coalescer, "fred", ImmutableList.of("1", "2"), 1);
+    Future<Set<String>> barney =
+        startQuery(coalescer, "barney", ImmutableList.of("3", "4"), 2);
+    query.gate.countDown();
+    assertEquals(ImmutableSet.of("2"), fred.get());
+    assertEquals(ImmutableSet.of("4"), barney.get());
+    assertEquals(2, query.queries.size());
+  }
+
+  /**
+   * Tests that a follow-up batch does not wait longer than the window
+   * for the running query.
+   */
+  public void testWindow() throws Exception {
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer = new AuthorizationCoalescer(10, query);
+    Future<Set<String>> first =
+        startQuery(coalescer, "fred", ImmutableList.of("1"), 1);
+    Future<Set<String>> second =
+        startQuery(coalescer, "fred", ImmutableList.of("2"), 2);
+    assertEquals(ImmutableList.of(ImmutableList.of("1"),
+            ImmutableList.of("2")),
+        query.queries);
+    query.gate.countDown();
+    assertEquals(ImmutableSet.of(), first.get());
+    assertEquals(ImmutableSet.of("2"), second.get());
+  }
+
+  /**
+   * Tests that an interrupted request still runs its query, and that
+   * the interrupt is restored afterwards.
+   */
+  public void testInterrupt() throws RepositoryException {
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Thread.currentThread().interrupt();
+    try {
+      assertEquals(ImmutableSet.of("2"),
+          coalescer.authorize("fred", ImmutableList.of("2")));
+      assertFalse(query.wasInterrupted);
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  /**
+   * Tests that every request in a batch gets the exception, wrapped
+   * for the waiting requests.
+   */
+  public void testException() throws Exception {
+    query.exception = new RepositoryException("expected");
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Future<Set<String>> first =
+        startQuery(coalescer, "fred", ImmutableList.of("1"), 1);
+    Future<Set<String>> second =
+        submit(coalescer, "fred", ImmutableList.of("1"));
+    awaitRequests(coalescer, 2);
+    query.gate.countDown();
+
+    try {
+      first.get();
+      fail("Expected an exception");
+    } catch (ExecutionException e) {
+      assertSame(query.exception, e.getCause());
+    }
+    try {
+      second.get();
+      fail("Expected an exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(),
+          e.getCause() instanceof RepositoryException);
+      assertSame(query.exception, e.getCause().getCause());
+    }
+  }
+
+  /** Tests that the waiting requests do not miss an Error. */
+  public void testError() throws Exception {
+    query.error = new AssertionError("expected");
+    query.gate = new CountDownLatch(1);
+    AuthorizationCoalescer coalescer =
+        new AuthorizationCoalescer(60 * 1000L, query);
+    Future<Set<String>> first =
+        startQuery(coalescer, "fred", ImmutableList.of("1"), 1);
+    Future<Set<String>> second =
+        submit(coalescer, "fred", ImmutableList.of("1"));
+    awaitRequests(coalescer, 2);
+    query.gate.countDown();
+
+    try {
+      second.get();
+      fail("Expected an exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(),
+          e.getCause() instanceof RepositoryException);
+      assertSame(query.error, e.getCause().getCause());
+    }
+  }
+
+  /** Tests that the request that ran the query gets the Error itself. */
+  public void testError_single() throws RepositoryException {
+    query.error = new AssertionError("expected");
+    AuthorizationCoalescer coalescer = new AuthorizationCoalescer(0, query);
+    try {
+      coalescer.authorize("fred", ImmutableList.of("1"));
+      fail("Expected an AssertionError");
+    } catch (AssertionError e) {
+      assertSame(query.error, e);
+    }
+  }
+}
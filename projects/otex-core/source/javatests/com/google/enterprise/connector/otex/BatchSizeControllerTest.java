@@ -0,0 +1,87 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.BatchSizeController.Reason;
+
+import junit.framework.TestCase;
+
+public class BatchSizeControllerTest extends TestCase {
+  public void testFixed() {
+    BatchSizeController controller = new BatchSizeController(false);
+    assertEquals(100, controller.getInitialSize(100, 1000L));
+    assertEquals(Reason.HINT, controller.getLastReason());
+
+    controller.recordQuery(100, 0, 60000L);
+    assertEquals(100, controller.getInitialSize(100, 1000L));
+    assertEquals(1000, controller.getNextSize(100, 100, 1000L));
+    assertEquals(1000, controller.getNextSize(1000, 100, 1000L));
+    assertEquals(Reason.SPARSE, controller.getLastReason());
+  }
+
+  public void testAdaptive_initial() {
+    BatchSizeController controller = new BatchSizeController(true);
+    assertEquals(100, controller.getInitialSize(100, -1L));
+    assertEquals(Reason.YIELD, controller.getLastReason());
+    assertEquals(-1.0, controller.getMillisPerCandidate(), 0.0);
+  }
+
+  public void testAdaptive_yield() {
+    BatchSizeController controller = new BatchSizeController(true);
+    controller.recordQuery(100, 10, 100L);
+    controller.recordQuery(100, 10, 100L);
+    controller.recordQuery(100, 10, 100L);
+
+    // The yield decays from 1.0 towards 0.1.
+    double yield = controller.getYield();
+    assertTrue(String.valueOf(yield), yield > 0.1 && yield < 0.5);
+    int size = controller.getInitialSize(100, -1L);
+    assertEquals((int) Math.ceil(100 / yield), size);
+    assertEquals(Reason.YIELD, controller.getLastReason());
+    assertEquals(1.0, controller.getMillisPerCandidate(), 0.001);
+  }
+
+  public void testAdaptive_maximum() {
+    BatchSizeController controller = new BatchSizeController(true);
+    for (int i = 0; i < 20; i++) {
+      controller.recordQuery(1000, 0, 10L);
+    }
+    assertEquals(BatchSizeController.MAX_CANDIDATES,
+        controller.getInitialSize(100, -1L));
+    assertEquals(Reason.MAXIMUM, controller.getLastReason());
+  }
+
+  public void testAdaptive_sparse() {
+    BatchSizeController controller = new BatchSizeController(true);
+    assertEquals(200, controller.getNextSize(100, 100, -1L));
+    assertEquals(Reason.SPARSE, controller.getLastReason());
+  }
+
+  public void testAdaptive_headroom() {
+    BatchSizeController controller = new BatchSizeController(true);
+    controller.recordQuery(100, 100, 1000L);
+
+    // 10 ms per candidate, and a quarter of 2 seconds is 500 ms.
+    assertEquals(50, controller.getInitialSize(100, 2000L));
+    assertEquals(Reason.HEADROOM, controller.getLastReason());
+
+    // With no time left, we still make progress.
+    assertEquals(1, controller.getNextSize(50, 100, 0L));
+    assertEquals(Reason.HEADROOM, controller.getLastReason());
+
+    // Without a time limit, the headroom does not matter.
+    assertEquals(100, controller.getInitialSize(100, -1L));
+  }
+}
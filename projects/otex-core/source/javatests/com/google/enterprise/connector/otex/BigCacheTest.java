@@ -53,6 +53,8 @@ public class BigCacheTest extends TestCase {
       "com.google.enterprise.connector.otex.BatchGenealogist";
   private static final String HYBRID_GENEALOGIST =
       "com.google.enterprise.connector.otex.HybridGenealogist";
+  private static final String CHAIN_GENEALOGIST =
+      "com.google.enterprise.connector.otex.ChainGenealogist";
 
   private static final int NO_PARENT = -1;
   private static final int FOLDER_SUBTYPE = 0;
@@ -119,6 +121,7 @@ public class BigCacheTest extends TestCase {
     testGenealogist(GENEALOGIST);
     testGenealogist(HYBRID_GENEALOGIST);
     testGenealogist(BATCH_GENEALOGIST);
+    testGenealogist(CHAIN_GENEALOGIST);
   }
 
   private void testGenealogist(String genealogist) throws Exception {
@@ -0,0 +1,111 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.sql.SQLException;
+
+/**
+ * Runs the tests in {@code GenealogistTest} using the
+ * {@code ChainGenealogist} implementation.
+ */
+public class ChainGenealogistTest extends GenealogistTest {
+  @Override
+  protected Class<? extends Genealogist> getClassUnderTest() {
+    return ChainGenealogist.class;
+  }
+
+  /** The whole chain of ancestors is found with one query. */
+  @Override
+  protected int getCachingQueryCount() {
+    return 1;
+  }
+
+  /** Gets a new genealogist for the class under test. */
+  private Genealogist getGenealogist(String includedNodes,
+      String excludedNodes) throws RepositoryException {
+    return Genealogist.getGenealogist(getClassUnderTest().getName(),
+        client, includedNodes, excludedNodes, 10, 10);
+  }
+
+  /**
+   * Tests a chain deeper than one query. A node 15 levels below an
+   * included node needs the query from the node and another from its
+   * eighth ancestor.
+   */
+  public void testDeepChain() throws SQLException, RepositoryException {
+    int[][] rows = new int[16][];
+    rows[0] = new int[] { 5, -1 };
+    rows[1] = new int[] { 5001, 5 };
+    for (int i = 2; i < rows.length; i++) {
+      rows[i] = new int[] { 5000 + i, 5000 + i - 1 };
+    }
+    insertRows(rows);
+
+    Genealogist genealogist = getGenealogist("5", "");
+    testMatching(genealogist, new Integer[] { 5015 }, "5015");
+    assertEquals(2, genealogist.queryCount.get());
+  }
+
+  /**
+   * Tests orphans in the middle of a chain, both within the ancestors
+   * of a single query and at the top of the chain from a query.
+   */
+  public void testOrphanInChain() throws SQLException, RepositoryException {
+    // 600 does not exist.
+    insertRows(new int[][] {
+          { 6, -1 }, { 601, 600 }, { 6010, 601 }, { 60100, 6010 } });
+
+    // 7001 does not exist, and it is the eighth ancestor of 7009.
+    int[][] rows = new int[8][];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = new int[] { 7002 + i, 7001 + i };
+    }
+    insertRows(rows);
+
+    Genealogist genealogist = getGenealogist("1,6,7", "");
+    testMatching(genealogist, new Integer[] { 1000, 60100, 7009 }, "1000");
+    assertEquals(2, genealogist.queryCount.get());
+  }
+
+  /**
+   * Tests a volume partway up a chain, whose stepparent is found in
+   * the same query or in the next query.
+   */
+  public void testStepparentInChain()
+      throws SQLException, RepositoryException {
+    int[][] rows = new int[11][];
+    rows[0] = new int[] { 9, -1 };
+    rows[1] = new int[] { 90, 9 };
+    rows[2] = new int[] { -90, -1 };
+    rows[3] = new int[] { 9001, -90 };
+    for (int i = 4; i < rows.length; i++) {
+      rows[i] = new int[] { 9000 + i - 2, 9000 + i - 3 };
+    }
+    insertRows(rows);
+
+    // The volume is the third ancestor of 9003, and the eighth
+    // ancestor of 9008, so its stepparent comes from the next query.
+    Genealogist genealogist = getGenealogist("9", "");
+    testMatching(genealogist, new Integer[] { 9003, 9008 }, "9003,9008");
+    assertEquals(2, genealogist.queryCount.get());
+
+    // The volume itself is matched in the first query.
+    genealogist = getGenealogist("", "90");
+    testMatching(genealogist, new Integer[] { 9008, 1000 }, "1000");
+    assertEquals(1, genealogist.queryCount.get());
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.ChunkSizeController.Reason;
+
+import junit.framework.TestCase;
+
+public class ChunkSizeControllerTest extends TestCase {
+  public void testSpread() {
+    ChunkSizeController controller = new ChunkSizeController(true);
+    assertEquals(250, controller.getChunkSize(1000, 4));
+    assertEquals(Reason.SPREAD, controller.getLastReason());
+    assertEquals(-1.0, controller.getMillisPerDocid(), 0.0);
+  }
+
+  public void testMinimum() {
+    ChunkSizeController controller = new ChunkSizeController(true);
+    assertEquals(ChunkSizeController.MIN_CHUNK_SIZE,
+        controller.getChunkSize(150, 4));
+    assertEquals(Reason.MINIMUM, controller.getLastReason());
+  }
+
+  public void testMaximum() {
+    ChunkSizeController oracle = new ChunkSizeController(false);
+    assertEquals(1000, oracle.getChunkSize(20000, 4));
+    assertEquals(Reason.MAXIMUM, oracle.getLastReason());
+
+    ChunkSizeController sqlServer = new ChunkSizeController(true);
+    assertEquals(5000, sqlServer.getChunkSize(20000, 4));
+    assertEquals(10000, sqlServer.getChunkSize(80000, 4));
+    assertEquals(Reason.MAXIMUM, sqlServer.getLastReason());
+  }
+
+  /** Fast queries are not split. */
+  public void testFast() {
+    ChunkSizeController controller = new ChunkSizeController(true);
+    controller.recordQuery(1000, 100L);
+    assertEquals(0.1, controller.getMillisPerDocid(), 0.001);
+    assertEquals(2000, controller.getChunkSize(2000, 4));
+    assertEquals(Reason.FAST, controller.getLastReason());
+
+    // Slower queries move the average, and the request is spread.
+    controller.recordQuery(1000, 1100L);
+    assertEquals(0.4, controller.getMillisPerDocid(), 0.001);
+    assertEquals(500, controller.getChunkSize(2000, 4));
+    assertEquals(Reason.SPREAD, controller.getLastReason());
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ClientGovernorTest extends TestCase {
+  /** A clock that only moves when it sleeps. */
+  private static class FakeClock implements ClientGovernor.Clock {
+    long nanos = 0;
+    long sleptNanos = 0;
+    int minuteOfDay = 0;
+
+    @Override
+    public long nanoTime() {
+      return nanos;
+    }
+
+    @Override
+    public int minuteOfDay() {
+      return minuteOfDay;
+    }
+
+    @Override
+    public void sleep(long nanos) {
+      this.nanos += nanos;
+      this.sleptNanos += nanos;
+    }
+
+    long getSleptMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(sleptNanos);
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+
+  public void testUnlimited() throws InterruptedException {
+    ClientGovernor governor = new ClientGovernor(0, 0, "", clock);
+    for (int i = 0; i < 1000; i++) {
+      governor.acquireCall();
+      governor.acquireBytes(1000000);
+    }
+    assertEquals(0, clock.sleptNanos);
+    assertEquals(0, governor.getThrottledCount());
+  }
+
+  public void testCallsPerSecond() throws InterruptedException {
+    ClientGovernor governor = new ClientGovernor(2, 0, null, clock);
+
+    // The bucket starts full.
+    governor.acquireCall();
+    governor.acquireCall();
+    assertEquals(0, clock.sleptNanos);
+
+    governor.acquireCall();
+    assertEquals(500, clock.getSleptMillis());
+    governor.acquireCall();
+    assertEquals(1000, clock.getSleptMillis());
+    assertEquals(2, governor.getThrottledCount());
+    assertEquals(1000, governor.getThrottledMillis());
+  }
+
+  public void testCallsPerSecond_refill() throws InterruptedException {
+    ClientGovernor governor = new ClientGovernor(2, 0, null, clock);
+    governor.acquireCall();
+    governor.acquireCall();
+
+    // The bucket holds at most one second of calls.
+    clock.nanos += TimeUnit.SECONDS.toNanos(10);
+    governor.acquireCall();
+    governor.acquireCall();
+    assertEquals(0, clock.sleptNanos);
+    governor.acquireCall();
+    assertEquals(500, clock.getSleptMillis());
+  }
+
+  /** A large transfer is allowed, but the next one pays for it. */
+  public void testBytesPerSecond_debt() throws InterruptedException {
+    ClientGovernor governor = new ClientGovernor(0, 100, null, clock);
+
+    governor.acquireBytes(300);
+    assertEquals(2000, clock.getSleptMillis());
+    governor.acquireBytes(50);
+    assertEquals(2500, clock.getSleptMillis());
+  }
+
+  public void testSchedule() throws InterruptedException {
+    ClientGovernor governor =
+        new ClientGovernor(0, 0, "08:00-18:00=1,0", clock);
+
+    clock.minuteOfDay = 7 * 60 + 59;
+    governor.acquireCall();
+    governor.acquireCall();
+    assertEquals(0, clock.sleptNanos);
+
+    clock.minuteOfDay = 8 * 60;
+    governor.acquireCall();
+    governor.acquireCall();
+    assertEquals(1000, clock.getSleptMillis());
+
+    clock.minuteOfDay = 18 * 60;
+    governor.acquireCall();
+    assertEquals(1000, clock.getSleptMillis());
+  }
+
+  public void testParseSchedule() {
+    List<ClientGovernor.Profile> profiles = ClientGovernor.parseSchedule(
+        " 08:00-18:00=2.5,1048576; 22:30-6:00=0,0; ");
+    assertEquals(2, profiles.size());
+
+    ClientGovernor.Profile day = profiles.get(0);
+    assertEquals(2.5, day.callsPerSecond);
+    assertEquals(1048576, day.bytesPerSecond);
+    assertTrue(day.includes(8 * 60));
+    assertTrue(day.includes(18 * 60 - 1));
+    assertFalse(day.includes(18 * 60));
+
+    // The night entry spans midnight.
+    ClientGovernor.Profile night = profiles.get(1);
+    assertTrue(night.includes(23 * 60));
+    assertTrue(night.includes(0));
+    assertFalse(night.includes(6 * 60));
+    assertFalse(night.includes(22 * 60));
+  }
+
+  public void testParseSchedule_invalid() {
+    String[] schedules = {
+      "08:00-18:00", "8-18=1,1", "08:00-25:00=1,1", "08:60-09:00=1,1",
+      "08:00-18:00=-1,1" };
+    for (String schedule : schedules) {
+      try {
+        ClientGovernor.parseSchedule(schedule);
+        fail("Expected an IllegalArgumentException: " + schedule);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.mock.MockClientFactory;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ClientPoolTest extends TestCase {
+  /** A clock that only moves when it is told to. */
+  private static class FakeClock implements ClientPool.Clock {
+    long nanos = 0;
+
+    @Override
+    public long nanoTime() {
+      return nanos;
+    }
+
+    void advanceSeconds(int seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+
+  private final MockClientFactory clientFactory = new MockClientFactory();
+
+  public void testReuse() throws RepositoryException {
+    ClientPool pool = new ClientPool(clientFactory, 2, 60, clock);
+    Client first = pool.acquire();
+    pool.release(first, true);
+    assertEquals(1, pool.getIdleCount());
+
+    assertSame(first, pool.acquire());
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  public void testNotReusable() throws RepositoryException {
+    ClientPool pool = new ClientPool(clientFactory, 2, 60, clock);
+    Client first = pool.acquire();
+    pool.release(first, false);
+    assertEquals(0, pool.getIdleCount());
+
+    Client second = pool.acquire();
+    assertNotSame(first, second);
+  }
+
+  public void testIdleEviction() throws RepositoryException {
+    ClientPool pool = new ClientPool(clientFactory, 2, 60, clock);
+    Client first = pool.acquire();
+    Client second = pool.acquire();
+    pool.release(first, true);
+    clock.advanceSeconds(30);
+    pool.release(second, true);
+    assertEquals(2, pool.getIdleCount());
+
+    // Only the client released first has been idle long enough.
+    clock.advanceSeconds(30);
+    assertEquals(1, pool.getIdleCount());
+    assertSame(second, pool.acquire());
+  }
+
+  public void testMaxSize() throws Exception {
+    final ClientPool pool = new ClientPool(clientFactory, 1, 60, clock);
+    Client first = pool.acquire();
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final AtomicReference<Client> second = new AtomicReference<Client>();
+    Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            second.set(pool.acquire());
+            acquired.countDown();
+          } catch (RepositoryException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    thread.start();
+
+    // The second caller waits until the first client is released.
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    pool.release(first, true);
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    assertSame(first, second.get());
+    thread.join();
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class ContentPrefetcherTest extends TestCase {
+  private static final Logger LOGGER =
+      Logger.getLogger(ContentPrefetcherTest.class.getName());
+
+  /** Returns the object ID as the content, and tracks closed streams. */
+  private static class RecordingContentHandler implements ContentHandler {
+    final List<Integer> fetched = new ArrayList<Integer>();
+    final List<Integer> closed = new ArrayList<Integer>();
+
+    @Override
+    public void initialize(LivelinkConnector connector, Client client) {
+    }
+
+    @Override
+    public synchronized InputStream getInputStream(int volumeId,
+        final int objectId, int versionNumber, int size)
+        throws RepositoryException {
+      if (objectId < 0) {
+        throw new LivelinkException("Bad object " + objectId, LOGGER);
+      }
+      fetched.add(objectId);
+      return new ByteArrayInputStream(new byte[] { (byte) objectId }) {
+          @Override
+          public void close() throws IOException {
+            synchronized (RecordingContentHandler.this) {
+              closed.add(objectId);
+            }
+            super.close();
+          }
+        };
+    }
+  }
+
+  private RecordingContentHandler handler;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() {
+    handler = new RecordingContentHandler();
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+
+  public void testTake() throws IOException, RepositoryException {
+    ContentPrefetcher prefetcher =
+        new ContentPrefetcher(handler, executor, 2, 100);
+
+    assertTrue(prefetcher.prefetch(0, 2000, 10, 10));
+    assertTrue(prefetcher.prefetch(1, 2000, 11, 10));
+    assertFalse(prefetcher.hasRoom());
+    assertFalse(prefetcher.prefetch(2, 2000, 12, 10));
+
+    InputStream in = prefetcher.take(0);
+    assertEquals(10, in.read());
+    assertTrue(prefetcher.hasRoom());
+    assertNull(prefetcher.take(2));
+  }
+
+  public void testByteBudget() throws RepositoryException {
+    ContentPrefetcher prefetcher =
+        new ContentPrefetcher(handler, executor, 10, 100);
+
+    assertFalse(prefetcher.isTooLarge(100));
+    assertTrue(prefetcher.isTooLarge(101));
+    assertTrue(prefetcher.prefetch(0, 2000, 10, 60));
+    assertFalse(prefetcher.prefetch(1, 2000, 11, 60));
+    assertTrue(prefetcher.prefetch(1, 2000, 11, 40));
+
+    // Handing over the content releases its share of the budget.
+    assertNotNull(prefetcher.take(0));
+    assertTrue(prefetcher.prefetch(2, 2000, 12, 60));
+  }
+
+  /** Tests that content skipped over or left at the end is closed. */
+  public void testDiscard() throws InterruptedException, RepositoryException {
+    ContentPrefetcher prefetcher =
+        new ContentPrefetcher(handler, executor, 3, 100);
+    prefetcher.prefetch(0, 2000, 10, 10);
+    prefetcher.prefetch(1, 2000, 11, 10);
+    prefetcher.prefetch(2, 2000, 12, 10);
+
+    assertNotNull(prefetcher.take(1));
+    prefetcher.close();
+
+    // A running fetch closes its own stream when it returns.
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    // Pending fetches may have been cancelled rather than closed.
+    synchronized (handler) {
+      List<Integer> expected = new ArrayList<Integer>(handler.fetched);
+      expected.remove(Integer.valueOf(11));
+      assertEquals(expected, handler.closed);
+      assertTrue(handler.fetched.toString(), handler.fetched.contains(11));
+    }
+  }
+
+  /** Tests that discarding a running fetch does not wait for it. */
+  public void testDiscard_running()
+      throws InterruptedException, RepositoryException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingContentHandler slowHandler = new RecordingContentHandler() {
+        @Override
+        public InputStream getInputStream(int volumeId, int objectId,
+            int versionNumber, int size) throws RepositoryException {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            // Keep going, like a fetch that ignores interrupts.
+          }
+          return super.getInputStream(volumeId, objectId, versionNumber,
+              size);
+        }
+      };
+    ContentPrefetcher prefetcher =
+        new ContentPrefetcher(slowHandler, executor, 3, 100);
+    prefetcher.prefetch(0, 2000, 10, 10);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    prefetcher.close();
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    synchronized (slowHandler) {
+      assertEquals(slowHandler.fetched, slowHandler.closed);
+    }
+  }
+
+  /** Tests that a failed fetch is thrown when the row is reached. */
+  public void testFailure() throws RepositoryException {
+    ContentPrefetcher prefetcher =
+        new ContentPrefetcher(handler, executor, 3, 100);
+    prefetcher.prefetch(0, 2000, -1, 10);
+
+    try {
+      prefetcher.take(0);
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DocumentStateIndexTest extends TestCase {
+  private File file;
+
+  private DocumentStateIndex index;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("documentState", ".idx");
+    file.deleteOnExit();
+    index = new DocumentStateIndex(file);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    index.close();
+  }
+
+  public void testEmpty() throws IOException {
+    assertFalse(index.isUnchanged(42, 0, 0L, 0L));
+    assertEquals(0L, file.length());
+  }
+
+  public void testPut() throws IOException {
+    index.put(42, 3, 1000L, 12345L);
+    assertTrue(index.isUnchanged(42, 3, 1000L, 12345L));
+    assertFalse(index.isUnchanged(42, 4, 1000L, 12345L));
+    assertFalse(index.isUnchanged(42, 3, 1001L, 12345L));
+    assertFalse(index.isUnchanged(42, 3, 1000L, 12346L));
+    assertFalse(index.isUnchanged(43, 3, 1000L, 12345L));
+  }
+
+  /** A zeroed record must not match a document with all zero values. */
+  public void testPut_zeroes() throws IOException {
+    index.put(42, 0, 0L, 0L);
+    assertTrue(index.isUnchanged(42, 0, 0L, 0L));
+    assertFalse(index.isUnchanged(41, 0, 0L, 0L));
+  }
+
+  public void testPut_invalidDataId() throws IOException {
+    index.put(0, 1, 1L, 1L);
+    index.put(-1, 1, 1L, 1L);
+    assertFalse(index.isUnchanged(0, 1, 1L, 1L));
+    assertFalse(index.isUnchanged(-1, 1, 1L, 1L));
+  }
+
+  public void testRemove() throws IOException {
+    index.put(42, 3, 1000L, 12345L);
+    index.remove(42);
+    assertFalse(index.isUnchanged(42, 3, 1000L, 12345L));
+    index.remove(123456789);
+  }
+
+  public void testLargeDataId() throws IOException {
+    index.put(50000000, 1, 2L, 3L);
+    assertTrue(index.isUnchanged(50000000, 1, 2L, 3L));
+    assertFalse(index.isUnchanged(42, 1, 2L, 3L));
+  }
+
+  public void testReopen() throws IOException {
+    index.put(42, 3, 1000L, 12345L);
+    index.put(2000000, 4, 2000L, 67890L);
+    index.close();
+
+    index = new DocumentStateIndex(file);
+    assertTrue(index.isUnchanged(42, 3, 1000L, 12345L));
+    assertTrue(index.isUnchanged(2000000, 4, 2000L, 67890L));
+  }
+
+  public void testClear() throws IOException {
+    index.put(42, 3, 1000L, 12345L);
+    index.clear();
+    assertFalse(index.isUnchanged(42, 3, 1000L, 12345L));
+
+    index.put(42, 3, 1000L, 12345L);
+    assertTrue(index.isUnchanged(42, 3, 1000L, 12345L));
+  }
+
+  public void testClear_reopen() throws IOException {
+    index.put(42, 3, 1000L, 12345L);
+    index.put(43, 3, 1000L, 12345L);
+    index.clear();
+    index.put(43, 3, 1000L, 12345L);
+    index.close();
+
+    index = new DocumentStateIndex(file);
+    assertFalse(index.isUnchanged(42, 3, 1000L, 12345L));
+    assertTrue(index.isUnchanged(43, 3, 1000L, 12345L));
+  }
+}
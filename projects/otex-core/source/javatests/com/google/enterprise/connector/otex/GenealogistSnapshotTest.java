@@ -0,0 +1,139 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+public class GenealogistSnapshotTest extends TestCase {
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("genealogist", ".cache");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  private Genealogist newGenealogist(String startNodes) {
+    return new Genealogist(null, startNodes, "2", 10, 10);
+  }
+
+  private void add(IntCache cache, int... keys) {
+    for (int key : keys) {
+      cache.add(key);
+    }
+  }
+
+  public void testNoFile() {
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    assertNull(snapshot.restore(newGenealogist("1")));
+    assertFalse(file.exists());
+  }
+
+  public void testSaveAndRestore() {
+    Genealogist genealogist = newGenealogist("1");
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    snapshot.restore(genealogist);
+    add(genealogist.includedCache, 10, 100, 101);
+    add(genealogist.excludedCache, 20, 200);
+    genealogist.includedCache.contains(10);
+    snapshot.checkpoint(new Date(2000000));
+    snapshot.checkpoint(new Date(1000000));
+    snapshot.checkpoint(null);
+    genealogist.setMoveEventId(42);
+    snapshot.close();
+    assertTrue(file.exists());
+
+    Genealogist restored = newGenealogist("1");
+    assertEquals(new Date(1000000),
+        new GenealogistSnapshot(file).restore(restored));
+    assertEquals(42, restored.getMoveEventId());
+    // The access order is preserved.
+    assertEquals("[100, 101, 10]", restored.includedCache.toString());
+    assertEquals("[20, 200]", restored.excludedCache.toString());
+  }
+
+  /** A snapshot with no new checkpoints keeps the previous date. */
+  public void testSaveWithoutCheckpoint() {
+    Genealogist genealogist = newGenealogist("1");
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    snapshot.restore(genealogist);
+    snapshot.checkpoint(new Date(1000000));
+    snapshot.save();
+
+    snapshot = new GenealogistSnapshot(file);
+    assertEquals(new Date(1000000), snapshot.restore(newGenealogist("1")));
+    snapshot.close();
+    assertEquals(new Date(1000000),
+        new GenealogistSnapshot(file).restore(newGenealogist("1")));
+  }
+
+  /** The audit trail has not been read, so there is no move event. */
+  public void testSaveWithoutMoveEvent() {
+    Genealogist genealogist = newGenealogist("1");
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    snapshot.restore(genealogist);
+    snapshot.close();
+
+    Genealogist restored = newGenealogist("1");
+    new GenealogistSnapshot(file).restore(restored);
+    assertEquals(-1, restored.getMoveEventId());
+  }
+
+  public void testDifferentConfiguration() {
+    Genealogist genealogist = newGenealogist("1");
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    snapshot.restore(genealogist);
+    add(genealogist.includedCache, 10);
+    snapshot.checkpoint(new Date(1000000));
+    snapshot.close();
+
+    Genealogist other = newGenealogist("1,3");
+    assertNull(new GenealogistSnapshot(file).restore(other));
+    assertEquals("[]", other.includedCache.toString());
+    assertEquals(-1, other.getMoveEventId());
+  }
+
+  /** Registering a new genealogist hands on the caches of the old one. */
+  public void testReplacedGenealogist() {
+    Genealogist genealogist = newGenealogist("1");
+    GenealogistSnapshot snapshot = new GenealogistSnapshot(file);
+    snapshot.restore(genealogist);
+    add(genealogist.includedCache, 10);
+
+    Genealogist replacement = newGenealogist("1");
+    snapshot.restore(replacement);
+    assertEquals("[10]", replacement.includedCache.toString());
+  }
+
+  public void testInvalidFile() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 1, 2, 3 });
+    out.close();
+
+    Genealogist genealogist = newGenealogist("1");
+    assertNull(new GenealogistSnapshot(file).restore(genealogist));
+    assertEquals("[]", genealogist.includedCache.toString());
+  }
+}
@@ -22,7 +22,6 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import junit.framework.TestCase;
 
 import java.sql.SQLException;
-import java.util.Arrays;
 
 /**
  * Constructs a mock database hierarchy and runs the tests using the
@@ -44,10 +43,10 @@ public class GenealogistTest extends TestCase {
     { 10100, 1010 } };
 
   /** The mock client used by the Genealogist classes under test. */
-  private Client client;
+  protected Client client;
 
   /** The database connection. */
-  private JdbcFixture jdbcFixture = new JdbcFixture();
+  protected JdbcFixture jdbcFixture = new JdbcFixture();
 
   /** Inserts database test data. */
   protected void setUp() throws SQLException {
@@ -57,7 +56,7 @@ public class GenealogistTest extends TestCase {
     client = new MockClient();
   }
 
-  private void insertRows(int[][] rows) throws SQLException {
+  protected void insertRows(int[][] rows) throws SQLException {
     String[] sqls = new String[rows.length];
     int i = 0;
     for (int[] row : rows) {
@@ -76,6 +75,14 @@ public class GenealogistTest extends TestCase {
     return Genealogist.class;
   }
 
+  /**
+   * Gets the number of queries expected in {@code testCaching} to
+   * find the grandchild of a cached node.
+   */
+  protected int getCachingQueryCount() {
+    return 2;
+  }
+
   /** Core helper method that runs a test for a given implementation. */
   private void testGenealogist(String includedNodes, String excludedNodes,
       Integer[] matchingNodes, String matchingDescendants)
@@ -87,7 +94,7 @@ public class GenealogistTest extends TestCase {
   }
 
   /** Helper method to test matching nodes. */
-  private void testMatching(Genealogist genealogist,
+  protected void testMatching(Genealogist genealogist,
       Integer[] matchingNodes, String matchingDescendants)
       throws RepositoryException {
     Integer[][] matchingValues = new Integer[matchingNodes.length][];
@@ -218,20 +225,23 @@ public class GenealogistTest extends TestCase {
     Genealogist genealogist = Genealogist.getGenealogist(
         getClassUnderTest().getName(), client, "1", "", 10, 10);
 
-    assertEquals(0, genealogist.nodeCount);
-    assertEquals(0, genealogist.queryCount);
+    assertEquals(0, genealogist.nodeCount.get());
+    assertEquals(0, genealogist.queryCount.get());
 
     // Seed the cache with a small tree of known parents.
-    genealogist.includedCache.addAll(
-        Arrays.asList(new Integer[] { 1, 10, 100, 101 }));
+    IntList seeds = new IntList();
+    for (int seed : new int[] { 1, 10, 100, 101 }) {
+      seeds.add(seed);
+    }
+    genealogist.includedCache.addAll(seeds);
     assertEquals("4 entries, 0 hits, 0 misses",
                  genealogist.includedCache.statistics().toString());
 
     // Test the grandchild of a cached node. One new parent entry, 1010,
     // should be added.
     testMatching(genealogist, new Integer[] { 10100 }, "10100");
-    assertEquals(1, genealogist.nodeCount);
-    assertEquals(2, genealogist.queryCount);
+    assertEquals(1, genealogist.nodeCount.get());
+    assertEquals(getCachingQueryCount(), genealogist.queryCount.get());
     assertEquals("5 entries, 1 hits, 2 misses",
                  genealogist.includedCache.statistics().toString());
     assertTrue(genealogist.includedCache.contains(new Integer(1010)));
@@ -241,9 +251,37 @@ public class GenealogistTest extends TestCase {
     // while the number of entries and misses should remain the same.
     testMatching(genealogist, new Integer[] { 1, 10, 100, 101, 1010 },
                  "1,10,100,101,1010");
-    assertEquals(6, genealogist.nodeCount);
-    assertEquals(2, genealogist.queryCount);
+    assertEquals(6, genealogist.nodeCount.get());
+    assertEquals(getCachingQueryCount(), genealogist.queryCount.get());
     assertEquals("5 entries, 7 hits, 2 misses",
                  genealogist.includedCache.statistics().toString());
   }
+
+  /** Tests the removal of a moved container and its subtree. */
+  public void testInvalidateMovedNodes()
+      throws SQLException, RepositoryException {
+    Genealogist genealogist = Genealogist.getGenealogist(
+        getClassUnderTest().getName(), client, "1,2", "3", 10, 10);
+    testMatching(genealogist, new Integer[] { 10100, 2000, 3000 },
+        "10100,2000");
+    assertTrue(genealogist.includedCache.contains(1010));
+    assertTrue(genealogist.includedCache.contains(200));
+    assertTrue(genealogist.excludedCache.contains(300));
+
+    // Move 101 from 10 to 30, which is below an excluded node.
+    jdbcFixture.executeUpdate(
+        "update DTree set ParentID = 30 where DataID = 101");
+    IntList movedIds = new IntList();
+    movedIds.add(101);
+    assertEquals(2, genealogist.invalidateMovedNodes(movedIds));
+    assertFalse(genealogist.includedCache.contains(101));
+    assertFalse(genealogist.includedCache.contains(1010));
+
+    // The entries outside of the moved subtree are still cached.
+    assertTrue(genealogist.includedCache.contains(10));
+    assertTrue(genealogist.includedCache.contains(200));
+    assertTrue(genealogist.excludedCache.contains(300));
+
+    testMatching(genealogist, new Integer[] { 10100, 1000 }, "1000");
+  }
 }
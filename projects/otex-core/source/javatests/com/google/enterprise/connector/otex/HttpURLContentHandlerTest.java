@@ -148,6 +148,209 @@ public class HttpURLContentHandlerTest extends TestCase {
     assertFalse(handler.getCookie(), cookie.equals(handler.getCookie()));
   }
 
+  public void testMaxConnections() throws RepositoryException {
+    out.setMaxConnections(2);
+    out.initialize(connector, client);
+
+    assertEquals(2, out.getAvailableConnections());
+  }
+
+  public void testMaxConnections_invalid() {
+    try {
+      out.setMaxConnections(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests that the connection is returned when the stream is closed. */
+  public void testConnectionReleased() throws RepositoryException, IOException {
+    out.setMaxConnections(1);
+    HttpServer server = createServer(new CookieHandler());
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, 0);
+      assertEquals(0, out.getAvailableConnections());
+      in.close();
+      in.close();
+      assertEquals(1, out.getAvailableConnections());
+
+      out.getInputStream(0, 0, 0, 0).close();
+      assertEquals(1, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that the connection is returned when the stream is dropped. */
+  public void testConnectionReleasedOnFinalize()
+      throws RepositoryException, IOException, InterruptedException {
+    out.setMaxConnections(1);
+    HttpServer server = createServer(new CookieHandler());
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, 0);
+      assertEquals(0, out.getAvailableConnections());
+
+      in = null;
+      for (int i = 0; i < 50 && out.getAvailableConnections() == 0; i++) {
+        System.gc();
+        System.runFinalization();
+        Thread.sleep(10);
+      }
+      assertEquals(1, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Tests that initializing the handler again keeps the connections,
+   * so that a stream opened earlier is returned to the same limit.
+   */
+  public void testConnectionReleasedAfterInitialize()
+      throws RepositoryException, IOException {
+    out.setMaxConnections(1);
+    HttpServer server = createServer(new CookieHandler());
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, 0);
+      out.initialize(connector, client);
+      assertEquals(0, out.getAvailableConnections());
+      in.close();
+      assertEquals(1, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that the connection is returned when the download fails. */
+  public void testConnectionReleasedOnFailure()
+      throws RepositoryException, IOException {
+    out.setMaxConnections(1);
+    out.setReadTimeout(1);
+    HttpServer server = createSleepyServer(2, SleepyLocation.HEADERS);
+    server.start();
+
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+      assertEquals(1, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a rejected cookie is refreshed and the download retried. */
+  public void testExpiredCookie() throws RepositoryException, IOException {
+    ExpiringCookieHandler handler = new ExpiringCookieHandler();
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      handler.expire();
+      InputStream in = out.getInputStream(0, 0, 0, 0);
+      try {
+        assertEquals('h', in.read());
+      } finally {
+        in.close();
+      }
+      assertEquals(2, handler.getRequestCount());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a cookie that is rejected again is not retried forever. */
+  public void testRejectedCookie() throws RepositoryException, IOException {
+    ExpiringCookieHandler handler = new ExpiringCookieHandler();
+    HttpServer server = createServer(handler);
+    server.start();
+
+    int available = out.getAvailableConnections();
+    try {
+      handler.rejectAll();
+      out.getInputStream(0, 0, 0, 0).close();
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+      assertEquals(2, handler.getRequestCount());
+      assertEquals(available, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a redirect that is not to the login page is followed. */
+  public void testRedirect() throws RepositoryException, IOException {
+    RedirectingHandler handler = new RedirectingHandler(1);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    try {
+      InputStream in = out.getInputStream(0, 0, 0, 0);
+      try {
+        assertEquals('h', in.read());
+      } finally {
+        in.close();
+      }
+      assertEquals(2, handler.getRequestCount());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a redirect loop is not followed forever. */
+  public void testTooManyRedirects() throws RepositoryException, IOException {
+    RedirectingHandler handler = new RedirectingHandler(Integer.MAX_VALUE);
+    HttpServer server = createServer(handler);
+    server.start();
+
+    int available = out.getAvailableConnections();
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+      assertEquals(HttpURLContentHandler.MAX_REDIRECTS + 1,
+          handler.getRequestCount());
+      assertEquals(available, out.getAvailableConnections());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testIsLoginPage() {
+    assertTrue(HttpURLContentHandler.isLoginPage(
+        "/livelink/llisapi.dll?func=ll.login&NextURL=%2Flivelink"));
+    assertTrue(HttpURLContentHandler.isLoginPage(
+        "https://otds.example.com/otdsws/login?RFA=livelink"));
+    assertFalse(HttpURLContentHandler.isLoginPage(
+        "https://livelink.example.com/livelink/llisapi.dll?func=ll"));
+  }
+
+  /** Tests that waiting for a connection times out. */
+  public void testConnectionTimeout() throws RepositoryException, IOException {
+    out.setMaxConnections(1);
+    out.setReadTimeout(1);
+    HttpServer server = createServer(new CookieHandler());
+    server.start();
+
+    InputStream in = out.getInputStream(0, 0, 0, 0);
+    try {
+      out.getInputStream(0, 0, 0, 0).close();
+      fail("Expected a LivelinkException");
+    } catch (LivelinkException expected) {
+      assertEquals(0, out.getAvailableConnections());
+    } finally {
+      in.close();
+      server.stop(0);
+    }
+    assertEquals(1, out.getAvailableConnections());
+  }
+
   public enum SleepyLocation { HEADERS, BODY };
 
   /**
@@ -213,6 +416,84 @@ public class HttpURLContentHandlerTest extends TestCase {
     }
   }
 
+  /**
+   * Redirects to a login page when the cookie is expired or rejected,
+   * as Livelink does.
+   */
+  static class ExpiringCookieHandler implements HttpHandler {
+    private String expiredCookie;
+    private boolean rejectAll;
+    private int requestCount = 0;
+
+    /** Rejects the next cookie value. */
+    public void expire() {
+      expiredCookie = "";
+    }
+
+    public void rejectAll() {
+      rejectAll = true;
+    }
+
+    public synchronized int getRequestCount() {
+      return requestCount;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+      boolean isRejected;
+      synchronized (this) {
+        requestCount++;
+        if ("".equals(expiredCookie)) {
+          expiredCookie = cookie;
+        }
+        isRejected = rejectAll || cookie.equals(expiredCookie);
+      }
+
+      if (isRejected) {
+        exchange.getResponseHeaders().add("Location", "/login");
+        exchange.sendResponseHeaders(302, -1);
+      } else {
+        byte[] response = "hello, world".getBytes();
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+      }
+      exchange.close();
+    }
+  }
+
+  /** Redirects the given number of times before responding. */
+  static class RedirectingHandler implements HttpHandler {
+    private final int redirects;
+    private int requestCount = 0;
+
+    public RedirectingHandler(int redirects) {
+      this.redirects = redirects;
+    }
+
+    public synchronized int getRequestCount() {
+      return requestCount;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      boolean isRedirect;
+      synchronized (this) {
+        isRedirect = requestCount++ < redirects;
+      }
+
+      if (isRedirect) {
+        exchange.getResponseHeaders().add("Location", "/moved");
+        exchange.sendResponseHeaders(302, -1);
+      } else {
+        byte[] response = "hello, world".getBytes();
+        exchange.sendResponseHeaders(200, response.length);
+        exchange.getResponseBody().write(response);
+      }
+      exchange.close();
+    }
+  }
+
   static class CookieHandler implements HttpHandler {
     private String cookie;
 
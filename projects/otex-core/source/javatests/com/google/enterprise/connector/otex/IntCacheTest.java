@@ -0,0 +1,170 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+/** Tests the {@link IntCache} class, an LRU cache of ints. */
+public class IntCacheTest extends TestCase {
+  private IntCache cache;
+
+  protected void setUp() {
+    cache = new IntCache(3, 3);
+    addAll(cache, 1, 2, 3);
+  }
+
+  private boolean addAll(IntCache cache, int... entries) {
+    IntList list = new IntList();
+    for (int entry : entries) {
+      list.add(entry);
+    }
+    return cache.addAll(list);
+  }
+
+  public void testCacheHit() {
+    assertTrue(cache.toString(), cache.contains(2));
+  }
+
+  public void testCacheMiss() {
+    assertFalse(cache.toString(), cache.contains(5));
+  }
+
+  public void testCacheOverflow() {
+    addAll(cache, 4);
+    assertFalse(cache.toString(), cache.contains(1));
+  }
+
+  public void testCacheAccessOrder() {
+    // Touch the oldest entry and add a new entry.
+    assertTrue(cache.toString(), cache.contains(1));
+    addAll(cache, 4);
+    assertEquals("[3, 1, 4]", cache.toString());
+
+    assertTrue(cache.toString(), cache.contains(1));
+    assertFalse(cache.toString(), cache.contains(2));
+    assertTrue(cache.toString(), cache.contains(3));
+    assertTrue(cache.toString(), cache.contains(4));
+  }
+
+  public void testModified() {
+    // Cache contains 1, 2, 3.
+    assertTrue(cache.toString(), addAll(cache, 4));
+    assertTrue(cache.toString(), addAll(cache, 5, 3));
+    assertFalse(cache.toString(), addAll(cache, 3, 4, 5));
+  }
+
+  public void testStatistics() {
+    cache.contains(1);
+    cache.contains(5);
+    cache.contains(6);
+    assertEquals("3 entries, 1 hits, 2 misses",
+        cache.statistics().toString());
+  }
+
+  public void testRemove() {
+    assertTrue(cache.remove(1));
+    assertFalse(cache.remove(1));
+    assertEquals("[2, 3]", cache.toString());
+    assertEquals(2, cache.statistics().entries);
+
+    // The freed slot is reused, without evicting another entry.
+    addAll(cache, 4);
+    assertEquals("[2, 3, 4]", cache.toString());
+    assertTrue(cache.remove(3));
+    assertTrue(cache.remove(2));
+    addAll(cache, 5, 6);
+    assertEquals("[4, 5, 6]", cache.toString());
+    assertTrue(cache.remove(6));
+    assertTrue(cache.remove(4));
+    assertTrue(cache.remove(5));
+    assertEquals("[]", cache.toString());
+    addAll(cache, 7);
+    assertEquals("[7]", cache.toString());
+  }
+
+  /** Tests growth from the minimum capacity and eviction at the maximum. */
+  public void testGrowth() {
+    cache = new IntCache(2, 64);
+    for (int i = 0; i < 100; i++) {
+      cache.add(i);
+    }
+    assertEquals(64, cache.statistics().entries);
+    assertFalse(cache.contains(35));
+    for (int i = 36; i < 100; i++) {
+      assertTrue(String.valueOf(i), cache.contains(i));
+    }
+  }
+
+  /** Tests a large cache, which is split into segments. */
+  public void testSegments() {
+    cache = new IntCache(1024, 16 * 1024);
+    for (int i = 0; i < 16 * 1024; i++) {
+      cache.add(i);
+    }
+    // Each segment holds a share of the capacity, so some of the
+    // keys may have been removed early.
+    int entries = cache.statistics().entries;
+    assertTrue(String.valueOf(entries), entries > 15 * 1024);
+    assertTrue(String.valueOf(entries), entries <= 16 * 1024);
+    for (int i = 16 * 1024; i < 64 * 1024; i++) {
+      cache.add(i);
+    }
+    assertEquals(16 * 1024, cache.statistics().entries);
+  }
+
+  public void testConcurrentAccess() throws InterruptedException {
+    final IntCache cache = new IntCache(16, 8 * 1024);
+    final int threadCount = 8;
+    final int keyCount = 10000;
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            for (int i = 0; i < keyCount; i++) {
+              int key = (i * threadCount + offset) % 4096;
+              if (!cache.contains(key)) {
+                cache.add(key);
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(4096, cache.statistics().entries);
+    assertEquals(threadCount * keyCount,
+        cache.statistics().hits + cache.statistics().misses);
+    for (int key = 0; key < 4096; key++) {
+      assertTrue(String.valueOf(key), cache.contains(key));
+    }
+  }
+
+  public void testInvalidCapacity() {
+    int[][] capacities = {
+      { -1, -1 }, { 0, 1 }, { 5, 4 }, { 1, CacheMap.MAXIMUM_CAPACITY + 1 } };
+    for (int[] capacity : capacities) {
+      try {
+        new IntCache(capacity[0], capacity[1]);
+        fail("Expected an IllegalArgumentException");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
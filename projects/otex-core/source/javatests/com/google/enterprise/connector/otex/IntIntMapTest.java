@@ -0,0 +1,78 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntIntMapTest extends TestCase {
+  public void testEmpty() {
+    IntIntMap map = new IntIntMap();
+    assertEquals(0, map.size());
+    assertFalse(map.containsKey(0));
+    assertEquals(-7, map.get(0, -7));
+    assertFalse(map.remove(0));
+  }
+
+  public void testPutGet() {
+    IntIntMap map = new IntIntMap();
+    map.put(10, -1);
+    map.put(-40, 4);
+    map.put(10, 1);
+    assertEquals(2, map.size());
+    assertEquals(1, map.get(10, 0));
+    assertEquals(4, map.get(-40, 0));
+    assertFalse(map.containsKey(40));
+  }
+
+  public void testInvalidKey() {
+    IntIntMap map = new IntIntMap();
+    try {
+      map.put(Integer.MIN_VALUE, 0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertFalse(map.containsKey(Integer.MIN_VALUE));
+  }
+
+  /** Compares random operations, with growth, against a HashMap. */
+  public void testRandom() {
+    IntIntMap map = new IntIntMap();
+    Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      int key = random.nextInt(5000) - 2500;
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key) != null, map.remove(key));
+      } else {
+        expected.put(key, i);
+        map.put(key, i);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (int key = -2500; key < 2500; key++) {
+      Integer value = expected.get(key);
+      assertEquals(value != null, map.containsKey(key));
+      assertEquals((value == null) ? -1 : value.intValue(), map.get(key, -1));
+    }
+
+    map.clear();
+    assertEquals(0, map.size());
+    assertFalse(map.containsKey(0));
+  }
+}
@@ -24,8 +24,8 @@ import java.sql.Statement;
 /** Manages an in-memory H2 database modeling the Livelink database. */
 class JdbcFixture {
   private static final String CREATE_TABLE_DAUDITNEW = "create table DAuditNew "
-      + "(EventID bigint primary key, AuditID int, DataID int, "
-      + "SubType int, AuditDate timestamp)";
+      + "(EventID bigint primary key, AuditID int, AuditStr varchar, "
+      + "DataID int, SubType int, AuditDate timestamp)";
 
   private static final String CREATE_TABLE_DTREE = "create table DTree "
       + "(DataID int primary key, ParentID int, PermID int, "
@@ -46,7 +46,7 @@ class JdbcFixture {
   private static final String CREATE_TABLE_KUAF =
       "create table KUAF "
       + "(ID int, Name varchar, Type int, GroupID int, UserData varchar," +
-      " UserPrivileges int)";
+      " UserPrivileges int, Deleted int default 0)";
 
   private static final String CREATE_TABLE_KUAFCHILDREN =
       "create table KUAFChildren "
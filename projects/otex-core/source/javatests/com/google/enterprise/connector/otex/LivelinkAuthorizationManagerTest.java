@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.otex;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
@@ -255,6 +256,61 @@ public class LivelinkAuthorizationManagerTest extends TestCase {
         responses);
   }
 
+  /**
+   * Tests a large authZ request with the chunks queried concurrently.
+   * The responses are merged in request order.
+   */
+  public void testAuthorizeDocids_concurrent() throws RepositoryException {
+    conn.setAuthorizationQueryThreads(4);
+    afterInit();
+
+    AuthenticationIdentity identity = new SimpleAuthenticationIdentity("fred");
+    ImmutableSet.Builder<String> builder = new ImmutableSet.Builder<String>();
+    for (int i = 3299; i >= 2100; i--) {
+      builder.add(String.valueOf(i));
+    }
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(builder.build(), identity);
+    assertPermittedDocs(ImmutableSet.of("2100", "2101", "3299"),
+        responses);
+    assertEquals("3299", responses.iterator().next().getDocid());
+  }
+
+  /** Tests a request that goes through the coalescer. */
+  public void testAuthorizeDocids_coalesced() throws RepositoryException {
+    conn.setAuthorizationCoalesceMillis(10);
+    afterInit();
+
+    AuthenticationIdentity identity = new SimpleAuthenticationIdentity("fred");
+    Collection<AuthorizationResponse> responses = lam.authorizeDocids(
+        ImmutableList.of("2100", "2101", "2102", "2100"), identity);
+    assertEquals(2, responses.size());
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+  }
+
+  /** Tests that authorization is not throttled by the governor. */
+  public void testAuthorizeDocids_governed() throws RepositoryException {
+    conn.setGovernorCallsPerSecond(1);
+    afterInit();
+
+    // Use up the traversal budget.
+    ClientGovernor governor =
+        ((GovernedClientFactory) conn.getClientFactory()).getGovernor();
+    Client traversalClient = conn.getClientFactory().createClient();
+    traversalClient.GetServerInfo();
+    traversalClient.GetServerInfo();
+    long throttledCount = governor.getThrottledCount();
+    assertTrue(throttledCount > 0);
+
+    AuthenticationIdentity identity = new SimpleAuthenticationIdentity("fred");
+    for (int i = 0; i < 5; i++) {
+      Collection<AuthorizationResponse> responses = lam.authorizeDocids(
+          ImmutableList.of("2100", "2101", "2102"), identity);
+      assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+    }
+    assertEquals(throttledCount, governor.getThrottledCount());
+  }
+
   public void testAuthorizeDocids_injection_someInvalid()
       throws RepositoryException {
     afterInit();
@@ -297,6 +353,161 @@ public class LivelinkAuthorizationManagerTest extends TestCase {
     assertEquals(expected, builder.build());
   }
 
+  /** Tests that repeated requests use the cached decisions. */
+  public void testAuthorizationCache()
+      throws SQLException, RepositoryException {
+    conn.setAuthorizationCacheSize(100);
+    afterInit();
+
+    AuthenticationIdentity identity = new SimpleAuthenticationIdentity("fred");
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(ImmutableSet.of("2100", "2101", "4321"),
+            identity);
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+    assertEquals("3 entries, 0 hits, 3 misses",
+        lam.getCacheStatistics().toString());
+
+    // The cached decisions are used even though the database changed.
+    jdbcFixture.executeUpdate("delete from DTree where DataID = 2100");
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101", "4321"),
+        identity);
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+    assertEquals("3 entries, 3 hits, 3 misses",
+        lam.getCacheStatistics().toString());
+
+    // The decisions are per user.
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.of("2101"), responses);
+  }
+
+  /** Tests that documents with a known PermID share the decision. */
+  public void testAuthorizationByPermId()
+      throws SQLException, RepositoryException {
+    jdbcFixture.executeUpdate(
+        "update DTree set PermID = 7 where DataID in (2100, 2101)");
+    conn.setAuthorizationCacheSize(100);
+    conn.setAuthorizationPermIdMapSize(100);
+    afterInit();
+
+    // The first request finds the PermIDs.
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(ImmutableSet.of("2100", "2101", "4321"),
+            new SimpleAuthenticationIdentity("fred"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+
+    // Only 2100 is queried for another user, and the decision is
+    // used for 2101, too.
+    jdbcFixture.executeUpdate("delete from DTree where DataID = 2101");
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101", "4321"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+  }
+
+  /**
+   * Tests that a deleted document does not deny the other documents
+   * with the same PermID. MockClient does not check permissions, so
+   * only the deleted document is denied.
+   */
+  public void testAuthorizationByPermId_deletedRepresentative()
+      throws SQLException, RepositoryException {
+    jdbcFixture.executeUpdate(
+        "update DTree set PermID = 7 where DataID in (2100, 2101)");
+    conn.setAuthorizationCacheSize(100);
+    conn.setAuthorizationPermIdMapSize(100);
+    afterInit();
+
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+            new SimpleAuthenticationIdentity("fred"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+
+    // 2100 is queried for another user, and is denied, so 2101 is
+    // queried, too.
+    jdbcFixture.executeUpdate("delete from DTree where DataID = 2100");
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.of("2101"), responses);
+
+    // The PermID was not denied.
+    responses = lam.authorizeDocids(ImmutableSet.of("2101", "3299"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.of("2101", "3299"), responses);
+  }
+
+  /**
+   * Tests that documents with a known PermID are authorized with the
+   * ACL snapshot. MockClient does not check permissions, so the
+   * denied documents show that no query was used.
+   */
+  public void testAuthorizationByAclSnapshot()
+      throws SQLException, RepositoryException {
+    jdbcFixture.executeUpdate(
+        "update DTree set PermID = 7 where DataID in (2100, 2101)",
+        "insert into KUAF(ID, Name, Type, UserPrivileges) "
+        + "values(1000, 'fred', 0, 0)",
+        "insert into KUAF(ID, Name, Type, UserPrivileges) "
+        + "values(1001, 'barney', 0, 0)",
+        "insert into DTreeACL(DataID, RightID, Permissions) "
+        + "values(7, 1000, " + Client.PERM_SEECONTENTS + ")");
+    conn.setAuthorizationCacheSize(100);
+    conn.setAuthorizationPermIdMapSize(100);
+    conn.setAuthorizationAclSnapshotSeconds(600);
+    afterInit();
+
+    // The first request finds the PermIDs.
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(ImmutableSet.of("2100", "2101", "4321"),
+            new SimpleAuthenticationIdentity("fred"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.<String>of(), responses);
+  }
+
+  /**
+   * Tests that an ACL edit on a node with a shared PermID is seen
+   * after the PermID map is refreshed.
+   */
+  public void testAuthorizationByAclSnapshot_sharedPermId()
+      throws SQLException, RepositoryException, InterruptedException {
+    jdbcFixture.executeUpdate(
+        "update DTree set PermID = 7, "
+        + "ModifyDate = timestamp '2016-01-01 00:00:00' "
+        + "where DataID in (2100, 2101)",
+        "insert into KUAF(ID, Name, Type, UserPrivileges) "
+        + "values(1000, 'fred', 0, 0)",
+        "insert into KUAF(ID, Name, Type, UserPrivileges) "
+        + "values(1001, 'barney', 0, 0)",
+        "insert into DTreeACL(DataID, RightID, Permissions) "
+        + "values(7, 1000, " + Client.PERM_SEECONTENTS + ")");
+    conn.setAuthorizationCacheSize(100);
+    conn.setAuthorizationCacheSeconds(1);
+    conn.setAuthorizationPermIdMapSize(100);
+    conn.setAuthorizationAclSnapshotSeconds(600);
+    afterInit();
+
+    Collection<AuthorizationResponse> responses =
+        lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+            new SimpleAuthenticationIdentity("fred"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.<String>of(), responses);
+
+    // Grant barney access to 2101, which modifies that node.
+    jdbcFixture.executeUpdate(
+        "insert into DTreeACL(DataID, RightID, Permissions) "
+        + "values(7, 1001, " + Client.PERM_SEECONTENTS + ")",
+        "update DTree set ModifyDate = timestamp '2016-01-02 00:00:00' "
+        + "where DataID = 2101");
+    Thread.sleep(1100);
+    responses = lam.authorizeDocids(ImmutableSet.of("2100", "2101"),
+        new SimpleAuthenticationIdentity("barney"));
+    assertPermittedDocs(ImmutableSet.of("2100", "2101"), responses);
+  }
+
   /** Tests the default authorization manager. */
   public void testDefaultAuthorizationManager() throws RepositoryException {
     LivelinkAuthorizationManager pluggable =
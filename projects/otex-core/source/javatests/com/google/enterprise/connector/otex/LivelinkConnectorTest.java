@@ -28,6 +28,8 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class LivelinkConnectorTest extends TestCase {
   private LivelinkConnector connector;
@@ -668,4 +670,22 @@ public class LivelinkConnectorTest extends TestCase {
       assertTrue(expected.getMessage().contains("genealogistMaxCacheSize"));
     }
   }
+
+  /** Tests that shutdown stops the registered executors. */
+  public void testShutdown_executors() throws RepositoryException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    assertSame(executor, connector.addExecutor(executor));
+
+    connector.shutdown();
+    assertTrue(executor.isShutdown());
+  }
+
+  /** Tests that delete also stops the registered executors. */
+  public void testDelete_executors() throws RepositoryException {
+    ExecutorService executor =
+        connector.addExecutor(Executors.newSingleThreadExecutor());
+
+    connector.delete();
+    assertTrue(executor.isShutdown());
+  }
 }
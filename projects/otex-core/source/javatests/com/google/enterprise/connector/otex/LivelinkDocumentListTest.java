@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.otex.client.Client;
 import com.google.enterprise.connector.otex.client.ClientFactory;
@@ -35,19 +36,33 @@ import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleTraversalContext;
+import com.google.enterprise.connector.spi.SkippedDocumentException;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
 import com.google.enterprise.connector.spiimpl.PrincipalValue;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class LivelinkDocumentListTest extends TestCase {
   private static final int USER_ID = 1999;
@@ -138,6 +153,8 @@ public class LivelinkDocumentListTest extends TestCase {
         connector.setUnsupportedFetchVersionTypes(value);
       } else if (property.equals("pushAcls")) {
         connector.setPushAcls(Boolean.parseBoolean(value));
+      } else if (property.equals("documentStateIndexFile")) {
+        connector.setDocumentStateIndexFile(value);
       }
     }
 
@@ -266,6 +283,18 @@ public class LivelinkDocumentListTest extends TestCase {
       Client client, ContentHandler contentHandler,
       TraversalContext traversalContext, ActionType action, Object... docInfo)
       throws RepositoryException {
+    return getDocumentList(connector, client, contentHandler,
+        traversalContext, null, action, docInfo);
+  }
+
+  /**
+   * Helper method for the getObjectUnderTest overloads, with an
+   * optional enrichment executor.
+   */
+  private DocumentList getDocumentList(LivelinkConnector connector,
+      Client client, ContentHandler contentHandler,
+      TraversalContext traversalContext, ClientExecutor enrichmentExecutor,
+      ActionType action, Object... docInfo) throws RepositoryException {
     contentHandler.initialize(connector, client);
 
     String[] fieldNames;
@@ -275,7 +304,7 @@ public class LivelinkDocumentListTest extends TestCase {
       case ADD: {
         fieldNames = new String[] {
           "ModifyDate", "DataID", "OwnerID", "SubType", "MimeType",
-          "GoogleDataSize", "UserID", "UserData" };
+          "GoogleDataSize", "UserID", "UserData", "VersionNum" };
         assertEquals(String.valueOf(docInfo.length), 0, docInfo.length % 3);
         Object[][] values = new Object[docInfo.length / 3][];
         for (int i = 0; i < docInfo.length / 3; i++) {
@@ -283,7 +312,7 @@ public class LivelinkDocumentListTest extends TestCase {
           Object dataSize = docInfo[3 * i + 1];
           Object userId = docInfo[3 * i + 2];
           values[i] = new Object[] { new Date(), objectId, 2000, 144,
-            "text/plain", dataSize, userId, null };
+            "text/plain", dataSize, userId, null, 1 };
         }
         recArray = new MockClientValue(fieldNames, values);
         delArray = null;
@@ -308,15 +337,20 @@ public class LivelinkDocumentListTest extends TestCase {
     }
 
     // Map all the columns to properties for visibility in the tests.
+    // VersionNum is only selected for the document state index.
     Field[] fields = new Field[fieldNames.length];
     for (int i = 0; i < fields.length; i++) {
-      fields[i] = new Field(fieldNames[i], fieldNames[i]);
+      if (fieldNames[i].equals("VersionNum")) {
+        fields[i] = new Field(fieldNames[i]);
+      } else {
+        fields[i] = new Field(fieldNames[i], fieldNames[i]);
+      }
     }
     Checkpoint checkpoint = new Checkpoint();
 
     return new LivelinkDocumentList(connector, client,
         contentHandler, recArray, fields, delArray, traversalContext,
-        checkpoint, connector.getUsername());
+        checkpoint, connector.getUsername(), enrichmentExecutor);
   }
 
   public void testContentHandler() throws RepositoryException {
@@ -350,6 +384,112 @@ public class LivelinkDocumentListTest extends TestCase {
     assertNotNull(list.checkpoint());
   }
 
+  public void testNextDocument_documentStateIndex()
+      throws IOException, RepositoryException {
+    File file = File.createTempFile("documentState", ".idx");
+    file.deleteOnExit();
+    LivelinkConnector connector =
+        getConnector("documentStateIndexFile", file.getPath());
+
+    // The state is only recorded when the checkpoint is taken.
+    DocumentList list = getObjectUnderTest(connector,
+        MockConstants.HARMLESS_OBJECT_ID, 0L, USER_ID);
+    assertNotNull(list.nextDocument());
+    list = getObjectUnderTest(connector,
+        MockConstants.HARMLESS_OBJECT_ID, 0L, USER_ID);
+    assertNotNull(list.nextDocument());
+    list.checkpoint();
+
+    list = getObjectUnderTest(connector,
+        MockConstants.HARMLESS_OBJECT_ID, 0L, USER_ID);
+    try {
+      list.nextDocument();
+      fail("Expected a SkippedDocumentException");
+    } catch (SkippedDocumentException expected) {
+    }
+
+    // A different owner changes the metadata digest.
+    list = getObjectUnderTest(connector,
+        MockConstants.HARMLESS_OBJECT_ID, 0L, 1001);
+    assertNotNull(list.nextDocument());
+
+    // Starting over feeds every document again.
+    connector.getDocumentStateIndex().clear();
+    list = getObjectUnderTest(connector,
+        MockConstants.HARMLESS_OBJECT_ID, 0L, USER_ID);
+    assertNotNull(list.nextDocument());
+  }
+
+  /** A content handler whose streams fail on the first read. */
+  private static class FailingContentHandler implements ContentHandler {
+    @Override
+    public void initialize(LivelinkConnector connector, Client client) {
+    }
+
+    @Override
+    public InputStream getInputStream(int volumeId, int objectId,
+        int versionNumber, int size) {
+      return new InputStream() {
+        @Override
+        public int read() throws IOException {
+          throw new IOException("expected");
+        }
+      };
+    }
+  }
+
+  /** Reads the content of a document to the end. */
+  private void readContent(Document doc)
+      throws IOException, RepositoryException {
+    Property content = doc.findProperty(SpiConstants.PROPNAME_CONTENT);
+    InputStream in = ((BinaryValue) content.nextValue()).getInputStream();
+    try {
+      while (in.read() != -1) {
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Tests that the state of a document is only recorded when its
+   * content was read successfully.
+   */
+  public void testNextDocument_documentStateIndex_content()
+      throws IOException, RepositoryException {
+    File file = File.createTempFile("documentState", ".idx");
+    file.deleteOnExit();
+    LivelinkConnector connector =
+        getConnector("documentStateIndexFile", file.getPath());
+    Client client = connector.getClientFactory().createClient();
+
+    // The content fails, so the document is not skipped next time.
+    DocumentList list = getDocumentList(connector, client,
+        new FailingContentHandler(), null, ActionType.ADD,
+        MockConstants.HARMLESS_OBJECT_ID, 10L, USER_ID);
+    Document doc = list.nextDocument();
+    try {
+      readContent(doc);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    list.checkpoint();
+
+    // The content is read to the end, so the state is recorded.
+    list = getObjectUnderTest(connector, client,
+        MockConstants.HARMLESS_OBJECT_ID, 10L, USER_ID);
+    readContent(list.nextDocument());
+    list.checkpoint();
+
+    list = getObjectUnderTest(connector, client,
+        MockConstants.HARMLESS_OBJECT_ID, 10L, USER_ID);
+    try {
+      list.nextDocument();
+      fail("Expected a SkippedDocumentException");
+    } catch (SkippedDocumentException expected) {
+    }
+  }
+
   enum Content { NULL, NON_NULL };
 
   /**
@@ -734,6 +874,101 @@ public class LivelinkDocumentListTest extends TestCase {
     assertAclGroupsEquals(doc, "group1", "group2");
   }
 
+  /**
+   * Tests that the documents are returned in order, with the right
+   * ACLs, when the metadata is collected in parallel.
+   */
+  public void testAcl_enrichmentExecutor()
+      throws RepositoryException, SQLException {
+    insertDTreeAcl(21, 1003, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(22, 2001, Client.PERM_SEECONTENTS);
+    insertDTreeAcl(23, 1001, Client.PERM_FULL);
+
+    LivelinkConnector connector = getConnector();
+    ClientFactory clientFactory = connector.getClientFactory();
+    ClientExecutor executor = new ClientExecutor("test", ImmutableList.of(
+            clientFactory.createClient(), clientFactory.createClient()));
+    DocumentList list = getDocumentList(connector,
+        clientFactory.createClient(), new FileContentHandler(), null,
+        executor, ActionType.ADD, 21, 0, 1001, 22, 0, 1001, 23, 0, 1001);
+
+    Document doc = list.nextDocument();
+    assertEquals("21", Value.getSingleValueString(doc, "DataID"));
+    assertEquals(ImmutableSet.of("user3"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc);
+
+    doc = list.nextDocument();
+    assertEquals("22", Value.getSingleValueString(doc, "DataID"));
+    assertEquals(ImmutableSet.of(),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc, "group1");
+
+    doc = list.nextDocument();
+    assertEquals("23", Value.getSingleValueString(doc, "DataID"));
+    assertEquals(ImmutableSet.of("user1"),
+        getPrincipalsNames(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertAclGroupsEquals(doc);
+
+    assertNull(list.nextDocument());
+  }
+
+  /**
+   * Tests that the checkpoint cancels the enrichment of the rows that
+   * were not returned.
+   */
+  public void testCheckpoint_enrichmentCancelled()
+      throws InterruptedException, RepositoryException {
+    // Hold back every task after the first one until it is released.
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+          private int count = 0;
+
+          @Override
+          protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            RunnableFuture<T> future = super.newTaskFor(callable);
+            synchronized (futures) {
+              futures.add(future);
+            }
+            return future;
+          }
+
+          @Override
+          protected void beforeExecute(Thread t, Runnable r) {
+            if (count++ > 0) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        };
+
+    LivelinkConnector connector = getConnector();
+    ClientFactory clientFactory = connector.getClientFactory();
+    ClientExecutor executor = new ClientExecutor(pool,
+        ImmutableList.of(clientFactory.createClient()));
+    DocumentList list = getDocumentList(connector,
+        clientFactory.createClient(), new FileContentHandler(), null,
+        executor, ActionType.ADD, 21, 0, 1001, 22, 0, 1001, 23, 0, 1001);
+
+    assertNotNull(list.nextDocument());
+    assertNotNull(list.checkpoint());
+    release.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+    synchronized (futures) {
+      assertEquals(3, futures.size());
+      assertFalse(futures.get(0).isCancelled());
+      assertTrue(futures.get(1).isCancelled());
+      assertTrue(futures.get(2).isCancelled());
+    }
+  }
+
   public void testAcl_groupsOnly() throws RepositoryException,
       SQLException {
     insertDTreeAcl(22, 1002, Client.PERM_SEE);
@@ -0,0 +1,95 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.sql.SQLException;
+
+/**
+ * Runs the tests in {@code GenealogistTest} using the
+ * {@code ParentMapGenealogist} implementation.
+ */
+public class ParentMapGenealogistTest extends GenealogistTest {
+  @Override
+  protected Class<? extends Genealogist> getClassUnderTest() {
+    return ParentMapGenealogist.class;
+  }
+
+  /**
+   * Gets a genealogist that includes node 1 and refreshes the map for
+   * every batch, and loads the map by matching a node outside of the
+   * included tree.
+   */
+  private ParentMapGenealogist getLoadedGenealogist(boolean isSqlServer)
+      throws RepositoryException {
+    ParentMapGenealogist genealogist =
+        new ParentMapGenealogist(client, "1", "", 10, 10);
+    genealogist.setSqlServer(isSqlServer);
+    genealogist.setRefreshInterval(0);
+    testMatching(genealogist, new Integer[] { 2000 }, null);
+    assertNotNull(genealogist.parents);
+    return genealogist;
+  }
+
+  /** Tests that a container moved after the map is loaded is refreshed. */
+  private void testRefresh(boolean isSqlServer)
+      throws SQLException, RepositoryException {
+    jdbcFixture.executeUpdate(
+        "update DTree set ModifyDate = timestamp '2016-01-01 00:00:00'");
+    ParentMapGenealogist genealogist = getLoadedGenealogist(isSqlServer);
+
+    // Move 101 from 10 to 20, which is not included.
+    jdbcFixture.executeUpdate("update DTree set ParentID = 20, "
+        + "ModifyDate = timestamp '2016-01-02 00:00:00' where DataID = 101");
+    testMatching(genealogist, new Integer[] { 10100, 1000 }, "1000");
+    assertEquals(20, genealogist.parents.get(101, Genealogist.NO_PARENT));
+  }
+
+  public void testRefresh_sqlServer() throws SQLException, RepositoryException {
+    testRefresh(true);
+  }
+
+  public void testRefresh_oracle() throws SQLException, RepositoryException {
+    testRefresh(false);
+  }
+
+  /** Tests that the stepparent of a volume is refreshed. */
+  public void testRefreshStepparent()
+      throws SQLException, RepositoryException {
+    insertRows(new int[][] {
+        { 4, -1 }, { 40, 4 }, { -40, -1 }, { 400, -40 }, { 4000, 400 } });
+    jdbcFixture.executeUpdate(
+        "update DTree set ModifyDate = timestamp '2016-01-01 00:00:00'");
+    ParentMapGenealogist genealogist = getLoadedGenealogist(false);
+    assertEquals(4, genealogist.parents.get(-40, Genealogist.NO_PARENT));
+
+    // Move the volume node 40 from 4 to 1, which is included.
+    jdbcFixture.executeUpdate("update DTree set ParentID = 1, "
+        + "ModifyDate = timestamp '2016-01-02 00:00:00' where DataID = 40");
+    testMatching(genealogist, new Integer[] { 4000 }, "4000");
+    assertEquals(1, genealogist.parents.get(-40, Genealogist.NO_PARENT));
+  }
+
+  /** Tests that a container created after the map is loaded is added. */
+  public void testNewContainer() throws SQLException, RepositoryException {
+    ParentMapGenealogist genealogist = getLoadedGenealogist(true);
+    assertFalse(genealogist.parents.containsKey(102));
+
+    insertRows(new int[][] { { 102, 10 }, { 1020, 102 } });
+    testMatching(genealogist, new Integer[] { 1020 }, "1020");
+    assertEquals(10, genealogist.parents.get(102, Genealogist.NO_PARENT));
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class PartitionedCheckpointTest extends TestCase {
+  private static final String EARLY =
+      "2001-01-01 00:00:00,24,2013-04-24 08:00:00.000,10042";
+
+  private static final String LATE =
+      "2002-02-02 00:00:00,66,2013-04-24 08:00:00.000,10001";
+
+  public void testIsPartitioned() {
+    assertFalse(PartitionedCheckpoint.isPartitioned(null));
+    assertFalse(PartitionedCheckpoint.isPartitioned(EARLY));
+    assertTrue(PartitionedCheckpoint.isPartitioned("partitions=2;;"));
+  }
+
+  public void testJoin() {
+    assertEquals("partitions=3;" + EARLY + ";;" + LATE,
+        PartitionedCheckpoint.join(new String[] { EARLY, null, LATE }));
+  }
+
+  public void testSplit_plain() throws RepositoryException {
+    assertEquals(Arrays.asList(EARLY, EARLY),
+        Arrays.asList(PartitionedCheckpoint.split(EARLY, 2)));
+    assertEquals(Arrays.asList(null, null, null),
+        Arrays.asList(PartitionedCheckpoint.split(null, 3)));
+  }
+
+  public void testSplit_composite() throws RepositoryException {
+    String[] checkpoints = { LATE, null, EARLY };
+    assertEquals(Arrays.asList(checkpoints),
+        Arrays.asList(PartitionedCheckpoint.split(
+            PartitionedCheckpoint.join(checkpoints), 3)));
+  }
+
+  /** A different number of partitions starts from the merged checkpoint. */
+  public void testSplit_repartitioned() throws RepositoryException {
+    String merged = "2001-01-01 00:00:00,24,2013-04-24 08:00:00.000,10001";
+    assertEquals(Arrays.asList(merged, merged),
+        Arrays.asList(PartitionedCheckpoint.split(
+            PartitionedCheckpoint.join(new String[] { LATE, EARLY, LATE }),
+            2)));
+  }
+
+  public void testMerge() throws RepositoryException {
+    // The earliest insert checkpoint, and the first delete checkpoint.
+    assertEquals("2001-01-01 00:00:00,24,2013-04-24 08:00:00.000,10001",
+        PartitionedCheckpoint.merge("partitions=2;" + LATE + ";" + EARLY));
+  }
+
+  public void testMerge_notStarted() throws RepositoryException {
+    assertEquals(",0,2013-04-24 08:00:00.000,10042",
+        PartitionedCheckpoint.merge("partitions=2;" + EARLY + ";"));
+  }
+
+  public void testMerge_invalid() {
+    try {
+      PartitionedCheckpoint.merge("partitions=3;" + EARLY + ";" + LATE);
+      fail("Expected an exception");
+    } catch (RepositoryException expected) {
+    }
+  }
+}
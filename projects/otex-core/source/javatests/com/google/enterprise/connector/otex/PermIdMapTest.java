@@ -0,0 +1,50 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+public class PermIdMapTest extends TestCase {
+  public void testGetAndPut() {
+    PermIdMap map = new PermIdMap(10, 60, true);
+    assertEquals(PermIdMap.UNKNOWN, map.get(42));
+
+    map.put(42, 7);
+    map.put(43, 7);
+    assertEquals(7, map.get(42));
+    assertEquals(7, map.get(43));
+    assertEquals(2, map.size());
+
+    map.put(42, 8);
+    assertEquals(8, map.get(42));
+    assertEquals(2, map.size());
+  }
+
+  public void testFull() {
+    PermIdMap map = new PermIdMap(2, 60, true);
+    map.put(1, 7);
+    map.put(2, 7);
+
+    // Updating an existing entry does not clear the map.
+    map.put(2, 8);
+    assertEquals(2, map.size());
+
+    // A new entry clears the full map.
+    map.put(3, 7);
+    assertEquals(1, map.size());
+    assertEquals(PermIdMap.UNKNOWN, map.get(1));
+    assertEquals(7, map.get(3));
+  }
+}
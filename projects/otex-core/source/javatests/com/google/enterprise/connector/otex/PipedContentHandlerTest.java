@@ -0,0 +1,161 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.mock.MockClient;
+import com.google.enterprise.connector.otex.client.mock.MockConstants;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PipedContentHandlerTest extends TestCase {
+  private LivelinkConnector connector;
+  private Client client;
+  private PipedContentHandler out;
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    connector = LivelinkConnectorFactory.getConnector("connector.");
+    client = connector.getClientFactory().createClient();
+    out = new PipedContentHandler();
+  }
+
+  @Override
+  protected void tearDown() {
+    out.shutdown();
+  }
+
+  public void testThreadCount_invalid() {
+    try {
+      out.setThreadCount(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testInitialize() throws RepositoryException {
+    out.setThreadCount(3);
+    out.initialize(connector, client);
+    assertEquals(3, out.getRunningThreadCount());
+  }
+
+  /** Initializing again keeps the running threads and queued requests. */
+  public void testInitialize_again() throws IOException, RepositoryException {
+    out.setThreadCount(2);
+    out.initialize(connector, client);
+    InputStream in = out.getInputStream(0,
+        MockConstants.HARMLESS_OBJECT_ID, 0, 0);
+    out.initialize(connector, client);
+    assertEquals(2, out.getRunningThreadCount());
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  /** The threads can be started again after a shutdown. */
+  public void testInitialize_afterShutdown() throws RepositoryException {
+    out.setThreadCount(2);
+    out.initialize(connector, client);
+    out.shutdown();
+    assertEquals(0, out.getRunningThreadCount());
+    out.initialize(connector, client);
+    assertEquals(2, out.getRunningThreadCount());
+  }
+
+  public void testGetInputStream() throws IOException, RepositoryException {
+    out.setThreadCount(2);
+    out.initialize(connector, client);
+    for (int i = 0; i < 5; i++) {
+      InputStream in = out.getInputStream(0,
+          MockConstants.HARMLESS_OBJECT_ID, 0, 0);
+      assertEquals(-1, in.read());
+      in.close();
+    }
+  }
+
+  public void testGetInputStream_exception() throws RepositoryException {
+    out.initialize(connector, client);
+    InputStream in = out.getInputStream(0, MockConstants.IO_OBJECT_ID, 0, 0);
+    try {
+      in.read();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  /** Closing a stream before reading it must not block the producers. */
+  public void testClose() throws IOException, RepositoryException {
+    out.setQueueSize(1);
+    out.initialize(connector, client);
+    for (int i = 0; i < 5; i++) {
+      out.getInputStream(0, MockConstants.HARMLESS_OBJECT_ID, 0, 0).close();
+    }
+    InputStream in = out.getInputStream(0,
+        MockConstants.HARMLESS_OBJECT_ID, 0, 0);
+    assertEquals(-1, in.read());
+  }
+
+  public void testShutdown() throws RepositoryException {
+    out.initialize(connector, client);
+    out.shutdown();
+    assertEquals(0, out.getRunningThreadCount());
+    try {
+      out.getInputStream(0, MockConstants.HARMLESS_OBJECT_ID, 0, 0);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+  }
+
+  /** A producer must stop even if FetchVersion swallows the interrupt. */
+  public void testShutdown_ignoredInterrupt()
+      throws InterruptedException, IOException, RepositoryException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Thread[] producer = new Thread[1];
+    Client blockingClient = new MockClient() {
+        @Override
+        public void FetchVersion(int volumeId, int objectId,
+            int versionNumber, OutputStream out) throws RepositoryException {
+          producer[0] = Thread.currentThread();
+          started.countDown();
+          boolean isReleased = false;
+          while (!isReleased) {
+            try {
+              isReleased = release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // Swallow the interrupt, as some clients do.
+            }
+          }
+          super.FetchVersion(volumeId, objectId, versionNumber, out);
+        }
+      };
+    out.initialize(connector, blockingClient);
+    InputStream in = out.getInputStream(0,
+        MockConstants.HARMLESS_OBJECT_ID, 0, 0);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    out.shutdown();
+    release.countDown();
+    producer[0].join(10000);
+    assertFalse(producer[0].isAlive());
+    in.close();
+  }
+}
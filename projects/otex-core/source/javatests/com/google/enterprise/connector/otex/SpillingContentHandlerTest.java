@@ -0,0 +1,191 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import com.google.enterprise.connector.otex.SpillingContentHandler.MemoryBudget;
+import com.google.enterprise.connector.otex.SpillingContentHandler.SpillingOutputStream;
+import com.google.enterprise.connector.otex.client.Client;
+import com.google.enterprise.connector.otex.client.mock.MockConstants;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class SpillingContentHandlerTest extends TestCase {
+  private File workDirectory;
+
+  @Override
+  protected void setUp() throws IOException {
+    workDirectory = File.createTempFile("spilling", ".dir");
+    workDirectory.delete();
+    workDirectory.mkdir();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : workDirectory.listFiles()) {
+      file.delete();
+    }
+    workDirectory.delete();
+  }
+
+  private byte[] getContent(int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) i;
+    }
+    return content;
+  }
+
+  private byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /** Writes the content in pieces and returns the closed stream. */
+  private SpillingOutputStream write(byte[] content, int threshold,
+      MemoryBudget budget, int sizeHint) throws IOException {
+    SpillingOutputStream out = new SpillingOutputStream(threshold, budget,
+        workDirectory, sizeHint);
+    for (int i = 0; i < content.length; i += 700) {
+      out.write(content, i, Math.min(700, content.length - i));
+    }
+    out.close();
+    return out;
+  }
+
+  public void testInMemory() throws IOException {
+    MemoryBudget budget = new MemoryBudget(100000);
+    byte[] content = getContent(5000);
+    SpillingOutputStream out = write(content, 10000, budget, 0);
+    assertFalse(out.isSpilled());
+    assertTrue(budget.getAvailable() < 100000);
+    assertEquals(0, workDirectory.listFiles().length);
+
+    assertTrue(Arrays.equals(content, read(out.getInputStream())));
+    assertEquals(100000, budget.getAvailable());
+  }
+
+  public void testSpillOverThreshold() throws IOException {
+    MemoryBudget budget = new MemoryBudget(100000);
+    byte[] content = getContent(25000);
+    SpillingOutputStream out = write(content, 10000, budget, 0);
+    assertTrue(out.isSpilled());
+    assertEquals(100000, budget.getAvailable());
+    assertEquals(1, workDirectory.listFiles().length);
+
+    assertTrue(Arrays.equals(content, read(out.getInputStream())));
+    assertEquals(0, workDirectory.listFiles().length);
+  }
+
+  public void testSpillOverBudget() throws IOException {
+    MemoryBudget budget = new MemoryBudget(3000);
+    byte[] content = getContent(5000);
+    SpillingOutputStream out = write(content, 10000, budget, 0);
+    assertTrue(out.isSpilled());
+    assertEquals(3000, budget.getAvailable());
+
+    assertTrue(Arrays.equals(content, read(out.getInputStream())));
+  }
+
+  /** Content in memory holds its share of the budget until closed. */
+  public void testSharedBudget() throws IOException {
+    MemoryBudget budget = new MemoryBudget(20000);
+    SpillingOutputStream first = write(getContent(9000), 10000, budget, 9000);
+    SpillingOutputStream second =
+        write(getContent(9000), 10000, budget, 9000);
+    SpillingOutputStream third = write(getContent(9000), 10000, budget, 9000);
+    assertFalse(first.isSpilled());
+    assertFalse(second.isSpilled());
+    assertTrue(third.isSpilled());
+
+    read(first.getInputStream());
+    read(second.getInputStream());
+    read(third.getInputStream());
+    assertEquals(20000, budget.getAvailable());
+  }
+
+  /** Content that is never closed releases the memory when finalized. */
+  public void testInMemory_notClosed()
+      throws IOException, InterruptedException {
+    MemoryBudget budget = new MemoryBudget(100000);
+    SpillingOutputStream out = write(getContent(5000), 10000, budget, 0);
+    InputStream in = out.getInputStream();
+    assertTrue(budget.getAvailable() < 100000);
+
+    in = null;
+    out = null;
+    for (int i = 0; i < 50 && budget.getAvailable() < 100000; i++) {
+      System.gc();
+      System.runFinalization();
+      Thread.sleep(10);
+    }
+    assertEquals(100000, budget.getAvailable());
+  }
+
+  public void testDiscard() throws IOException {
+    MemoryBudget budget = new MemoryBudget(100000);
+    SpillingOutputStream out = new SpillingOutputStream(10000, budget,
+        workDirectory, 0);
+    out.write(getContent(25000));
+    out.discard();
+    assertEquals(100000, budget.getAvailable());
+    assertEquals(0, workDirectory.listFiles().length);
+  }
+
+  public void testGetInputStream() throws IOException, RepositoryException {
+    LivelinkConnector connector =
+        LivelinkConnectorFactory.getConnector("connector.");
+    Client client = connector.getClientFactory().createClient();
+    SpillingContentHandler handler = new SpillingContentHandler();
+    handler.setWorkDirectory(workDirectory.getPath());
+    handler.initialize(connector, client);
+
+    long available = handler.getMemoryBudget().getAvailable();
+    InputStream in =
+        handler.getInputStream(0, MockConstants.HARMLESS_OBJECT_ID, 0, 100);
+    assertEquals(-1, in.read());
+    in.close();
+    assertEquals(available, handler.getMemoryBudget().getAvailable());
+  }
+
+  public void testGetInputStream_exception() throws RepositoryException {
+    LivelinkConnector connector =
+        LivelinkConnectorFactory.getConnector("connector.");
+    Client client = connector.getClientFactory().createClient();
+    SpillingContentHandler handler = new SpillingContentHandler();
+    handler.setWorkDirectory(workDirectory.getPath());
+    handler.initialize(connector, client);
+
+    long available = handler.getMemoryBudget().getAvailable();
+    try {
+      handler.getInputStream(0, MockConstants.IO_OBJECT_ID, 0, 100);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+    assertEquals(available, handler.getMemoryBudget().getAvailable());
+  }
+}
@@ -74,7 +74,8 @@ public class SqlQueriesTest {
   public void getWhere_startTraversal_withoutJoin() {
     assertEquals("rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(false), "2000-01-01", 42, 1000));
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            ""));
   }
 
   @Test
@@ -82,7 +83,7 @@ public class SqlQueriesTest {
     assertEquals("(AncestorID in (6,-6) or DataID in (6)) and rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
             choice(true), "6,-6", "6",
-            choice(false), "2000-01-01", 42, 1000));
+            choice(false), "2000-01-01", 42, 1000, ""));
   }
 
   @Test
@@ -91,7 +92,8 @@ public class SqlQueriesTest {
         + "(ModifyDate = TIMESTAMP'2000-01-01' and DataID > 42)) "
         + "and rownum <= 1000",
         ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(true), "2000-01-01", 42, 1000));
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            ""));
   }
 
   @Test
@@ -99,10 +101,11 @@ public class SqlQueriesTest {
     String withJoin =
         SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
             choice(true), "6,-6", "6",
-            choice(true), "2000-01-01", 42, 1000);
+            choice(true), "2000-01-01", 42, 1000, "");
     String withoutJoin =
         SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
-            choice(false), null, null, choice(true), "2000-01-01", 42, 1000);
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            "");
     String expectedJoinSnippet =
         " join DTreeAncestors Anc on T.DataID = Anc.DataID "
         + "where (AncestorID in (6,-6) or T.DataID in (6)) and ";
@@ -113,4 +116,31 @@ public class SqlQueriesTest {
     assertEquals(withoutJoin, withJoin.substring(0, index) + " where " +
         withJoin.substring(index + expectedJoinSnippet.length()));
   }
+
+  @Test
+  public void getWhere_partition_oracle() {
+    String partition = ORACLE.getWhere("",
+        "LivelinkTraversalManager.getPartition", "OwnerID", 4, 1,
+        choice(false));
+    assertEquals("mod(abs(OwnerID), 4) = 1 and rownum <= 1000",
+        ORACLE.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(false), "2000-01-01", 42, 1000,
+            partition));
+  }
+
+  @Test
+  public void getWhere_partition_sqlServer() {
+    assertEquals(" where abs(T.DataID) % 4 = 1",
+        SQL_SERVER.getWhere("", "LivelinkTraversalManager.getPartition",
+            "DataID", 4, 1, choice(false)));
+    String partition = SQL_SERVER.getWhere("",
+        "LivelinkTraversalManager.getPartition", "DataID", 4, 1, choice(true));
+    assertEquals(" and abs(T.DataID) % 4 = 1", partition);
+    String query =
+        SQL_SERVER.getWhere("", "LivelinkTraversalManager.getCandidates",
+            choice(false), null, null, choice(true), "2000-01-01", 42, 1000,
+            partition);
+    assertTrue(query,
+        query.contains("T.DataID > 42)) and abs(T.DataID) % 4 = 1 order by"));
+  }
 }
@@ -0,0 +1,127 @@
+// Copyright 2016 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.otex;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class TraversalJournalTest extends TestCase {
+  private static final String START =
+      "2013-04-24 08:00:00,10042,2013-04-24 08:00:00.000,10001";
+
+  private static final String FIRST =
+      "2013-04-25 09:00:00,10043,2013-04-24 08:00:00.000,10001";
+
+  private static final String SECOND =
+      "2013-04-25 09:00:00,10044,2013-04-24 08:00:00.000,10001";
+
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("traversal", ".journal");
+    file.delete();
+    file.deleteOnExit();
+  }
+
+  public void testResume_new() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    assertNull(journal.resume(START));
+    journal.close();
+  }
+
+  /** An uncommitted batch is reported, but returned again. */
+  public void testResume_uncommittedBatch() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    journal.append(FIRST);
+    journal.append(SECOND);
+    journal.close();
+
+    journal = new TraversalJournal(file);
+    assertEquals(SECOND, journal.resume(START));
+
+    // The journal starts over from the same checkpoint.
+    assertNull(journal.resume(START));
+    journal.close();
+  }
+
+  public void testResume_committedBatch() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    journal.append(FIRST);
+    journal.close();
+
+    // The connector manager stored the checkpoint, so start over.
+    journal = new TraversalJournal(file);
+    assertNull(journal.resume(FIRST));
+    journal.close();
+
+    journal = new TraversalJournal(file);
+    assertNull(journal.resume(FIRST));
+    journal.close();
+  }
+
+  public void testResume_nullCheckpoint() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(null));
+    journal.append(FIRST);
+    journal.close();
+
+    journal = new TraversalJournal(file);
+    assertEquals(FIRST, journal.resume(null));
+    journal.close();
+  }
+
+  /** Starting the traversal over discards the uncommitted batch. */
+  public void testStart() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    journal.append(FIRST);
+    journal.start(null);
+    journal.close();
+
+    journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    journal.close();
+  }
+
+  public void testAppend_beforeResume() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    journal.append(FIRST);
+    journal.close();
+
+    assertFalse(file.exists());
+  }
+
+  public void testRead_incompleteRecord() throws IOException {
+    TraversalJournal journal = new TraversalJournal(file);
+    assertNull(journal.resume(START));
+    journal.append(FIRST);
+    journal.close();
+
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(("C " + SECOND.substring(0, 10)).getBytes("UTF-8"));
+    out.close();
+
+    journal = new TraversalJournal(file);
+    assertEquals(FIRST, journal.resume(START));
+    journal.close();
+  }
+}
@@ -283,8 +283,10 @@ public final class MockClientValue implements ClientValue {
   }
 
   @Override
-  public boolean isDefined(String field) {
-    throw new IllegalArgumentException();
+  public boolean isDefined(String field) throws RepositoryException {
+    if (type != ASSOC)
+      throw new IllegalArgumentException("ClientValue is not an assoc.");
+    return fieldNames.contains(field) && getValue(field) != null;
   }
 
   @Override